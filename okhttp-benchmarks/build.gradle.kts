@@ -0,0 +1,19 @@
+plugins {
+  kotlin("jvm")
+  id("me.champeau.jmh")
+}
+
+dependencies {
+  jmh(projects.okhttp)
+  jmh(projects.okhttpTls)
+  jmh(projects.mockwebserver3)
+  jmh(libs.squareup.okio)
+}
+
+jmh {
+  jmhVersion.set(libs.versions.jmh)
+  // Report allocation rates alongside throughput.
+  profilers.add("gc")
+  // Run a subset with -Pjmh.includes=DispatcherBenchmark.
+  providers.gradleProperty("jmh.includes").orNull?.let { includes.add(it) }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks
+
+import java.security.cert.Certificate
+import java.util.concurrent.TimeUnit
+import okhttp3.CertificatePinner
+import okhttp3.tls.HeldCertificate
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Checks a three-certificate chain against a pinner with [pinnedHostCount] pinned hosts. The
+ * matching pin is for the root certificate, so every certificate in the chain is hashed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class CertificatePinnerBenchmark {
+  @Param("1", "100")
+  var pinnedHostCount = 0
+
+  private lateinit var certificatePinner: CertificatePinner
+  private lateinit var chain: List<Certificate>
+
+  @Setup
+  fun setUp() {
+    val root =
+      HeldCertificate.Builder()
+        .certificateAuthority(1)
+        .build()
+    val intermediate =
+      HeldCertificate.Builder()
+        .certificateAuthority(0)
+        .signedBy(root)
+        .build()
+    val server =
+      HeldCertificate.Builder()
+        .addSubjectAlternativeName("www.example.com")
+        .signedBy(intermediate)
+        .build()
+    chain = listOf(server.certificate, intermediate.certificate, root.certificate)
+
+    val builder = CertificatePinner.Builder()
+    for (i in 0 until pinnedHostCount - 1) {
+      builder.add("host$i.example.com", "sha256/AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=")
+    }
+    builder.add("*.example.com", CertificatePinner.pin(root.certificate))
+    certificatePinner = builder.build()
+  }
+
+  @Benchmark
+  fun check() {
+    certificatePinner.check("www.example.com", chain)
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:Suppress("INVISIBLE_MEMBER", "INVISIBLE_REFERENCE")
+
+package okhttp3.benchmarks
+
+import java.util.UUID
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import okhttp3.internal.cache.DiskLruCache
+import okhttp3.internal.concurrent.TaskRunner
+import okio.Buffer
+import okio.ByteString
+import okio.ByteString.Companion.encodeUtf8
+import okio.FileSystem
+import okio.Path
+import okio.buffer
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Reads entries of a [DiskLruCache] from many threads at once, like the cache hits of a busy
+ * process. Each read opens a snapshot and reads both of its values.
+ *
+ * Compare [concurrentReads] to see how much time the threads spend waiting on the cache's lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class ConcurrentDiskLruCacheBenchmark {
+  @Param("false", "true")
+  var concurrentReads = false
+
+  @Param("1000")
+  var entryCount = 0
+
+  private val fileSystem = FileSystem.SYSTEM
+  private lateinit var directory: Path
+  private lateinit var cache: DiskLruCache
+  private lateinit var keys: List<String>
+
+  @Setup
+  fun setUp() {
+    directory = FileSystem.SYSTEM_TEMPORARY_DIRECTORY / "okhttp-benchmarks-${UUID.randomUUID()}"
+    cache =
+      DiskLruCache(
+        fileSystem = fileSystem,
+        directory = directory,
+        appVersion = 1,
+        valueCount = 2,
+        maxSize = Long.MAX_VALUE,
+        taskRunner = TaskRunner.INSTANCE,
+      )
+    cache.concurrentReads = concurrentReads
+    keys = List(entryCount) { i -> "$i".encodeUtf8().md5().hex() }
+
+    val metadata = "https://example.com/\nGET\n0\nHTTP/1.1 200 OK\n0\n".encodeUtf8()
+    val body = ByteString.of(*ByteArray(1024) { 'a'.code.toByte() })
+    for (key in keys) {
+      val editor = cache.edit(key)!!
+      editor.newSink(0).buffer().use { it.write(metadata) }
+      editor.newSink(1).buffer().use { it.write(body) }
+      editor.commit()
+    }
+  }
+
+  @TearDown
+  fun tearDown() {
+    cache.close()
+    fileSystem.deleteRecursively(directory)
+  }
+
+  @Benchmark
+  fun get(): Long {
+    val key = keys[ThreadLocalRandom.current().nextInt(keys.size)]
+    cache[key]!!.use { snapshot ->
+      val buffer = Buffer()
+      snapshot.getSource(0).buffer().readAll(buffer)
+      snapshot.getSource(1).buffer().readAll(buffer)
+      return buffer.size
+    }
+  }
+}
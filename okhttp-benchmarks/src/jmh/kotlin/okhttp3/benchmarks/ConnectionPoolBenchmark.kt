@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:Suppress("INVISIBLE_MEMBER", "INVISIBLE_REFERENCE")
+
+package okhttp3.benchmarks
+
+import java.lang.ref.WeakReference
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.ProxySelector
+import java.net.Socket
+import java.util.concurrent.TimeUnit
+import javax.net.SocketFactory
+import okhttp3.Address
+import okhttp3.Authenticator
+import okhttp3.ConnectionListener
+import okhttp3.ConnectionSpec
+import okhttp3.Dns
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Route
+import okhttp3.internal.concurrent.TaskRunner
+import okhttp3.internal.connection.Locks.withLock
+import okhttp3.internal.connection.PoolConnectionUser
+import okhttp3.internal.connection.RealCall
+import okhttp3.internal.connection.RealConnection
+import okhttp3.internal.connection.RealConnectionPool
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Looks up connections in a pool that holds many busy connections spread over many addresses. No
+ * lookup succeeds, so this measures the cost of searching the pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class ConnectionPoolBenchmark {
+  @Param("10000")
+  var connectionCount = 0
+
+  @Param("100", "1000")
+  var addressCount = 0
+
+  private lateinit var pool: RealConnectionPool
+  private lateinit var client: OkHttpClient
+  private lateinit var call: RealCall
+  private lateinit var addresses: List<Address>
+  private lateinit var unknownAddress: Address
+  private lateinit var unknownRoutes: List<Route>
+  private var next = 0
+
+  @Setup
+  fun setUp() {
+    pool =
+      RealConnectionPool(
+        taskRunner = TaskRunner.INSTANCE,
+        maxIdleConnections = Int.MAX_VALUE,
+        keepAliveDuration = 5L,
+        timeUnit = TimeUnit.MINUTES,
+        connectionListener = ConnectionListener.NONE,
+        exchangeFinderFactory = { _, _, _ -> throw UnsupportedOperationException() },
+      )
+    client = OkHttpClient()
+    call = client.newCall(Request.Builder().url("http://example.com/").build()) as RealCall
+
+    addresses = List(addressCount) { i -> newAddress("host$i.example.com") }
+    for (i in 0 until connectionCount) {
+      val address = addresses[i % addressCount]
+      val connection =
+        RealConnection.newTestConnection(
+          taskRunner = TaskRunner.INSTANCE,
+          connectionPool = pool,
+          route = Route(address, Proxy.NO_PROXY, socketAddress(i % addressCount)),
+          socket = Socket(),
+          idleAtNs = System.nanoTime(),
+        )
+      connection.withLock {
+        // Fill the connection so it isn't eligible for new calls.
+        connection.calls += WeakReference(call)
+        pool.put(connection)
+      }
+    }
+
+    unknownAddress = newAddress("unknown.example.com")
+    unknownRoutes = listOf(Route(unknownAddress, Proxy.NO_PROXY, socketAddress(addressCount)))
+  }
+
+  @Benchmark
+  fun acquireBusyAddress(): RealConnection? {
+    val address = addresses[next++ % addresses.size]
+    return pool.callAcquirePooledConnection(
+      doExtensiveHealthChecks = false,
+      address = address,
+      connectionUser = PoolConnectionUser,
+      routes = null,
+      requireMultiplexed = false,
+    )
+  }
+
+  @Benchmark
+  fun acquireUnknownAddress(): RealConnection? {
+    return pool.callAcquirePooledConnection(
+      doExtensiveHealthChecks = false,
+      address = unknownAddress,
+      connectionUser = PoolConnectionUser,
+      routes = unknownRoutes,
+      requireMultiplexed = false,
+    )
+  }
+
+  @Benchmark
+  fun closeConnections(): Long = pool.closeConnections(System.nanoTime())
+
+  private fun newAddress(host: String): Address {
+    return Address(
+      uriHost = host,
+      uriPort = 80,
+      dns = Dns.SYSTEM,
+      socketFactory = SocketFactory.getDefault(),
+      sslSocketFactory = null,
+      hostnameVerifier = null,
+      certificatePinner = null,
+      proxyAuthenticator = Authenticator.NONE,
+      proxy = null,
+      protocols = listOf(Protocol.HTTP_1_1),
+      connectionSpecs = listOf(ConnectionSpec.CLEARTEXT),
+      proxySelector = ProxySelector.getDefault(),
+    )
+  }
+
+  private fun socketAddress(i: Int): InetSocketAddress {
+    val ip = byteArrayOf(10, (i shr 16).toByte(), (i shr 8).toByte(), i.toByte())
+    return InetSocketAddress(InetAddress.getByAddress(ip), 80)
+  }
+}
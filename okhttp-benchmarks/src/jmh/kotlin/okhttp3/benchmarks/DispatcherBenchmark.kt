@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks
+
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.Dispatcher
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.ResponseBody.Companion.toResponseBody
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Enqueues a burst of calls spread over many hosts and waits for them all to complete. Calls are
+ * answered by an interceptor so this measures the dispatcher rather than the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class DispatcherBenchmark {
+  @Param("false", "true")
+  var perHostQueues = false
+
+  @Param("1", "100", "5000")
+  var hostCount = 0
+
+  @Param("20000")
+  var callCount = 0
+
+  private lateinit var executorService: ExecutorService
+  private lateinit var client: OkHttpClient
+  private lateinit var requests: List<Request>
+
+  @Setup
+  fun setUp() {
+    executorService = Executors.newFixedThreadPool(16)
+    val dispatcher =
+      Dispatcher(executorService, perHostQueues).apply {
+        maxRequests = 64
+        maxRequestsPerHost = 5
+      }
+    client =
+      OkHttpClient.Builder()
+        .dispatcher(dispatcher)
+        .addInterceptor { chain ->
+          Response.Builder()
+            .request(chain.request())
+            .protocol(Protocol.HTTP_1_1)
+            .code(200)
+            .message("OK")
+            .body("".toResponseBody())
+            .build()
+        }
+        .build()
+    requests =
+      List(callCount) { i ->
+        Request.Builder()
+          .url("http://host${i % hostCount}.example.com/$i")
+          .build()
+      }
+  }
+
+  @TearDown
+  fun tearDown() {
+    executorService.shutdown()
+  }
+
+  @Benchmark
+  fun enqueueAndComplete() {
+    val latch = CountDownLatch(requests.size)
+    val callback =
+      object : Callback {
+        override fun onFailure(
+          call: Call,
+          e: IOException,
+        ) {
+          latch.countDown()
+        }
+
+        override fun onResponse(
+          call: Call,
+          response: Response,
+        ) {
+          response.close()
+          latch.countDown()
+        }
+      }
+    for (request in requests) {
+      client.newCall(request).enqueue(callback)
+    }
+    latch.await()
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks
+
+import java.util.concurrent.TimeUnit
+import okhttp3.Headers
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Looks up headers by name in a response with [headerCount] headers. Names are compared
+ * case-insensitively, so lookups use a different case than the stored names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class HeadersBenchmark {
+  @Param("10", "50")
+  var headerCount = 0
+
+  private lateinit var headers: Headers
+
+  @Setup
+  fun setUp() {
+    val builder = Headers.Builder()
+    for (i in 0 until headerCount - 2) {
+      builder.add("X-Custom-Header-$i", "value-$i")
+    }
+    builder.add("Content-Type", "application/json")
+    builder.add("Set-Cookie", "a=b")
+    builder.add("Set-Cookie", "c=d")
+    headers = builder.build()
+  }
+
+  @Benchmark
+  fun getPresent(): String? = headers["content-type"]
+
+  @Benchmark
+  fun getMissing(): String? = headers["etag"]
+
+  @Benchmark
+  fun values(): List<String> = headers.values("set-cookie")
+
+  @Benchmark
+  fun build(): Headers = headers.newBuilder().set("content-type", "text/plain").build()
+}
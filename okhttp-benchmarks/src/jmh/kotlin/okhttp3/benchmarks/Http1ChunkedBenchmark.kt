@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:Suppress("INVISIBLE_MEMBER", "INVISIBLE_REFERENCE")
+
+package okhttp3.benchmarks
+
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.ProxySelector
+import java.util.concurrent.TimeUnit
+import javax.net.SocketFactory
+import okhttp3.Address
+import okhttp3.Authenticator
+import okhttp3.ConnectionSpec
+import okhttp3.Dns
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Route
+import okhttp3.internal.connection.RealCall
+import okhttp3.internal.http.ExchangeCodec
+import okhttp3.internal.http1.Http1ExchangeCodec
+import okio.Buffer
+import okio.ByteString
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Writes a request and reads a chunked response from an in-memory buffer with
+ * [Http1ExchangeCodec]. The response body is split into [chunkSize]-byte chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class Http1ChunkedBenchmark {
+  @Param("65536")
+  var bodySize = 0
+
+  @Param("128", "8192")
+  var chunkSize = 0
+
+  private val request = Request.Builder().url("http://example.com/").build()
+  private lateinit var response: ByteString
+  private val carrier = NullCarrier()
+
+  @Setup
+  fun setUp() {
+    val buffer = Buffer()
+    buffer.writeUtf8("HTTP/1.1 200 OK\r\n")
+    buffer.writeUtf8("Content-Type: application/octet-stream\r\n")
+    buffer.writeUtf8("Transfer-Encoding: chunked\r\n")
+    buffer.writeUtf8("\r\n")
+    var remaining = bodySize
+    while (remaining > 0) {
+      val byteCount = minOf(remaining, chunkSize)
+      buffer.writeHexadecimalUnsignedLong(byteCount.toLong()).writeUtf8("\r\n")
+      buffer.write(ByteArray(byteCount) { 'a'.code.toByte() })
+      buffer.writeUtf8("\r\n")
+      remaining -= byteCount
+    }
+    buffer.writeUtf8("0\r\n\r\n")
+    response = buffer.readByteString()
+  }
+
+  @Benchmark
+  fun readChunkedBody(): Long {
+    val codec = Http1ExchangeCodec(null, carrier, Buffer().write(response), Buffer())
+    codec.writeRequestHeaders(request)
+    codec.finishRequest()
+    val response =
+      codec.readResponseHeaders(expectContinue = false)!!
+        .request(request)
+        .build()
+    val body = Buffer()
+    codec.openResponseBodySource(response).use { source ->
+      while (source.read(body, 8192L) != -1L) {
+        body.clear()
+      }
+    }
+    return codec.trailers().size.toLong()
+  }
+
+  /** A carrier with a plain route, used to format the request line. */
+  private class NullCarrier : ExchangeCodec.Carrier {
+    override val route: Route =
+      Route(
+        Address(
+          uriHost = "example.com",
+          uriPort = 80,
+          dns = Dns.SYSTEM,
+          socketFactory = SocketFactory.getDefault(),
+          sslSocketFactory = null,
+          hostnameVerifier = null,
+          certificatePinner = null,
+          proxyAuthenticator = Authenticator.NONE,
+          proxy = null,
+          protocols = listOf(Protocol.HTTP_1_1),
+          connectionSpecs = listOf(ConnectionSpec.CLEARTEXT),
+          proxySelector = ProxySelector.getDefault(),
+        ),
+        Proxy.NO_PROXY,
+        InetSocketAddress(InetAddress.getLoopbackAddress(), 80),
+      )
+
+    override fun trackFailure(
+      call: RealCall,
+      e: IOException?,
+    ) {
+    }
+
+    override fun noNewExchanges() {
+    }
+
+    override fun cancel() {
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:Suppress("INVISIBLE_MEMBER", "INVISIBLE_REFERENCE")
+
+package okhttp3.benchmarks
+
+import java.util.concurrent.TimeUnit
+import okhttp3.internal.http2.ErrorCode
+import okhttp3.internal.http2.Header
+import okhttp3.internal.http2.Http2Reader
+import okhttp3.internal.http2.Http2Writer
+import okhttp3.internal.http2.Settings
+import okio.Buffer
+import okio.BufferedSource
+import okio.ByteString
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Parses the frames a client receives for a batch of concurrent responses: a SETTINGS frame, then
+ * for each stream a HEADERS frame, some DATA frames and a WINDOW_UPDATE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class Http2ReaderBenchmark {
+  @Param("10")
+  var streamCount = 0
+
+  @Param("1024", "65536")
+  var bodySize = 0
+
+  private lateinit var frames: ByteString
+  private val handler = CountingHandler()
+
+  @Setup
+  fun setUp() {
+    val buffer = Buffer()
+    val writer = Http2Writer(buffer, client = false)
+    writer.settings(Settings().apply { this[Settings.INITIAL_WINDOW_SIZE] = 1 shl 20 })
+
+    val responseHeaders =
+      listOf(
+        Header(Header.RESPONSE_STATUS, "200"),
+        Header("content-type", "application/json; charset=utf-8"),
+        Header("cache-control", "private, max-age=0"),
+        Header("date", "Tue, 01 Oct 2024 12:00:00 GMT"),
+        Header("server", "benchmark"),
+      )
+    val body = ByteArray(bodySize) { 'a'.code.toByte() }
+    for (i in 0 until streamCount) {
+      val streamId = i * 2 + 1
+      writer.headers(outFinished = false, streamId = streamId, headerBlock = responseHeaders)
+      val source = Buffer().write(body)
+      while (source.size > 0L) {
+        val byteCount = minOf(source.size, writer.maxDataLength().toLong()).toInt()
+        writer.data(source.size == byteCount.toLong(), streamId, source, byteCount)
+      }
+      writer.windowUpdate(streamId, bodySize.toLong())
+    }
+    writer.flush()
+    frames = buffer.readByteString()
+  }
+
+  @Benchmark
+  fun readFrames(): Long {
+    handler.byteCount = 0L
+    val reader = Http2Reader(Buffer().write(frames), client = true)
+    while (reader.nextFrame(requireSettings = false, handler)) {
+      // Keep reading.
+    }
+    return handler.byteCount
+  }
+
+  /** Discards DATA payloads and counts the bytes consumed so nothing is optimized away. */
+  private class CountingHandler : Http2Reader.Handler {
+    var byteCount = 0L
+
+    override fun data(
+      inFinished: Boolean,
+      streamId: Int,
+      source: BufferedSource,
+      length: Int,
+    ) {
+      source.skip(length.toLong())
+      byteCount += length
+    }
+
+    override fun headers(
+      inFinished: Boolean,
+      streamId: Int,
+      associatedStreamId: Int,
+      headerBlock: List<Header>,
+    ) {
+      byteCount += headerBlock.size
+    }
+
+    override fun rstStream(
+      streamId: Int,
+      errorCode: ErrorCode,
+    ) {
+    }
+
+    override fun settings(
+      clearPrevious: Boolean,
+      settings: Settings,
+    ) {
+    }
+
+    override fun ackSettings() {
+    }
+
+    override fun ping(
+      ack: Boolean,
+      payload1: Int,
+      payload2: Int,
+    ) {
+    }
+
+    override fun goAway(
+      lastGoodStreamId: Int,
+      errorCode: ErrorCode,
+      debugData: ByteString,
+    ) {
+    }
+
+    override fun windowUpdate(
+      streamId: Int,
+      windowSizeIncrement: Long,
+    ) {
+      byteCount += windowSizeIncrement
+    }
+
+    override fun priority(
+      streamId: Int,
+      streamDependency: Int,
+      weight: Int,
+      exclusive: Boolean,
+    ) {
+    }
+
+    override fun pushPromise(
+      streamId: Int,
+      promisedStreamId: Int,
+      requestHeaders: List<Header>,
+    ) {
+    }
+
+    override fun alternateService(
+      streamId: Int,
+      origin: String,
+      protocol: ByteString,
+      host: String,
+      port: Int,
+      maxAge: Long,
+    ) {
+    }
+
+    override fun origin(origins: List<String>) {
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks
+
+import java.util.concurrent.TimeUnit
+import okhttp3.HttpUrl
+import okhttp3.HttpUrl.Companion.toHttpUrl
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/** Parses URLs, and resolves a relative link against a parsed URL. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class HttpUrlBenchmark {
+  @Param(
+    "https://example.com/",
+    "https://api.example.com:8443/v1/users/12345/notifications?limit=50&cursor=abc%20def#top",
+    "http://xn--n3h.example/%E2%98%83/search?q=%E2%98%83&lang=en",
+  )
+  var url = ""
+
+  private val base = "https://www.example.com/a/b/c/index.html".toHttpUrl()
+
+  @Benchmark
+  fun parse(): HttpUrl = url.toHttpUrl()
+
+  @Benchmark
+  fun resolve(): HttpUrl? = base.resolve("../d/e?f=g")
+}
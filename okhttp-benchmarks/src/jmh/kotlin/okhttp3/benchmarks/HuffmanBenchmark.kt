@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:Suppress("INVISIBLE_MEMBER", "INVISIBLE_REFERENCE")
+
+package okhttp3.benchmarks
+
+import java.util.concurrent.TimeUnit
+import okhttp3.internal.http2.Huffman
+import okio.Buffer
+import okio.ByteString
+import okio.ByteString.Companion.encodeUtf8
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/** Huffman encodes and decodes a cookie-like header value of [length] characters. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class HuffmanBenchmark {
+  @Param("32", "4096")
+  var length = 0
+
+  private lateinit var value: ByteString
+  private lateinit var encoded: ByteString
+  private lateinit var encodeBytes: ByteArray
+
+  @Setup
+  fun setUp() {
+    val alphabet = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789=;-_"
+    value = String(CharArray(length) { i -> alphabet[(i * 31) % alphabet.length] }).encodeUtf8()
+    encoded = Buffer().apply { Huffman.encode(value, this) }.readByteString()
+    encodeBytes = ByteArray(length)
+  }
+
+  @Benchmark
+  fun encode(): Int = Huffman.encodeIfShorter(value, encodeBytes)
+
+  @Benchmark
+  fun decode(): Long {
+    val sink = Buffer()
+    Huffman.decode(Buffer().write(encoded), encoded.size.toLong(), sink)
+    return sink.size
+  }
+}
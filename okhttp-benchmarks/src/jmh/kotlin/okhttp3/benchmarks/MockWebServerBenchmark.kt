@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks
+
+import java.util.concurrent.TimeUnit
+import mockwebserver3.Dispatcher
+import mockwebserver3.MockResponse
+import mockwebserver3.MockWebServer
+import mockwebserver3.RecordedRequest
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okio.blackholeSink
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Makes complete calls to a [MockWebServer] over loopback, reusing pooled connections. This covers
+ * the interceptor chain, the connection pool, the exchange codecs and body streaming together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+open class MockWebServerBenchmark {
+  @Param("HTTP_1_1", "H2_PRIOR_KNOWLEDGE")
+  var protocol = ""
+
+  @Param("0", "65536")
+  var bodySize = 0
+
+  private lateinit var server: MockWebServer
+  private lateinit var client: OkHttpClient
+  private lateinit var request: Request
+
+  @Setup
+  fun setUp() {
+    val protocols = listOf(Protocol.valueOf(protocol))
+    val response = MockResponse(body = "a".repeat(bodySize))
+    server =
+      MockWebServer().apply {
+        this.protocols = protocols
+        dispatcher =
+          object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest) = response
+          }
+        start()
+      }
+    client =
+      OkHttpClient.Builder()
+        .protocols(protocols)
+        .build()
+    request = Request.Builder().url(server.url("/")).build()
+  }
+
+  /** The server records every request. Discard them so they don't accumulate. */
+  @TearDown(Level.Iteration)
+  fun discardRecordedRequests() {
+    while (server.takeRequest(0L, TimeUnit.SECONDS) != null) {
+      // Keep discarding.
+    }
+  }
+
+  @TearDown
+  fun tearDown() {
+    client.dispatcher.executorService.shutdown()
+    client.connectionPool.evictAll()
+    server.close()
+  }
+
+  @Benchmark
+  fun call(): Long {
+    client.newCall(request).execute().use { response ->
+      return response.body.source().readAll(blackholeSink())
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:Suppress("INVISIBLE_MEMBER", "INVISIBLE_REFERENCE")
+
+package okhttp3.benchmarks
+
+import java.util.concurrent.TimeUnit
+import okhttp3.internal.publicsuffix.PublicSuffixDatabase
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Finds the effective top-level domain plus one of a hostname. This is done for every cookie a
+ * server sets. The database is loaded before measuring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class PublicSuffixDatabaseBenchmark {
+  @Param(
+    "www.example.com",
+    "a.b.c.example.co.uk",
+    "foo.bar.appspot.com",
+    "www.city.kawasaki.jp",
+  )
+  var domain = ""
+
+  private val database = PublicSuffixDatabase.get()
+
+  @Setup
+  fun setUp() {
+    database.getEffectiveTldPlusOne(domain)
+  }
+
+  @Benchmark
+  fun getEffectiveTldPlusOne(): String? = database.getEffectiveTldPlusOne(domain)
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:Suppress("INVISIBLE_MEMBER", "INVISIBLE_REFERENCE")
+
+package okhttp3.benchmarks
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import okhttp3.internal.concurrent.TaskQueue
+import okhttp3.internal.concurrent.TaskRunner
+import okhttp3.internal.threadFactory
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Runs tasks on a task runner that has many queues with delayed tasks, like the ping and timeout
+ * queues of a process with many HTTP/2 connections and web sockets. Each benchmark thread uses its
+ * own queue, so this measures the runner's shared scheduling work.
+ *
+ * Compare runners by running this benchmark on both revisions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class TaskRunnerBenchmark {
+  @Param("10", "1000", "10000")
+  var delayedQueueCount = 0
+
+  internal lateinit var backend: TaskRunner.RealBackend
+  internal lateinit var taskRunner: TaskRunner
+
+  @Setup
+  fun setUp() {
+    backend = TaskRunner.RealBackend(threadFactory("TaskRunnerBenchmark", daemon = true))
+    taskRunner = TaskRunner(backend)
+    repeat(delayedQueueCount) {
+      taskRunner.newQueue().execute("delayed", TimeUnit.HOURS.toNanos(1)) {}
+    }
+  }
+
+  @TearDown
+  fun tearDown() {
+    // Interrupts the coordinator, which cancels the delayed tasks.
+    backend.executor.shutdownNow()
+  }
+
+  @State(Scope.Thread)
+  open class ThreadQueue {
+    internal lateinit var queue: TaskQueue
+
+    @Setup
+    fun setUp(benchmark: TaskRunnerBenchmark) {
+      queue = benchmark.taskRunner.newQueue()
+    }
+  }
+
+  @Benchmark
+  fun executeAndAwait(threadQueue: ThreadQueue) {
+    val latch = CountDownLatch(1)
+    threadQueue.queue.execute("task") {
+      latch.countDown()
+    }
+    latch.await()
+  }
+}
@@ -6,7 +6,7 @@ plugins {
 dependencies {
   constraints {
     project.rootProject.subprojects.forEach { subproject ->
-      if (subproject.name != "okhttp-bom") {
+      if (subproject.name != "okhttp-bom" && subproject.name != "okhttp-benchmarks") {
         api(subproject)
       }
     }
@@ -81,4 +81,25 @@ sealed class ConnectionEvent {
     override val timestampNs: Long,
     override val connection: Connection,
   ) : ConnectionEvent()
+
+  data class PrewarmConnectStart(
+    override val timestampNs: Long,
+    val route: Route,
+  ) : ConnectionEvent()
+
+  data class PrewarmConnectFailed(
+    override val timestampNs: Long,
+    val route: Route,
+    val exception: IOException,
+  ) : ConnectionEvent() {
+    override fun closes(event: ConnectionEvent): Boolean = event is PrewarmConnectStart && route == event.route
+  }
+
+  data class PrewarmConnectEnd(
+    override val timestampNs: Long,
+    override val connection: Connection,
+    val route: Route,
+  ) : ConnectionEvent() {
+    override fun closes(event: ConnectionEvent): Boolean = event is PrewarmConnectStart && route == event.route
+  }
 }
@@ -18,6 +18,7 @@ package okhttp3
 import assertk.assertThat
 import assertk.assertions.isCloseTo
 import assertk.assertions.isFalse
+import assertk.assertions.isIn
 import assertk.assertions.isInstanceOf
 import assertk.assertions.matchesPredicate
 import java.util.Deque
@@ -123,7 +124,10 @@ open class RecordingConnectionListener(
 
   private fun checkForStartEvent(e: ConnectionEvent) {
     if (eventSequence.isEmpty()) {
-      assertThat(e).isInstanceOf(ConnectionEvent.ConnectStart::class.java)
+      assertThat(e.javaClass).isIn(
+        ConnectionEvent.ConnectStart::class.java,
+        ConnectionEvent.PrewarmConnectStart::class.java,
+      )
     } else {
       eventSequence.forEach loop@{
         when (e.closes(it)) {
@@ -182,4 +186,20 @@ open class RecordingConnectionListener(
   }
 
   override fun noNewExchanges(connection: Connection) = logEvent(NoNewExchanges(System.nanoTime(), connection))
+
+  override fun prewarmConnectStart(route: Route) = logEvent(ConnectionEvent.PrewarmConnectStart(System.nanoTime(), route))
+
+  override fun prewarmConnectFailed(
+    route: Route,
+    failure: IOException,
+  ) = logEvent(
+    ConnectionEvent.PrewarmConnectFailed(System.nanoTime(), route, failure),
+  )
+
+  override fun prewarmConnectEnd(
+    connection: Connection,
+    route: Route,
+  ) {
+    logEvent(ConnectionEvent.PrewarmConnectEnd(System.nanoTime(), connection, route))
+  }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3
+
+import java.io.IOException
+import java.net.HttpURLConnection.HTTP_UNAVAILABLE
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Tunes each host's concurrency limit from the latency and failures of calls to that host. Install
+ * one with [Dispatcher.concurrencyLimiter]; it replaces [Dispatcher.maxRequestsPerHost].
+ *
+ * This uses additive increase, multiplicative decrease. Each call to a host is a sample of that
+ * host's health: the time from sending the request headers to receiving the response headers.
+ *
+ *  * If the sample is fast and the host is using at least half of its limit, the limit grows by 1.
+ *    Hosts that can handle more concurrent calls, such as HTTP/2 hosts that multiplex many streams
+ *    on one connection, grow towards [maxLimit].
+ *
+ *  * If the sample is slower than [latencyTolerance] times the host's typical latency, or if it
+ *    fails or the server responds with 429 or 503, the limit is multiplied by [backoffRatio].
+ *    Degraded hosts shrink towards [minLimit].
+ *
+ * Calls that are already running when a limit shrinks keep running.
+ *
+ * A host that has no calls in flight and whose limit is back at [initialLimit] is forgotten.
+ */
+@ExperimentalOkHttpApi
+class AdaptiveConcurrencyLimiter
+  @JvmOverloads
+  constructor(
+    /** The limit of a host that hasn't been sampled yet. */
+    @get:JvmName("initialLimit") val initialLimit: Int = 5,
+    @get:JvmName("minLimit") val minLimit: Int = 1,
+    @get:JvmName("maxLimit") val maxLimit: Int = 200,
+    /** Multiplies the limit when a call fails or is too slow. */
+    @get:JvmName("backoffRatio") val backoffRatio: Double = 0.9,
+    /** A call is too slow if it takes this many times longer than the host's typical latency. */
+    @get:JvmName("latencyTolerance") val latencyTolerance: Double = 2.0,
+  ) {
+    /** Hosts that have calls in flight or whose limits have changed. */
+    private val hosts = ConcurrentHashMap<String, HostState>()
+
+    /** Called with a host when its limit grows. */
+    private val limitIncreasedListeners = CopyOnWriteArrayList<(host: String) -> Unit>()
+
+    init {
+      require(minLimit >= 1) { "minLimit < 1: $minLimit" }
+      require(initialLimit in minLimit..maxLimit) { "initialLimit out of range: $initialLimit" }
+      require(backoffRatio > 0.0 && backoffRatio < 1.0) {
+        "backoffRatio out of range: $backoffRatio"
+      }
+      require(latencyTolerance >= 1.0) { "latencyTolerance < 1.0: $latencyTolerance" }
+    }
+
+    /** Returns the current concurrency limit for [host]. */
+    fun limit(host: String): Int = hosts[host]?.limit ?: initialLimit
+
+    /** Returns a snapshot of the concurrency limits of the hosts that have been sampled. */
+    fun limits(): Map<String, Int> = hosts.mapValues { it.value.limit }
+
+    internal fun newEventListener(): EventListener = SamplingEventListener()
+
+    /** Calls [listener] with a host each time its limit grows, so waiting calls can start. */
+    internal fun addLimitIncreasedListener(listener: (host: String) -> Unit) {
+      limitIncreasedListeners += listener
+    }
+
+    internal fun removeLimitIncreasedListener(listener: (host: String) -> Unit) {
+      limitIncreasedListeners -= listener
+    }
+
+    internal fun requestStarted(host: String) {
+      // Count the request while computing so a concurrent removeIfIdle() can't remove this state.
+      hosts.compute(host) { _, existing ->
+        val state = existing ?: HostState(initialLimit)
+        state.lock.withLock {
+          state.inFlight++
+        }
+        state
+      }
+    }
+
+    /**
+     * Records a sample for a request to [host] that was started with [requestStarted]. Pass a null
+     * [latencyNanos] if the sample shouldn't change the limit.
+     */
+    internal fun requestFinished(
+      host: String,
+      latencyNanos: Long?,
+      failed: Boolean,
+    ) {
+      val state = hosts[host] ?: return
+      val previousLimit: Int
+      val limit: Int
+      val idle: Boolean
+      state.lock.withLock {
+        val inFlight = state.inFlight--
+        idle = state.inFlight == 0
+        previousLimit = state.limit
+        if (latencyNanos != null) {
+          state.limit = nextLimit(state, inFlight, latencyNanos, failed)
+        }
+        limit = state.limit
+      }
+
+      if (idle && limit == initialLimit) removeIfIdle(host)
+      if (limit > previousLimit) {
+        for (listener in limitIncreasedListeners) {
+          listener(host)
+        }
+      }
+    }
+
+    /** Records [latencyNanos] and returns the host's new limit. Call this holding its lock. */
+    private fun nextLimit(
+      state: HostState,
+      inFlight: Int,
+      latencyNanos: Long,
+      failed: Boolean,
+    ): Int {
+      val typicalLatencyNanos = state.typicalLatencyNanos
+      val slow = typicalLatencyNanos != 0L && latencyNanos > typicalLatencyNanos * latencyTolerance
+      state.typicalLatencyNanos =
+        when (typicalLatencyNanos) {
+          0L -> latencyNanos
+          else -> typicalLatencyNanos + (latencyNanos - typicalLatencyNanos) / 16
+        }
+
+      return when {
+        failed || slow -> maxOf(minLimit, (state.limit * backoffRatio).toInt())
+        inFlight * 2 >= state.limit -> minOf(maxLimit, state.limit + 1)
+        else -> state.limit
+      }
+    }
+
+    /** Forgets [host] unless a request started or its limit changed since it was found idle. */
+    private fun removeIfIdle(host: String) {
+      hosts.computeIfPresent(host) { _, state ->
+        state.lock.withLock {
+          when {
+            state.inFlight == 0 && state.limit == initialLimit -> null
+            else -> state
+          }
+        }
+      }
+    }
+
+    private class HostState(
+      @Volatile var limit: Int,
+    ) {
+      val lock = ReentrantLock()
+
+      /** Requests that have started but not finished. Guarded by [lock]. */
+      var inFlight = 0
+
+      /** A moving average of recent latencies, or 0 if this host hasn't been sampled. */
+      var typicalLatencyNanos = 0L
+    }
+
+    /** Times each request of a single call, from its request headers to its response headers. */
+    private inner class SamplingEventListener : EventListener() {
+      private var requestStartNanos = -1L
+
+      override fun requestHeadersStart(call: Call) {
+        finish(call, latencyNanos = null, failed = false)
+        requestStartNanos = System.nanoTime()
+        requestStarted(call.request().url.host)
+      }
+
+      override fun responseHeadersEnd(
+        call: Call,
+        response: Response,
+      ) {
+        val latencyNanos = System.nanoTime() - requestStartNanos
+        val failed = response.code == HTTP_UNAVAILABLE || response.code == HTTP_TOO_MANY_REQUESTS
+        finish(call, latencyNanos, failed)
+      }
+
+      override fun requestFailed(
+        call: Call,
+        ioe: IOException,
+      ) {
+        failed(call)
+      }
+
+      override fun responseFailed(
+        call: Call,
+        ioe: IOException,
+      ) {
+        failed(call)
+      }
+
+      override fun callFailed(
+        call: Call,
+        ioe: IOException,
+      ) {
+        failed(call)
+      }
+
+      override fun callEnd(call: Call) {
+        finish(call, latencyNanos = null, failed = false)
+      }
+
+      private fun failed(call: Call) {
+        // Don't blame the host for calls that the application canceled.
+        val latencyNanos = if (call.isCanceled()) null else System.nanoTime() - requestStartNanos
+        finish(call, latencyNanos, failed = true)
+      }
+
+      private fun finish(
+        call: Call,
+        latencyNanos: Long?,
+        failed: Boolean,
+      ) {
+        if (requestStartNanos == -1L) return
+        requestStartNanos = -1L
+        requestFinished(call.request().url.host, latencyNanos, failed)
+      }
+    }
+
+    private companion object {
+      const val HTTP_TOO_MANY_REQUESTS = 429
+    }
+  }
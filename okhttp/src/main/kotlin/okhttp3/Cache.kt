@@ -24,12 +24,16 @@ import java.security.cert.CertificateEncodingException
 import java.security.cert.CertificateException
 import java.security.cert.CertificateFactory
 import java.util.TreeSet
+import java.util.concurrent.ConcurrentHashMap
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import okhttp3.internal.EMPTY_HEADERS
 import okhttp3.internal.cache.CacheRequest
 import okhttp3.internal.cache.CacheStrategy
+import okhttp3.internal.cache.CertificateChainStore
 import okhttp3.internal.cache.DiskLruCache
+import okhttp3.internal.cache.InFlightResponses
+import okhttp3.internal.cache.MemoryCache
 import okhttp3.internal.closeQuietly
 import okhttp3.internal.concurrent.TaskRunner
 import okhttp3.internal.http.HttpMethod
@@ -40,7 +44,9 @@ import okhttp3.internal.toLongOrDefault
 import okio.Buffer
 import okio.BufferedSink
 import okio.BufferedSource
+import okio.ByteString
 import okio.ByteString.Companion.decodeBase64
+import okio.ByteString.Companion.decodeHex
 import okio.ByteString.Companion.encodeUtf8
 import okio.ByteString.Companion.toByteString
 import okio.FileSystem
@@ -186,12 +192,61 @@ class Cache internal constructor(
   private var networkCount = 0
   private var hitCount = 0
   private var requestCount = 0
+  private var coalescedCount = 0
+
+  /** Recently-read entries, checked against [cache] before each use. Null if disabled. */
+  @Volatile private var memoryCache: MemoryCache<MemoryEntry>? = null
+
+  /** Bodies up to this size are held in [memoryCache]. */
+  @Volatile private var maxMemoryBodySize = 0L
+
+  /** Relays share files by name, so this needs the cache to be on the system file system. */
+  private val inFlightResponses =
+    when {
+      fileSystem === FileSystem.SYSTEM -> InFlightResponses(directory.toFile())
+      else -> null
+    }
+
+  @Volatile private var coalesceRequests = false
+
+  /** Certificate chains of entries written in the binary format. */
+  private val certificateChains = CertificateChainStore(cache)
+
+  @Volatile private var binaryEntryMetadata = false
+
+  /** Keys of stale responses being validated in the background. */
+  private val revalidatingKeys = ConcurrentHashMap.newKeySet<String>()
 
   val isClosed: Boolean
     get() = cache.isClosed()
 
+  /** Returns false if the response for [key] is already being validated in the background. */
+  internal fun beginRevalidation(key: String): Boolean = revalidatingKeys.add(key)
+
+  internal fun endRevalidation(key: String) {
+    revalidatingKeys.remove(key)
+  }
+
+  /** Returns the network responses to share among cache misses, or null if that is disabled. */
+  internal fun inFlightResponses(): InFlightResponses? {
+    return if (coalesceRequests) inFlightResponses else null
+  }
+
   internal fun get(request: Request): Response? {
     val key = key(request.url)
+    val memoryCache = this.memoryCache
+    val memoryEntry = memoryCache?.get(key)
+
+    // If the whole response is in memory, confirm it's current without opening any files.
+    if (memoryEntry?.body != null) {
+      if (cache.readSequenceNumber(key) == memoryEntry.sequenceNumber) {
+        val body = Buffer().write(memoryEntry.body)
+        return memoryEntry.entry.response(key, memoryEntry.sequenceNumber, body)
+          .takeIfMatches(memoryEntry.entry, request)
+      }
+      memoryCache.remove(key, memoryEntry)
+    }
+
     val snapshot: DiskLruCache.Snapshot =
       try {
         cache[key] ?: return null
@@ -200,20 +255,80 @@ class Cache internal constructor(
       }
 
     val entry: Entry =
-      try {
-        Entry(snapshot.getSource(ENTRY_METADATA))
-      } catch (_: IOException) {
-        snapshot.closeQuietly()
-        return null
+      if (memoryEntry != null && memoryEntry.sequenceNumber == snapshot.sequenceNumber) {
+        memoryEntry.entry
+      } else {
+        try {
+          readEntry(snapshot)
+        } catch (_: IOException) {
+          snapshot.closeQuietly()
+          return null
+        }
+      }
+
+    val response =
+      when {
+        memoryCache == null || memoryEntry?.entry === entry -> entry.response(snapshot)
+        else -> remember(memoryCache, entry, snapshot) ?: return null
       }
+    return response.takeIfMatches(entry, request)
+  }
+
+  /** Reads the metadata of [snapshot], which may be in either format. */
+  @Throws(IOException::class)
+  private fun readEntry(snapshot: DiskLruCache.Snapshot): Entry {
+    val source = snapshot.getSource(ENTRY_METADATA).buffer()
+    return when {
+      source.rangeEquals(0L, BINARY_ENTRY_PREFIX) -> Entry(source, certificateChains)
+      else -> Entry(source)
+    }
+  }
 
-    val response = entry.response(snapshot)
-    if (!entry.matches(request, response)) {
-      response.body.closeQuietly()
+  @Throws(IOException::class)
+  private fun Entry.write(editor: DiskLruCache.Editor) {
+    when {
+      binaryEntryMetadata -> writeBinaryTo(editor, certificateChains)
+      else -> writeTo(editor)
+    }
+  }
+
+  private fun Response.takeIfMatches(
+    entry: Entry,
+    request: Request,
+  ): Response? {
+    if (!entry.matches(request, this)) {
+      body.closeQuietly()
       return null
     }
+    return this
+  }
 
-    return response
+  /**
+   * Adds [entry] to [memoryCache] and returns its response. If the body is small enough to keep in
+   * memory too, it is read now and [snapshot] is closed.
+   */
+  private fun remember(
+    memoryCache: MemoryCache<MemoryEntry>,
+    entry: Entry,
+    snapshot: DiskLruCache.Snapshot,
+  ): Response? {
+    val key = snapshot.key()
+    val metadataByteCount = snapshot.getLength(ENTRY_METADATA)
+    val bodyByteCount = snapshot.getLength(ENTRY_BODY)
+    if (bodyByteCount > maxMemoryBodySize) {
+      memoryCache.put(key, MemoryEntry(entry, snapshot.sequenceNumber, null), metadataByteCount)
+      return entry.response(snapshot)
+    }
+
+    val body: ByteString =
+      try {
+        snapshot.use { it.getSource(ENTRY_BODY).buffer().readByteString() }
+      } catch (_: IOException) {
+        return null
+      }
+    val memoryEntry = MemoryEntry(entry, snapshot.sequenceNumber, body)
+    memoryCache.put(key, memoryEntry, metadataByteCount + body.size)
+    return entry.response(key, snapshot.sequenceNumber, Buffer().write(body))
   }
 
   internal fun put(response: Response): CacheRequest? {
@@ -239,10 +354,12 @@ class Cache internal constructor(
     }
 
     val entry = Entry(response)
+    val key = key(response.request.url)
     var editor: DiskLruCache.Editor? = null
     try {
-      editor = cache.edit(key(response.request.url)) ?: return null
-      entry.writeTo(editor)
+      editor = cache.edit(key) ?: return null
+      memoryCache?.remove(key)
+      entry.write(editor)
       return RealCacheRequest(editor)
     } catch (_: IOException) {
       abortQuietly(editor)
@@ -252,7 +369,10 @@ class Cache internal constructor(
 
   @Throws(IOException::class)
   internal fun remove(request: Request) {
-    cache.remove(key(request.url))
+    val key = key(request.url)
+    memoryCache?.remove(key)
+    inFlightResponses?.invalidate(key)
+    cache.remove(key)
   }
 
   internal fun update(
@@ -260,11 +380,13 @@ class Cache internal constructor(
     network: Response,
   ) {
     val entry = Entry(network)
-    val snapshot = (cached.body as CacheResponseBody).snapshot
+    val body = cached.body as CacheResponseBody
     var editor: DiskLruCache.Editor? = null
     try {
-      editor = snapshot.edit() ?: return // edit() returns null if snapshot is not current.
-      entry.writeTo(editor)
+      // edit() returns null if the cached response is not current.
+      editor = cache.edit(body.key, body.sequenceNumber) ?: return
+      memoryCache?.remove(body.key)
+      entry.write(editor)
       editor.commit()
     } catch (_: IOException) {
       abortQuietly(editor)
@@ -301,6 +423,8 @@ class Cache internal constructor(
    */
   @Throws(IOException::class)
   fun delete() {
+    memoryCache?.evictAll()
+    inFlightResponses?.invalidateAll()
     cache.delete()
   }
 
@@ -310,6 +434,8 @@ class Cache internal constructor(
    */
   @Throws(IOException::class)
   fun evictAll() {
+    memoryCache?.evictAll()
+    inFlightResponses?.invalidateAll()
     cache.evictAll()
   }
 
@@ -336,9 +462,10 @@ class Cache internal constructor(
         while (delegate.hasNext()) {
           try {
             delegate.next().use { snapshot ->
-              val metadata = snapshot.getSource(ENTRY_METADATA).buffer()
-              nextUrl = metadata.readUtf8LineStrict()
-              return true
+              if (!CertificateChainStore.isChainKey(snapshot.key())) {
+                nextUrl = readUrl(snapshot.getSource(ENTRY_METADATA).buffer())
+                return true
+              }
             }
           } catch (_: IOException) {
             // We couldn't read the metadata for this snapshot; possibly because the host filesystem
@@ -374,6 +501,60 @@ class Cache internal constructor(
   /** Max size of the cache (in bytes). */
   fun maxSize(): Long = cache.maxSize
 
+  /**
+   * Set to true to read cached responses without waiting on writes or other reads to this cache.
+   * Reads still move entries to the front of the eviction queue, but this is recorded in the
+   * background so an entry read immediately before an eviction may be evicted anyway.
+   */
+  @ExperimentalOkHttpApi
+  fun setConcurrentReads(enabled: Boolean) {
+    cache.concurrentReads = enabled
+  }
+
+  /**
+   * Keeps up to [maxSize] bytes of recently-read responses in memory so that cache hits don't
+   * re-read and re-parse their headers from disk. Bodies of at most [maxBodySize] bytes are kept
+   * too, and hits on those responses don't open any files. Sizes are measured as stored on disk.
+   *
+   * Responses in memory are checked against the disk cache on every hit, so they are never served
+   * after they were updated, removed, or evicted there. Set [maxSize] to 0 to disable this.
+   */
+  @ExperimentalOkHttpApi
+  fun setMemoryCacheSize(
+    maxSize: Long,
+    maxBodySize: Long,
+  ) {
+    require(maxSize >= 0L) { "maxSize < 0: $maxSize" }
+    require(maxBodySize >= 0L) { "maxBodySize < 0: $maxBodySize" }
+    maxMemoryBodySize = maxBodySize
+    memoryCache = if (maxSize > 0L) MemoryCache(maxSize) else null
+  }
+
+  /**
+   * Set to true to share one network response among concurrent requests that miss the cache for
+   * the same URL. Requests that miss while another request's response is in flight wait for its
+   * headers and then read its body as it arrives, instead of making their own network requests.
+   *
+   * Only `GET` requests without conditions or `no-cache` and `no-store` directives are shared, and
+   * only if the response is cacheable and satisfies the waiting request's `Vary` headers. This has
+   * no effect unless the cache is on [FileSystem.SYSTEM].
+   */
+  @ExperimentalOkHttpApi
+  fun setCoalesceRequests(enabled: Boolean) {
+    coalesceRequests = enabled
+  }
+
+  /**
+   * Set to true to write cached responses' metadata in a compact binary format. It is faster to
+   * read than the default text format, and stores each HTTPS certificate chain once rather than
+   * once per response. Responses are always readable in either format, so this may be changed
+   * freely; the format of each response is chosen when it is written.
+   */
+  @ExperimentalOkHttpApi
+  fun setBinaryEntryMetadata(enabled: Boolean) {
+    binaryEntryMetadata = enabled
+  }
+
   @Throws(IOException::class)
   override fun flush() {
     cache.flush()
@@ -381,6 +562,7 @@ class Cache internal constructor(
 
   @Throws(IOException::class)
   override fun close() {
+    memoryCache?.evictAll()
     cache.close()
   }
 
@@ -416,12 +598,24 @@ class Cache internal constructor(
     hitCount++
   }
 
+  @Synchronized internal fun trackCoalescedResponse() {
+    coalescedCount++
+  }
+
   @Synchronized fun networkCount(): Int = networkCount
 
   @Synchronized fun hitCount(): Int = hitCount
 
   @Synchronized fun requestCount(): Int = requestCount
 
+  /**
+   * Returns the number of network requests that were avoided by reading another request's
+   * response. These are also counted by [networkCount].
+   */
+  @ExperimentalOkHttpApi
+  @Synchronized
+  fun coalescedRequestCount(): Int = coalescedCount
+
   private inner class RealCacheRequest(
     private val editor: DiskLruCache.Editor,
   ) : CacheRequest {
@@ -581,6 +775,55 @@ class Cache internal constructor(
       }
     }
 
+    /**
+     * Reads an entry in the binary format written by [writeBinaryTo]. Its fields are in the same
+     * order as the text format, but numbers are varints and strings are prefixed by their length
+     * in bytes:
+     *
+     * ```
+     * 00 4f 6b 48 02              prefix and format version
+     * url, method                 strings
+     * vary headers                count, then a name and value for each
+     * protocol, code, message     string, varint, string
+     * response headers            count, then a name and value for each
+     * sent and received millis    8-byte longs
+     * handshake                   0, or 1 then TLS version, cipher suite, peer and local chains
+     * ```
+     *
+     * Header names are a varint: 0 followed by a string, or the 1-based index of a common name in
+     * [INTERNED_HEADER_NAMES]. Certificate chains are 0 if empty, or 1 followed by the 32-byte
+     * SHA-256 of a chain in [certificateChains].
+     */
+    @Throws(IOException::class)
+    constructor(source: BufferedSource, certificateChains: CertificateChainStore) {
+      source.use {
+        if (source.readByteString(BINARY_ENTRY_PREFIX.size.toLong()) != BINARY_ENTRY_PREFIX) {
+          throw IOException("unexpected entry format")
+        }
+        val urlString = source.readString()
+        url = urlString.toHttpUrlOrNull() ?: throw IOException("Cache corruption for $urlString")
+        requestMethod = source.readString()
+        varyHeaders = source.readHeaders()
+        protocol = Protocol.get(source.readString())
+        code = source.readVarint().toInt()
+        message = source.readString()
+        responseHeaders = source.readHeaders()
+        sentRequestMillis = source.readLong()
+        receivedResponseMillis = source.readLong()
+        handshake =
+          when (source.readByte().toInt()) {
+            0 -> null
+            else -> {
+              val tlsVersion = TlsVersion.forJavaName(source.readString())
+              val cipherSuite = CipherSuite.forJavaName(source.readString())
+              val peerCertificates = source.readCertificateChain(certificateChains)
+              val localCertificates = source.readCertificateChain(certificateChains)
+              Handshake.get(tlsVersion, cipherSuite, peerCertificates, localCertificates)
+            }
+          }
+      }
+    }
+
     constructor(response: Response) {
       this.url = response.request.url
       this.varyHeaders = response.varyHeaders()
@@ -634,6 +877,64 @@ class Cache internal constructor(
       }
     }
 
+    /** Writes this entry in the format read by the binary constructor. */
+    @Throws(IOException::class)
+    fun writeBinaryTo(
+      editor: DiskLruCache.Editor,
+      certificateChains: CertificateChainStore,
+    ) {
+      // Store the chains first so that entries never refer to chains that weren't written.
+      val peerChain = handshake?.peerCertificates?.let { certificateChains.putIfNotEmpty(it) }
+      val localChain = handshake?.localCertificates?.let { certificateChains.putIfNotEmpty(it) }
+
+      editor.newSink(ENTRY_METADATA).buffer().use { sink ->
+        sink.write(BINARY_ENTRY_PREFIX)
+        sink.writeString(url.toString())
+        sink.writeString(requestMethod)
+        sink.writeHeaders(varyHeaders)
+        sink.writeString(protocol.toString())
+        sink.writeVarint(code.toLong())
+        sink.writeString(message)
+        sink.writeHeaders(responseHeaders)
+        sink.writeLong(sentRequestMillis)
+        sink.writeLong(receivedResponseMillis)
+
+        if (handshake == null) {
+          sink.writeByte(0)
+        } else {
+          sink.writeByte(1)
+          sink.writeString(handshake.tlsVersion.javaName)
+          sink.writeString(handshake.cipherSuite.javaName)
+          sink.writeCertificateChain(peerChain)
+          sink.writeCertificateChain(localChain)
+        }
+      }
+    }
+
+    @Throws(IOException::class)
+    private fun CertificateChainStore.putIfNotEmpty(certificates: List<Certificate>): ByteString? {
+      return if (certificates.isEmpty()) null else put(certificates)
+    }
+
+    private fun BufferedSink.writeCertificateChain(hash: ByteString?) {
+      if (hash == null) {
+        writeByte(0)
+      } else {
+        writeByte(1)
+        write(hash)
+      }
+    }
+
+    @Throws(IOException::class)
+    private fun BufferedSource.readCertificateChain(
+      certificateChains: CertificateChainStore,
+    ): List<Certificate> {
+      return when (readByte().toInt()) {
+        0 -> emptyList()
+        else -> certificateChains[readByteString(SHA256_SIZE)]
+      }
+    }
+
     @Throws(IOException::class)
     private fun readCertificateList(source: BufferedSource): List<Certificate> {
       val length = readInt(source)
@@ -682,6 +983,22 @@ class Cache internal constructor(
     }
 
     fun response(snapshot: DiskLruCache.Snapshot): Response {
+      val bodySource =
+        object : ForwardingSource(snapshot.getSource(ENTRY_BODY)) {
+          @Throws(IOException::class)
+          override fun close() {
+            snapshot.close()
+            super.close()
+          }
+        }.buffer()
+      return response(snapshot.key(), snapshot.sequenceNumber, bodySource)
+    }
+
+    fun response(
+      key: String,
+      sequenceNumber: Long,
+      bodySource: BufferedSource,
+    ): Response {
       val contentType = responseHeaders["Content-Type"]
       val contentLength = responseHeaders["Content-Length"]
       val cacheRequest = Request(url, varyHeaders, requestMethod)
@@ -691,7 +1008,7 @@ class Cache internal constructor(
         .code(code)
         .message(message)
         .headers(responseHeaders)
-        .body(CacheResponseBody(snapshot, contentType, contentLength))
+        .body(CacheResponseBody(key, sequenceNumber, bodySource, contentType, contentLength))
         .handshake(handshake)
         .sentRequestAtMillis(sentRequestMillis)
         .receivedResponseAtMillis(receivedResponseMillis)
@@ -707,25 +1024,14 @@ class Cache internal constructor(
     }
   }
 
+  /** A cached body, streamed from disk or from memory. */
   private class CacheResponseBody(
-    val snapshot: DiskLruCache.Snapshot,
+    val key: String,
+    val sequenceNumber: Long,
+    private val bodySource: BufferedSource,
     private val contentType: String?,
     private val contentLength: String?,
   ) : ResponseBody() {
-    private val bodySource: BufferedSource
-
-    init {
-      val source = snapshot.getSource(ENTRY_BODY)
-      bodySource =
-        object : ForwardingSource(source) {
-          @Throws(IOException::class)
-          override fun close() {
-            snapshot.close()
-            super.close()
-          }
-        }.buffer()
-    }
-
     override fun contentType(): MediaType? = contentType?.toMediaTypeOrNull()
 
     override fun contentLength(): Long = contentLength?.toLongOrDefault(-1L) ?: -1L
@@ -733,12 +1039,75 @@ class Cache internal constructor(
     override fun source(): BufferedSource = bodySource
   }
 
+  /** An entry's parsed metadata, and its body if that is small. */
+  private class MemoryEntry(
+    val entry: Entry,
+    val sequenceNumber: Long,
+    val body: ByteString?,
+  )
+
   companion object {
     private const val VERSION = 201105
     private const val ENTRY_METADATA = 0
     private const val ENTRY_BODY = 1
     private const val ENTRY_COUNT = 2
 
+    /** Begins metadata in the binary format. A text entry can't start with a NUL byte. */
+    private val BINARY_ENTRY_PREFIX = "004f6b4802".decodeHex()
+    private const val SHA256_SIZE = 32L
+
+    /**
+     * Header names that binary entries write as an index into this list. Only append to this list:
+     * existing entries refer to names by their positions.
+     */
+    private val INTERNED_HEADER_NAMES =
+      listOf(
+        "Accept",
+        "Accept-Encoding",
+        "Accept-Language",
+        "Accept-Ranges",
+        "Access-Control-Allow-Origin",
+        "Age",
+        "Allow",
+        "Alt-Svc",
+        "Authorization",
+        "Cache-Control",
+        "Connection",
+        "Content-Disposition",
+        "Content-Encoding",
+        "Content-Language",
+        "Content-Length",
+        "Content-Location",
+        "Content-Range",
+        "Content-Security-Policy",
+        "Content-Type",
+        "Cookie",
+        "Date",
+        "ETag",
+        "Expires",
+        "Keep-Alive",
+        "Last-Modified",
+        "Link",
+        "Location",
+        "Origin",
+        "Pragma",
+        "Referer",
+        "Server",
+        "Set-Cookie",
+        "Strict-Transport-Security",
+        "Transfer-Encoding",
+        "User-Agent",
+        "Vary",
+        "Via",
+        "Warning",
+        "X-Content-Type-Options",
+        "X-Frame-Options",
+        "X-XSS-Protection",
+      ).flatMap { listOf(it, it.lowercase()) } // HTTP/2 and HTTP/3 header names are lowercase.
+
+    private val INTERNED_HEADER_INDEXES =
+      INTERNED_HEADER_NAMES.withIndex().associate { (index, name) -> name to index + 1 }
+
     @JvmStatic
     fun key(url: HttpUrl): String = url.toString().encodeUtf8().md5().hex()
 
@@ -756,6 +1125,81 @@ class Cache internal constructor(
       }
     }
 
+    /** Returns the URL of an entry's metadata in either format. */
+    @Throws(IOException::class)
+    private fun readUrl(metadata: BufferedSource): String {
+      if (!metadata.rangeEquals(0L, BINARY_ENTRY_PREFIX)) return metadata.readUtf8LineStrict()
+      metadata.skip(BINARY_ENTRY_PREFIX.size.toLong())
+      return metadata.readString()
+    }
+
+    /** Writes [value] 7 bits at a time, least significant first. */
+    private fun BufferedSink.writeVarint(value: Long) {
+      var remaining = value
+      while (remaining and 0x7fL.inv() != 0L) {
+        writeByte(((remaining and 0x7fL) or 0x80L).toInt())
+        remaining = remaining ushr 7
+      }
+      writeByte(remaining.toInt())
+    }
+
+    @Throws(IOException::class)
+    private fun BufferedSource.readVarint(): Long {
+      var result = 0L
+      var shift = 0
+      while (shift < 64) {
+        val b = readByte().toLong()
+        result = result or ((b and 0x7fL) shl shift)
+        if (b and 0x80L == 0L) return result
+        shift += 7
+      }
+      throw IOException("varint too long")
+    }
+
+    private fun BufferedSink.writeString(value: String) {
+      val bytes = value.encodeUtf8()
+      writeVarint(bytes.size.toLong())
+      write(bytes)
+    }
+
+    @Throws(IOException::class)
+    private fun BufferedSource.readString(): String {
+      val byteCount = readVarint()
+      if (byteCount < 0L || byteCount > Int.MAX_VALUE) throw IOException("bad length $byteCount")
+      return readUtf8(byteCount)
+    }
+
+    private fun BufferedSink.writeHeaders(headers: Headers) {
+      writeVarint(headers.size.toLong())
+      for (i in 0 until headers.size) {
+        val name = headers.name(i)
+        val index = INTERNED_HEADER_INDEXES[name]
+        if (index != null) {
+          writeVarint(index.toLong())
+        } else {
+          writeVarint(0L)
+          writeString(name)
+        }
+        writeString(headers.value(i))
+      }
+    }
+
+    @Throws(IOException::class)
+    private fun BufferedSource.readHeaders(): Headers {
+      val count = readVarint()
+      val result = Headers.Builder()
+      for (i in 0L until count) {
+        val name =
+          when (val index = readVarint()) {
+            0L -> readString()
+            in 1L..INTERNED_HEADER_NAMES.size -> INTERNED_HEADER_NAMES[index.toInt() - 1]
+            else -> throw IOException("unexpected header name $index")
+          }
+        result.addLenient(name, readString())
+      }
+      return result.build()
+    }
+
     /**
      * Returns true if none of the Vary headers have changed between [cachedRequest] and
      * [newRequest].
@@ -67,6 +67,17 @@ class CacheControl internal constructor(
   @get:JvmName("onlyIfCached") val onlyIfCached: Boolean,
   @get:JvmName("noTransform") val noTransform: Boolean,
   @get:JvmName("immutable") val immutable: Boolean,
+  /**
+   * The duration past the response's freshness lifetime that it can be served while it is
+   * revalidated in the background. See
+   * [RFC 5861, 3](https://tools.ietf.org/html/rfc5861#section-3).
+   */
+  @get:JvmName("staleWhileRevalidateSeconds") val staleWhileRevalidateSeconds: Int,
+  /**
+   * The duration past the response's freshness lifetime that it can be served if validating it
+   * fails. See [RFC 5861, 4](https://tools.ietf.org/html/rfc5861#section-4).
+   */
+  @get:JvmName("staleIfErrorSeconds") val staleIfErrorSeconds: Int,
   internal var headerValue: String?,
 ) {
   @JvmName("-deprecated_noCache")
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3
+
+/**
+ * The priority class of a call. Attach one to a request as a tag:
+ *
+ * ```kotlin
+ * val request = Request.Builder()
+ *   .url("https://example.com/")
+ *   .tag(CallPriority::class, CallPriority.HIGH)
+ *   .build()
+ * ```
+ *
+ * The dispatcher only starts higher priority calls first if its
+ * [scheduling policy][Dispatcher.schedulingPolicy] honors priorities. On HTTP/2 connections the
+ * priority also weights each call's share of the connection when several request bodies are being
+ * uploaded at once. Calls without this tag have [NORMAL] priority.
+ */
+@ExperimentalOkHttpApi
+class CallPriority(
+  /** Calls with higher values are started first. */
+  @get:JvmName("value") val value: Int,
+) {
+  override fun equals(other: Any?): Boolean = other is CallPriority && other.value == value
+
+  override fun hashCode(): Int = value
+
+  override fun toString(): String = "CallPriority($value)"
+
+  companion object {
+    /** Work the user isn't waiting for, like prefetches and bulk syncs. */
+    @JvmField
+    val LOW = CallPriority(-1)
+
+    @JvmField
+    val NORMAL = CallPriority(0)
+
+    /** Work the user is waiting for. */
+    @JvmField
+    val HIGH = CallPriority(1)
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3
+
+import java.io.InterruptedIOException
+
+/**
+ * Decides the order in which a [Dispatcher] starts calls that are waiting for capacity.
+ *
+ * Queued calls with a higher [priority] start first. Calls with equal priority start in order
+ * of their [deadlines][deadlineNanoTime], and calls with equal deadlines start in the order they
+ * were enqueued. If a call is still queued when its deadline passes, the dispatcher doesn't start
+ * it. Instead the call fails with an [InterruptedIOException].
+ *
+ * The dispatcher asks the policy for a call's priority and deadline once, when the call is
+ * enqueued. Implementations must be safe for concurrent use and must not block.
+ */
+@ExperimentalOkHttpApi
+interface CallSchedulingPolicy {
+  /** Returns the priority of [call]. Calls with higher priorities start first. */
+  fun priority(call: Call): Int
+
+  /**
+   * Returns the [System.nanoTime] by which [call] must start, or [Long.MAX_VALUE] if it has no
+   * deadline.
+   */
+  fun deadlineNanoTime(
+    call: Call,
+    enqueuedAtNanoTime: Long,
+  ): Long
+
+  companion object {
+    /** Start calls in the order they're enqueued. This is the default policy. */
+    @JvmField
+    val FIFO: CallSchedulingPolicy = BuiltInPolicy("FIFO", priorities = false, deadlines = false)
+
+    /**
+     * Start calls with a higher [CallPriority] tag first. Calls without that tag have
+     * [CallPriority.NORMAL] priority.
+     */
+    @JvmField
+    val PRIORITY: CallSchedulingPolicy =
+      BuiltInPolicy("PRIORITY", priorities = true, deadlines = false)
+
+    /**
+     * Start calls with a higher [CallPriority] tag first, and calls with the same priority in
+     * order of their deadlines.
+     *
+     * A call's deadline is the time it was enqueued plus its [call timeout][Call.timeout], or the
+     * timeout's own deadline if that is sooner. Calls without a timeout have no deadline.
+     *
+     * The call timeout normally starts when the call starts. Under this policy a call that waits
+     * in the queue for its entire call timeout fails with the same exception that the timeout
+     * throws, without using a thread or a connection.
+     */
+    @JvmField
+    val EARLIEST_DEADLINE_FIRST: CallSchedulingPolicy =
+      BuiltInPolicy("EARLIEST_DEADLINE_FIRST", priorities = true, deadlines = true)
+
+    private class BuiltInPolicy(
+      private val name: String,
+      private val priorities: Boolean,
+      private val deadlines: Boolean,
+    ) : CallSchedulingPolicy {
+      override fun priority(call: Call): Int {
+        if (!priorities) return 0
+        return call.request().tag(CallPriority::class)?.value ?: 0
+      }
+
+      override fun deadlineNanoTime(
+        call: Call,
+        enqueuedAtNanoTime: Long,
+      ): Long {
+        if (!deadlines) return Long.MAX_VALUE
+
+        val timeout = call.timeout()
+        var result = Long.MAX_VALUE
+        val timeoutNanos = timeout.timeoutNanos()
+        if (timeoutNanos != 0L && timeoutNanos < Long.MAX_VALUE - enqueuedAtNanoTime) {
+          result = enqueuedAtNanoTime + timeoutNanos
+        }
+        if (timeout.hasDeadline()) {
+          result = minOf(result, timeout.deadlineNanoTime())
+        }
+        return result
+      }
+
+      override fun toString(): String = name
+    }
+  }
+}
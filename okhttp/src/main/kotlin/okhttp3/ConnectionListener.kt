@@ -78,6 +78,30 @@ abstract class ConnectionListener {
    */
   open fun noNewExchanges(connection: Connection) {}
 
+  /**
+   * Invoked when the pool starts a connection to satisfy a [ConnectionPool.AddressPolicy]. These
+   * connections aren't started by a call, so [connectStart] isn't invoked for them.
+   */
+  open fun prewarmConnectStart(route: Route) {}
+
+  /**
+   * Invoked when a connection started by [prewarmConnectStart] fails to be established. The pool
+   * retries after the policy's backoff delay.
+   */
+  open fun prewarmConnectFailed(
+    route: Route,
+    failure: IOException,
+  ) {}
+
+  /**
+   * Invoked when a connection started by [prewarmConnectStart] is established and has been added
+   * to the pool where calls may use it.
+   */
+  open fun prewarmConnectEnd(
+    connection: Connection,
+    route: Route,
+  ) {}
+
   @ExperimentalOkHttpApi
   companion object {
     val NONE: ConnectionListener = object : ConnectionListener() {}
@@ -126,6 +126,78 @@ class ConnectionPool internal constructor(
     delegate.evictAll()
   }
 
+  /**
+   * Limits how many bytes HTTP/2 connections in this pool will buffer for calls that haven't read
+   * them yet. Once the limit is reached, connections stop granting their peers more flow control
+   * window until calls catch up. Each stream can still receive up to its own window, so this is a
+   * soft limit. By default there's no limit.
+   */
+  @ExperimentalOkHttpApi
+  fun setHttp2ReceiveBudget(byteCount: Long) {
+    delegate.http2ReceiveBudget.limit = byteCount
+  }
+
+  /** Returns the number of bytes HTTP/2 connections in this pool have buffered for calls. */
+  @ExperimentalOkHttpApi
+  fun http2BufferedByteCount(): Long = delegate.http2ReceiveBudget.bufferedByteCount
+
+  /**
+   * Set to true for new HTTP/2 connections to queue outgoing frames and write them to the socket
+   * from a single task. Frames from many concurrent streams are then combined into fewer, larger
+   * writes and flushes. Callers only block on the socket once too many frames are queued. This is
+   * off by default.
+   */
+  @ExperimentalOkHttpApi
+  fun setHttp2CoalescedWrites(enabled: Boolean) {
+    delegate.http2CoalesceWrites = enabled
+  }
+
+  /**
+   * Returns the average number of frames per socket flush of the pooled HTTP/2 connections that
+   * coalesce writes, or 0.0 if there are none. Higher is better.
+   */
+  @ExperimentalOkHttpApi
+  fun http2FramesPerFlush(): Double = delegate.http2FramesPerFlush()
+
+  /**
+   * Set to true for new HTTP/2 connections to grow and shrink their receive window to fit the
+   * bandwidth-delay product, as measured with `PING` round trips. This lets fast, distant servers
+   * send more before waiting for a window update, and keeps slow connections from buffering more
+   * than they need. By default each connection's receive window is fixed at 16 MiB.
+   */
+  @ExperimentalOkHttpApi
+  fun setHttp2AdaptiveReceiveWindow(enabled: Boolean) {
+    delegate.http2AdaptiveWindow = enabled
+  }
+
+  /**
+   * Set to true to reuse an HTTP/2 connection for a different host as soon as the connection's
+   * verified certificate covers that host, without waiting for DNS to show that both hosts share
+   * an IP address. This lets hosts under one wildcard certificate share a single connection.
+   *
+   * If the server sends an `ORIGIN` frame (RFC 8336), only the origins it lists are coalesced,
+   * whether or not this is enabled. Servers that can't handle a request for a coalesced host should
+   * respond with `421 Misdirected Request`; OkHttp then retries on a dedicated connection.
+   */
+  @ExperimentalOkHttpApi
+  fun setAggressiveHttp2Coalescing(enabled: Boolean) {
+    delegate.aggressiveCoalescing = enabled
+  }
+
+  /**
+   * Spreads each address's calls across up to [maxConnections] HTTP/2 connections. New calls use
+   * the connection carrying the fewest calls, and when every connection is busy the pool opens
+   * another in the background. This avoids a single TCP connection's congestion window and
+   * head-of-line blocking limiting the throughput to one server.
+   *
+   * Connections beyond this maximum are still opened when all of them have reached the server's
+   * concurrent stream limit. By default calls share a single connection per address.
+   */
+  @ExperimentalOkHttpApi
+  fun setMaxHttp2ConnectionsPerAddress(maxConnections: Int) {
+    delegate.maxHttp2ConnectionsPerAddress = maxConnections
+  }
+
   /**
    * Sets a policy that applies to [address].
    * Overwrites any existing policy for that address.
@@ -140,6 +212,10 @@ class ConnectionPool internal constructor(
 
   /**
    * A policy for how the pool should treat a specific address.
+   *
+   * Use this to warm up connections before they're needed, such as before moving traffic to a
+   * new host. The pool reports its progress to [ConnectionListener.prewarmConnectStart],
+   * [ConnectionListener.prewarmConnectEnd], and [ConnectionListener.prewarmConnectFailed].
    */
   class AddressPolicy(
     /**
@@ -152,5 +228,31 @@ class ConnectionPool internal constructor(
     @JvmField val backoffDelayMillis: Long = 60 * 1000,
     /** How much jitter to introduce in connection retry backoff delays */
     @JvmField val backoffJitterMillis: Int = 100,
-  )
+    /**
+     * How many pre-emptive connection attempts to make at the same time. Each attempt backs off
+     * independently when it fails.
+     *
+     * Until it completes, each attempt is assumed to make room for one concurrent call. A single
+     * HTTP/2 connection may satisfy this policy on its own, so more attempts than necessary may be
+     * made to HTTP/2 addresses.
+     */
+    @JvmField val maximumConcurrentConnects: Int = 1,
+  ) {
+    constructor(
+      minimumConcurrentCalls: Int,
+      backoffDelayMillis: Long,
+      backoffJitterMillis: Int,
+    ) : this(
+      minimumConcurrentCalls = minimumConcurrentCalls,
+      backoffDelayMillis = backoffDelayMillis,
+      backoffJitterMillis = backoffJitterMillis,
+      maximumConcurrentConnects = 1,
+    )
+
+    init {
+      require(maximumConcurrentConnects >= 1) {
+        "maximumConcurrentConnects < 1: $maximumConcurrentConnects"
+      }
+    }
+  }
 }
@@ -18,15 +18,22 @@ package okhttp3
 import java.util.ArrayDeque
 import java.util.Collections
 import java.util.Deque
+import java.util.TreeSet
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.SynchronousQueue
 import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.locks.ReentrantLock
 import okhttp3.internal.assertNotHeld
+import okhttp3.internal.concurrent.Task
+import okhttp3.internal.concurrent.TaskRunner
 import okhttp3.internal.connection.Locks.withLock
 import okhttp3.internal.connection.RealCall
 import okhttp3.internal.connection.RealCall.AsyncCall
+import okhttp3.internal.dispatcher.DeadlineOrder
+import okhttp3.internal.dispatcher.PerHostCallQueues
+import okhttp3.internal.dispatcher.ScheduleOrder
 import okhttp3.internal.okHttpName
 import okhttp3.internal.threadFactory
 
@@ -37,7 +44,11 @@ import okhttp3.internal.threadFactory
  * executor, it should be able to run [the configured maximum][maxRequests] number of calls
  * concurrently.
  */
-class Dispatcher() {
+class Dispatcher internal constructor(
+  executorService: ExecutorService?,
+  /** Non-null to track calls without [lock]. In that case the deques below are unused. */
+  private val perHostCallQueues: PerHostCallQueues?,
+) {
   internal val lock: ReentrantLock = ReentrantLock()
 
   /**
@@ -47,13 +58,13 @@ class Dispatcher() {
    * If more than [maxRequests] requests are in flight when this is invoked, those requests will
    * remain in flight.
    */
-  var maxRequests = 64
-    get() = this.withLock { field }
+  @Volatile var maxRequests = 64
     set(maxRequests) {
       require(maxRequests >= 1) { "max < 1: $maxRequests" }
       this.withLock {
         field = maxRequests
       }
+      perHostCallQueues?.limitsChanged()
       promoteAndExecute()
     }
 
@@ -66,14 +77,16 @@ class Dispatcher() {
    * will remain in flight.
    *
    * WebSocket connections to hosts **do not** count against this limit.
+   *
+   * This limit is not used if this dispatcher has a [concurrencyLimiter].
    */
-  var maxRequestsPerHost = 5
-    get() = this.withLock { field }
+  @Volatile var maxRequestsPerHost = 5
     set(maxRequestsPerHost) {
       require(maxRequestsPerHost >= 1) { "max < 1: $maxRequestsPerHost" }
       this.withLock {
         field = maxRequestsPerHost
       }
+      perHostCallQueues?.limitsChanged()
       promoteAndExecute()
     }
 
@@ -88,18 +101,50 @@ class Dispatcher() {
    * This means that if you are doing synchronous calls the network layer will not truly be idle
    * until every returned [Response] has been closed.
    */
-  var idleCallback: Runnable? = null
-    get() = this.withLock { field }
-    set(value) {
-      this.withLock { field = value }
+  @Volatile var idleCallback: Runnable? = null
+
+  /**
+   * The order in which calls that are waiting for capacity are started. By default calls start in
+   * the order they're enqueued.
+   *
+   * Changing the policy doesn't reorder calls that are already queued.
+   *
+   * If this dispatcher has per-host queues the policy orders the calls to each host. Calls to
+   * different hosts are still started round-robin.
+   */
+  @ExperimentalOkHttpApi
+  @Volatile
+  var schedulingPolicy: CallSchedulingPolicy = CallSchedulingPolicy.FIFO
+
+  /**
+   * Tunes the maximum number of requests for each host to execute concurrently. If this is null
+   * every host uses [maxRequestsPerHost].
+   *
+   * The limiter samples calls that start after it is set.
+   */
+  @ExperimentalOkHttpApi
+  @Volatile
+  var concurrencyLimiter: AdaptiveConcurrencyLimiter? = null
+    set(concurrencyLimiter) {
+      field?.removeLimitIncreasedListener(concurrencyLimitIncreased)
+      field = concurrencyLimiter
+      concurrencyLimiter?.addLimitIncreasedListener(concurrencyLimitIncreased)
+      perHostCallQueues?.limitsChanged()
+      promoteAndExecute()
     }
 
-  private var executorServiceOrNull: ExecutorService? = null
+  /** Starts calls that were waiting for a host whose limit just grew. */
+  private val concurrencyLimitIncreased: (host: String) -> Unit = { host ->
+    perHostCallQueues?.limitChanged(host)
+    promoteAndExecute()
+  }
+
+  @Volatile private var executorServiceOrNull: ExecutorService? = executorService
 
   @get:JvmName("executorService")
   val executorService: ExecutorService
     get() =
-      this.withLock {
+      executorServiceOrNull ?: this.withLock {
         if (executorServiceOrNull == null) {
           executorServiceOrNull =
             ThreadPoolExecutor(
@@ -115,7 +160,13 @@ class Dispatcher() {
       }
 
   /** Ready async calls in the order they'll be run. */
-  private val readyAsyncCalls = ArrayDeque<AsyncCall>()
+  private val readyAsyncCalls = TreeSet<AsyncCall>(ScheduleOrder)
+
+  /** Ready async calls that have a deadline, in the order they'll expire. */
+  private val deadlineAsyncCalls = TreeSet<AsyncCall>(DeadlineOrder)
+
+  /** Assigns each enqueued call a unique [AsyncCall.sequence]. */
+  private val nextSequence = AtomicLong()
 
   /** Running asynchronous calls. Includes canceled calls that haven't finished yet. */
   private val runningAsyncCalls = ArrayDeque<AsyncCall>()
@@ -123,13 +174,51 @@ class Dispatcher() {
   /** Running synchronous calls. Includes canceled calls that haven't finished yet. */
   private val runningSyncCalls = ArrayDeque<RealCall>()
 
-  constructor(executorService: ExecutorService?) : this() {
-    this.executorServiceOrNull = executorService
-  }
+  /** Fails ready calls when their deadlines pass, even if no other call starts or finishes. */
+  private val deadlineQueue = TaskRunner.INSTANCE.newQueue()
+  private val deadlineTask =
+    object : Task("$okHttpName Dispatcher deadline") {
+      override fun runOnce(): Long {
+        promoteAndExecute()
+        return -1L
+      }
+    }
+
+  constructor() : this(null, null)
+
+  constructor(executorService: ExecutorService?) : this(executorService, null)
+
+  /**
+   * Create a dispatcher that runs calls on [executorService], or on a default executor if that is
+   * null.
+   *
+   * If [perHostQueues] is true this dispatcher keeps a separate queue of ready calls for each host
+   * and doesn't take a lock to enqueue, promote, or finish calls. Use this for applications that
+   * queue many thousands of calls to many hosts. Calls to the same host still start in the order
+   * they were enqueued, but calls to different hosts are started round-robin rather than in enqueue
+   * order.
+   */
+  @ExperimentalOkHttpApi
+  constructor(
+    executorService: ExecutorService?,
+    perHostQueues: Boolean,
+  ) : this(executorService, if (perHostQueues) PerHostCallQueues() else null)
 
   internal fun enqueue(call: AsyncCall) {
+    val schedulingPolicy = this.schedulingPolicy
+    call.priority = schedulingPolicy.priority(call.call)
+    call.deadlineNanoTime = schedulingPolicy.deadlineNanoTime(call.call, System.nanoTime())
+    call.sequence = nextSequence.getAndIncrement()
+
+    if (perHostCallQueues != null) {
+      perHostCallQueues.enqueue(call)
+      promoteAndExecute()
+      return
+    }
+
     this.withLock {
       readyAsyncCalls.add(call)
+      if (call.deadlineNanoTime != Long.MAX_VALUE) deadlineAsyncCalls.add(call)
 
       // Mutate the AsyncCall so that it shares the AtomicInteger of an existing running call to
       // the same host.
@@ -156,6 +245,11 @@ class Dispatcher() {
    * [synchronously][Call.execute] and [asynchronously][Call.enqueue].
    */
   fun cancelAll() {
+    if (perHostCallQueues != null) {
+      perHostCallQueues.cancelAll()
+      return
+    }
+
     this.withLock {
       for (call in readyAsyncCalls) {
         call.call.cancel()
@@ -171,31 +265,50 @@ class Dispatcher() {
 
   /**
    * Promotes eligible calls from [readyAsyncCalls] to [runningAsyncCalls] and runs them on the
-   * executor service. Must not be called with synchronization because executing calls can call
-   * into user code.
+   * executor service. Fails ready calls whose deadlines have passed. Must not be called with
+   * synchronization because executing calls can call into user code.
    *
    * @return true if the dispatcher is currently running calls.
    */
   private fun promoteAndExecute(): Boolean {
     lock.assertNotHeld()
 
+    if (perHostCallQueues != null) return promoteAndExecutePerHost(perHostCallQueues)
+
     val executableCalls = mutableListOf<AsyncCall>()
+    val expiredCalls = mutableListOf<AsyncCall>()
     val isRunning: Boolean
+    val now = System.nanoTime()
+    val nextDeadlineNanoTime: Long?
     this.withLock {
+      if (deadlineAsyncCalls.isNotEmpty()) {
+        while (true) {
+          val expiredCall = deadlineAsyncCalls.firstOrNull() ?: break
+          if (expiredCall.deadlineNanoTime - now > 0L) break
+          deadlineAsyncCalls.remove(expiredCall)
+          readyAsyncCalls.remove(expiredCall)
+          expiredCalls.add(expiredCall)
+        }
+      }
+
       val i = readyAsyncCalls.iterator()
       while (i.hasNext()) {
         val asyncCall = i.next()
 
         if (runningAsyncCalls.size >= this.maxRequests) break // Max capacity.
-        if (asyncCall.callsPerHost.get() >= this.maxRequestsPerHost) continue // Host max capacity.
+        val maxRequestsPerHost = maxRequestsPerHost(asyncCall.host)
+        if (asyncCall.callsPerHost.get() >= maxRequestsPerHost) continue // Host max capacity.
 
         i.remove()
+        if (asyncCall.deadlineNanoTime != Long.MAX_VALUE) deadlineAsyncCalls.remove(asyncCall)
         asyncCall.callsPerHost.incrementAndGet()
         executableCalls.add(asyncCall)
         runningAsyncCalls.add(asyncCall)
       }
       isRunning = runningCallsCount() > 0
+      nextDeadlineNanoTime = deadlineAsyncCalls.firstOrNull()?.deadlineNanoTime
     }
+    scheduleDeadline(nextDeadlineNanoTime, now)
 
     // Avoid resubmitting if we can't logically progress
     // particularly because RealCall handles a RejectedExecutionException
@@ -219,26 +332,98 @@ class Dispatcher() {
       }
     }
 
+    for (i in 0 until expiredCalls.size) {
+      expiredCalls[i].failDeadlineExceeded()
+    }
+
+    return isRunning
+  }
+
+  private fun promoteAndExecutePerHost(perHostCallQueues: PerHostCallQueues): Boolean {
+    val now = System.nanoTime()
+    val expiredCalls = perHostCallQueues.shedExpired(now)
+    val executableCalls = perHostCallQueues.promote(maxRequests, ::maxRequestsPerHost)
+    val isRunning = perHostCallQueues.runningCallCount() > 0
+    scheduleDeadline(perHostCallQueues.nextDeadlineNanoTime(), now)
+
+    if (executorService.isShutdown) {
+      for (i in 0 until executableCalls.size) {
+        val asyncCall = executableCalls[i]
+        perHostCallQueues.finished(asyncCall)
+        asyncCall.failRejected()
+      }
+      idleCallback?.run()
+    } else {
+      for (i in 0 until executableCalls.size) {
+        val asyncCall = executableCalls[i]
+        asyncCall.executeOn(executorService)
+      }
+    }
+
+    for (i in 0 until expiredCalls.size) {
+      expiredCalls[i].failDeadlineExceeded()
+    }
+
     return isRunning
   }
 
+  /** Runs [promoteAndExecute] when the earliest ready call's deadline passes. */
+  private fun scheduleDeadline(
+    deadlineNanoTime: Long?,
+    nowNanoTime: Long,
+  ) {
+    if (deadlineNanoTime == null) return
+    deadlineQueue.schedule(deadlineTask, maxOf(0L, deadlineNanoTime - nowNanoTime))
+  }
+
+  private fun maxRequestsPerHost(host: String): Int {
+    return concurrencyLimiter?.limit(host) ?: maxRequestsPerHost
+  }
+
   /** Used by [Call.execute] to signal it is in-flight. */
-  internal fun executed(call: RealCall) =
+  internal fun executed(call: RealCall) {
+    if (perHostCallQueues != null) {
+      perHostCallQueues.executed(call)
+      return
+    }
+
     this.withLock {
       runningSyncCalls.add(call)
     }
+  }
 
   /** Used by [AsyncCall.run] to signal completion. */
   internal fun finished(call: AsyncCall) {
+    if (perHostCallQueues != null) {
+      if (!perHostCallQueues.finished(call)) throw AssertionError("Call wasn't in-flight!")
+      finished()
+      return
+    }
+
     call.callsPerHost.decrementAndGet()
     finished(runningAsyncCalls, call)
   }
 
   /** Used by [Call.execute] to signal completion. */
   internal fun finished(call: RealCall) {
+    if (perHostCallQueues != null) {
+      if (!perHostCallQueues.finished(call)) throw AssertionError("Call wasn't in-flight!")
+      finished()
+      return
+    }
+
     finished(runningSyncCalls, call)
   }
 
+  private fun finished() {
+    val idleCallback = this.idleCallback
+    val isRunning = promoteAndExecute()
+
+    if (!isRunning && idleCallback != null) {
+      idleCallback.run()
+    }
+  }
+
   private fun <T> finished(
     calls: Deque<T>,
     call: T,
@@ -257,20 +442,38 @@ class Dispatcher() {
   }
 
   /** Returns a snapshot of the calls currently awaiting execution. */
-  fun queuedCalls(): List<Call> =
+  fun queuedCalls(): List<Call> {
+    if (perHostCallQueues != null) {
+      return Collections.unmodifiableList(perHostCallQueues.readyCalls().map { it.call })
+    }
+
     this.withLock {
       return Collections.unmodifiableList(readyAsyncCalls.map { it.call })
     }
+  }
 
   /** Returns a snapshot of the calls currently being executed. */
-  fun runningCalls(): List<Call> =
+  fun runningCalls(): List<Call> {
+    if (perHostCallQueues != null) {
+      return Collections.unmodifiableList(perHostCallQueues.runningCalls())
+    }
+
     this.withLock {
       return Collections.unmodifiableList(runningSyncCalls + runningAsyncCalls.map { it.call })
     }
+  }
+
+  fun queuedCallsCount(): Int {
+    if (perHostCallQueues != null) return perHostCallQueues.readyCallCount()
 
-  fun queuedCallsCount(): Int = this.withLock { readyAsyncCalls.size }
+    return this.withLock { readyAsyncCalls.size }
+  }
 
-  fun runningCallsCount(): Int = this.withLock { runningAsyncCalls.size + runningSyncCalls.size }
+  fun runningCallsCount(): Int {
+    if (perHostCallQueues != null) return perHostCallQueues.runningCallCount()
+
+    return this.withLock { runningAsyncCalls.size + runningSyncCalls.size }
+  }
 
   @JvmName("-deprecated_executorService")
   @Deprecated(
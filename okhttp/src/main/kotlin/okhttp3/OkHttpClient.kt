@@ -35,9 +35,11 @@ import okhttp3.Protocol.HTTP_2
 import okhttp3.internal.asFactory
 import okhttp3.internal.checkDuration
 import okhttp3.internal.concurrent.TaskRunner
+import okhttp3.internal.concurrent.VirtualThreads
 import okhttp3.internal.connection.RealCall
 import okhttp3.internal.connection.RouteDatabase
 import okhttp3.internal.immutableListOf
+import okhttp3.internal.okHttpName
 import okhttp3.internal.platform.Platform
 import okhttp3.internal.proxy.NullProxySelector
 import okhttp3.internal.tls.CertificateChainCleaner
@@ -133,8 +135,21 @@ import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement
 open class OkHttpClient internal constructor(
   builder: Builder,
 ) : Call.Factory, WebSocket.Factory {
+  @get:JvmName("virtualThreads")
+  @ExperimentalOkHttpApi
+  val virtualThreads: Boolean = builder.virtualThreads
+
   @get:JvmName("dispatcher")
-  val dispatcher: Dispatcher = builder.dispatcher
+  val dispatcher: Dispatcher =
+    builder.dispatcher ?: Dispatcher(
+      when {
+        virtualThreads -> VirtualThreads.newThreadPerTaskExecutor("$okHttpName Dispatcher ")
+        else -> null
+      },
+    ).also {
+      // Cache the dispatcher in the builder so that it will be shared with other clients
+      builder.dispatcher = it
+    }
 
   /**
    * Returns an immutable list of interceptors that observe the full span of each call: from before
@@ -263,11 +278,16 @@ open class OkHttpClient internal constructor(
   val minWebSocketMessageToCompress: Long = builder.minWebSocketMessageToCompress
 
   internal val routeDatabase: RouteDatabase = builder.routeDatabase ?: RouteDatabase()
-  internal val taskRunner: TaskRunner = builder.taskRunner ?: TaskRunner.INSTANCE
+  internal val taskRunner: TaskRunner =
+    builder.taskRunner ?: when {
+      virtualThreads -> VirtualThreads.taskRunner
+      else -> TaskRunner.INSTANCE
+    }
 
   @get:JvmName("connectionPool")
   val connectionPool: ConnectionPool =
     builder.connectionPool ?: ConnectionPool(
+      taskRunner = taskRunner,
       readTimeoutMillis = readTimeoutMillis,
       writeTimeoutMillis = writeTimeoutMillis,
       socketConnectTimeoutMillis = connectTimeoutMillis,
@@ -593,7 +613,7 @@ open class OkHttpClient internal constructor(
   fun pingIntervalMillis(): Int = pingIntervalMillis
 
   class Builder() {
-    internal var dispatcher: Dispatcher = Dispatcher()
+    internal var dispatcher: Dispatcher? = null
     internal var connectionPool: ConnectionPool? = null
     internal val interceptors: MutableList<Interceptor> = mutableListOf()
     internal val networkInterceptors: MutableList<Interceptor> = mutableListOf()
@@ -626,6 +646,7 @@ open class OkHttpClient internal constructor(
     internal var minWebSocketMessageToCompress = RealWebSocket.DEFAULT_MINIMUM_DEFLATE_SIZE
     internal var routeDatabase: RouteDatabase? = null
     internal var taskRunner: TaskRunner? = null
+    internal var virtualThreads = false
 
     internal constructor(okHttpClient: OkHttpClient) : this() {
       this.dispatcher = okHttpClient.dispatcher
@@ -661,6 +682,7 @@ open class OkHttpClient internal constructor(
       this.minWebSocketMessageToCompress = okHttpClient.minWebSocketMessageToCompress
       this.routeDatabase = okHttpClient.routeDatabase
       this.taskRunner = okHttpClient.taskRunner
+      this.virtualThreads = okHttpClient.virtualThreads
     }
 
     /**
@@ -774,6 +796,25 @@ open class OkHttpClient internal constructor(
         this.fastFallback = fastFallback
       }
 
+    /**
+     * Configure this client to run its work on virtual threads. This includes asynchronous calls,
+     * HTTP/2 connection readers, web socket writers, and connection pool maintenance.
+     *
+     * Virtual threads are cheap to create and to block, so a burst of slow calls won't create
+     * thousands of platform threads. This requires Java 21 or newer.
+     *
+     * This doesn't change a [dispatcher] or [connectionPool] that is set explicitly: use an
+     * executor service that creates virtual threads for the dispatcher if necessary.
+     */
+    @ExperimentalOkHttpApi
+    fun virtualThreads(virtualThreads: Boolean) =
+      apply {
+        check(!virtualThreads || VirtualThreads.isSupported) {
+          "virtual threads require Java 21+"
+        }
+        this.virtualThreads = virtualThreads
+      }
+
     /**
      * Sets the authenticator used to respond to challenges from origin servers. Use
      * [proxyAuthenticator] to set the authenticator for proxy servers.
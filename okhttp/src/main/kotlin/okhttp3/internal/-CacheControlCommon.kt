@@ -38,6 +38,12 @@ internal fun CacheControl.commonToString(): String {
         if (onlyIfCached) append("only-if-cached, ")
         if (noTransform) append("no-transform, ")
         if (immutable) append("immutable, ")
+        if (staleWhileRevalidateSeconds != -1) {
+          append("stale-while-revalidate=").append(staleWhileRevalidateSeconds).append(", ")
+        }
+        if (staleIfErrorSeconds != -1) {
+          append("stale-if-error=").append(staleIfErrorSeconds).append(", ")
+        }
         if (isEmpty()) return ""
         deleteRange(length - 2, length)
       }
@@ -78,6 +84,8 @@ internal fun CacheControl.Builder.commonBuild(): CacheControl {
     onlyIfCached = onlyIfCached,
     noTransform = noTransform,
     immutable = immutable,
+    staleWhileRevalidateSeconds = -1,
+    staleIfErrorSeconds = -1,
     headerValue = null,
   )
 }
@@ -120,6 +128,8 @@ internal fun CacheControl.Companion.commonParse(headers: Headers): CacheControl
   var onlyIfCached = false
   var noTransform = false
   var immutable = false
+  var staleWhileRevalidateSeconds = -1
+  var staleIfErrorSeconds = -1
 
   var canUseHeaderValue = true
   var headerValue: String? = null
@@ -212,6 +222,12 @@ internal fun CacheControl.Companion.commonParse(headers: Headers): CacheControl
         "immutable".equals(directive, ignoreCase = true) -> {
           immutable = true
         }
+        "stale-while-revalidate".equals(directive, ignoreCase = true) -> {
+          staleWhileRevalidateSeconds = parameter.toNonNegativeInt(-1)
+        }
+        "stale-if-error".equals(directive, ignoreCase = true) -> {
+          staleIfErrorSeconds = parameter.toNonNegativeInt(-1)
+        }
       }
     }
   }
@@ -233,6 +249,8 @@ internal fun CacheControl.Companion.commonParse(headers: Headers): CacheControl
     onlyIfCached = onlyIfCached,
     noTransform = noTransform,
     immutable = immutable,
+    staleWhileRevalidateSeconds = staleWhileRevalidateSeconds,
+    staleIfErrorSeconds = staleIfErrorSeconds,
     headerValue = headerValue,
   )
 }
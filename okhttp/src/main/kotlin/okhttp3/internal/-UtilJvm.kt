@@ -135,11 +135,14 @@ internal fun checkDuration(
 }
 
 internal fun List<Header>.toHeaders(): Headers {
-  val builder = Headers.Builder()
-  for ((name, value) in this) {
-    builder.addLenient(name.utf8(), value.utf8())
-  }
-  return builder.build()
+  // Build the array directly rather than through Headers.Builder. Names and values from the HPACK
+  // static and dynamic tables are shared instances that cache their decoded strings.
+  val namesAndValues =
+    Array(size * 2) { i ->
+      val header = this[i / 2]
+      if (i % 2 == 0) header.name.utf8() else header.value.utf8().trim()
+    }
+  return Headers(namesAndValues)
 }
 
 internal fun Headers.toHeaderList(): List<Header> =
@@ -21,6 +21,7 @@ import java.net.HttpURLConnection.HTTP_GATEWAY_TIMEOUT
 import java.net.HttpURLConnection.HTTP_NOT_MODIFIED
 import java.util.concurrent.TimeUnit.MILLISECONDS
 import okhttp3.Cache
+import okhttp3.Call
 import okhttp3.EventListener
 import okhttp3.Headers
 import okhttp3.Interceptor
@@ -34,10 +35,12 @@ import okhttp3.internal.http.ExchangeCodec
 import okhttp3.internal.http.HttpMethod
 import okhttp3.internal.http.RealResponseBody
 import okhttp3.internal.http.promisesBody
+import okhttp3.internal.okHttpName
 import okhttp3.internal.stripBody
 import okio.Buffer
 import okio.Source
 import okio.Timeout
+import okio.blackholeSink
 import okio.buffer
 
 /** Serves requests from the cache and writes responses to the cache. */
@@ -49,14 +52,21 @@ class CacheInterceptor(internal val cache: Cache?) : Interceptor {
 
     val now = System.currentTimeMillis()
 
-    val strategy = CacheStrategy.Factory(now, chain.request(), cacheCandidate).compute()
+    val strategy =
+      CacheStrategy.Factory(
+        nowMillis = now,
+        request = chain.request(),
+        cacheResponse = cacheCandidate,
+        allowStaleWhileRevalidate = chain.request().tag<BackgroundRevalidation>() == null,
+      ).compute()
     val networkRequest = strategy.networkRequest
     val cacheResponse = strategy.cacheResponse
+    val staleIfErrorResponse = strategy.staleIfErrorResponse
 
     cache?.trackResponse(strategy)
     val listener = (call as? RealCall)?.eventListener ?: EventListener.NONE
 
-    if (cacheCandidate != null && cacheResponse == null) {
+    if (cacheCandidate != null && cacheResponse == null && staleIfErrorResponse == null) {
       // The cache candidate wasn't applicable. Close it.
       cacheCandidate.body.closeQuietly()
     }
@@ -77,6 +87,9 @@ class CacheInterceptor(internal val cache: Cache?) : Interceptor {
 
     // If we don't need the network, we're done.
     if (networkRequest == null) {
+      if (strategy.revalidateInBackground) {
+        revalidateInBackground(call, chain.request())
+      }
       return cacheResponse!!.newBuilder()
         .cacheResponse(cacheResponse.stripBody())
         .build().also {
@@ -90,14 +103,54 @@ class CacheInterceptor(internal val cache: Cache?) : Interceptor {
       listener.cacheMiss(call)
     }
 
+    // If another call is already fetching this response, read that instead of fetching it again.
+    var flight: InFlightResponses.Flight? = null
+    val inFlightResponses = cache?.inFlightResponses()
+    if (inFlightResponses != null && cacheResponse == null && networkRequest.isCoalescable()) {
+      val newFlight = inFlightResponses.Flight(Cache.key(networkRequest.requestForCache().url))
+      val leader = inFlightResponses.register(newFlight)
+      if (leader == null) {
+        flight = newFlight
+      } else {
+        val sharedResponse = leader.await(call, networkRequest, chain.readTimeoutMillis())
+        if (sharedResponse != null) {
+          staleIfErrorResponse?.body?.closeQuietly()
+          cache!!.trackCoalescedResponse()
+          return sharedResponse
+        }
+      }
+    }
+
     var networkResponse: Response? = null
+    var networkFailure: IOException? = null
     try {
       networkResponse = chain.proceed(networkRequest)
+    } catch (e: IOException) {
+      // Fall back to the stale response if the network failed, but not if the call was canceled.
+      if (staleIfErrorResponse == null || call.isCanceled()) throw e
+      networkFailure = e
     } finally {
       // If we're crashing on I/O or otherwise, don't leak the cache body.
-      if (networkResponse == null && cacheCandidate != null) {
+      if (networkResponse == null && networkFailure == null && cacheCandidate != null) {
         cacheCandidate.body.closeQuietly()
       }
+      if (networkResponse == null) {
+        flight?.abandon()
+      }
+    }
+
+    // If the origin failed and the cached response permits it, return that instead.
+    if (staleIfErrorResponse != null) {
+      if (networkResponse == null || networkResponse.code in STALE_IF_ERROR_CODES) {
+        networkResponse?.closeQuietly()
+        return staleIfErrorResponse.newBuilder()
+          .addHeader("Warning", "111 HttpURLConnection \"Revalidation failed\"")
+          .cacheResponse(staleIfErrorResponse.stripBody())
+          .build().also {
+            listener.cacheHit(call, it)
+          }
+      }
+      if (staleIfErrorResponse !== cacheResponse) staleIfErrorResponse.body.closeQuietly()
     }
 
     // If we have a cache response too, then we're doing a conditional get.
@@ -138,7 +191,13 @@ class CacheInterceptor(internal val cache: Cache?) : Interceptor {
       if (response.promisesBody() && CacheStrategy.isCacheable(response, cacheNetworkRequest)) {
         // Offer this request to the cache.
         val cacheRequest = cache.put(response.newBuilder().request(cacheNetworkRequest).build())
-        return cacheWritingResponse(cacheRequest, response).also {
+        val cacheWritingResponse = cacheWritingResponse(cacheRequest, response)
+        val sharedResponse =
+          when {
+            flight != null && cacheRequest != null -> flight.publish(cacheWritingResponse)
+            else -> cacheWritingResponse.also { flight?.abandon() }
+          }
+        return sharedResponse.also {
           if (cacheResponse != null) {
             // This will log a conditional cache miss only.
             listener.cacheMiss(call)
@@ -155,9 +214,42 @@ class CacheInterceptor(internal val cache: Cache?) : Interceptor {
       }
     }
 
+    flight?.abandon()
     return response
   }
 
+  /**
+   * Validates a stale cached response on the client's task runner. The validating call skips the
+   * client's application interceptors, because [request] already has their changes.
+   */
+  private fun revalidateInBackground(
+    call: Call,
+    request: Request,
+  ) {
+    val cache = cache ?: return
+    val client = (call as? RealCall)?.client ?: return
+    val key = Cache.key(request.requestForCache().url)
+    if (!cache.beginRevalidation(key)) return // Another call is already validating this response.
+
+    val revalidationClient = client.newBuilder().apply { interceptors().clear() }.build()
+    val revalidationRequest =
+      request.newBuilder()
+        .tag(BackgroundRevalidation::class, BackgroundRevalidation)
+        .build()
+    client.taskRunner.newQueue().execute("$okHttpName revalidate ${request.url.redact()}") {
+      try {
+        revalidationClient.newCall(revalidationRequest).execute().use { response ->
+          // Read the body so that a changed response is written to the cache.
+          response.body.source().readAll(blackholeSink())
+        }
+      } catch (_: IOException) {
+        // Keep serving the stale response until it is too old.
+      } finally {
+        cache.endRevalidation(key)
+      }
+    }
+  }
+
   /**
    * Returns a new source that writes bytes to [cacheRequest] as they are read by the source
    * consumer. This is careful to discard bytes left over when the stream is closed; otherwise we
@@ -229,7 +321,13 @@ class CacheInterceptor(internal val cache: Cache?) : Interceptor {
       .build()
   }
 
+  /** Tags a call that validates a stale response, so that call doesn't return it immediately. */
+  private object BackgroundRevalidation
+
   companion object {
+    /** Server errors that permit returning a `stale-if-error` response. RFC 5861, 4. */
+    private val STALE_IF_ERROR_CODES = setOf(500, 502, 503, 504)
+
     /** Combines cached headers with a network headers as defined by RFC 7234, 4.3.4. */
     private fun combine(
       cachedHeaders: Headers,
@@ -289,6 +387,18 @@ class CacheInterceptor(internal val cache: Cache?) : Interceptor {
   }
 }
 
+/**
+ * Returns true if this request may read another call's network response. Conditional requests and
+ * requests that forbid caching always make their own network requests.
+ */
+private fun Request.isCoalescable(): Boolean {
+  return method == "GET" &&
+    !cacheControl.noCache &&
+    !cacheControl.noStore &&
+    header("If-Modified-Since") == null &&
+    header("If-None-Match") == null
+}
+
 private fun Request.requestForCache(): Request {
   val cacheUrlOverride = cacheUrlOverride
 
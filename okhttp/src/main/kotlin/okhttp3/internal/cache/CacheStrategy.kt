@@ -48,11 +48,24 @@ class CacheStrategy internal constructor(
   val networkRequest: Request?,
   /** The cached response to return or validate; or null if this call doesn't use a cache. */
   val cacheResponse: Response?,
+  /**
+   * True if [cacheResponse] is stale and returned immediately, but should be validated in the
+   * background with a request like the original.
+   */
+  internal val revalidateInBackground: Boolean = false,
+  /**
+   * A stale cached response to return if the network fails or returns a server error. This is
+   * [cacheResponse] when that's being validated, and otherwise isn't part of the call's response
+   * unless it is returned.
+   */
+  internal val staleIfErrorResponse: Response? = null,
 ) {
   class Factory(
     private val nowMillis: Long,
     internal val request: Request,
     private val cacheResponse: Response?,
+    /** False to validate stale responses before returning them, even if they permit otherwise. */
+    private val allowStaleWhileRevalidate: Boolean = true,
   ) {
     /** The server's time when the cached response was served, if known. */
     private var servedDate: Date? = null
@@ -192,6 +205,32 @@ class CacheStrategy internal constructor(
         return CacheStrategy(null, builder.build())
       }
 
+      // Responses that must be validated can't be served stale, and neither can responses to
+      // requests that limit their age. Absent directives permit 0 ms. Requests with max-stale
+      // accept no more staleness than that.
+      val mayServeStale =
+        !responseCaching.noCache &&
+          !responseCaching.mustRevalidate &&
+          requestCaching.maxAgeSeconds == -1 &&
+          requestCaching.minFreshSeconds == -1
+      val staleWhileRevalidateMillis =
+        staleWindowMillis(responseCaching.staleWhileRevalidateSeconds)
+      val staleIfErrorMillis = staleWindowMillis(responseCaching.staleIfErrorSeconds)
+
+      // Return the stale response now and validate it in the background.
+      if (allowStaleWhileRevalidate &&
+        mayServeStale &&
+        ageMillis + minFreshMillis < freshMillis + staleWhileRevalidateMillis
+      ) {
+        val builder = cacheResponse.newBuilder()
+        builder.addHeader("Warning", "110 HttpURLConnection \"Response is stale\"")
+        return CacheStrategy(null, builder.build(), revalidateInBackground = true)
+      }
+
+      // Keep the stale response in case validating it fails.
+      val staleIfError =
+        mayServeStale && ageMillis + minFreshMillis < freshMillis + staleIfErrorMillis
+
       // Find a condition to add to the request. If the condition is satisfied, the response body
       // will not be transmitted.
       val conditionName: String
@@ -212,7 +251,11 @@ class CacheStrategy internal constructor(
           conditionValue = servedDateString
         }
 
-        else -> return CacheStrategy(request, null) // No condition! Make a regular request.
+        // No condition! Make a regular request, keeping the cached response only as a fallback.
+        else -> {
+          val fallback = cacheResponse.takeIf { staleIfError }
+          return CacheStrategy(request, null, staleIfErrorResponse = fallback)
+        }
       }
 
       val conditionalRequestHeaders = request.headers.newBuilder()
@@ -222,7 +265,19 @@ class CacheStrategy internal constructor(
         request.newBuilder()
           .headers(conditionalRequestHeaders.build())
           .build()
-      return CacheStrategy(conditionalRequest, cacheResponse)
+      val fallback = cacheResponse.takeIf { staleIfError }
+      return CacheStrategy(conditionalRequest, cacheResponse, staleIfErrorResponse = fallback)
+    }
+
+    /**
+     * Returns how long past its freshness lifetime the cached response may be served for a response
+     * directive like `stale-while-revalidate`, capped by the request's `max-stale`.
+     */
+    private fun staleWindowMillis(seconds: Int): Long {
+      val result = SECONDS.toMillis(maxOf(0, seconds).toLong())
+      val maxStaleSeconds = request.cacheControl.maxStaleSeconds
+      if (maxStaleSeconds == -1) return result
+      return minOf(result, SECONDS.toMillis(maxStaleSeconds.toLong()))
     }
 
     /**
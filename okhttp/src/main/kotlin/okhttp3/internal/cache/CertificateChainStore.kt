@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.cache
+
+import java.io.IOException
+import java.security.cert.Certificate
+import java.security.cert.CertificateEncodingException
+import java.security.cert.CertificateException
+import java.security.cert.CertificateFactory
+import okio.Buffer
+import okio.ByteString
+import okio.buffer
+
+/**
+ * The certificate chains of cached HTTPS responses, each stored once no matter how many responses
+ * use it. Responses refer to a chain by the SHA-256 of its encoding.
+ *
+ * Chains are entries of [cache] so they are counted towards its size, evicted with it, and removed
+ * by [DiskLruCache.evictAll]. A response whose chain was evicted can't be read.
+ *
+ * Parsed chains are also kept in memory, so cache hits don't decode certificates.
+ */
+class CertificateChainStore(
+  private val cache: DiskLruCache,
+) {
+  private val parsedChains = MemoryCache<List<Certificate>>(MAX_PARSED_SIZE)
+
+  /** Stores [certificates] unless they're already stored, and returns the hash to look them up. */
+  @Throws(IOException::class)
+  fun put(certificates: List<Certificate>): ByteString {
+    val encoded = encode(certificates)
+    val hash = encoded.sha256()
+    val key = key(hash)
+
+    // Confirming that the chain is stored also moves it to the head of the LRU queue.
+    if (cache.readSequenceNumber(key) != DiskLruCache.ANY_SEQUENCE_NUMBER) return hash
+
+    val editor = cache.edit(key) ?: return hash // Another call is storing this chain.
+    try {
+      editor.newSink(VALUE_CHAIN).buffer().use { it.write(encoded) }
+      editor.newSink(VALUE_UNUSED).close()
+      editor.commit()
+    } catch (e: IOException) {
+      try {
+        editor.abort()
+      } catch (_: IOException) {
+      }
+      throw e
+    }
+
+    parsedChains.put(key, certificates, encoded.size.toLong())
+    return hash
+  }
+
+  /** Returns the chain stored for [hash]. */
+  @Throws(IOException::class)
+  operator fun get(hash: ByteString): List<Certificate> {
+    val key = key(hash)
+    val parsed = parsedChains[key]
+    if (parsed != null && cache.readSequenceNumber(key) != DiskLruCache.ANY_SEQUENCE_NUMBER) {
+      return parsed
+    }
+
+    val snapshot = cache[key] ?: throw IOException("missing certificate chain $key")
+    val encoded = snapshot.use { it.getSource(VALUE_CHAIN).buffer().readByteString() }
+    if (encoded.sha256() != hash) throw IOException("corrupt certificate chain $key")
+
+    val certificates = decode(encoded)
+    parsedChains.put(key, certificates, encoded.size.toLong())
+    return certificates
+  }
+
+  /** Returns the certificates' DER encodings, each prefixed with its length. */
+  @Throws(IOException::class)
+  private fun encode(certificates: List<Certificate>): ByteString {
+    try {
+      val buffer = Buffer()
+      buffer.writeInt(certificates.size)
+      for (certificate in certificates) {
+        val encoded = certificate.encoded
+        buffer.writeInt(encoded.size)
+        buffer.write(encoded)
+      }
+      return buffer.readByteString()
+    } catch (e: CertificateEncodingException) {
+      throw IOException(e.message)
+    }
+  }
+
+  @Throws(IOException::class)
+  private fun decode(encoded: ByteString): List<Certificate> {
+    try {
+      val buffer = Buffer().write(encoded)
+      val certificateFactory = CertificateFactory.getInstance("X.509")
+      val count = buffer.readInt()
+      if (count < 0) throw IOException("corrupt certificate chain")
+      val result = ArrayList<Certificate>(count)
+      for (i in 0 until count) {
+        val size = buffer.readInt()
+        if (size < 0) throw IOException("corrupt certificate chain")
+        val certificateBytes = buffer.readByteArray(size.toLong())
+        result.add(certificateFactory.generateCertificate(certificateBytes.inputStream()))
+      }
+      return result
+    } catch (e: CertificateException) {
+      throw IOException(e.message)
+    }
+  }
+
+  companion object {
+    private const val KEY_PREFIX = "chain-"
+    private const val VALUE_CHAIN = 0
+    private const val VALUE_UNUSED = 1
+    private const val MAX_PARSED_SIZE = 1024L * 1024L
+
+    /** Returns true if [key] names a certificate chain rather than a response. */
+    fun isChainKey(key: String): Boolean = key.startsWith(KEY_PREFIX)
+
+    private fun key(hash: ByteString): String = KEY_PREFIX + hash.hex()
+  }
+}
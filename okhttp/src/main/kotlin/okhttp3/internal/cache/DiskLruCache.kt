@@ -19,7 +19,12 @@ import java.io.Closeable
 import java.io.EOFException
 import java.io.Flushable
 import java.io.IOException
-import okhttp3.internal.assertThreadHoldsLock
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import okhttp3.internal.assertHeld
 import okhttp3.internal.cache.DiskLruCache.Editor
 import okhttp3.internal.closeQuietly
 import okhttp3.internal.concurrent.Task
@@ -78,6 +83,12 @@ import okio.buffer
  * value, the edit will fail silently. Callers should handle other problems by catching
  * `IOException` and responding appropriately.
  *
+ * Most operations hold the cache's [lock]. When [concurrentReads] is enabled, [get] doesn't: it
+ * finds entries in a concurrent index and opens snapshots under a lock striped by key. The lock is
+ * a [ReentrantLock] rather than a monitor so cache I/O doesn't pin a virtual thread's carrier.
+ * The `READ` records that keep the LRU order are queued and journaled in batches on a background
+ * task instead of on the caller's thread.
+ *
  * @constructor Create a cache which will reside in [directory]. This cache is lazily initialized on
  *     first access and will be created if it does not exist.
  * @param directory a writable directory.
@@ -108,16 +119,30 @@ class DiskLruCache(
       }
     }
 
+  internal val lock: ReentrantLock = ReentrantLock()
+
   /** The maximum number of bytes that this cache should use to store its data. */
-  @get:Synchronized @set:Synchronized
   var maxSize: Long = maxSize
+    get() = lock.withLock { field }
     set(value) {
-      field = value
-      if (initialized) {
-        cleanupQueue.schedule(cleanupTask) // Trim the existing store if necessary.
+      lock.withLock {
+        field = value
+        if (initialized) {
+          cleanupQueue.schedule(cleanupTask) // Trim the existing store if necessary.
+        }
       }
     }
 
+  /**
+   * True for [get] to avoid taking this cache's lock. The LRU order is updated asynchronously,
+   * so entries read immediately before an eviction may be evicted as if they hadn't been read.
+   *
+   * This has no effect on filesystems that can't delete open files, where reads must be tracked
+   * synchronously.
+   */
+  @Volatile
+  var concurrentReads: Boolean = false
+
   /*
    * This cache uses a journal file named "journal". A typical journal file looks like this:
    *
@@ -164,28 +189,44 @@ class DiskLruCache(
   private var size: Long = 0L
   private var journalWriter: BufferedSink? = null
   internal val lruEntries = LinkedHashMap<String, Entry>(0, 0.75f, true)
+
+  /** The entries of [lruEntries], for lookups that don't hold [lock]. */
+  private val entryIndex = ConcurrentHashMap<String, Entry>()
+
+  /**
+   * Guards the fields of entries that snapshots read: their lengths, sequence numbers, and files.
+   * Writers take one of these while holding [lock]; [getConcurrent] takes one alone.
+   */
+  private val entryLocks = Array(ENTRY_LOCK_COUNT) { ReentrantLock() }
+
+  /** Keys read by [get] whose `READ` records haven't been journaled yet. */
+  private val pendingReads = ConcurrentLinkedQueue<String>()
+  private val pendingReadCount = AtomicInteger()
+
   private var redundantOpCount: Int = 0
   private var hasJournalErrors: Boolean = false
   private var civilizedFileSystem: Boolean = false
 
-  // Must be read and written when synchronized on 'this'.
-  private var initialized: Boolean = false
-  internal var closed: Boolean = false
+  // Must be written while holding [lock].
+  @Volatile private var initialized: Boolean = false
+
+  @Volatile internal var closed: Boolean = false
   private var mostRecentTrimFailed: Boolean = false
   private var mostRecentRebuildFailed: Boolean = false
 
   /**
    * To differentiate between old and current snapshots, each entry is given a sequence number each
    * time an edit is committed. A snapshot is stale if its sequence number is not equal to its
-   * entry's sequence number.
+   * entry's sequence number. Entries read from the journal have sequence number 0, so committed
+   * edits start at 1.
    */
-  private var nextSequenceNumber: Long = 0
+  private var nextSequenceNumber: Long = 1
 
   private val cleanupQueue = taskRunner.newQueue()
   private val cleanupTask =
     object : Task("$okHttpName Cache") {
       override fun runOnce(): Long {
-        synchronized(this@DiskLruCache) {
+        lock.withLock {
           if (!initialized || closed) {
             return -1L // Nothing to do.
           }
@@ -212,6 +253,16 @@ class DiskLruCache(
       }
     }
 
+  private val journalReadsTask =
+    object : Task("$okHttpName Cache journal") {
+      override fun runOnce(): Long {
+        lock.withLock {
+          journalPendingReads()
+        }
+        return -1L
+      }
+    }
+
   init {
     require(maxSize > 0L) { "maxSize <= 0" }
     require(valueCount > 0) { "valueCount <= 0" }
@@ -221,54 +272,53 @@ class DiskLruCache(
     this.journalFileBackup = directory / JOURNAL_FILE_BACKUP
   }
 
-  @Synchronized
   @Throws(IOException::class)
   fun initialize() {
-    this.assertThreadHoldsLock()
-
-    if (initialized) {
-      return // Already initialized.
-    }
+    lock.withLock {
+      if (initialized) {
+        return // Already initialized.
+      }
 
-    // If a bkp file exists, use it instead.
-    if (fileSystem.exists(journalFileBackup)) {
-      // If journal file also exists just delete backup file.
-      if (fileSystem.exists(journalFile)) {
-        fileSystem.delete(journalFileBackup)
-      } else {
-        fileSystem.atomicMove(journalFileBackup, journalFile)
+      // If a bkp file exists, use it instead.
+      if (fileSystem.exists(journalFileBackup)) {
+        // If journal file also exists just delete backup file.
+        if (fileSystem.exists(journalFile)) {
+          fileSystem.delete(journalFileBackup)
+        } else {
+          fileSystem.atomicMove(journalFileBackup, journalFile)
+        }
       }
-    }
 
-    civilizedFileSystem = fileSystem.isCivilized(journalFileBackup)
+      civilizedFileSystem = fileSystem.isCivilized(journalFileBackup)
 
-    // Prefer to pick up where we left off.
-    if (fileSystem.exists(journalFile)) {
-      try {
-        readJournal()
-        processJournal()
-        initialized = true
-        return
-      } catch (journalIsCorrupt: IOException) {
-        Platform.get().log(
-          "DiskLruCache $directory is corrupt: ${journalIsCorrupt.message}, removing",
-          WARN,
-          journalIsCorrupt,
-        )
-      }
+      // Prefer to pick up where we left off.
+      if (fileSystem.exists(journalFile)) {
+        try {
+          readJournal()
+          processJournal()
+          initialized = true
+          return
+        } catch (journalIsCorrupt: IOException) {
+          Platform.get().log(
+            "DiskLruCache $directory is corrupt: ${journalIsCorrupt.message}, removing",
+            WARN,
+            journalIsCorrupt,
+          )
+        }
 
-      // The cache is corrupted, attempt to delete the contents of the directory. This can throw and
-      // we'll let that propagate out as it likely means there is a severe filesystem problem.
-      try {
-        delete()
-      } finally {
-        closed = false
+        // The cache is corrupted, attempt to delete the contents of the directory. This can throw
+        // and we'll let that propagate out as it likely means there is a severe filesystem problem.
+        try {
+          delete()
+        } finally {
+          closed = false
+        }
       }
-    }
 
-    rebuildJournal()
+      rebuildJournal()
 
-    initialized = true
+      initialized = true
+    }
   }
 
   @Throws(IOException::class)
@@ -318,7 +368,7 @@ class DiskLruCache(
     val fileSink = fileSystem.appendingSink(journalFile)
     val faultHidingSink =
       FaultHidingSink(fileSink) {
-        this@DiskLruCache.assertThreadHoldsLock()
+        lock.assertHeld()
         hasJournalErrors = true
       }
     return faultHidingSink.buffer()
@@ -336,6 +386,7 @@ class DiskLruCache(
       key = line.substring(keyBegin)
       if (firstSpace == REMOVE.length && line.startsWith(REMOVE)) {
         lruEntries.remove(key)
+        entryIndex.remove(key)
         return
       }
     } else {
@@ -346,6 +397,7 @@ class DiskLruCache(
     if (entry == null) {
       entry = Entry(key)
       lruEntries[key] = entry
+      entryIndex[key] = entry
     }
 
     when {
@@ -391,6 +443,7 @@ class DiskLruCache(
           fileSystem.deleteIfExists(entry.dirtyFiles[t])
         }
         i.remove()
+        entryIndex.remove(entry.key)
       }
     }
   }
@@ -399,209 +452,321 @@ class DiskLruCache(
    * Creates a new journal that omits redundant information. This replaces the current journal if it
    * exists.
    */
-  @Synchronized
   @Throws(IOException::class)
   internal fun rebuildJournal() {
-    journalWriter?.close()
-
-    fileSystem.write(journalFileTmp) {
-      writeUtf8(MAGIC).writeByte('\n'.code)
-      writeUtf8(VERSION_1).writeByte('\n'.code)
-      writeDecimalLong(appVersion.toLong()).writeByte('\n'.code)
-      writeDecimalLong(valueCount.toLong()).writeByte('\n'.code)
-      writeByte('\n'.code)
+    lock.withLock {
+      journalPendingReads()
+      journalWriter?.close()
+
+      fileSystem.write(journalFileTmp) {
+        writeUtf8(MAGIC).writeByte('\n'.code)
+        writeUtf8(VERSION_1).writeByte('\n'.code)
+        writeDecimalLong(appVersion.toLong()).writeByte('\n'.code)
+        writeDecimalLong(valueCount.toLong()).writeByte('\n'.code)
+        writeByte('\n'.code)
 
-      for (entry in lruEntries.values) {
-        if (entry.currentEditor != null) {
-          writeUtf8(DIRTY).writeByte(' '.code)
-          writeUtf8(entry.key)
-          writeByte('\n'.code)
-        } else {
-          writeUtf8(CLEAN).writeByte(' '.code)
-          writeUtf8(entry.key)
-          entry.writeLengths(this)
-          writeByte('\n'.code)
+        for (entry in lruEntries.values) {
+          if (entry.currentEditor != null) {
+            writeUtf8(DIRTY).writeByte(' '.code)
+            writeUtf8(entry.key)
+            writeByte('\n'.code)
+          } else {
+            writeUtf8(CLEAN).writeByte(' '.code)
+            writeUtf8(entry.key)
+            entry.writeLengths(this)
+            writeByte('\n'.code)
+          }
         }
       }
-    }
 
-    if (fileSystem.exists(journalFile)) {
-      fileSystem.atomicMove(journalFile, journalFileBackup)
-      fileSystem.atomicMove(journalFileTmp, journalFile)
-      fileSystem.deleteIfExists(journalFileBackup)
-    } else {
-      fileSystem.atomicMove(journalFileTmp, journalFile)
-    }
+      if (fileSystem.exists(journalFile)) {
+        fileSystem.atomicMove(journalFile, journalFileBackup)
+        fileSystem.atomicMove(journalFileTmp, journalFile)
+        fileSystem.deleteIfExists(journalFileBackup)
+      } else {
+        fileSystem.atomicMove(journalFileTmp, journalFile)
+      }
 
-    journalWriter?.closeQuietly()
-    journalWriter = newJournalWriter()
-    hasJournalErrors = false
-    mostRecentRebuildFailed = false
+      journalWriter?.closeQuietly()
+      journalWriter = newJournalWriter()
+      hasJournalErrors = false
+      mostRecentRebuildFailed = false
+    }
   }
 
   /**
    * Returns a snapshot of the entry named [key], or null if it doesn't exist is not currently
    * readable. If a value is returned, it is moved to the head of the LRU queue.
    */
-  @Synchronized
   @Throws(IOException::class)
   operator fun get(key: String): Snapshot? {
-    initialize()
+    if (!initialized) initialize()
+    if (concurrentReads && civilizedFileSystem) return getConcurrent(key)
+    return getSynchronized(key)
+  }
+
+  @Throws(IOException::class)
+  private fun getSynchronized(key: String): Snapshot? {
+    lock.withLock {
+      initialize()
+
+      checkNotClosed()
+      validateKey(key)
+      val entry = lruEntries[key] ?: return null
+      val snapshot = entry.snapshot() ?: return null
+
+      redundantOpCount++
+      journalWriter!!.writeUtf8(READ)
+        .writeByte(' '.code)
+        .writeUtf8(key)
+        .writeByte('\n'.code)
+      if (journalRebuildRequired()) {
+        cleanupQueue.schedule(cleanupTask)
+      }
 
-    checkNotClosed()
+      return snapshot
+    }
+  }
+
+  /**
+   * Returns a snapshot without holding this cache's lock. The entry's lock keeps the snapshot
+   * from observing a partially-committed edit.
+   */
+  @Throws(IOException::class)
+  private fun getConcurrent(key: String): Snapshot? {
+    check(!closed) { "cache is closed" }
     validateKey(key)
-    val entry = lruEntries[key] ?: return null
-    val snapshot = entry.snapshot() ?: return null
+    val entry = entryIndex[key] ?: return null
 
-    redundantOpCount++
-    journalWriter!!.writeUtf8(READ)
-      .writeByte(' '.code)
-      .writeUtf8(key)
-      .writeByte('\n'.code)
-    if (journalRebuildRequired()) {
+    val snapshot =
+      try {
+        entryLock(key).withLock {
+          if (!entry.readable) return null
+          entry.openSnapshot()
+        }
+      } catch (_: FileNotFoundException) {
+        // A file must have been deleted manually! Remove the entry so the cache size is accurate.
+        lock.withLock {
+          if (entryIndex[key] === entry) removeEntry(entry)
+        }
+        return null
+      }
+
+    recordRead(key)
+    return snapshot
+  }
+
+  /**
+   * Returns the sequence number of the readable entry named [key], or [ANY_SEQUENCE_NUMBER] if
+   * there is no such entry. Like [get] this moves the entry to the head of the LRU queue, but it
+   * doesn't open the entry's files.
+   *
+   * Callers that keep a copy of an entry's values use this to confirm that the copy is current.
+   */
+  internal fun readSequenceNumber(key: String): Long {
+    if (!initialized || closed) return ANY_SEQUENCE_NUMBER
+    val entry = entryIndex[key] ?: return ANY_SEQUENCE_NUMBER
+
+    val sequenceNumber =
+      entryLock(key).withLock {
+        if (!entry.readable || entry.zombie) return ANY_SEQUENCE_NUMBER
+        entry.sequenceNumber
+      }
+
+    recordRead(key)
+    return sequenceNumber
+  }
+
+  /** Journals a read later. The task is only scheduled when the queue becomes non-empty. */
+  private fun recordRead(key: String) {
+    if (pendingReadCount.get() < MAX_PENDING_READS) {
+      pendingReads.offer(key)
+      if (pendingReadCount.incrementAndGet() == 1) {
+        cleanupQueue.schedule(journalReadsTask)
+      }
+    }
+  }
+
+  /**
+   * Moves the entries read by [getConcurrent] and [readSequenceNumber] to the head of the LRU
+   * queue and journals their `READ` records with a single flush.
+   */
+  private fun journalPendingReads() {
+    lock.assertHeld()
+
+    var journaled = 0
+    while (true) {
+      val key = pendingReads.poll() ?: break
+      pendingReadCount.decrementAndGet()
+
+      val journalWriter = journalWriter ?: continue
+      if (lruEntries[key] == null) continue // Moves the entry to the head of the LRU queue.
+      redundantOpCount++
+      journalWriter.writeUtf8(READ)
+        .writeByte(' '.code)
+        .writeUtf8(key)
+        .writeByte('\n'.code)
+      journaled++
+    }
+
+    if (journaled > 0 && journalRebuildRequired()) {
       cleanupQueue.schedule(cleanupTask)
     }
+  }
 
-    return snapshot
+  private fun entryLock(key: String): ReentrantLock {
+    return entryLocks[key.hashCode() and (ENTRY_LOCK_COUNT - 1)]
   }
 
   /** Returns an editor for the entry named [key], or null if another edit is in progress. */
-  @Synchronized
   @Throws(IOException::class)
   @JvmOverloads
   fun edit(
     key: String,
     expectedSequenceNumber: Long = ANY_SEQUENCE_NUMBER,
   ): Editor? {
-    initialize()
-
-    checkNotClosed()
-    validateKey(key)
-    var entry: Entry? = lruEntries[key]
-    if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER &&
-      (entry == null || entry.sequenceNumber != expectedSequenceNumber)
-    ) {
-      return null // Snapshot is stale.
-    }
+    lock.withLock {
+      initialize()
+
+      checkNotClosed()
+      validateKey(key)
+      var entry: Entry? = lruEntries[key]
+      if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER &&
+        (entry == null || entry.sequenceNumber != expectedSequenceNumber)
+      ) {
+        return null // Snapshot is stale.
+      }
 
-    if (entry?.currentEditor != null) {
-      return null // Another edit is in progress.
-    }
+      if (entry?.currentEditor != null) {
+        return null // Another edit is in progress.
+      }
 
-    if (entry != null && entry.lockingSourceCount != 0) {
-      return null // We can't write this file because a reader is still reading it.
-    }
+      if (entry != null && entry.lockingSourceCount != 0) {
+        return null // We can't write this file because a reader is still reading it.
+      }
 
-    if (mostRecentTrimFailed || mostRecentRebuildFailed) {
-      // The OS has become our enemy! If the trim job failed, it means we are storing more data than
-      // requested by the user. Do not allow edits so we do not go over that limit any further. If
-      // the journal rebuild failed, the journal writer will not be active, meaning we will not be
-      // able to record the edit, causing file leaks. In both cases, we want to retry the clean up
-      // so we can get out of this state!
-      cleanupQueue.schedule(cleanupTask)
-      return null
-    }
+      if (mostRecentTrimFailed || mostRecentRebuildFailed) {
+        // The OS has become our enemy! If the trim job failed, it means we are storing more data
+        // than requested by the user. Do not allow edits so we do not go over that limit any
+        // further. If the journal rebuild failed, the journal writer will not be active, meaning we
+        // will not be able to record the edit, causing file leaks. In both cases, we want to retry
+        // the clean up so we can get out of this state!
+        cleanupQueue.schedule(cleanupTask)
+        return null
+      }
 
-    // Flush the journal before creating files to prevent file leaks.
-    val journalWriter = this.journalWriter!!
-    journalWriter.writeUtf8(DIRTY)
-      .writeByte(' '.code)
-      .writeUtf8(key)
-      .writeByte('\n'.code)
-    journalWriter.flush()
+      // Flush the journal before creating files to prevent file leaks.
+      val journalWriter = this.journalWriter!!
+      journalWriter.writeUtf8(DIRTY)
+        .writeByte(' '.code)
+        .writeUtf8(key)
+        .writeByte('\n'.code)
+      journalWriter.flush()
 
-    if (hasJournalErrors) {
-      return null // Don't edit; the journal can't be written.
-    }
+      if (hasJournalErrors) {
+        return null // Don't edit; the journal can't be written.
+      }
 
-    if (entry == null) {
-      entry = Entry(key)
-      lruEntries[key] = entry
+      if (entry == null) {
+        entry = Entry(key)
+        lruEntries[key] = entry
+        entryIndex[key] = entry
+      }
+      val editor = Editor(entry)
+      entry.currentEditor = editor
+      return editor
     }
-    val editor = Editor(entry)
-    entry.currentEditor = editor
-    return editor
   }
 
   /**
    * Returns the number of bytes currently being used to store the values in this cache. This may be
    * greater than the max size if a background deletion is pending.
    */
-  @Synchronized
   @Throws(IOException::class)
   fun size(): Long {
-    initialize()
-    return size
+    lock.withLock {
+      initialize()
+      return size
+    }
   }
 
-  @Synchronized
   @Throws(IOException::class)
   internal fun completeEdit(
     editor: Editor,
     success: Boolean,
   ) {
-    val entry = editor.entry
-    check(entry.currentEditor == editor)
+    lock.withLock {
+      val entry = editor.entry
+      check(entry.currentEditor == editor)
 
-    // If this edit is creating the entry for the first time, every index must have a value.
-    if (success && !entry.readable) {
-      for (i in 0 until valueCount) {
-        if (!editor.written!![i]) {
-          editor.abort()
-          throw IllegalStateException("Newly created entry didn't create value for index $i")
-        }
-        if (!fileSystem.exists(entry.dirtyFiles[i])) {
-          editor.abort()
-          return
+      // If this edit is creating the entry for the first time, every index must have a value.
+      if (success && !entry.readable) {
+        for (i in 0 until valueCount) {
+          if (!editor.written!![i]) {
+            editor.abort()
+            throw IllegalStateException("Newly created entry didn't create value for index $i")
+          }
+          if (!fileSystem.exists(entry.dirtyFiles[i])) {
+            editor.abort()
+            return
+          }
         }
       }
-    }
 
-    for (i in 0 until valueCount) {
-      val dirty = entry.dirtyFiles[i]
-      if (success && !entry.zombie) {
-        if (fileSystem.exists(dirty)) {
-          val clean = entry.cleanFiles[i]
-          fileSystem.atomicMove(dirty, clean)
-          val oldLength = entry.lengths[i]
-          // TODO check null behaviour
-          val newLength = fileSystem.metadata(clean).size ?: 0
-          entry.lengths[i] = newLength
-          size = size - oldLength + newLength
+      // Publish the new files and the sequence number that identifies them together, so readers
+      // that don't hold the cache's lock never see one without the other.
+      entryLock(entry.key).withLock {
+        for (i in 0 until valueCount) {
+          val dirty = entry.dirtyFiles[i]
+          if (success && !entry.zombie) {
+            if (fileSystem.exists(dirty)) {
+              val clean = entry.cleanFiles[i]
+              fileSystem.atomicMove(dirty, clean)
+              val oldLength = entry.lengths[i]
+              // TODO check null behaviour
+              val newLength = fileSystem.metadata(clean).size ?: 0
+              entry.lengths[i] = newLength
+              size = size - oldLength + newLength
+            }
+          } else {
+            fileSystem.deleteIfExists(dirty)
+          }
+        }
+
+        entry.currentEditor = null
+        if (!entry.zombie && (entry.readable || success)) {
+          entry.readable = true
+          if (success) {
+            entry.sequenceNumber = nextSequenceNumber++
+          }
         }
-      } else {
-        fileSystem.deleteIfExists(dirty)
       }
-    }
 
-    entry.currentEditor = null
-    if (entry.zombie) {
-      removeEntry(entry)
-      return
-    }
+      if (entry.zombie) {
+        removeEntry(entry)
+        return
+      }
 
-    redundantOpCount++
-    journalWriter!!.apply {
-      if (entry.readable || success) {
-        entry.readable = true
-        writeUtf8(CLEAN).writeByte(' '.code)
-        writeUtf8(entry.key)
-        entry.writeLengths(this)
-        writeByte('\n'.code)
-        if (success) {
-          entry.sequenceNumber = nextSequenceNumber++
+      redundantOpCount++
+      journalWriter!!.apply {
+        if (entry.readable) {
+          writeUtf8(CLEAN).writeByte(' '.code)
+          writeUtf8(entry.key)
+          entry.writeLengths(this)
+          writeByte('\n'.code)
+        } else {
+          lruEntries.remove(entry.key)
+          entryIndex.remove(entry.key)
+          writeUtf8(REMOVE).writeByte(' '.code)
+          writeUtf8(entry.key)
+          writeByte('\n'.code)
         }
-      } else {
-        lruEntries.remove(entry.key)
-        writeUtf8(REMOVE).writeByte(' '.code)
-        writeUtf8(entry.key)
-        writeByte('\n'.code)
+        flush()
       }
-      flush()
-    }
 
-    if (size > maxSize || journalRebuildRequired()) {
-      cleanupQueue.schedule(cleanupTask)
+      if (size > maxSize || journalRebuildRequired()) {
+        cleanupQueue.schedule(cleanupTask)
+      }
     }
   }
 
@@ -621,17 +786,18 @@ class DiskLruCache(
    *
    * @return true if an entry was removed.
    */
-  @Synchronized
   @Throws(IOException::class)
   fun remove(key: String): Boolean {
-    initialize()
-
-    checkNotClosed()
-    validateKey(key)
-    val entry = lruEntries[key] ?: return false
-    val removed = removeEntry(entry)
-    if (removed && size <= maxSize) mostRecentTrimFailed = false
-    return removed
+    lock.withLock {
+      initialize()
+
+      checkNotClosed()
+      validateKey(key)
+      val entry = lruEntries[key] ?: return false
+      val removed = removeEntry(entry)
+      if (removed && size <= maxSize) mostRecentTrimFailed = false
+      return removed
+    }
   }
 
   @Throws(IOException::class)
@@ -650,17 +816,19 @@ class DiskLruCache(
         }
       }
       if (entry.lockingSourceCount > 0 || entry.currentEditor != null) {
-        entry.zombie = true
+        entryLock(entry.key).withLock { entry.zombie = true }
         return true
       }
     }
 
     entry.currentEditor?.detach() // Prevent the edit from completing normally.
 
-    for (i in 0 until valueCount) {
-      fileSystem.deleteIfExists(entry.cleanFiles[i])
-      size -= entry.lengths[i]
-      entry.lengths[i] = 0
+    entryLock(entry.key).withLock {
+      for (i in 0 until valueCount) {
+        fileSystem.deleteIfExists(entry.cleanFiles[i])
+        size -= entry.lengths[i]
+        entry.lengths[i] = 0
+      }
     }
 
     redundantOpCount++
@@ -671,6 +839,7 @@ class DiskLruCache(
       it.writeByte('\n'.code)
     }
     lruEntries.remove(entry.key)
+    entryIndex.remove(entry.key)
 
     if (journalRebuildRequired()) {
       cleanupQueue.schedule(cleanupTask)
@@ -679,47 +848,56 @@ class DiskLruCache(
     return true
   }
 
-  @Synchronized private fun checkNotClosed() {
-    check(!closed) { "cache is closed" }
+  private fun checkNotClosed() {
+    lock.withLock {
+      check(!closed) { "cache is closed" }
+    }
   }
 
   /** Force buffered operations to the filesystem. */
-  @Synchronized
   @Throws(IOException::class)
   override fun flush() {
-    if (!initialized) return
+    lock.withLock {
+      if (!initialized) return
 
-    checkNotClosed()
-    trimToSize()
-    journalWriter!!.flush()
+      checkNotClosed()
+      trimToSize()
+      journalPendingReads()
+      journalWriter!!.flush()
+    }
   }
 
-  @Synchronized fun isClosed(): Boolean = closed
+  fun isClosed(): Boolean = lock.withLock { closed }
 
   /** Closes this cache. Stored values will remain on the filesystem. */
-  @Synchronized
   @Throws(IOException::class)
   override fun close() {
-    if (!initialized || closed) {
-      closed = true
-      return
-    }
+    lock.withLock {
+      if (!initialized || closed) {
+        closed = true
+        return
+      }
 
-    // Copying for concurrent iteration.
-    for (entry in lruEntries.values.toTypedArray()) {
-      if (entry.currentEditor != null) {
-        entry.currentEditor?.detach() // Prevent the edit from completing normally.
+      // Copying for concurrent iteration.
+      for (entry in lruEntries.values.toTypedArray()) {
+        if (entry.currentEditor != null) {
+          entry.currentEditor?.detach() // Prevent the edit from completing normally.
+        }
       }
-    }
 
-    trimToSize()
-    journalWriter?.closeQuietly()
-    journalWriter = null
-    closed = true
+      trimToSize()
+      journalPendingReads()
+      journalWriter?.closeQuietly()
+      journalWriter = null
+      closed = true
+    }
   }
 
   @Throws(IOException::class)
   fun trimToSize() {
+    if (size > maxSize) {
+      journalPendingReads() // Evict based on the most recent reads.
+    }
     while (size > maxSize) {
       if (!removeOldestEntry()) return
     }
@@ -751,15 +929,16 @@ class DiskLruCache(
    * Deletes all stored values from the cache. In-flight edits will complete normally but their
    * values will not be stored.
    */
-  @Synchronized
   @Throws(IOException::class)
   fun evictAll() {
-    initialize()
-    // Copying for concurrent iteration.
-    for (entry in lruEntries.values.toTypedArray()) {
-      removeEntry(entry)
+    lock.withLock {
+      initialize()
+      // Copying for concurrent iteration.
+      for (entry in lruEntries.values.toTypedArray()) {
+        removeEntry(entry)
+      }
+      mostRecentTrimFailed = false
     }
-    mostRecentTrimFailed = false
   }
 
   private fun validateKey(key: String) {
@@ -779,53 +958,54 @@ class DiskLruCache(
    * **The caller must [close][Snapshot.close]** each snapshot returned by [Iterator.next]. Failing
    * to do so leaks open files!
    */
-  @Synchronized
   @Throws(IOException::class)
   fun snapshots(): MutableIterator<Snapshot> {
-    initialize()
-    return object : MutableIterator<Snapshot> {
-      /** Iterate a copy of the entries to defend against concurrent modification errors. */
-      private val delegate = ArrayList(lruEntries.values).iterator()
+    lock.withLock {
+      initialize()
+      return object : MutableIterator<Snapshot> {
+        /** Iterate a copy of the entries to defend against concurrent modification errors. */
+        private val delegate = ArrayList(lruEntries.values).iterator()
 
-      /** The snapshot to return from [next]. Null if we haven't computed that yet. */
-      private var nextSnapshot: Snapshot? = null
+        /** The snapshot to return from [next]. Null if we haven't computed that yet. */
+        private var nextSnapshot: Snapshot? = null
 
-      /** The snapshot to remove with [remove]. Null if removal is illegal. */
-      private var removeSnapshot: Snapshot? = null
+        /** The snapshot to remove with [remove]. Null if removal is illegal. */
+        private var removeSnapshot: Snapshot? = null
 
-      override fun hasNext(): Boolean {
-        if (nextSnapshot != null) return true
+        override fun hasNext(): Boolean {
+          if (nextSnapshot != null) return true
 
-        synchronized(this@DiskLruCache) {
-          // If the cache is closed, truncate the iterator.
-          if (closed) return false
+          lock.withLock {
+            // If the cache is closed, truncate the iterator.
+            if (closed) return false
 
-          while (delegate.hasNext()) {
-            nextSnapshot = delegate.next()?.snapshot() ?: continue
-            return true
+            while (delegate.hasNext()) {
+              nextSnapshot = delegate.next()?.snapshot() ?: continue
+              return true
+            }
           }
-        }
 
-        return false
-      }
+          return false
+        }
 
-      override fun next(): Snapshot {
-        if (!hasNext()) throw NoSuchElementException()
-        removeSnapshot = nextSnapshot
-        nextSnapshot = null
-        return removeSnapshot!!
-      }
+        override fun next(): Snapshot {
+          if (!hasNext()) throw NoSuchElementException()
+          removeSnapshot = nextSnapshot
+          nextSnapshot = null
+          return removeSnapshot!!
+        }
 
-      override fun remove() {
-        val removeSnapshot = this.removeSnapshot
-        checkNotNull(removeSnapshot) { "remove() before next()" }
-        try {
-          this@DiskLruCache.remove(removeSnapshot.key())
-        } catch (_: IOException) {
-          // Nothing useful to do here. We failed to remove from the cache. Most likely that's
-          // because we couldn't update the journal, but the cached entry will still be gone.
-        } finally {
-          this.removeSnapshot = null
+        override fun remove() {
+          val removeSnapshot = this.removeSnapshot
+          checkNotNull(removeSnapshot) { "remove() before next()" }
+          try {
+            this@DiskLruCache.remove(removeSnapshot.key())
+          } catch (_: IOException) {
+            // Nothing useful to do here. We failed to remove from the cache. Most likely that's
+            // because we couldn't update the journal, but the cached entry will still be gone.
+          } finally {
+            this.removeSnapshot = null
+          }
         }
       }
     }
@@ -834,7 +1014,7 @@ class DiskLruCache(
   /** A snapshot of the values for an entry. */
   inner class Snapshot internal constructor(
     private val key: String,
-    private val sequenceNumber: Long,
+    internal val sequenceNumber: Long,
     private val sources: List<Source>,
     private val lengths: LongArray,
   ) : Closeable {
@@ -886,7 +1066,7 @@ class DiskLruCache(
      * been committed.
      */
     fun newSource(index: Int): Source? {
-      synchronized(this@DiskLruCache) {
+      lock.withLock {
         check(!done)
         if (!entry.readable || entry.currentEditor != this || entry.zombie) {
           return null
@@ -905,7 +1085,7 @@ class DiskLruCache(
      * when [commit] is called. The returned output stream does not throw IOExceptions.
      */
     fun newSink(index: Int): Sink {
-      synchronized(this@DiskLruCache) {
+      lock.withLock {
         check(!done)
         if (entry.currentEditor != this) {
           return blackholeSink()
@@ -921,7 +1101,7 @@ class DiskLruCache(
           return blackholeSink()
         }
         return FaultHidingSink(sink) {
-          synchronized(this@DiskLruCache) {
+          lock.withLock {
             detach()
           }
         }
@@ -934,7 +1114,7 @@ class DiskLruCache(
      */
     @Throws(IOException::class)
     fun commit() {
-      synchronized(this@DiskLruCache) {
+      lock.withLock {
         check(!done)
         if (entry.currentEditor == this) {
           completeEdit(this, true)
@@ -949,7 +1129,7 @@ class DiskLruCache(
      */
     @Throws(IOException::class)
     fun abort() {
-      synchronized(this@DiskLruCache) {
+      lock.withLock {
         check(!done)
         if (entry.currentEditor == this) {
           completeEdit(this, false)
@@ -1036,11 +1216,27 @@ class DiskLruCache(
      * different edits.
      */
     internal fun snapshot(): Snapshot? {
-      this@DiskLruCache.assertThreadHoldsLock()
+      lock.assertHeld()
 
       if (!readable) return null
       if (!civilizedFileSystem && (currentEditor != null || zombie)) return null
 
+      try {
+        return openSnapshot()
+      } catch (_: FileNotFoundException) {
+        // A file must have been deleted manually! Since the entry is no longer valid, remove it so
+        // the metadata is accurate (i.e. the cache size.)
+        try {
+          removeEntry(this)
+        } catch (_: IOException) {
+        }
+        return null
+      }
+    }
+
+    /** Opens this entry's sources, closing any already opened if one of its files is missing. */
+    @Throws(FileNotFoundException::class)
+    internal fun openSnapshot(): Snapshot {
       val sources = mutableListOf<Source>()
       val lengths = this.lengths.clone() // Defensive copy since these can be zeroed out.
       try {
@@ -1048,18 +1244,11 @@ class DiskLruCache(
           sources += newSource(i)
         }
         return Snapshot(key, sequenceNumber, sources, lengths)
-      } catch (_: FileNotFoundException) {
-        // A file must have been deleted manually!
+      } catch (e: FileNotFoundException) {
         for (source in sources) {
           source.closeQuietly()
         }
-        // Since the entry is no longer valid, remove it so the metadata is accurate (i.e. the cache
-        // size.)
-        try {
-          removeEntry(this)
-        } catch (_: IOException) {
-        }
-        return null
+        throw e
       }
     }
 
@@ -1075,7 +1264,7 @@ class DiskLruCache(
           super.close()
           if (!closed) {
             closed = true
-            synchronized(this@DiskLruCache) {
+            lock.withLock {
               lockingSourceCount--
               if (lockingSourceCount == 0 && zombie) {
                 removeEntry(this@Entry)
@@ -1109,5 +1298,11 @@ class DiskLruCache(
     @JvmField val REMOVE = "REMOVE"
 
     @JvmField val READ = "READ"
+
+    /** The number of locks that entries are striped across. Must be a power of 2. */
+    private const val ENTRY_LOCK_COUNT = 64
+
+    /** Reads beyond this many waiting to be journaled don't update the LRU order. */
+    private const val MAX_PENDING_READS = 10_000
   }
 }
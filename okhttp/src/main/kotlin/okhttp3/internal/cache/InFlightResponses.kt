@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.cache
+
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import okhttp3.Cache
+import okhttp3.Call
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.internal.cache2.Relay
+import okhttp3.internal.closeQuietly
+import okhttp3.internal.http.RealResponseBody
+import okhttp3.internal.stripBody
+import okio.Buffer
+import okio.ByteString
+import okio.ForwardingSource
+import okio.Source
+import okio.buffer
+
+/**
+ * Network responses that are being written to the cache. Concurrent requests for the same URL may
+ * read one of these responses as it arrives instead of making their own network requests.
+ *
+ * The first request for a URL leads a [Flight]. Requests that miss the cache while it is in
+ * progress wait for the leader's response headers, then share its body through a [Relay] that
+ * buffers it in a file in [directory]. That file is deleted when the last reader closes it.
+ *
+ * A flight stops accepting requests once its body has been read from the network, because by then
+ * the response is in the cache. Relay files left over by a previous process are deleted before the
+ * first flight is registered.
+ */
+class InFlightResponses(
+  private val directory: File,
+) {
+  private val lock = ReentrantLock()
+  private val flights = mutableMapOf<String, Flight>()
+  private val nextRelayId = AtomicInteger()
+
+  /** True once relay files from a previous process have been deleted. Guarded by [lock]. */
+  private var deletedStaleRelays = false
+
+  /**
+   * Registers [flight] unless another flight for the same key is in progress. Returns that flight,
+   * or null if the caller now leads [flight] and must either [Flight.publish] or [Flight.abandon]
+   * it.
+   */
+  fun register(flight: Flight): Flight? {
+    lock.withLock {
+      if (!deletedStaleRelays) {
+        deletedStaleRelays = true
+        directory.listFiles()?.forEach { if (it.name.endsWith(RELAY_SUFFIX)) it.delete() }
+      }
+      flights[flight.key]?.let { return it }
+      flights[flight.key] = flight
+      return null
+    }
+  }
+
+  private fun unregister(flight: Flight) {
+    lock.withLock {
+      if (flights[flight.key] === flight) flights.remove(flight.key)
+    }
+  }
+
+  /**
+   * Stops sharing the response for [key] with requests that haven't joined its flight yet. Call
+   * this when the cached response for [key] is removed.
+   */
+  fun invalidate(key: String) {
+    lock.withLock {
+      flights.remove(key)
+    }
+  }
+
+  /** Stops sharing every response with requests that haven't joined its flight yet. */
+  fun invalidateAll() {
+    lock.withLock {
+      flights.clear()
+    }
+  }
+
+  inner class Flight(
+    val key: String,
+  ) {
+    private val published = CountDownLatch(1)
+    private val waiterCount = AtomicInteger()
+    private val released = AtomicBoolean()
+
+    // Written before [published] counts down; read after awaiting it.
+    private var response: Response? = null
+    private var relay: Relay? = null
+    private var relayFile: File? = null
+
+    /**
+     * Shares [response] with the requests waiting for it and returns the response the leader
+     * should read. If nobody is waiting this returns [response] unchanged.
+     */
+    fun publish(response: Response): Response {
+      if (waiterCount.get() == 0) {
+        abandon()
+        return response
+      }
+
+      val relayFile = File(directory, "$key.${nextRelayId.getAndIncrement()}$RELAY_SUFFIX")
+      val relay =
+        try {
+          val upstream = FailureRememberingSource(response.body.source()) { unregister(this) }
+          Relay.edit(relayFile, upstream, ByteString.EMPTY, RELAY_BUFFER_SIZE)
+        } catch (_: IOException) {
+          abandon()
+          return response
+        }
+      this.relay = relay
+      this.relayFile = relayFile
+      this.response = response.stripBody()
+      val source = newSource()!! // The relay must have a source before it is published.
+      published.countDown()
+
+      return response.withBody(source)
+    }
+
+    /** Releases the requests waiting for this flight. This does nothing if it was published. */
+    fun abandon() {
+      if (published.count == 0L) return
+      unregister(this)
+      published.countDown()
+    }
+
+    /**
+     * Waits up to [timeoutMillis] for the leader's response, then returns a copy of it for
+     * [request]. Returns null if the leader didn't share its response, or if the response doesn't
+     * satisfy [request]'s `Vary` headers.
+     */
+    @Throws(IOException::class)
+    fun await(
+      call: Call,
+      request: Request,
+      timeoutMillis: Int,
+    ): Response? {
+      waiterCount.incrementAndGet()
+      val deadline = System.nanoTime() + MILLISECONDS.toNanos(timeoutMillis.toLong())
+      while (!published.await(AWAIT_SLICE_MILLIS, MILLISECONDS)) {
+        if (call.isCanceled()) throw IOException("Canceled")
+        if (timeoutMillis != 0 && System.nanoTime() - deadline > 0L) return null
+      }
+
+      val response = response ?: return null
+      val networkResponse = response.networkResponse!!
+      if (!Cache.varyMatches(response, networkResponse.request.headers, request)) return null
+
+      val source = newSource() ?: return null // Every reader closed; the relay is gone.
+      return response.newBuilder()
+        .request(request)
+        .networkResponse(networkResponse.newBuilder().request(request).build())
+        .build()
+        .withBody(source)
+    }
+
+    private fun Response.withBody(source: Source): Response {
+      val contentType = header("Content-Type")
+      val contentLength = body.contentLength()
+      return newBuilder()
+        .body(RealResponseBody(contentType, contentLength, source.buffer()))
+        .build()
+    }
+
+    /**
+     * Returns a new reader of the relay. Once the last reader is closed this closes the network
+     * response if it wasn't read completely and deletes the relay's file.
+     */
+    private fun newSource(): Source? {
+      val relay = relay!!
+      val source = relay.newSource() ?: return null
+
+      return object : ForwardingSource(source) {
+        private var closed = false
+
+        @Throws(IOException::class)
+        override fun close() {
+          if (closed) return
+          closed = true
+          super.close()
+          if (relay.isClosed && released.compareAndSet(false, true)) {
+            unregister(this@Flight)
+            relay.upstream?.closeQuietly()
+            relayFile!!.delete()
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Throws on every read after its first failure, so readers that share a relay all observe that
+   * failure rather than a truncated body. Calls [onDone] once when the source is exhausted or
+   * fails.
+   */
+  private class FailureRememberingSource(
+    delegate: Source,
+    private val onDone: () -> Unit,
+  ) : ForwardingSource(delegate) {
+    private var failure: IOException? = null
+    private var done = false
+
+    @Throws(IOException::class)
+    override fun read(
+      sink: Buffer,
+      byteCount: Long,
+    ): Long {
+      failure?.let { throw IOException("shared response failed", it) }
+      try {
+        val result = super.read(sink, byteCount)
+        if (result == -1L) done()
+        return result
+      } catch (e: IOException) {
+        failure = e
+        done()
+        throw e
+      }
+    }
+
+    private fun done() {
+      if (done) return
+      done = true
+      onDone()
+    }
+  }
+
+  private companion object {
+    const val RELAY_BUFFER_SIZE = 64L * 1024L
+    const val AWAIT_SLICE_MILLIS = 100L
+    const val RELAY_SUFFIX = ".relay"
+  }
+}
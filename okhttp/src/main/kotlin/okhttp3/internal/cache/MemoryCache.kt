@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.cache
+
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * A size-bounded map that evicts its least recently used values. Each value's size is supplied by
+ * the caller when it is added.
+ *
+ * This holds no I/O resources; values are copies of data that lives elsewhere, and callers must
+ * confirm that a value is still current before using it.
+ */
+class MemoryCache<T : Any>(
+  val maxSize: Long,
+) {
+  private val lock = ReentrantLock()
+  private val entries = LinkedHashMap<String, Node<T>>(0, 0.75f, true)
+  private var size = 0L
+
+  init {
+    require(maxSize > 0L) { "maxSize <= 0: $maxSize" }
+  }
+
+  /** The sum of the sizes of the values in this cache. */
+  val byteCount: Long
+    get() = lock.withLock { size }
+
+  operator fun get(key: String): T? = lock.withLock { entries[key]?.value }
+
+  /**
+   * Adds [value] for [key], replacing any value already present. Values larger than [maxSize] are
+   * not retained.
+   */
+  fun put(
+    key: String,
+    value: T,
+    byteCount: Long,
+  ) {
+    lock.withLock {
+      entries.remove(key)?.let { size -= it.byteCount }
+      if (byteCount > maxSize) return
+
+      entries[key] = Node(value, byteCount)
+      size += byteCount
+      trimToSize()
+    }
+  }
+
+  fun remove(key: String) {
+    lock.withLock {
+      entries.remove(key)?.let { size -= it.byteCount }
+    }
+  }
+
+  /** Removes [key] only if it still maps to [value]. */
+  fun remove(
+    key: String,
+    value: T,
+  ) {
+    lock.withLock {
+      if (entries[key]?.value !== value) return
+      entries.remove(key)?.let { size -= it.byteCount }
+    }
+  }
+
+  fun evictAll() {
+    lock.withLock {
+      entries.clear()
+      size = 0L
+    }
+  }
+
+  private fun trimToSize() {
+    val i = entries.values.iterator()
+    while (size > maxSize && i.hasNext()) {
+      size -= i.next().byteCount
+      i.remove()
+    }
+  }
+
+  private class Node<T>(
+    val value: T,
+    val byteCount: Long,
+  )
+}
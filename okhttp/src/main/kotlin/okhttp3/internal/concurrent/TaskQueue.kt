@@ -45,6 +45,18 @@ class TaskQueue internal constructor(
   /** True if the [activeTask] should be canceled when it completes. */
   internal var cancelActiveTask = false
 
+  /**
+   * The execute time of the first future task when this queue was last ordered among the task
+   * runner's ready queues. This may be earlier than the first future task, but never later.
+   */
+  internal var readyAtNanoTime = 0L
+
+  /** Orders this queue among ready queues with the same [readyAtNanoTime]. */
+  internal var readySequence = 0L
+
+  /** True if this queue is in the task runner's ready queues. Guarded by the task runner's lock. */
+  internal var inReadyQueues = false
+
   /**
    * Returns a snapshot of tasks currently scheduled for execution. Does not include the
    * currently-executing task unless it is also scheduled for future execution.
@@ -15,6 +15,7 @@
  */
 package okhttp3.internal.concurrent
 
+import java.util.TreeSet
 import java.util.concurrent.BlockingQueue
 import java.util.concurrent.SynchronousQueue
 import java.util.concurrent.ThreadFactory
@@ -24,7 +25,6 @@ import java.util.concurrent.locks.Condition
 import java.util.concurrent.locks.ReentrantLock
 import java.util.logging.Logger
 import kotlin.concurrent.withLock
-import okhttp3.internal.addIfAbsent
 import okhttp3.internal.assertHeld
 import okhttp3.internal.concurrent.TaskRunner.Companion.INSTANCE
 import okhttp3.internal.okHttpName
@@ -64,10 +64,14 @@ class TaskRunner(
   private var runCallCount = 0
 
   /** Queues with tasks that are currently executing their [TaskQueue.activeTask]. */
-  private val busyQueues = mutableListOf<TaskQueue>()
+  private val busyQueues = LinkedHashSet<TaskQueue>()
 
-  /** Queues not in [busyQueues] that have non-empty [TaskQueue.futureTasks]. */
-  private val readyQueues = mutableListOf<TaskQueue>()
+  /**
+   * Queues not in [busyQueues] that have non-empty [TaskQueue.futureTasks], ordered by when their
+   * next task executes. Use [updateReadyQueue] to add, remove, or reorder queues in this set.
+   */
+  private val readyQueues = TreeSet(ReadyQueueOrder)
+  private var nextReadySequence = 0L
 
   private val runnable: Runnable =
     object : Runnable {
@@ -105,11 +109,7 @@ class TaskRunner(
     lock.assertHeld()
 
     if (taskQueue.activeTask == null) {
-      if (taskQueue.futureTasks.isNotEmpty()) {
-        readyQueues.addIfAbsent(taskQueue)
-      } else {
-        readyQueues.remove(taskQueue)
-      }
+      updateReadyQueue(taskQueue)
     }
 
     if (coordinatorWaiting) {
@@ -125,7 +125,7 @@ class TaskRunner(
     task.nextExecuteNanoTime = -1L
     val queue = task.queue!!
     queue.futureTasks.remove(task)
-    readyQueues.remove(queue)
+    removeReadyQueue(queue)
     queue.activeTask = task
     busyQueues.add(queue)
   }
@@ -164,9 +164,38 @@ class TaskRunner(
       queue.scheduleAndDecide(task, delayNanos, recurrence = true)
     }
 
-    if (queue.futureTasks.isNotEmpty()) {
-      readyQueues.add(queue)
+    updateReadyQueue(queue)
+  }
+
+  /**
+   * Adds, removes, or reorders [queue] in [readyQueues] to reflect its first future task.
+   *
+   * Callers must invoke this whenever a queue's first task gets earlier. When it gets later, such
+   * as when a task is canceled, [awaitTaskToRun] fixes the order when it finds the queue.
+   */
+  private fun updateReadyQueue(queue: TaskQueue) {
+    val wasReady = removeReadyQueue(queue)
+    if (queue.activeTask != null || queue.futureTasks.isEmpty()) return
+
+    val readyAtNanoTime = queue.futureTasks[0].nextExecuteNanoTime
+    if (!wasReady || queue.readyAtNanoTime != readyAtNanoTime) {
+      queue.readyAtNanoTime = readyAtNanoTime
+      queue.readySequence = nextReadySequence++
     }
+    queue.inReadyQueues = true
+    readyQueues.add(queue)
+  }
+
+  /**
+   * Removes [queue] from [readyQueues] and returns true if it was there. This doesn't ask the set
+   * whether it contains [queue] because a queue that isn't in the set may compare equal to one that
+   * is.
+   */
+  private fun removeReadyQueue(queue: TaskQueue): Boolean {
+    if (!queue.inReadyQueues) return false
+    queue.inReadyQueues = false
+    readyQueues.remove(queue)
+    return true
   }
 
   /**
@@ -183,38 +212,23 @@ class TaskRunner(
         return null // Nothing to do.
       }
 
-      val now = backend.nanoTime()
-      var minDelayNanos = Long.MAX_VALUE
-      var readyTask: Task? = null
-      var multipleReadyTasks = false
-
-      // Decide what to run. This loop's goal wants to:
-      //  * Find out what this thread should do (either run a task or sleep)
-      //  * Find out if there's enough work to start another thread.
-      eachQueue@ for (queue in readyQueues) {
-        val candidate = queue.futureTasks[0]
-        val candidateDelay = maxOf(0L, candidate.nextExecuteNanoTime - now)
-
-        when {
-          // Compute the delay of the soonest-executable task.
-          candidateDelay > 0L -> {
-            minDelayNanos = minOf(candidateDelay, minDelayNanos)
-            continue@eachQueue
-          }
-
-          // If we already have more than one task, that's enough work for now. Stop searching.
-          readyTask != null -> {
-            multipleReadyTasks = true
-            break@eachQueue
-          }
-
-          // We have a task to execute when we complete the loop.
-          else -> {
-            readyTask = candidate
-          }
-        }
+      // Ready queues are ordered by their next task, so we only need to look at the first one to
+      // find out what this thread should do (either run a task or sleep), and at the second one to
+      // find out if there's enough work to start another thread.
+      val queue = readyQueues.first()
+      val candidate = queue.futureTasks.firstOrNull()
+      if (candidate == null || candidate.nextExecuteNanoTime != queue.readyAtNanoTime) {
+        updateReadyQueue(queue) // This queue's tasks changed. Reorder it and look again.
+        continue
       }
 
+      val now = backend.nanoTime()
+      val minDelayNanos = maxOf(0L, candidate.nextExecuteNanoTime - now)
+      val readyTask: Task? = if (minDelayNanos == 0L) candidate else null
+      val multipleReadyTasks =
+        readyTask != null &&
+          readyQueues.higher(queue)?.let { it.readyAtNanoTime - now <= 0L } == true
+
       // Implement the decision.
       when {
         // We have a task ready to go. Get ready.
@@ -274,21 +288,33 @@ class TaskRunner(
    */
   fun activeQueues(): List<TaskQueue> {
     lock.withLock {
-      return busyQueues + readyQueues
+      return busyQueues.toList() + readyQueues
     }
   }
 
   fun cancelAll() {
     lock.assertHeld()
-    for (i in busyQueues.size - 1 downTo 0) {
-      busyQueues[i].cancelAllAndDecide()
+    for (queue in busyQueues.toList().asReversed()) {
+      queue.cancelAllAndDecide()
     }
-    for (i in readyQueues.size - 1 downTo 0) {
-      val queue = readyQueues[i]
+    for (queue in readyQueues.toList().asReversed()) {
       queue.cancelAllAndDecide()
-      if (queue.futureTasks.isEmpty()) {
-        readyQueues.removeAt(i)
-      }
+      updateReadyQueue(queue)
+    }
+  }
+
+  /**
+   * Orders queues by their [TaskQueue.readyAtNanoTime], then by when they became ready. Always
+   * compare deltas because nanoTime() is permitted to wrap.
+   */
+  private object ReadyQueueOrder : Comparator<TaskQueue> {
+    override fun compare(
+      a: TaskQueue,
+      b: TaskQueue,
+    ): Int {
+      val delta = a.readyAtNanoTime - b.readyAtNanoTime
+      if (delta != 0L) return if (delta < 0L) -1 else 1
+      return a.readySequence.compareTo(b.readySequence)
     }
   }
 
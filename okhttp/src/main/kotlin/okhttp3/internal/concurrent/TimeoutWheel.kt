@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.concurrent
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import okhttp3.internal.okHttpName
+
+/**
+ * A hashed timing wheel that fires [WheelTimeout]s on a shared watchdog thread.
+ *
+ * Time is divided into ticks of [tickNanos]. Each timeout is placed in the bucket for the first
+ * tick that ends after its deadline, so arming and disarming a timeout are O(1) regardless of how
+ * many timeouts are pending. Timeouts fire up to one tick late.
+ *
+ * The watchdog thread sleeps until the next tick whose bucket is non-empty, so it doesn't wake on
+ * every tick while distant timeouts are pending. It only runs while timeouts are pending, and exits
+ * when it's idle.
+ */
+internal class TimeoutWheel(
+  private val tickNanos: Long = TimeUnit.MILLISECONDS.toNanos(10),
+  wheelSize: Int = 512,
+) {
+  private val lock = ReentrantLock()
+  private val condition = lock.newCondition()
+
+  private val mask: Int
+  private val buckets: Array<WheelTimeout?>
+
+  /** Ticks are counted from this time. */
+  private val startNanoTime = System.nanoTime()
+
+  /** The last tick whose bucket was processed. Guarded by [lock]. */
+  private var processedTick = 0L
+
+  /** The number of armed timeouts. Guarded by [lock]. */
+  private var armedCount = 0
+
+  /** True if a watchdog thread is running. Guarded by [lock]. */
+  private var watchdogRunning = false
+
+  /** The tick the watchdog is sleeping until, or [Long.MAX_VALUE]. Guarded by [lock]. */
+  private var wakeTick = Long.MAX_VALUE
+
+  init {
+    require(wheelSize > 0 && wheelSize and (wheelSize - 1) == 0) {
+      "wheelSize is not a power of 2: $wheelSize"
+    }
+    mask = wheelSize - 1
+    buckets = arrayOfNulls(wheelSize)
+  }
+
+  /** Schedules [timeout] to fire at [deadlineNanoTime]. */
+  internal fun arm(
+    timeout: WheelTimeout,
+    deadlineNanoTime: Long,
+  ) {
+    lock.withLock {
+      check(timeout.state == WheelTimeout.STATE_IDLE) { "Unbalanced enter/exit" }
+
+      // Round up so the timeout never fires early.
+      val elapsedNanos = deadlineNanoTime - startNanoTime
+      val tick = maxOf((elapsedNanos + tickNanos - 1) / tickNanos, processedTick + 1)
+
+      timeout.state = WheelTimeout.STATE_ARMED
+      timeout.tick = tick
+      insert(timeout)
+      armedCount++
+
+      if (!watchdogRunning) {
+        startWatchdog()
+      } else if (tick < wakeTick) {
+        condition.signal() // The watchdog is sleeping past this timeout's tick.
+      }
+    }
+  }
+
+  /** Cancels [timeout] if it's armed. Returns true if it has already fired. */
+  internal fun disarm(timeout: WheelTimeout): Boolean {
+    lock.withLock {
+      return when (timeout.state) {
+        WheelTimeout.STATE_ARMED -> {
+          remove(timeout)
+          armedCount--
+          timeout.state = WheelTimeout.STATE_IDLE
+          false
+        }
+
+        WheelTimeout.STATE_TIMED_OUT -> {
+          timeout.state = WheelTimeout.STATE_IDLE
+          true
+        }
+
+        else -> false
+      }
+    }
+  }
+
+  /** Appends [timeout] to its bucket. Timeouts in a bucket fire in the order they were armed. */
+  private fun insert(timeout: WheelTimeout) {
+    val index = (timeout.tick and mask.toLong()).toInt()
+    val head = buckets[index]
+    if (head == null) {
+      timeout.prev = timeout
+      timeout.next = timeout
+      buckets[index] = timeout
+    } else {
+      val tail = head.prev!!
+      timeout.prev = tail
+      timeout.next = head
+      tail.next = timeout
+      head.prev = timeout
+    }
+  }
+
+  private fun remove(timeout: WheelTimeout) {
+    val index = (timeout.tick and mask.toLong()).toInt()
+    val next = timeout.next!!
+    if (next === timeout) {
+      buckets[index] = null
+    } else {
+      val prev = timeout.prev!!
+      prev.next = next
+      next.prev = prev
+      if (buckets[index] === timeout) buckets[index] = next
+    }
+    timeout.prev = null
+    timeout.next = null
+  }
+
+  /**
+   * Waits for the next tick with a non-empty bucket, then removes and returns the timeouts that
+   * have expired. Returns null if the watchdog should exit because it's been idle for
+   * [IDLE_TIMEOUT_NANOS].
+   */
+  private fun awaitExpired(): List<WheelTimeout>? {
+    lock.withLock {
+      if (armedCount == 0) {
+        wakeTick = Long.MAX_VALUE
+        condition.awaitNanos(IDLE_TIMEOUT_NANOS)
+        if (armedCount == 0) {
+          watchdogRunning = false
+          return null
+        }
+      }
+
+      val nowTick = (System.nanoTime() - startNanoTime) / tickNanos
+      val nextTick = nextOccupiedTick()
+      if (nowTick < nextTick) {
+        wakeTick = nextTick
+        condition.awaitNanos(startNanoTime + nextTick * tickNanos - System.nanoTime())
+        wakeTick = Long.MAX_VALUE
+        return listOf()
+      }
+
+      // Visit each bucket at most once, even if the watchdog fell behind by a full rotation.
+      val result = mutableListOf<WheelTimeout>()
+      val lastTick = minOf(nowTick, processedTick + buckets.size)
+      for (tick in processedTick + 1..lastTick) {
+        val index = (tick and mask.toLong()).toInt()
+        val head = buckets[index] ?: continue
+        val tail = head.prev!!
+        var timeout = head
+        while (true) {
+          val next = timeout.next!!
+          if (timeout.tick <= nowTick) {
+            remove(timeout)
+            armedCount--
+            timeout.state = WheelTimeout.STATE_TIMED_OUT
+            result += timeout
+          }
+          if (timeout === tail) break
+          timeout = next
+        }
+      }
+      processedTick = nowTick
+      return result
+    }
+  }
+
+  /**
+   * Returns the first tick after [processedTick] whose bucket is non-empty. A bucket may hold
+   * timeouts for later rotations too, so this may be earlier than any timeout's deadline.
+   */
+  private fun nextOccupiedTick(): Long {
+    for (tick in processedTick + 1..processedTick + buckets.size) {
+      if (buckets[(tick and mask.toLong()).toInt()] != null) return tick
+    }
+    return processedTick + buckets.size
+  }
+
+  private fun startWatchdog() {
+    watchdogRunning = true
+    Thread(watchdog, "$okHttpName TimeoutWheel").apply {
+      isDaemon = true
+      start()
+    }
+  }
+
+  private val watchdog =
+    Runnable {
+      var completedNormally = false
+      try {
+        while (true) {
+          val expired = awaitExpired() ?: break
+          for (timeout in expired) {
+            timeout.fire()
+          }
+        }
+        completedNormally = true
+      } finally {
+        // If a timeout is crashing start another thread to service the wheel.
+        if (!completedNormally) {
+          lock.withLock {
+            watchdogRunning = false
+            if (armedCount > 0) startWatchdog()
+          }
+        }
+      }
+    }
+
+  companion object {
+    private val IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60)
+
+    @JvmField
+    val INSTANCE = TimeoutWheel()
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.concurrent
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import okhttp3.internal.okHttpName
+
+/**
+ * Virtual threads from Java 21. OkHttp targets Java 8 so these are accessed reflectively.
+ *
+ * OkHttp's own locks are [java.util.concurrent.locks.ReentrantLock]s and its waits use
+ * [java.util.concurrent.locks.Condition]s, so blocking in the dispatcher, task runner, disk cache,
+ * and HTTP/2 flow control unmounts a virtual thread instead of pinning its carrier.
+ */
+internal object VirtualThreads {
+  /** True if this runtime supports virtual threads. */
+  val isSupported: Boolean by lazy {
+    try {
+      Thread::class.java.getMethod("ofVirtual")
+      true
+    } catch (_: NoSuchMethodException) {
+      false
+    }
+  }
+
+  /** A task runner whose tasks run on virtual threads. Shared by all clients that use it. */
+  val taskRunner: TaskRunner by lazy {
+    TaskRunner(TaskRunner.RealBackend(threadFactory("$okHttpName TaskRunner ")))
+  }
+
+  /** Returns an executor service that starts a new virtual thread for each task. */
+  fun newThreadPerTaskExecutor(namePrefix: String): ExecutorService {
+    return Executors::class.java
+      .getMethod("newThreadPerTaskExecutor", ThreadFactory::class.java)
+      .invoke(null, threadFactory(namePrefix)) as ExecutorService
+  }
+
+  /** Returns a factory for virtual threads named [namePrefix] followed by a counter. */
+  fun threadFactory(namePrefix: String): ThreadFactory {
+    check(isSupported) { "virtual threads require Java 21+" }
+
+    val builder = Thread::class.java.getMethod("ofVirtual").invoke(null)
+    val builderClass = Class.forName("java.lang.Thread\$Builder")
+    val namedBuilder =
+      builderClass
+        .getMethod("name", String::class.java, Long::class.javaPrimitiveType)
+        .invoke(builder, namePrefix, 0L)
+    return builderClass.getMethod("factory").invoke(namedBuilder) as ThreadFactory
+  }
+}
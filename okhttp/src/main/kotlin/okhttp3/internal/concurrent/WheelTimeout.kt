@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.concurrent
+
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.net.Socket
+import java.net.SocketTimeoutException
+import java.util.logging.Level
+import java.util.logging.Logger
+import okio.Buffer
+import okio.Sink
+import okio.Source
+import okio.Timeout
+import okio.sink
+import okio.source
+
+/**
+ * A timeout that calls [timedOut] on a [TimeoutWheel]'s watchdog thread when it's reached. This
+ * works like Okio's `AsyncTimeout`, but arming and disarming it don't get slower as the number of
+ * pending timeouts grows.
+ *
+ * Call [enter] before starting an operation that should be interrupted by this timeout, and [exit]
+ * when it completes.
+ */
+internal open class WheelTimeout(
+  private val wheel: TimeoutWheel = TimeoutWheel.INSTANCE,
+) : Timeout() {
+  // These fields are guarded by the wheel's lock.
+  internal var state = STATE_IDLE
+  internal var tick = 0L
+  internal var prev: WheelTimeout? = null
+  internal var next: WheelTimeout? = null
+
+  fun enter() {
+    val timeoutNanos = timeoutNanos()
+    val hasDeadline = hasDeadline()
+    if (timeoutNanos == 0L && !hasDeadline) return // No timeout and no deadline? Don't bother.
+
+    val now = System.nanoTime()
+    val deadlineNanoTime =
+      when {
+        timeoutNanos != 0L && hasDeadline -> minOf(now + timeoutNanos, deadlineNanoTime())
+        timeoutNanos != 0L -> now + timeoutNanos
+        else -> deadlineNanoTime()
+      }
+    wheel.arm(this, deadlineNanoTime)
+  }
+
+  /** Returns true if the timeout occurred. */
+  fun exit(): Boolean = wheel.disarm(this)
+
+  /**
+   * Invoked by the watchdog thread when the time between calls to [enter] and [exit] has exceeded
+   * the timeout.
+   */
+  protected open fun timedOut() {
+  }
+
+  internal fun fire() {
+    timedOut()
+  }
+
+  /**
+   * Returns an [IOException] to represent a timeout. By default this method returns
+   * [InterruptedIOException]. If [cause] is non-null it is set as the cause of the returned
+   * exception.
+   */
+  protected open fun newTimeoutException(cause: IOException?): IOException {
+    return InterruptedIOException("timeout").apply {
+      if (cause != null) {
+        initCause(cause)
+      }
+    }
+  }
+
+  /** Throws an exception if this timed out, and returns [cause] otherwise. */
+  private fun exit(cause: IOException?): IOException? {
+    if (!exit()) return cause
+    return newTimeoutException(cause)
+  }
+
+  /**
+   * Returns a new sink that delegates to [sink], using this to implement timeouts. Like Okio's
+   * `AsyncTimeout`, large writes are split into chunks of [TIMEOUT_WRITE_SIZE] bytes that are each
+   * timed separately, so a write only times out if a single chunk stalls.
+   */
+  fun sink(sink: Sink): Sink {
+    return object : Sink {
+      override fun write(
+        source: Buffer,
+        byteCount: Long,
+      ) {
+        require(byteCount in 0L..source.size) { "byteCount out of range: $byteCount" }
+
+        var remaining = byteCount
+        while (remaining > 0L) {
+          val toWrite = minOf(remaining, TIMEOUT_WRITE_SIZE)
+          withTimeout { sink.write(source, toWrite) }
+          remaining -= toWrite
+        }
+      }
+
+      override fun flush() {
+        withTimeout { sink.flush() }
+      }
+
+      override fun close() {
+        withTimeout { sink.close() }
+      }
+
+      override fun timeout(): Timeout = this@WheelTimeout
+
+      override fun toString(): String = "WheelTimeout.sink($sink)"
+    }
+  }
+
+  /** Returns a new source that delegates to [source], using this to implement timeouts. */
+  fun source(source: Source): Source {
+    return object : Source {
+      override fun read(
+        sink: Buffer,
+        byteCount: Long,
+      ): Long = withTimeout { source.read(sink, byteCount) }
+
+      override fun close() {
+        withTimeout { source.close() }
+      }
+
+      override fun timeout(): Timeout = this@WheelTimeout
+
+      override fun toString(): String = "WheelTimeout.source($source)"
+    }
+  }
+
+  /** Surrounds [block] with calls to [enter] and [exit], throwing if a timeout occurred. */
+  fun <T> withTimeout(block: () -> T): T {
+    enter()
+    val result =
+      try {
+        block()
+      } catch (e: IOException) {
+        throw exit(e)!!
+      } catch (e: Throwable) {
+        exit()
+        throw e
+      }
+    exit(null)?.let { throw it }
+    return result
+  }
+
+  internal companion object {
+    const val STATE_IDLE = 0
+    const val STATE_ARMED = 1
+    const val STATE_TIMED_OUT = 2
+
+    /** The most bytes to write under a single timeout, the same as Okio's `AsyncTimeout`. */
+    const val TIMEOUT_WRITE_SIZE = 64 * 1024L
+  }
+}
+
+/** A timeout that closes [socket] when it's reached. */
+private class SocketWheelTimeout(
+  private val socket: Socket,
+) : WheelTimeout() {
+  override fun newTimeoutException(cause: IOException?): IOException {
+    return SocketTimeoutException("timeout").apply {
+      if (cause != null) {
+        initCause(cause)
+      }
+    }
+  }
+
+  override fun timedOut() {
+    try {
+      socket.close()
+    } catch (e: Exception) {
+      logger.log(Level.WARNING, "Failed to close timed out socket $socket", e)
+    } catch (e: AssertionError) {
+      // Android may throw this when closing a socket.
+      logger.log(Level.WARNING, "Failed to close timed out socket $socket", e)
+    }
+  }
+
+  companion object {
+    val logger: Logger = Logger.getLogger(SocketWheelTimeout::class.java.name)
+  }
+}
+
+/**
+ * Returns a source that reads from this socket. Reads that exceed the source's timeout close the
+ * socket and throw a [SocketTimeoutException].
+ */
+internal fun Socket.timeoutSource(): Source = SocketWheelTimeout(this).source(getInputStream().source())
+
+/**
+ * Returns a sink that writes to this socket. Writes that exceed the sink's timeout close the
+ * socket and throw a [SocketTimeoutException].
+ */
+internal fun Socket.timeoutSink(): Sink = SocketWheelTimeout(this).sink(getOutputStream().sink())
@@ -36,6 +36,8 @@ import okhttp3.Request
 import okhttp3.Route
 import okhttp3.internal.closeQuietly
 import okhttp3.internal.concurrent.TaskRunner
+import okhttp3.internal.concurrent.timeoutSink
+import okhttp3.internal.concurrent.timeoutSource
 import okhttp3.internal.connection.Locks.withLock
 import okhttp3.internal.connection.RoutePlanner.ConnectResult
 import okhttp3.internal.http.ExchangeCodec
@@ -46,8 +48,6 @@ import okhttp3.internal.toHostHeader
 import okio.BufferedSink
 import okio.BufferedSource
 import okio.buffer
-import okio.sink
-import okio.source
 
 /**
  * A single attempt to connect to a remote server, including these steps:
@@ -282,8 +282,8 @@ class ConnectPlan(
     // https://github.com/square/okhttp/issues/3245
     // https://android-review.googlesource.com/#/c/271775/
     try {
-      source = rawSocket.source().buffer()
-      sink = rawSocket.sink().buffer()
+      source = rawSocket.timeoutSource().buffer()
+      sink = rawSocket.timeoutSink().buffer()
     } catch (npe: NullPointerException) {
       if (npe.message == NPE_THROW_WITH_NULL) {
         throw IOException(npe)
@@ -398,8 +398,8 @@ class ConnectPlan(
           null
         }
       socket = sslSocket
-      source = sslSocket.source().buffer()
-      sink = sslSocket.sink().buffer()
+      source = sslSocket.timeoutSource().buffer()
+      sink = sslSocket.timeoutSink().buffer()
       protocol = if (maybeProtocol != null) Protocol.get(maybeProtocol) else Protocol.HTTP_1_1
       success = true
     } finally {
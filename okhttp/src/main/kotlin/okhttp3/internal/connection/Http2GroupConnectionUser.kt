@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection
+
+/**
+ * A connection pool opening another HTTP/2 connection because an address's connections are busy.
+ * No call waits on these connects and they don't satisfy an address policy, so unlike
+ * [PrewarmConnectionUser] this doesn't report connect events.
+ */
+internal object Http2GroupConnectionUser : ConnectionUser by PoolConnectionUser
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection
+
+import java.io.IOException
+import okhttp3.ConnectionListener
+import okhttp3.Protocol
+import okhttp3.Route
+
+/**
+ * A connection pool opening connections to satisfy an address policy. Unlike [PoolConnectionUser]
+ * this reports its connect starts and failures to [connectionListener]. The pool reports connect
+ * ends itself, once the new connection is pooled.
+ */
+internal class PrewarmConnectionUser(
+  private val connectionListener: ConnectionListener,
+) : ConnectionUser by PoolConnectionUser {
+  override fun connectStart(route: Route) {
+    connectionListener.prewarmConnectStart(route)
+  }
+
+  override fun connectFailed(
+    route: Route,
+    protocol: Protocol?,
+    e: IOException,
+  ) {
+    connectionListener.prewarmConnectFailed(route, e)
+  }
+}
@@ -33,11 +33,13 @@ import okhttp3.Interceptor
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.Response
+import okhttp3.internal.CompositeEventListener
 import okhttp3.internal.assertHeld
 import okhttp3.internal.assertNotHeld
 import okhttp3.internal.assertThreadDoesntHoldLock
 import okhttp3.internal.cache.CacheInterceptor
 import okhttp3.internal.closeQuietly
+import okhttp3.internal.concurrent.WheelTimeout
 import okhttp3.internal.connection.Locks.withLock
 import okhttp3.internal.http.BridgeInterceptor
 import okhttp3.internal.http.CallServerInterceptor
@@ -45,7 +47,6 @@ import okhttp3.internal.http.RealInterceptorChain
 import okhttp3.internal.http.RetryAndFollowUpInterceptor
 import okhttp3.internal.platform.Platform
 import okhttp3.internal.threadName
-import okio.AsyncTimeout
 import okio.Timeout
 
 /**
@@ -67,10 +68,18 @@ class RealCall(
 
   private val connectionPool: RealConnectionPool = client.connectionPool.delegate
 
-  internal val eventListener: EventListener = client.eventListenerFactory.create(this)
+  internal val eventListener: EventListener =
+    when (val concurrencyLimiter = client.dispatcher.concurrencyLimiter) {
+      null -> client.eventListenerFactory.create(this)
+      else ->
+        CompositeEventListener(
+          client.eventListenerFactory.create(this),
+          concurrencyLimiter.newEventListener(),
+        )
+    }
 
   private val timeout =
-    object : AsyncTimeout() {
+    object : WheelTimeout() {
       override fun timedOut() {
         this@RealCall.cancel()
       }
@@ -296,6 +305,7 @@ class RealCall(
 
     check(this.connection == null)
     this.connection = connection
+    if (connection.calls.isEmpty()) connection.connectionPool.connectionBecameInUse(connection)
     connection.calls.add(CallReference(this, callStackTrace))
   }
 
@@ -488,6 +498,22 @@ class RealCall(
       this.callsPerHost = other.callsPerHost
     }
 
+    fun useCallsPerHost(callsPerHost: AtomicInteger) {
+      this.callsPerHost = callsPerHost
+    }
+
+    // These properties are assigned by the dispatcher before this call is queued. They must not
+    // change while it is queued because they determine its position.
+
+    /** Calls with higher priorities are started first. */
+    var priority = 0
+
+    /** The [System.nanoTime] by which this call must start, or [Long.MAX_VALUE] for no deadline. */
+    var deadlineNanoTime = Long.MAX_VALUE
+
+    /** Orders calls that have the same priority and deadline. */
+    var sequence = 0L
+
     val host: String
       get() = originalRequest.url.host
 
@@ -524,6 +550,13 @@ class RealCall(
       responseCallback.onFailure(this@RealCall, ioException)
     }
 
+    /** Fail this call because its deadline passed before the dispatcher could start it. */
+    internal fun failDeadlineExceeded() {
+      val ioException = InterruptedIOException("timeout")
+      noMoreExchanges(ioException)
+      responseCallback.onFailure(this@RealCall, ioException)
+    }
+
     override fun run() {
       threadName("OkHttp ${redactedUrl()}") {
         var signalledCallback = false
@@ -47,6 +47,7 @@ import okhttp3.internal.http2.ConnectionShutdownException
 import okhttp3.internal.http2.ErrorCode
 import okhttp3.internal.http2.FlowControlListener
 import okhttp3.internal.http2.Http2Connection
+import okhttp3.internal.http2.Http2Connection.Companion.originKey
 import okhttp3.internal.http2.Http2ExchangeCodec
 import okhttp3.internal.http2.Http2Stream
 import okhttp3.internal.http2.Settings
@@ -125,10 +126,21 @@ class RealConnection(
   /** Timestamp when `allocations.size()` reached zero. Also assigned upon initial connection. */
   var idleAtNs = Long.MAX_VALUE
 
+  /** This connection's position in the pool's idle queue, or null if it isn't idle. */
+  internal var idleEntry: RealConnectionPool.IdleEntry? = null
+
   /**
    * Returns true if this is an HTTP/2 connection. Such connections can be used in multiple HTTP
    * requests simultaneously.
    */
+  /** Frames this connection wrote with coalesced HTTP/2 writes. */
+  internal val http2CoalescedFrameCount: Long
+    get() = http2Connection?.coalescedFrameCount ?: 0L
+
+  /** Flushes this connection made with coalesced HTTP/2 writes. */
+  internal val http2CoalescedFlushCount: Long
+    get() = http2Connection?.coalescedFlushCount ?: 0L
+
   internal val isMultiplexed: Boolean
     get() = http2Connection != null
 
@@ -174,6 +186,9 @@ class RealConnection(
         .listener(this)
         .pingIntervalMillis(pingIntervalMillis)
         .flowControlListener(flowControlListener)
+        .receiveBudget(connectionPool.http2ReceiveBudget)
+        .coalesceWrites(connectionPool.http2CoalesceWrites)
+        .adaptiveWindow(connectionPool.http2AdaptiveWindow)
         .build()
     this.http2Connection = http2Connection
     this.allocationLimit = Http2Connection.DEFAULT_SETTINGS.getMaxConcurrentStreams()
@@ -207,10 +222,18 @@ class RealConnection(
     // https://daniel.haxx.se/blog/2016/08/18/http2-connection-coalescing/
 
     // 1. This connection must be HTTP/2.
-    if (http2Connection == null) return false
-
-    // 2. The routes must share an IP address.
-    if (routes == null || !routeMatchesAny(routes)) return false
+    val http2Connection = this.http2Connection ?: return false
+
+    // 2. If the peer sent an ORIGIN frame, it must list the new host. Otherwise the routes must
+    // share an IP address. With aggressive coalescing we don't wait for DNS: the certificate
+    // checks below are enough, and a misdirected request will be retried on a new connection.
+    val originSet = http2Connection.originSet
+    if (originSet != null && originKey(address.url) !in originSet) return false
+    if (connectionPool.aggressiveCoalescing) {
+      if (route.proxy.type() != Proxy.Type.DIRECT) return false
+    } else if (routes == null || !routeMatchesAny(routes)) {
+      return false
+    }
 
     // 3. This connection's server certificate's must cover the new host.
     if (address.hostnameVerifier !== OkHostnameVerifier) return false
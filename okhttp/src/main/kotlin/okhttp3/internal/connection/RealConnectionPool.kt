@@ -16,10 +16,18 @@
  */
 package okhttp3.internal.connection
 
+import java.net.InetSocketAddress
+import java.net.Proxy
 import java.net.Socket
+import java.security.cert.X509Certificate
+import java.util.Locale
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ConcurrentSkipListSet
 import java.util.concurrent.ThreadLocalRandom
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater
 import okhttp3.Address
 import okhttp3.ConnectionListener
@@ -32,8 +40,10 @@ import okhttp3.internal.concurrent.TaskQueue
 import okhttp3.internal.concurrent.TaskRunner
 import okhttp3.internal.connection.Locks.withLock
 import okhttp3.internal.connection.RealCall.CallReference
+import okhttp3.internal.http2.flowcontrol.ReceiveBudget
 import okhttp3.internal.okHttpName
 import okhttp3.internal.platform.Platform
+import okhttp3.internal.tls.OkHostnameVerifier
 import okio.IOException
 
 class RealConnectionPool(
@@ -50,6 +60,32 @@ class RealConnectionPool(
 ) {
   internal val keepAliveDurationNs: Long = timeUnit.toNanos(keepAliveDuration)
 
+  /** Bytes buffered by all HTTP/2 connections in this pool, and the limit on them. */
+  internal val http2ReceiveBudget = ReceiveBudget()
+
+  /** True to coalesce HTTP/2 connections before DNS for the new host has resolved. */
+  @Volatile
+  internal var aggressiveCoalescing = false
+
+  /** True for new HTTP/2 connections to queue frames and write them from one task. */
+  @Volatile
+  internal var http2CoalesceWrites = false
+
+  /** True for new HTTP/2 connections to size their receive windows adaptively. */
+  @Volatile
+  internal var http2AdaptiveWindow = false
+
+  /** How many HTTP/2 connections to spread each address's calls across. */
+  @Volatile
+  internal var maxHttp2ConnectionsPerAddress = 1
+    set(value) {
+      require(value >= 1) { "maxHttp2ConnectionsPerAddress < 1: $value" }
+      field = value
+    }
+
+  /** Addresses with a connect in flight to add an HTTP/2 connection to their group. */
+  private val http2ConnectsInFlight: MutableSet<Address> = ConcurrentHashMap.newKeySet()
+
   @Volatile
   private var addressStates: Map<Address, AddressState> = mapOf()
 
@@ -59,20 +95,65 @@ class RealConnectionPool(
       override fun runOnce(): Long = closeConnections(System.nanoTime())
     }
 
+  /** Reports connect starts and failures for connections opened to satisfy address policies. */
+  private val prewarmConnectionUser = PrewarmConnectionUser(connectionListener)
+
+  /** Runs connects that grow an address's HTTP/2 group, one at a time. */
+  private val http2GroupQueue: TaskQueue = taskRunner.newQueue()
+
+  /** Schedules an opener on each of this address's queues so connects can run concurrently. */
   private fun AddressState.scheduleOpener() {
-    queue.schedule(
-      object : Task("$okHttpName ConnectionPool connection opener") {
-        override fun runOnce(): Long = openConnections(this@scheduleOpener)
-      },
-    )
+    for (queue in queues) {
+      queue.schedule(
+        object : Task("$okHttpName ConnectionPool connection opener") {
+          override fun runOnce(): Long = openConnections(this@scheduleOpener)
+        },
+      )
+    }
   }
 
   /**
    * Holding the lock of the connection being added or removed when mutating this, and check its
    * [RealConnection.noNewExchanges] property. This defends against races where a connection is
    * simultaneously adopted and removed.
+   *
+   * The indexes below are mutated together with this set.
    */
-  private val connections = ConcurrentLinkedQueue<RealConnection>()
+  private val connections: MutableSet<RealConnection> = ConcurrentHashMap.newKeySet()
+
+  /** Connections keyed by their route's address, in the order they were added. */
+  private val connectionsByAddress =
+    ConcurrentHashMap<Address, ConcurrentLinkedQueue<RealConnection>>()
+
+  /**
+   * HTTP/2 connections that don't use a proxy, keyed by their IP address. These can be coalesced
+   * with addresses for other hosts that share an IP address.
+   */
+  private val multiplexedConnectionsBySocketAddress =
+    ConcurrentHashMap<InetSocketAddress, ConcurrentLinkedQueue<RealConnection>>()
+
+  /**
+   * The same connections keyed by each subject alternative name of their server's certificate, like
+   * `example.com` or `*.example.com`. With [aggressiveCoalescing] these can be coalesced with
+   * addresses for other hosts before those hosts are resolved.
+   */
+  private val multiplexedConnectionsByHostname =
+    ConcurrentHashMap<String, ConcurrentLinkedQueue<RealConnection>>()
+
+  /**
+   * Idle connections, longest-idle first. Each idle connection in the pool has exactly one entry
+   * here, which is also its [RealConnection.idleEntry]. Hold the connection's lock when adding or
+   * removing its entry.
+   */
+  private val idleConnections = ConcurrentSkipListSet<IdleEntry>()
+  private val idleCount = AtomicInteger()
+  private val nextIdleSequence = AtomicLong()
+
+  /**
+   * When to next look for leaked calls on in-use connections. This field must only be accessed by
+   * the connection closer task.
+   */
+  private var nextLeakCheckAtNs = Long.MIN_VALUE
 
   init {
     // Put a floor on the keep alive duration, otherwise cleanup will spin loop.
@@ -89,6 +170,23 @@ class RealConnectionPool(
     return connections.size
   }
 
+  /** Returns the keys of the address, socket address, and hostname indexes. For tests. */
+  internal fun indexKeys(): Set<Any> {
+    return connectionsByAddress.keys +
+      multiplexedConnectionsBySocketAddress.keys +
+      multiplexedConnectionsByHostname.keys
+  }
+
+  fun http2FramesPerFlush(): Double {
+    var frameCount = 0L
+    var flushCount = 0L
+    for (connection in connections) {
+      frameCount += connection.http2CoalescedFrameCount
+      flushCount += connection.http2CoalescedFlushCount
+    }
+    return if (flushCount == 0L) 0.0 else frameCount.toDouble() / flushCount
+  }
+
   /**
    * Attempts to acquire a recycled connection to [address] for [connectionUser]. Returns the connection if it
    * was acquired, or null if no connection was acquired. The acquired connection will also be
@@ -100,6 +198,14 @@ class RealConnectionPool(
    * If [routes] is non-null these are the resolved routes (ie. IP addresses) for the connection.
    * This is used to coalesce related domains to the same HTTP/2 connection, such as `square.com`
    * and `square.ca`.
+   *
+   * This only considers connections to [address] and HTTP/2 connections to the IP addresses of
+   * [routes], so its cost doesn't grow with the number of unrelated connections in the pool.
+   *
+   * If [maxHttp2ConnectionsPerAddress] is greater than 1, connections to [address] are tried
+   * least-loaded first. When every HTTP/2 connection to [address] is carrying calls and there's
+   * room for another, this opens one in the background. It also returns null for a newly-connected
+   * HTTP/2 connection ([requireMultiplexed]) so that it joins the group instead of being discarded.
    */
   fun callAcquirePooledConnection(
     doExtensiveHealthChecks: Boolean,
@@ -108,39 +214,165 @@ class RealConnectionPool(
     routes: List<Route>?,
     requireMultiplexed: Boolean,
   ): RealConnection? {
+    // Prefer a connection whose address is a perfect match.
+    val sameAddressConnections = connectionsByAddress[address]
+    if (sameAddressConnections != null) {
+      val group =
+        if (maxHttp2ConnectionsPerAddress > 1) http2Group(sameAddressConnections) else null
+      val growGroup = group?.wantsAnotherConnection == true
+      if (growGroup && (requireMultiplexed || connectionUser === Http2GroupConnectionUser)) {
+        return null
+      }
+
+      for (connection in group?.leastLoadedFirst ?: sameAddressConnections) {
+        val acquired =
+          tryAcquire(
+            connection,
+            doExtensiveHealthChecks,
+            address,
+            connectionUser,
+            routes,
+            requireMultiplexed,
+          )
+        if (acquired != null) {
+          if (growGroup) scheduleHttp2GroupConnect(address)
+          return acquired
+        }
+      }
+    }
+
+    // Without routes we can only look for an HTTP/2 connection whose certificate covers the host.
+    if (routes == null) {
+      if (!aggressiveCoalescing) return null
+      for (name in subjectAltNamesCovering(address.url.host)) {
+        val candidates = multiplexedConnectionsByHostname[name] ?: continue
+        for (connection in candidates) {
+          if (connection.route.address == address) continue // Already tried.
+          val acquired =
+            tryAcquire(
+              connection,
+              doExtensiveHealthChecks,
+              address,
+              connectionUser,
+              null,
+              requireMultiplexed,
+            )
+          if (acquired != null) return acquired
+        }
+      }
+      return null
+    }
+
+    // Look for an HTTP/2 connection to another host that shares an IP address.
+    for (route in routes) {
+      if (route.proxy.type() != Proxy.Type.DIRECT) continue
+      val candidates = multiplexedConnectionsBySocketAddress[route.socketAddress] ?: continue
+      for (connection in candidates) {
+        if (connection.route.address == address) continue // Already tried.
+        val acquired =
+          tryAcquire(
+            connection,
+            doExtensiveHealthChecks,
+            address,
+            connectionUser,
+            routes,
+            requireMultiplexed,
+          )
+        if (acquired != null) return acquired
+      }
+    }
+    return null
+  }
+
+  /** Returns the connections to one address ordered by how many calls they're carrying. */
+  private fun http2Group(connections: Collection<RealConnection>): Http2Group {
+    val loads = mutableListOf<Pair<RealConnection, Int>>()
+    var http2Count = 0
+    var http2Idle = false
     for (connection in connections) {
-      // In the first synchronized block, acquire the connection if it can satisfy this call.
-      val acquired =
-        connection.withLock {
-          when {
-            requireMultiplexed && !connection.isMultiplexed -> false
-            !connection.isEligible(address, routes) -> false
-            else -> {
-              connectionUser.acquireConnectionNoEvents(connection)
-              true
+      connection.withLock {
+        if (connection.noNewExchanges) return@withLock
+        val load = connection.calls.size
+        loads += connection to load
+        if (connection.isMultiplexed) {
+          http2Count++
+          if (load == 0) http2Idle = true
+        }
+      }
+    }
+    loads.sortBy { it.second }
+    return Http2Group(
+      leastLoadedFirst = loads.map { it.first },
+      wantsAnotherConnection = http2Count in 1 until maxHttp2ConnectionsPerAddress && !http2Idle,
+    )
+  }
+
+  /** Opens another HTTP/2 connection to [address] unless one is already being opened. */
+  private fun scheduleHttp2GroupConnect(address: Address) {
+    if (!http2ConnectsInFlight.add(address)) return
+
+    http2GroupQueue.schedule(
+      object : Task("$okHttpName ConnectionPool HTTP/2 connection opener") {
+        override fun runOnce(): Long {
+          try {
+            val connection =
+              exchangeFinderFactory(this@RealConnectionPool, address, Http2GroupConnectionUser)
+                .find()
+            if (connection !in connections) {
+              connection.withLock { put(connection) }
             }
+          } catch (e: IOException) {
+            // No need to log, user.connectFailed() will already have been called. The next call
+            // that finds the group busy will try again.
+          } finally {
+            http2ConnectsInFlight.remove(address)
           }
+          return -1L
         }
-      if (!acquired) continue
-
-      // Confirm the connection is healthy and return it.
-      if (connection.isHealthy(doExtensiveHealthChecks)) return connection
+      },
+    )
+  }
 
-      // In the second synchronized block, release the unhealthy acquired connection. We're also on
-      // the hook to close this connection if it's no longer in use.
-      val noNewExchangesEvent: Boolean
-      val toClose: Socket? =
-        connection.withLock {
-          noNewExchangesEvent = !connection.noNewExchanges
-          connection.noNewExchanges = true
-          connectionUser.releaseConnectionNoEvents()
+  /** Returns [connection] if it was acquired for [connectionUser], or null if it was not. */
+  private fun tryAcquire(
+    connection: RealConnection,
+    doExtensiveHealthChecks: Boolean,
+    address: Address,
+    connectionUser: ConnectionUser,
+    routes: List<Route>?,
+    requireMultiplexed: Boolean,
+  ): RealConnection? {
+    // In the first synchronized block, acquire the connection if it can satisfy this call.
+    val acquired =
+      connection.withLock {
+        when {
+          requireMultiplexed && !connection.isMultiplexed -> false
+          !connection.isEligible(address, routes) -> false
+          else -> {
+            connectionUser.acquireConnectionNoEvents(connection)
+            true
+          }
         }
-      if (toClose != null) {
-        toClose.closeQuietly()
-        connectionListener.connectionClosed(connection)
-      } else if (noNewExchangesEvent) {
-        connectionListener.noNewExchanges(connection)
       }
+    if (!acquired) return null
+
+    // Confirm the connection is healthy and return it.
+    if (connection.isHealthy(doExtensiveHealthChecks)) return connection
+
+    // In the second synchronized block, release the unhealthy acquired connection. We're also on
+    // the hook to close this connection if it's no longer in use.
+    val noNewExchangesEvent: Boolean
+    val toClose: Socket? =
+      connection.withLock {
+        noNewExchangesEvent = !connection.noNewExchanges
+        connection.noNewExchanges = true
+        connectionUser.releaseConnectionNoEvents()
+      }
+    if (toClose != null) {
+      toClose.closeQuietly()
+      connectionListener.connectionClosed(connection)
+    } else if (noNewExchangesEvent) {
+      connectionListener.noNewExchanges(connection)
     }
     return null
   }
@@ -148,11 +380,93 @@ class RealConnectionPool(
   fun put(connection: RealConnection) {
     connection.lock.assertHeld()
 
-    connections.add(connection)
+    if (!connections.add(connection)) return
+    connectionsByAddress.addToQueue(connection.route.address, connection)
+    if (connection.isMultiplexed && connection.route.proxy.type() == Proxy.Type.DIRECT) {
+      multiplexedConnectionsBySocketAddress.addToQueue(connection.route.socketAddress, connection)
+      for (name in connection.subjectAltNames()) {
+        multiplexedConnectionsByHostname.addToQueue(name, connection)
+      }
+    }
+    if (connection.calls.isEmpty()) markIdle(connection)
 //    connection.queueEvent { connectionListener.connectEnd(connection) }
     scheduleCloser()
   }
 
+  /** Removes [connection] and returns true if it was in this pool. */
+  private fun remove(connection: RealConnection): Boolean {
+    connection.lock.assertHeld()
+
+    if (!connections.remove(connection)) return false
+    unmarkIdle(connection)
+    connectionsByAddress.removeFromQueue(connection.route.address, connection)
+    multiplexedConnectionsBySocketAddress.removeFromQueue(connection.route.socketAddress, connection)
+    for (name in connection.subjectAltNames()) {
+      multiplexedConnectionsByHostname.removeFromQueue(name, connection)
+    }
+    return true
+  }
+
+  /** Returns the lowercase subject alternative names of this connection's server certificate. */
+  private fun RealConnection.subjectAltNames(): List<String> {
+    val certificate =
+      handshake()?.peerCertificates?.firstOrNull() as? X509Certificate ?: return emptyList()
+    return OkHostnameVerifier.allSubjectAltNames(certificate).map { it.lowercase(Locale.US) }
+  }
+
+  /** Returns the subject alternative names that could cover [host]: itself and its wildcard. */
+  private fun subjectAltNamesCovering(host: String): List<String> {
+    val dot = host.indexOf('.')
+    return when {
+      dot == -1 -> listOf(host)
+      else -> listOf(host, "*" + host.substring(dot))
+    }
+  }
+
+  private fun <K : Any> ConcurrentHashMap<K, ConcurrentLinkedQueue<RealConnection>>.addToQueue(
+    key: K,
+    connection: RealConnection,
+  ) {
+    compute(key) { _, queue ->
+      (queue ?: ConcurrentLinkedQueue()).apply { add(connection) }
+    }
+  }
+
+  private fun <K : Any> ConcurrentHashMap<K, ConcurrentLinkedQueue<RealConnection>>.removeFromQueue(
+    key: K,
+    connection: RealConnection,
+  ) {
+    computeIfPresent(key) { _, queue ->
+      queue.remove(connection)
+      if (queue.isEmpty()) null else queue
+    }
+  }
+
+  /** Enqueues [connection] as idle since its [RealConnection.idleAtNs]. */
+  private fun markIdle(connection: RealConnection) {
+    connection.lock.assertHeld()
+
+    unmarkIdle(connection)
+    val entry = IdleEntry(connection, connection.idleAtNs, nextIdleSequence.getAndIncrement())
+    connection.idleEntry = entry
+    idleConnections.add(entry)
+    idleCount.incrementAndGet()
+  }
+
+  private fun unmarkIdle(connection: RealConnection) {
+    connection.lock.assertHeld()
+
+    val entry = connection.idleEntry ?: return
+    connection.idleEntry = null
+    idleConnections.remove(entry)
+    idleCount.decrementAndGet()
+  }
+
+  /** Notify this pool that [connection] is no longer idle because a call acquired it. */
+  fun connectionBecameInUse(connection: RealConnection) {
+    unmarkIdle(connection)
+  }
+
   /**
    * Notify this pool that [connection] has become idle. Returns true if the connection has been
    * removed from the pool and should be closed.
@@ -162,24 +476,23 @@ class RealConnectionPool(
 
     return if (connection.noNewExchanges || maxIdleConnections == 0) {
       connection.noNewExchanges = true
-      connections.remove(connection)
+      remove(connection)
       if (connections.isEmpty()) cleanupQueue.cancelAll()
       scheduleOpener(connection.route.address)
       true
     } else {
+      if (connection in connections) markIdle(connection)
       scheduleCloser()
       false
     }
   }
 
   fun evictAll() {
-    val i = connections.iterator()
-    while (i.hasNext()) {
-      val connection = i.next()
+    for (connection in connections) {
       val socketToClose =
         connection.withLock {
           if (connection.calls.isEmpty()) {
-            i.remove()
+            remove(connection)
             connection.noNewExchanges = true
             return@withLock connection.socket()
           } else {
@@ -200,8 +513,12 @@ class RealConnectionPool(
   }
 
   /**
-   * Performs maintenance on this pool, evicting the connection that has been idle the longest if
-   * either it has exceeded the keep alive limit or the idle connections limit.
+   * Performs maintenance on this pool, evicting connections that have exceeded the keep alive limit,
+   * and then the longest-idle connections until the idle connections limit is satisfied.
+   *
+   * This visits idle connections in the order they became idle, so its cost is proportional to the
+   * number of connections it closes rather than the size of the pool. In-use connections are only
+   * visited to find leaked calls, at most once per keep alive duration.
    *
    * Returns the duration in nanoseconds to sleep until the next scheduled call to this method.
    * Returns -1 if no further cleanups are required.
@@ -212,110 +529,120 @@ class RealConnectionPool(
     val addressStates = this.addressStates
     for (state in addressStates.values) {
       state.concurrentCallCapacity = 0
-    }
-    for (connection in connections) {
-      val addressState = addressStates[connection.route.address] ?: continue
-      connection.withLock {
-        addressState.concurrentCallCapacity += connection.allocationLimit
+      val sameAddressConnections = connectionsByAddress[state.address] ?: continue
+      for (connection in sameAddressConnections) {
+        connection.withLock {
+          state.concurrentCallCapacity += connection.allocationLimit
+        }
       }
     }
 
-    // Find the longest-idle connections in 2 categories:
-    //
-    //  1. OLD: Connections that have been idle for at least keepAliveDurationNs. We close these if
-    //     we find them, regardless of what the address policies need.
-    //
-    //  2. EVICTABLE: Connections not required by any address policy. This matches connections that
-    //     don't participate in any policy, plus connections whose policies won't be violated if the
-    //     connection is closed. We only close these if the idle connection limit is exceeded.
-    //
-    // Also count the evictable connections to find out if we must close an EVICTABLE connection
-    // before its keepAliveDurationNs is reached.
-    var earliestOldIdleAtNs = (now - keepAliveDurationNs) + 1
-    var earliestOldConnection: RealConnection? = null
-    var earliestEvictableIdleAtNs = Long.MAX_VALUE
-    var earliestEvictableConnection: RealConnection? = null
-    var inUseConnectionCount = 0
-    var evictableConnectionCount = 0
-    for (connection in connections) {
-      connection.withLock {
-        // If the connection is in use, keep searching.
-        if (pruneAndGetAllocationCount(connection, now) > 0) {
-          inUseConnectionCount++
-          return@withLock
+    // Connections whose calls have all leaked become idle.
+    if (now >= nextLeakCheckAtNs) {
+      nextLeakCheckAtNs = now + keepAliveDurationNs
+      for (connection in connections) {
+        connection.withLock {
+          if (connection.calls.isNotEmpty() && pruneAndGetAllocationCount(connection, now) == 0) {
+            markIdle(connection)
+          }
         }
+      }
+    }
 
-        val idleAtNs = connection.idleAtNs
-
-        if (idleAtNs < earliestOldIdleAtNs) {
-          earliestOldIdleAtNs = idleAtNs
-          earliestOldConnection = connection
-        }
+    val toClose = mutableListOf<RealConnection>()
 
-        if (isEvictable(addressStates, connection)) {
-          evictableConnectionCount++
-          if (idleAtNs < earliestEvictableIdleAtNs) {
-            earliestEvictableIdleAtNs = idleAtNs
-            earliestEvictableConnection = connection
+    // Close all OLD connections: those that have been idle for at least keepAliveDurationNs. We
+    // close these regardless of what the address policies need.
+    val oldIdleAtNs = now - keepAliveDurationNs
+    while (true) {
+      val entry = idleConnections.firstOrNull() ?: break
+      if (entry.idleAtNs > oldIdleAtNs) break
+      val connection = entry.connection
+      connection.withLock {
+        when {
+          connection.idleEntry !== entry -> {} // No longer idle.
+          connection.idleAtNs != entry.idleAtNs -> markIdle(connection) // Idle since a new time.
+          else -> {
+            connection.noNewExchanges = true
+            remove(connection)
+            addressStates[connection.route.address]?.let {
+              it.concurrentCallCapacity -= connection.allocationLimit
+            }
+            toClose += connection
           }
         }
       }
     }
 
-    val toEvict: RealConnection?
-    val toEvictIdleAtNs: Long
-    when {
-      // We had at least one OLD connection. Close the oldest one.
-      earliestOldConnection != null -> {
-        toEvict = earliestOldConnection
-        toEvictIdleAtNs = earliestOldIdleAtNs
-      }
-
-      // We have too many EVICTABLE connections. Close the oldest one.
-      evictableConnectionCount > maxIdleConnections -> {
-        toEvict = earliestEvictableConnection
-        toEvictIdleAtNs = earliestEvictableIdleAtNs
+    // If there are too many EVICTABLE connections, close the longest-idle ones. These are
+    // connections that aren't required by any address policy.
+    if (idleCount.get() > maxIdleConnections) {
+      val evictable = evictableIdleConnections(addressStates)
+      for (i in 0 until evictable.size - maxIdleConnections) {
+        val entry = evictable[i]
+        val connection = entry.connection
+        connection.withLock {
+          if (connection.idleEntry !== entry) return@withLock // No longer idle.
+          connection.noNewExchanges = true
+          remove(connection)
+          toClose += connection
+        }
       }
+    }
 
-      else -> {
-        toEvict = null
-        toEvictIdleAtNs = -1L
-      }
+    for (connection in toClose) {
+      addressStates[connection.route.address]?.scheduleOpener()
+      connection.socket().closeQuietly()
+      connectionListener.connectionClosed(connection)
     }
 
-    when {
-      toEvict != null -> {
-        // We've chosen a connection to evict. Confirm it's still okay to be evicted, then close it.
-        toEvict.withLock {
-          if (toEvict.calls.isNotEmpty()) return 0L // No longer idle.
-          if (toEvict.idleAtNs != toEvictIdleAtNs) return 0L // No longer oldest.
-          toEvict.noNewExchanges = true
-          connections.remove(toEvict)
-        }
-        addressStates[toEvict.route.address]?.scheduleOpener()
-        toEvict.socket().closeQuietly()
-        connectionListener.connectionClosed(toEvict)
+    val earliestIdle = idleConnections.firstOrNull()
+    return when {
+      toClose.isNotEmpty() -> {
         if (connections.isEmpty()) cleanupQueue.cancelAll()
 
         // Clean up again immediately.
-        return 0L
+        0L
       }
 
-      earliestEvictableConnection != null -> {
+      earliestIdle != null -> {
         // A connection will be ready to evict soon.
-        return earliestEvictableIdleAtNs + keepAliveDurationNs - now
+        earliestIdle.idleAtNs + keepAliveDurationNs - now
       }
 
-      inUseConnectionCount > 0 -> {
+      connections.isNotEmpty() -> {
         // All connections are in use. It'll be at least the keep alive duration 'til we run again.
-        return keepAliveDurationNs
+        keepAliveDurationNs
       }
 
       else -> {
         // No connections, idle or in use.
-        return -1
+        -1L
+      }
+    }
+  }
+
+  /**
+   * Returns the idle connections that can be closed without violating an address policy, longest
+   * idle first. When a policy needs some but not all of an address's idle connections, the most
+   * recently used ones are kept.
+   */
+  private fun evictableIdleConnections(addressStates: Map<Address, AddressState>): List<IdleEntry> {
+    if (addressStates.isEmpty()) return idleConnections.toList()
+
+    val result = mutableListOf<IdleEntry>()
+    for (entry in idleConnections) {
+      val connection = entry.connection
+      connection.withLock {
+        if (connection.idleEntry !== entry) return@withLock // No longer idle.
+        if (!isEvictable(addressStates, connection)) return@withLock
+        addressStates[connection.route.address]?.let {
+          it.concurrentCallCapacity -= connection.allocationLimit
+        }
+        result += entry
       }
     }
+    return result
   }
 
   /** Returns true if no address policies prevent [connection] from being evicted. */
@@ -376,7 +703,8 @@ class RealConnectionPool(
     address: Address,
     policy: ConnectionPool.AddressPolicy,
   ) {
-    val state = AddressState(address, taskRunner.newQueue(), policy)
+    val queues = List(policy.maximumConcurrentConnects) { taskRunner.newQueue() }
+    val state = AddressState(address, queues, policy)
     val newConnectionsNeeded: Int
 
     while (true) {
@@ -408,14 +736,16 @@ class RealConnectionPool(
    * Ensure enough connections open to [address] to satisfy its [ConnectionPool.AddressPolicy].
    * If there are already enough connections, we're done.
    * If not, we create one and then schedule the task to run again immediately.
+   *
+   * Up to [ConnectionPool.AddressPolicy.maximumConcurrentConnects] calls to this run concurrently.
+   * Connects that are still in flight count as capacity for one call each.
    */
   private fun openConnections(state: AddressState): Long {
     // This policy does not require minimum connections, don't run again
     if (state.policy.minimumConcurrentCalls == 0) return -1L
 
     var concurrentCallCapacity = 0
-    for (connection in connections) {
-      if (state.address != connection.route.address) continue
+    for (connection in connectionsByAddress[state.address].orEmpty()) {
       connection.withLock {
         concurrentCallCapacity += connection.allocationLimit
       }
@@ -424,20 +754,31 @@ class RealConnectionPool(
       if (concurrentCallCapacity >= state.policy.minimumConcurrentCalls) return -1L
     }
 
-    // If we got here then the policy was not satisfied -- open a connection!
+    // Other connects in flight will satisfy the policy, don't run again
+    val connectsInFlight = state.connectsInFlight.incrementAndGet()
     try {
-      val connection = exchangeFinderFactory(this, state.address, PoolConnectionUser).find()
+      if (concurrentCallCapacity + connectsInFlight - 1 >= state.policy.minimumConcurrentCalls) {
+        return -1L
+      }
+
+      // If we got here then the policy was not satisfied -- open a connection!
+      val connection = exchangeFinderFactory(this, state.address, prewarmConnectionUser).find()
 
       // RealRoutePlanner will add the connection to the pool itself, other RoutePlanners may not
       // TODO: make all RoutePlanners consistent in this behavior
       if (connection !in connections) {
         connection.withLock { put(connection) }
       }
+      connectionListener.prewarmConnectEnd(connection, connection.route())
 
-      return 0L // run again immediately to create more connections if needed
+      // Run again immediately on this queue to create more connections if needed. The address's
+      // other queues run again themselves when their own connects complete.
+      return 0L
     } catch (e: IOException) {
       // No need to log, user.connectFailed() will already have been called. Just try again later.
       return state.policy.backoffDelayMillis.jitterBy(state.policy.backoffJitterMillis) * 1_000_000
+    } finally {
+      state.connectsInFlight.decrementAndGet()
     }
   }
 
@@ -445,11 +786,35 @@ class RealConnectionPool(
     return this + ThreadLocalRandom.current().nextInt(amount * -1, amount)
   }
 
+  /** A connection and the time it became idle. */
+  internal class IdleEntry(
+    val connection: RealConnection,
+    val idleAtNs: Long,
+    /** Orders connections that became idle at the same time. */
+    private val sequence: Long,
+  ) : Comparable<IdleEntry> {
+    override fun compareTo(other: IdleEntry): Int {
+      if (idleAtNs != other.idleAtNs) return idleAtNs.compareTo(other.idleAtNs)
+      return sequence.compareTo(other.sequence)
+    }
+  }
+
+  /** A snapshot of the connections to one address. */
+  private class Http2Group(
+    val leastLoadedFirst: List<RealConnection>,
+    /** True if every HTTP/2 connection is carrying calls and there's room for another. */
+    val wantsAnotherConnection: Boolean,
+  )
+
   class AddressState(
     val address: Address,
-    val queue: TaskQueue,
+    /** One queue for each concurrent connect permitted by [policy]. */
+    val queues: List<TaskQueue>,
     var policy: ConnectionPool.AddressPolicy,
   ) {
+    /** Connects started by opener tasks that haven't completed yet. */
+    val connectsInFlight = AtomicInteger()
+
     /**
      * How many calls the pool can carry without opening new connections. This field must only be
      * accessed by the connection closer task.
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.dispatcher
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ConcurrentSkipListSet
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import okhttp3.internal.connection.RealCall
+import okhttp3.internal.connection.RealCall.AsyncCall
+
+/**
+ * Lock-free bookkeeping for a [okhttp3.Dispatcher] that has a large number of queued calls spread
+ * over many hosts.
+ *
+ * Each host gets its own queue of ready calls and its own counter of running calls. A host is only
+ * offered to [promote] when it has ready calls and might have capacity to run them, so a host
+ * that's at its limit costs nothing until one of its calls finishes.
+ *
+ * Promotion is round-robin across hosts and in [ScheduleOrder] within a host. Unlike the default
+ * dispatcher, calls to different hosts are not started in strict schedule order.
+ *
+ * ## Lost Wake-ups
+ *
+ * There is no lock, so every state change follows a publish-then-check order. A host is in
+ * [pendingHosts] at most once, as tracked by [HostQueue.pending]. Whoever makes capacity available
+ * (by finishing a call) decrements a counter before checking for ready calls, and whoever gives up
+ * on a host (because it's at capacity) clears [HostQueue.pending] before reading the counter. This
+ * guarantees that at least one party re-offers the host.
+ */
+internal class PerHostCallQueues {
+  /** Queues for limited hosts, keyed by [AsyncCall.host]. Idle hosts are removed. */
+  private val hosts = ConcurrentHashMap<String, HostQueue>()
+
+  /** Web sockets don't count against a host's limit, so they share one unlimited queue. */
+  private val webSockets = HostQueue(host = null)
+
+  /** Hosts that have ready calls and that might have capacity to run them. */
+  private val pendingHosts = ConcurrentLinkedQueue<HostQueue>()
+
+  /** Ready calls that have a deadline. Calls here may have already been promoted or shed. */
+  private val deadlines = ConcurrentSkipListSet<AsyncCall>(DeadlineOrder)
+
+  private val readyCallCount = AtomicInteger()
+
+  private val runningAsyncCallCount = AtomicInteger()
+
+  /** Running asynchronous calls. Includes canceled calls that haven't finished yet. */
+  private val runningAsyncCalls: MutableSet<AsyncCall> = ConcurrentHashMap.newKeySet()
+
+  /** Running synchronous calls. Includes canceled calls that haven't finished yet. */
+  private val runningSyncCalls: MutableSet<RealCall> = ConcurrentHashMap.newKeySet()
+
+  fun enqueue(call: AsyncCall) {
+    readyCallCount.incrementAndGet()
+    if (call.deadlineNanoTime != Long.MAX_VALUE) deadlines.add(call)
+
+    val hostQueue =
+      when {
+        call.call.forWebSocket -> {
+          call.useCallsPerHost(webSockets.callsPerHost)
+          webSockets.readyCalls.add(call)
+          webSockets
+        }
+        else -> {
+          // Add the call while computing so that a concurrent finish() can't remove this queue.
+          hosts.compute(call.host) { _, existing ->
+            val hostQueue = existing ?: HostQueue(call.host)
+            call.useCallsPerHost(hostQueue.callsPerHost)
+            hostQueue.readyCalls.add(call)
+            hostQueue
+          }!!
+        }
+      }
+
+    offer(hostQueue)
+  }
+
+  /**
+   * Moves as many ready calls as the limits permit into the running set and returns them. The
+   * caller must execute every returned call.
+   */
+  fun promote(
+    maxRequests: Int,
+    maxRequestsPerHost: (host: String) -> Int,
+  ): List<AsyncCall> {
+    val result = mutableListOf<AsyncCall>()
+
+    while (runningAsyncCallCount.get() < maxRequests) {
+      val hostQueue = pendingHosts.poll() ?: break
+      hostQueue.pending.set(false)
+
+      var hostAtCapacity = false
+      while (true) {
+        if (!hostQueue.callsPerHost.tryIncrement(hostQueue.limit(maxRequestsPerHost))) {
+          hostAtCapacity = true
+          break
+        }
+        if (!runningAsyncCallCount.tryIncrement(maxRequests)) {
+          hostQueue.callsPerHost.decrementAndGet()
+          break
+        }
+
+        val call = hostQueue.readyCalls.pollFirst()
+        if (call == null) {
+          hostQueue.callsPerHost.decrementAndGet()
+          runningAsyncCallCount.decrementAndGet()
+          break
+        }
+
+        readyCallCount.decrementAndGet()
+        if (call.deadlineNanoTime != Long.MAX_VALUE) deadlines.remove(call)
+        runningAsyncCalls.add(call)
+        result.add(call)
+      }
+
+      // If this host is at capacity, whoever finishes its next call will offer it again.
+      if (!hostAtCapacity && hostQueue.readyCalls.isNotEmpty()) {
+        offer(hostQueue)
+      }
+    }
+
+    return result
+  }
+
+  /** Returns false if [call] wasn't running. */
+  fun finished(call: AsyncCall): Boolean {
+    if (!runningAsyncCalls.remove(call)) return false
+
+    call.callsPerHost.decrementAndGet()
+    val hostQueue = if (call.call.forWebSocket) webSockets else hosts[call.host]
+    if (hostQueue != null && hostQueue.readyCalls.isNotEmpty()) {
+      offer(hostQueue)
+    }
+    runningAsyncCallCount.decrementAndGet()
+
+    removeIfIdle(call)
+    return true
+  }
+
+  /**
+   * Removes the ready calls whose deadlines are not after [nowNanoTime] and returns them. The
+   * caller must fail every returned call.
+   */
+  fun shedExpired(nowNanoTime: Long): List<AsyncCall> {
+    if (deadlines.isEmpty()) return listOf()
+
+    val result = mutableListOf<AsyncCall>()
+    for (call in deadlines) {
+      if (call.deadlineNanoTime - nowNanoTime > 0L) break
+      if (!deadlines.remove(call)) continue // Another thread shed this call.
+
+      // If the call isn't in its host's queue, it's already been promoted.
+      val hostQueue = if (call.call.forWebSocket) webSockets else hosts[call.host]
+      if (hostQueue == null || !hostQueue.readyCalls.remove(call)) continue
+
+      readyCallCount.decrementAndGet()
+      result.add(call)
+      removeIfIdle(call)
+    }
+    return result
+  }
+
+  /**
+   * Returns the earliest deadline of a ready call, or null if no ready call has a deadline. This may
+   * be the deadline of a call that was promoted after this last shed expired calls.
+   */
+  fun nextDeadlineNanoTime(): Long? = deadlines.firstOrNull()?.deadlineNanoTime
+
+  /** Offers every host with ready calls, including those that were previously at capacity. */
+  fun limitsChanged() {
+    for (hostQueue in hosts.values) {
+      if (hostQueue.readyCalls.isNotEmpty()) offer(hostQueue)
+    }
+    if (webSockets.readyCalls.isNotEmpty()) offer(webSockets)
+  }
+
+  /** Offers [host] if it has ready calls, in case it was previously at capacity. */
+  fun limitChanged(host: String) {
+    val hostQueue = hosts[host] ?: return
+    if (hostQueue.readyCalls.isNotEmpty()) offer(hostQueue)
+  }
+
+  fun executed(call: RealCall) {
+    runningSyncCalls.add(call)
+  }
+
+  /** Returns false if [call] wasn't running. */
+  fun finished(call: RealCall): Boolean = runningSyncCalls.remove(call)
+
+  fun cancelAll() {
+    for (call in readyCalls()) {
+      call.call.cancel()
+    }
+    for (call in runningAsyncCalls) {
+      call.call.cancel()
+    }
+    for (call in runningSyncCalls) {
+      call.cancel()
+    }
+  }
+
+  /** Returns a snapshot of the ready calls. */
+  fun readyCalls(): List<AsyncCall> {
+    val result = mutableListOf<AsyncCall>()
+    for (hostQueue in hosts.values) {
+      result += hostQueue.readyCalls
+    }
+    result += webSockets.readyCalls
+    return result
+  }
+
+  /** Returns a snapshot of the running calls. */
+  fun runningCalls(): List<RealCall> = runningSyncCalls.toList() + runningAsyncCalls.map { it.call }
+
+  fun readyCallCount(): Int = readyCallCount.get()
+
+  fun runningCallCount(): Int = runningAsyncCallCount.get() + runningSyncCalls.size
+
+  private fun removeIfIdle(call: AsyncCall) {
+    if (call.call.forWebSocket) return
+
+    // Check for ready calls before running calls. [promote] counts a call as running before it
+    // takes it from the ready calls, so a call that's being promoted is seen by one of the checks.
+    // Enqueueing computes on the same key, so no call can become ready while this runs.
+    hosts.computeIfPresent(call.host) { _, existing ->
+      when {
+        existing.readyCalls.isEmpty() && existing.callsPerHost.get() == 0 -> null
+        else -> existing
+      }
+    }
+  }
+
+  private fun offer(hostQueue: HostQueue) {
+    if (hostQueue.pending.compareAndSet(false, true)) {
+      pendingHosts.add(hostQueue)
+    }
+  }
+
+  private class HostQueue(
+    /** The host whose calls are queued here, or null for the unlimited web sockets queue. */
+    val host: String?,
+  ) {
+    val readyCalls = ConcurrentSkipListSet<AsyncCall>(ScheduleOrder)
+
+    val callsPerHost = AtomicInteger(0)
+
+    /** True if this is in [pendingHosts]. */
+    val pending = AtomicBoolean(false)
+
+    fun limit(maxRequestsPerHost: (host: String) -> Int): Int {
+      return if (host != null) maxRequestsPerHost(host) else Int.MAX_VALUE
+    }
+  }
+
+  /** Increments this if it's less than [limit] and returns true if it was incremented. */
+  private fun AtomicInteger.tryIncrement(limit: Int): Boolean {
+    while (true) {
+      val current = get()
+      if (current >= limit) return false
+      if (compareAndSet(current, current + 1)) return true
+    }
+  }
+}
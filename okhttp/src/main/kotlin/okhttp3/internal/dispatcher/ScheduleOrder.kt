@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.dispatcher
+
+import okhttp3.internal.connection.RealCall.AsyncCall
+
+/**
+ * The order that ready calls are started in: highest priority first, then earliest deadline, then
+ * first enqueued. No two calls are equal because each has a unique sequence number.
+ */
+internal object ScheduleOrder : Comparator<AsyncCall> {
+  override fun compare(
+    a: AsyncCall,
+    b: AsyncCall,
+  ): Int {
+    if (a.priority != b.priority) return b.priority.compareTo(a.priority)
+    if (a.deadlineNanoTime != b.deadlineNanoTime) {
+      return a.deadlineNanoTime.compareTo(b.deadlineNanoTime)
+    }
+    return a.sequence.compareTo(b.sequence)
+  }
+}
+
+/**
+ * The order that ready calls expire in: earliest deadline first, then first enqueued. Only calls
+ * that have deadlines may be compared, and this compares deltas because nanoTime() may wrap.
+ */
+internal object DeadlineOrder : Comparator<AsyncCall> {
+  override fun compare(
+    a: AsyncCall,
+    b: AsyncCall,
+  ): Int {
+    val delta = a.deadlineNanoTime - b.deadlineNanoTime
+    if (delta != 0L) return if (delta < 0L) -1 else 1
+    return a.sequence.compareTo(b.sequence)
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2
+
+import java.io.IOException
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import okhttp3.internal.concurrent.TaskQueue
+import okio.Buffer
+import okio.BufferedSink
+import okio.Sink
+import okio.Timeout
+
+/**
+ * A sink that queues frames in memory and writes them to the socket from a single task on [queue].
+ *
+ * Producers usually don't do socket I/O. Instead [flush] schedules a drain if one isn't already
+ * pending. Frames that arrive while a drain is blocked on the socket accumulate and go out together
+ * in the next drain, so many small frames from concurrent streams become one large write and one
+ * flush.
+ *
+ * Once [MAX_PENDING_BYTES] are queued, producers write to the socket themselves. This blocks them
+ * while the socket is slow, as if writes weren't coalesced, and bounds the memory used here.
+ */
+internal class CoalescingSink(
+  private val delegate: BufferedSink,
+  private val queue: TaskQueue,
+  private val name: String,
+  /** Called on the writer task if writing to the socket fails. */
+  private val onFailure: (IOException) -> Unit,
+) : Sink {
+  /** Guards [pending], [drainScheduled] and [closed]. Never held while doing I/O. */
+  private val lock = ReentrantLock()
+
+  /** Serializes access to [delegate] between the writer task and [close]. */
+  private val ioLock = ReentrantLock()
+
+  /** Frames written by producers but not yet moved to [delegate]. */
+  private val pending = Buffer()
+
+  private var drainScheduled = false
+  private var closed = false
+
+  /** The number of times frames were flushed to the socket. */
+  @Volatile
+  var flushCount = 0L
+    private set
+
+  override fun write(
+    source: Buffer,
+    byteCount: Long,
+  ) {
+    val full: Boolean
+    lock.withLock {
+      if (closed) throw IOException("closed")
+      pending.write(source, byteCount)
+      full = pending.size >= MAX_PENDING_BYTES
+    }
+    if (full) {
+      ioLock.withLock {
+        writePending()
+      }
+    }
+  }
+
+  override fun flush() {
+    lock.withLock {
+      if (closed) throw IOException("closed")
+      if (drainScheduled) return
+      drainScheduled = true
+    }
+    queue.execute("$name writer") {
+      try {
+        drain()
+      } catch (e: IOException) {
+        onFailure(e)
+      }
+    }
+  }
+
+  private fun drain() {
+    ioLock.withLock {
+      lock.withLock {
+        drainScheduled = false
+      }
+      writePending()
+    }
+  }
+
+  /** Moves everything that's pending to the socket and flushes it. Call this holding [ioLock]. */
+  private fun writePending() {
+    lock.withLock {
+      if (closed) return
+      delegate.buffer.write(pending, pending.size)
+    }
+    delegate.flush()
+    flushCount++
+  }
+
+  override fun timeout(): Timeout = delegate.timeout()
+
+  /** Writes everything that's pending and closes the socket's sink. */
+  override fun close() {
+    ioLock.withLock {
+      lock.withLock {
+        if (closed) return
+        closed = true
+        delegate.buffer.write(pending, pending.size)
+      }
+      delegate.use {
+        it.flush()
+        flushCount++
+      }
+    }
+  }
+
+  companion object {
+    /** Queued bytes that make producers write to the socket themselves. */
+    const val MAX_PENDING_BYTES = 1024L * 1024L
+  }
+}
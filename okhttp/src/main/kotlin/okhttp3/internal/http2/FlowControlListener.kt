@@ -34,6 +34,24 @@ interface FlowControlListener {
    */
   fun receivingConnectionWindowChanged(windowCounter: WindowCounter)
 
+  /**
+   * Notification that the number of bytes received on this connection and not yet read by the
+   * application has changed.
+   */
+  fun receivingConnectionBufferChanged(bufferedByteCount: Long) {
+  }
+
+  /**
+   * Notification that the receive window of the connection and its streams was resized to
+   * [windowSize] bytes, after [sampleBytes] were received in a round trip of [rttNanos].
+   */
+  fun receivingWindowSizeChanged(
+    windowSize: Int,
+    sampleBytes: Long,
+    rttNanos: Long,
+  ) {
+  }
+
   /** Noop implementation */
   object None : FlowControlListener {
     override fun receivingStreamWindowChanged(
@@ -37,7 +37,8 @@ import okio.buffer
  *
  * This implementation uses an array for the dynamic table and a list for indexed entries. Dynamic
  * entries are added to the array, starting in the last position moving forward. When the array
- * fills, it is doubled.
+ * fills, it is doubled. The writer also keeps hash indexes of the dynamic table's names and
+ * name-value pairs, so finding a match doesn't require scanning it.
  */
 @Suppress("NAME_SHADOWING")
 object Hpack {
@@ -121,6 +122,13 @@ object Hpack {
 
   val NAME_TO_FIRST_INDEX = nameToFirstIndex()
 
+  /** Static table names keyed by their strings, so callers can skip encoding common names. */
+  private val STATIC_NAMES_BY_UTF8: Map<String, ByteString> =
+    NAME_TO_FIRST_INDEX.keys.associateBy { it.utf8() }
+
+  /** Returns the static table's encoding of [name], or null if it isn't a static table name. */
+  fun staticName(name: String): ByteString? = STATIC_NAMES_BY_UTF8[name]
+
   // http://tools.ietf.org/html/draft-ietf-httpbis-header-compression-12#section-3.1
   class Reader
     @JvmOverloads
@@ -132,6 +140,9 @@ object Hpack {
       private val headerList = mutableListOf<Header>()
       private val source: BufferedSource = source.buffer()
 
+      /** Reused for each Huffman-encoded string. Always empty between reads. */
+      private val huffmanBuffer = Buffer()
+
       // Visible for testing.
       @JvmField var dynamicTable = arrayOfNulls<Header>(8)
 
@@ -270,7 +281,7 @@ object Hpack {
 
       @Throws(IOException::class)
       private fun readLiteralHeaderWithoutIndexingNewName() {
-        val name = checkLowercase(readByteString())
+        val name = internName(checkLowercase(readByteString()))
         val value = readByteString()
         headerList.add(Header(name, value))
       }
@@ -284,7 +295,7 @@ object Hpack {
 
       @Throws(IOException::class)
       private fun readLiteralHeaderWithIncrementalIndexingNewName() {
-        val name = checkLowercase(readByteString())
+        val name = internName(checkLowercase(readByteString()))
         val value = readByteString()
         insertIntoDynamicTable(-1, Header(name, value))
       }
@@ -303,6 +314,15 @@ object Hpack {
         }
       }
 
+      /**
+       * Returns the static table's instance of [name] if it has one. Peers often send common names
+       * as literals; sharing the instance shares its cached hash code and decoded string too.
+       */
+      private fun internName(name: ByteString): ByteString {
+        val staticIndex = NAME_TO_FIRST_INDEX[name] ?: return name
+        return STATIC_HEADER_TABLE[staticIndex].name
+      }
+
       private fun isStaticHeader(index: Int): Boolean {
         return index >= 0 && index <= STATIC_HEADER_TABLE.size - 1
       }
@@ -386,9 +406,8 @@ object Hpack {
         val length = readInt(firstByte, PREFIX_7_BITS).toLong()
 
         return if (huffmanDecode) {
-          val decodeBuffer = Buffer()
-          Huffman.decode(source, length, decodeBuffer)
-          decodeBuffer.readByteString()
+          Huffman.decode(source, length, huffmanBuffer)
+          huffmanBuffer.readByteString()
         } else {
           source.readByteString(length)
         }
@@ -405,12 +424,35 @@ object Hpack {
     return Collections.unmodifiableMap(result)
   }
 
+  /** Decides which header fields [Writer] adds to the dynamic table. */
+  fun interface IndexingStrategy {
+    /** Returns true to add [header] to the dynamic table so later header blocks can refer to it. */
+    fun shouldIndex(header: Header): Boolean
+
+    companion object {
+      /** Index every field. This compresses repeated fields best. */
+      @JvmField
+      val ALWAYS = IndexingStrategy { true }
+
+      /** Index nothing. Fields that aren't in the static table are always sent as literals. */
+      @JvmField
+      val NEVER = IndexingStrategy { false }
+
+      /**
+       * Index fields whose HPACK size is at most [maxEntrySize] bytes. This keeps large one-off
+       * values like long cookies from evicting the small fields that repeat on every request.
+       */
+      fun sizeBounded(maxEntrySize: Int) = IndexingStrategy { it.hpackSize <= maxEntrySize }
+    }
+  }
+
   class Writer
     @JvmOverloads
     constructor(
       @JvmField var headerTableSizeSetting: Int = SETTINGS_HEADER_TABLE_SIZE,
       private val useCompression: Boolean = true,
       private val out: Buffer,
+      private val indexingStrategy: IndexingStrategy = IndexingStrategy.ALWAYS,
     ) {
       /**
        * In the scenario where the dynamic table size changes multiple times between transmission of
@@ -431,11 +473,34 @@ object Hpack {
 
       @JvmField var dynamicTableByteCount = 0
 
+      /**
+       * The number of entries ever inserted into the dynamic table. Each entry is numbered in
+       * insertion order, so the newest entry's number is `insertCount - 1`. Unlike HPACK indexes
+       * these numbers don't change as entries are added, so they can be kept in the maps below.
+       */
+      private var insertCount = 0L
+
+      /** The insertion number of the newest dynamic table entry with each name. */
+      private val nameToInsertion = HashMap<ByteString, Long>()
+
+      /** The insertion number of the newest dynamic table entry with each name and value. */
+      private val headerToInsertion = HashMap<Header, Long>()
+
+      /** Scratch space for Huffman encoding. Grows to fit the longest string written. */
+      private var huffmanBytes = ByteArray(128)
+
+      /** Returns the HPACK index of the dynamic table entry numbered [insertion]. */
+      private fun insertionToIndex(insertion: Long): Int {
+        return (insertCount - insertion).toInt() + STATIC_HEADER_TABLE.size
+      }
+
       private fun clearDynamicTable() {
         dynamicTable.fill(null)
         nextHeaderIndex = dynamicTable.size - 1
         headerCount = 0
         dynamicTableByteCount = 0
+        nameToInsertion.clear()
+        headerToInsertion.clear()
       }
 
       /** Returns the count of entries evicted. */
@@ -446,8 +511,13 @@ object Hpack {
           // determine how many headers need to be evicted.
           var j = dynamicTable.size - 1
           while (j >= nextHeaderIndex && bytesToRecover > 0) {
-            bytesToRecover -= dynamicTable[j]!!.hpackSize
-            dynamicTableByteCount -= dynamicTable[j]!!.hpackSize
+            val evicted = dynamicTable[j]!!
+            // Only forget this entry if no newer entry has the same name or the same name and value.
+            val insertion = insertCount - (j - nextHeaderIndex)
+            nameToInsertion.remove(evicted.name, insertion)
+            headerToInsertion.remove(evicted, insertion)
+            bytesToRecover -= evicted.hpackSize
+            dynamicTableByteCount -= evicted.hpackSize
             headerCount--
             entriesToEvict++
             j--
@@ -488,6 +558,10 @@ object Hpack {
         dynamicTable[index] = entry
         headerCount++
         dynamicTableByteCount += delta
+
+        val insertion = insertCount++
+        nameToInsertion[entry.name] = insertion
+        headerToInsertion[entry] = insertion
       }
 
       /**
@@ -508,9 +582,12 @@ object Hpack {
         }
 
         for (i in 0 until headerBlock.size) {
-          val header = headerBlock[i]
-          val name = header.name.toAsciiLowercase()
-          val value = header.value
+          // Names are almost always lowercase already. In that case toAsciiLowercase() returns the
+          // same instance, and the caller's header can be used as-is.
+          val original = headerBlock[i]
+          val name = original.name.toAsciiLowercase()
+          val value = original.value
+          val header = if (name === original.name) original else Header(name, value)
           var headerIndex = -1
           var headerNameIndex = -1
 
@@ -531,14 +608,13 @@ object Hpack {
           }
 
           if (headerIndex == -1) {
-            for (j in nextHeaderIndex + 1 until dynamicTable.size) {
-              if (dynamicTable[j]!!.name == name) {
-                if (dynamicTable[j]!!.value == value) {
-                  headerIndex = j - nextHeaderIndex + STATIC_HEADER_TABLE.size
-                  break
-                } else if (headerNameIndex == -1) {
-                  headerNameIndex = j - nextHeaderIndex + STATIC_HEADER_TABLE.size
-                }
+            val insertion = headerToInsertion[header]
+            if (insertion != null) {
+              headerIndex = insertionToIndex(insertion)
+            } else if (headerNameIndex == -1) {
+              val nameInsertion = nameToInsertion[name]
+              if (nameInsertion != null) {
+                headerNameIndex = insertionToIndex(nameInsertion)
               }
             }
           }
@@ -548,6 +624,12 @@ object Hpack {
               // Indexed Header Field.
               writeInt(headerIndex, PREFIX_7_BITS, 0x80)
             }
+            headerNameIndex == -1 && !indexingStrategy.shouldIndex(header) -> {
+              // Literal Header Field without Indexing - New Name.
+              out.writeByte(0)
+              writeByteString(name)
+              writeByteString(value)
+            }
             headerNameIndex == -1 -> {
               // Literal Header Field with Incremental Indexing - New Name.
               out.writeByte(0x40)
@@ -555,7 +637,8 @@ object Hpack {
               writeByteString(value)
               insertIntoDynamicTable(header)
             }
-            name.startsWith(Header.PSEUDO_PREFIX) && TARGET_AUTHORITY != name -> {
+            name.startsWith(Header.PSEUDO_PREFIX) && TARGET_AUTHORITY != name ||
+              !indexingStrategy.shouldIndex(header) -> {
               // Follow Chromes lead - only include the :authority pseudo header, but exclude all other
               // pseudo headers. Literal Header Field without Indexing - Indexed Name.
               writeInt(headerNameIndex, PREFIX_4_BITS, 0)
@@ -599,16 +682,19 @@ object Hpack {
 
       @Throws(IOException::class)
       fun writeByteString(data: ByteString) {
-        if (useCompression && Huffman.encodedLength(data) < data.size) {
-          val huffmanBuffer = Buffer()
-          Huffman.encode(data, huffmanBuffer)
-          val huffmanBytes = huffmanBuffer.readByteString()
-          writeInt(huffmanBytes.size, PREFIX_7_BITS, 0x80)
-          out.write(huffmanBytes)
-        } else {
-          writeInt(data.size, PREFIX_7_BITS, 0)
-          out.write(data)
+        if (useCompression) {
+          if (huffmanBytes.size < data.size) {
+            huffmanBytes = ByteArray(maxOf(data.size, huffmanBytes.size * 2))
+          }
+          val huffmanByteCount = Huffman.encodeIfShorter(data, huffmanBytes)
+          if (huffmanByteCount != -1) {
+            writeInt(huffmanByteCount, PREFIX_7_BITS, 0x80)
+            out.write(huffmanBytes, 0, huffmanByteCount)
+            return
+          }
         }
+        writeInt(data.size, PREFIX_7_BITS, 0)
+        out.write(data)
       }
 
       fun resizeHeaderTable(headerTableSizeSetting: Int) {
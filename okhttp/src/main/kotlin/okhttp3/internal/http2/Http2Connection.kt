@@ -22,14 +22,20 @@ import java.net.Socket
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.Condition
 import java.util.concurrent.locks.ReentrantLock
+import okhttp3.HttpUrl
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import okhttp3.internal.EMPTY_BYTE_ARRAY
 import okhttp3.internal.EMPTY_HEADERS
+import okhttp3.internal.assertHeld
 import okhttp3.internal.assertThreadDoesntHoldLock
 import okhttp3.internal.closeQuietly
 import okhttp3.internal.concurrent.TaskRunner
 import okhttp3.internal.connection.Locks.withLock
 import okhttp3.internal.http2.ErrorCode.REFUSED_STREAM
+import okhttp3.internal.http2.Http2Stream.Companion.DEFAULT_WEIGHT
 import okhttp3.internal.http2.Settings.Companion.DEFAULT_INITIAL_WINDOW_SIZE
+import okhttp3.internal.http2.flowcontrol.BdpEstimator
+import okhttp3.internal.http2.flowcontrol.ReceiveBudget
 import okhttp3.internal.http2.flowcontrol.WindowCounter
 import okhttp3.internal.ignoreIoExceptions
 import okhttp3.internal.okHttpName
@@ -83,6 +89,15 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
 
   private var isShutdown = false
 
+  /**
+   * The origin set announced by the peer (RFC 8336), formatted by [originKey]. Null if the peer
+   * hasn't sent an `ORIGIN` frame, in which case it may be authoritative for any origin its
+   * certificate covers. Writes are guarded by this; reads don't need the lock.
+   */
+  @Volatile
+  var originSet: Set<String>? = null
+    private set
+
   /** For scheduling everything asynchronous. */
   private val taskRunner = builder.taskRunner
 
@@ -122,6 +137,58 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
       }
     }
 
+  /**
+   * Counts bytes received on this connection's streams that the application hasn't read yet. Its
+   * parent is shared by all connections in the pool.
+   */
+  val receiveBudget = ReceiveBudget(parent = builder.receiveBudget)
+
+  private val poolReceiveBudget: ReceiveBudget? = builder.receiveBudget
+
+  /** Sends withheld window updates once the pool's budget has room again. */
+  private val receiveBudgetAvailable: () -> Unit = {
+    writerQueue.execute("$connectionName receiveBudgetAvailable") {
+      updateConnectionFlowControl(0L)
+    }
+  }
+
+  /**
+   * Non-null if the receive window is sized to the bandwidth-delay product measured with PING
+   * frames. Guarded by this.
+   */
+  private val bdpEstimator: BdpEstimator? =
+    when {
+      builder.adaptiveWindow ->
+        BdpEstimator(
+          windowSize = okHttpSettings.initialWindowSize,
+          minWindowSize = DEFAULT_INITIAL_WINDOW_SIZE,
+          maxWindowSize = ADAPTIVE_MAX_WINDOW_SIZE,
+        )
+      else -> null
+    }
+
+  /**
+   * Bytes to withhold from future connection `WINDOW_UPDATE` frames. This is how the connection
+   * window shrinks; unlike stream windows it can't be lowered with a setting. Guarded by this.
+   */
+  private var receiveWindowDebt = 0L
+
+  /** The number of `SETTINGS` frames sent to the peer. Guarded by this. */
+  private var settingsSent = 0L
+
+  /** The number of `SETTINGS` frames the peer has acknowledged. Guarded by this. */
+  private var settingsAcked = 0L
+
+  /**
+   * Initial window sizes sent to the peer that it hasn't acknowledged yet. Until it does, the peer
+   * may still use an older size, so new streams accept the largest of these and
+   * [ackedInitialWindowSize]. Guarded by this.
+   */
+  private val unackedInitialWindowSizes = ArrayDeque<SentInitialWindowSize>()
+
+  /** The initial window size of the last acknowledged `SETTINGS` frame. Guarded by this. */
+  private var ackedInitialWindowSize = 0
+
   /**
    * Settings we receive from the peer. Changes to the field are guarded by this. The instance is
    * never mutated once it has been assigned.
@@ -139,8 +206,52 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
   var writeBytesMaximum: Long = peerSettings.initialWindowSize.toLong()
     private set
 
+  /**
+   * Calls to [writeData] that are in progress. The one with the lowest virtual time writes next.
+   * Guarded by this.
+   */
+  private val dataWriteTurns = ArrayDeque<DataWriteTurn>()
+
+  /**
+   * The virtual time of the most recent turn. A stream that starts writing begins here, so time it
+   * spent idle doesn't become credit over streams that kept writing. Guarded by this.
+   */
+  private var dataWriteVirtualTime = 0L
+
   internal val socket: Socket = builder.socket
-  val writer = Http2Writer(builder.sink, client)
+
+  /** Non-null if frames are queued and written in batches by [writerQueue]. */
+  private val coalescingSink: CoalescingSink? =
+    when {
+      builder.coalesceWrites ->
+        CoalescingSink(builder.sink, writerQueue, connectionName) { e -> failConnection(e) }
+      else -> null
+    }
+
+  val writer =
+    Http2Writer(
+      sink = coalescingSink?.buffer() ?: builder.sink,
+      client = client,
+      hpackIndexingStrategy = builder.hpackIndexingStrategy,
+    )
+
+  /**
+   * The average number of frames written to the socket per flush. This is only tracked when writes
+   * are coalesced, and is 0.0 otherwise.
+   */
+  val framesPerFlush: Double
+    get() {
+      val flushCount = coalescedFlushCount
+      return if (flushCount == 0L) 0.0 else coalescedFrameCount.toDouble() / flushCount
+    }
+
+  /** The number of frames written when writes are coalesced, and 0 otherwise. */
+  internal val coalescedFrameCount: Long
+    get() = if (coalescingSink != null) writer.frameCount else 0L
+
+  /** The number of flushes to the socket when writes are coalesced, and 0 otherwise. */
+  internal val coalescedFlushCount: Long
+    get() = coalescingSink?.flushCount ?: 0L
 
   // Visible for testing
   val readerRunnable = ReaderRunnable(Http2Reader(builder.source, client))
@@ -149,6 +260,8 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
   private val currentPushRequests = mutableSetOf<Int>()
 
   init {
+    poolReceiveBudget?.addListener(receiveBudgetAvailable)
+
     if (builder.pingIntervalMillis != 0) {
       val pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.pingIntervalMillis.toLong())
       writerQueue.schedule("$connectionName ping", pingIntervalNanos) {
@@ -194,8 +307,14 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
     this.withLock {
       readBytes.update(total = read)
       val readBytesToAcknowledge = readBytes.unacknowledged
-      if (readBytesToAcknowledge >= okHttpSettings.initialWindowSize / 2) {
-        writeWindowUpdateLater(0, readBytesToAcknowledge)
+      if (readBytesToAcknowledge >= okHttpSettings.initialWindowSize / 2 &&
+        !receiveBudget.isExhausted
+      ) {
+        val withheld = minOf(receiveWindowDebt, readBytesToAcknowledge)
+        receiveWindowDebt -= withheld
+        if (readBytesToAcknowledge > withheld) {
+          writeWindowUpdateLater(0, readBytesToAcknowledge - withheld)
+        }
         readBytes.update(acknowledged = readBytesToAcknowledge)
       }
       flowControlListener.receivingConnectionWindowChanged(readBytes)
@@ -299,6 +418,12 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
    *
    * Zero [byteCount] writes are not subject to flow control and will not block. The only use case
    * for zero [byteCount] is closing a flushed output stream.
+   *
+   * Callers take turns using the connection's write window. Each turn writes at most one frame
+   * while other streams are waiting, and advances the stream's virtual time by its byte count
+   * divided by the stream's [Http2Stream.weight]. The waiting stream with the lowest virtual time
+   * goes next, so over time each stream's share of the window is proportional to its weight and one
+   * large upload can't keep other streams from writing.
    */
   @Throws(IOException::class)
   fun writeData(
@@ -313,32 +438,74 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
       return
     }
 
+    val stream: Http2Stream?
+    val turn: DataWriteTurn
+    this.withLock {
+      stream = streams[streamId]
+      val virtualTime = maxOf(stream?.writeVirtualTime ?: 0L, dataWriteVirtualTime)
+      turn = DataWriteTurn(streamId, virtualTime)
+      dataWriteTurns.addLast(turn)
+    }
+
     var byteCount = byteCount
-    while (byteCount > 0L) {
-      var toWrite: Int
-      this.withLock {
-        try {
-          while (writeBytesTotal >= writeBytesMaximum) {
-            // Before blocking, confirm that the stream we're writing is still open. It's possible
-            // that the stream has since been closed (such as if this write timed out.)
-            if (!streams.containsKey(streamId)) {
-              throw IOException("stream closed")
+    try {
+      while (byteCount > 0L) {
+        var toWrite: Long
+        this.withLock {
+          try {
+            while (nextDataWriteTurn() !== turn || writeBytesTotal >= writeBytesMaximum) {
+              // Before blocking, confirm that the stream we're writing is still open. It's possible
+              // that the stream has since been closed (such as if this write timed out.)
+              if (!streams.containsKey(streamId)) {
+                throw IOException("stream closed")
+              }
+              condition.await() // Wait for our turn and a WINDOW_UPDATE.
             }
-            condition.await() // Wait until we receive a WINDOW_UPDATE.
+          } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt() // Retain interrupted status.
+            throw InterruptedIOException()
           }
-        } catch (e: InterruptedException) {
-          Thread.currentThread().interrupt() // Retain interrupted status.
-          throw InterruptedIOException()
+
+          // Limit this turn to one frame only if another stream is waiting.
+          val contended = dataWriteTurns.size > 1
+          val quantum = if (contended) writer.maxDataLength().toLong() else Long.MAX_VALUE
+          toWrite = minOf(byteCount, writeBytesMaximum - writeBytesTotal, quantum)
+          writeBytesTotal += toWrite
+
+          // Charge this turn to the stream. Its turn stays in line so it keeps its place while it
+          // writes frames outside of the lock.
+          val weight = stream?.weight ?: DEFAULT_WEIGHT
+          val finishTime = turn.virtualTime + maxOf(toWrite * DEFAULT_WEIGHT / weight, 1L)
+          dataWriteVirtualTime = if (contended) turn.virtualTime else finishTime
+          turn.virtualTime = finishTime
+          stream?.writeVirtualTime = finishTime
+          condition.signalAll()
         }
 
-        toWrite = minOf(byteCount, writeBytesMaximum - writeBytesTotal).toInt()
-        toWrite = minOf(toWrite, writer.maxDataLength())
-        writeBytesTotal += toWrite.toLong()
+        // Write frames for this turn, each no larger than the peer's maximum frame size.
+        while (toWrite > 0L) {
+          val frameSize = minOf(toWrite, writer.maxDataLength().toLong()).toInt()
+          toWrite -= frameSize
+          byteCount -= frameSize
+          writer.data(outFinished && byteCount == 0L, streamId, buffer, frameSize)
+        }
       }
+    } finally {
+      this.withLock {
+        if (dataWriteTurns.remove(turn)) condition.signalAll()
+      }
+    }
+  }
+
+  /** Returns the turn with the lowest virtual time, preferring the one that's waited longest. */
+  private fun nextDataWriteTurn(): DataWriteTurn? {
+    lock.assertHeld()
 
-      byteCount -= toWrite.toLong()
-      writer.data(outFinished && byteCount == 0L, streamId, buffer, toWrite)
+    var result: DataWriteTurn? = null
+    for (turn in dataWriteTurns) {
+      if (result == null || turn.virtualTime < result.virtualTime) result = turn
     }
+    return result
   }
 
   internal fun writeSynResetLater(
@@ -375,6 +542,99 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
     }
   }
 
+  /** Counts received DATA bytes, starting a bandwidth-delay product measurement if none is. */
+  private fun measureReceiveWindow(byteCount: Int) {
+    val sendPing =
+      this.withLock {
+        val bdpEstimator = bdpEstimator ?: return
+        bdpEstimator.dataReceived(byteCount, taskRunner.backend.nanoTime())
+      }
+    if (sendPing) {
+      writerQueue.execute("$connectionName bdpPing") {
+        writePing(false, BDP_PING, 0)
+      }
+    }
+  }
+
+  /**
+   * Resizes the receive window of this connection and all of its streams. Growing sends a
+   * `SETTINGS` frame and a connection `WINDOW_UPDATE`. Shrinking sends a `SETTINGS` frame and
+   * withholds future connection window updates until the connection window has shrunk to match.
+   *
+   * New streams get a smaller window only once the peer acknowledges the `SETTINGS` frame. Until
+   * then it may still send as much as the larger window allows.
+   */
+  private fun resizeReceiveWindowLater(windowSize: Int) {
+    writerQueue.execute("$connectionName resizeReceiveWindow") {
+      try {
+        resizeReceiveWindow(windowSize)
+      } catch (e: IOException) {
+        failConnection(e)
+      }
+    }
+  }
+
+  @Throws(IOException::class)
+  private fun resizeReceiveWindow(windowSize: Int) {
+    var connectionWindowIncrement = 0L
+    var grownStreams: Array<Http2Stream>? = null
+    val localWindowSize: Int
+    val sampleBytes: Long
+    val rttNanos: Long
+    writer.withLock {
+      this.withLock {
+        if (isShutdown) return
+        val advertised =
+          unackedInitialWindowSizes.lastOrNull()?.windowSize ?: okHttpSettings.initialWindowSize
+        val delta = windowSize.toLong() - advertised
+        if (delta > 0L) {
+          val repaid = minOf(receiveWindowDebt, delta)
+          receiveWindowDebt -= repaid
+          connectionWindowIncrement = delta - repaid
+        } else {
+          receiveWindowDebt -= delta
+        }
+
+        if (unackedInitialWindowSizes.isEmpty()) {
+          ackedInitialWindowSize = okHttpSettings.initialWindowSize
+        }
+        settingsSent++
+        unackedInitialWindowSizes.addLast(SentInitialWindowSize(settingsSent, windowSize))
+        val previousWindowSize = okHttpSettings.initialWindowSize
+        localWindowSize = applyInitialWindowSize()
+        if (localWindowSize > previousWindowSize) {
+          grownStreams = streams.values.toTypedArray()
+        }
+        sampleBytes = bdpEstimator!!.sample
+        rttNanos = bdpEstimator.rttNanos
+      }
+
+      // Accept the larger window before the peer learns about it.
+      grownStreams?.forEach { it.receiveWindowGrew(localWindowSize) }
+
+      writer.settings(Settings().set(Settings.INITIAL_WINDOW_SIZE, windowSize))
+      if (connectionWindowIncrement > 0L) {
+        writer.windowUpdate(0, connectionWindowIncrement)
+      }
+    }
+    flowControlListener.receivingWindowSizeChanged(windowSize, sampleBytes, rttNanos)
+  }
+
+  /**
+   * Sets the initial window size of new streams to the largest size the peer may be using, and
+   * returns it.
+   */
+  private fun applyInitialWindowSize(): Int {
+    lock.assertHeld()
+
+    var result = ackedInitialWindowSize
+    for (sent in unackedInitialWindowSizes) {
+      result = maxOf(result, sent.windowSize)
+    }
+    okHttpSettings[Settings.INITIAL_WINDOW_SIZE] = result
+    return result
+  }
+
   fun writePing(
     reply: Boolean,
     payload1: Int,
@@ -485,6 +745,11 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
       socket.close()
     }
 
+    poolReceiveBudget?.removeListener(receiveBudgetAvailable)
+
+    // Bytes that streams still buffer no longer hold back the pool's other connections.
+    receiveBudget.close()
+
     // Release the threads.
     writerQueue.shutdown()
     pushQueue.shutdown()
@@ -508,6 +773,7 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
   fun start(sendConnectionPreface: Boolean = true) {
     if (sendConnectionPreface) {
       writer.connectionPreface()
+      this.withLock { settingsSent++ }
       writer.settings(okHttpSettings)
       val windowSize = okHttpSettings.initialWindowSize
       if (windowSize != DEFAULT_INITIAL_WINDOW_SIZE) {
@@ -528,6 +794,7 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
           throw ConnectionShutdownException()
         }
         okHttpSettings.merge(settings)
+        settingsSent++
       }
       writer.settings(settings)
     }
@@ -570,6 +837,21 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
     }
   }
 
+  /** A call to [writeData] that's in progress. Identity matters, not the stream ID. */
+  private class DataWriteTurn(
+    val streamId: Int,
+    /** When this turn may write next. Guarded by the connection. */
+    var virtualTime: Long,
+  ) {
+    override fun toString() = "DataWriteTurn($streamId, virtualTime=$virtualTime)"
+  }
+
+  /** An initial window size sent in the [settingsSequence]-th `SETTINGS` frame. */
+  private class SentInitialWindowSize(
+    val settingsSequence: Long,
+    val windowSize: Int,
+  )
+
   class Builder(
     /** True if this peer initiated the connection; false if this peer accepted the connection. */
     internal var client: Boolean,
@@ -583,6 +865,10 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
     internal var pushObserver = PushObserver.CANCEL
     internal var pingIntervalMillis: Int = 0
     internal var flowControlListener: FlowControlListener = FlowControlListener.None
+    internal var hpackIndexingStrategy: Hpack.IndexingStrategy = Hpack.IndexingStrategy.ALWAYS
+    internal var coalesceWrites: Boolean = false
+    internal var adaptiveWindow: Boolean = false
+    internal var receiveBudget: ReceiveBudget? = null
 
     @Throws(IOException::class)
     @JvmOverloads
@@ -622,6 +908,39 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
         this.flowControlListener = flowControlListener
       }
 
+    fun hpackIndexingStrategy(hpackIndexingStrategy: Hpack.IndexingStrategy) =
+      apply {
+        this.hpackIndexingStrategy = hpackIndexingStrategy
+      }
+
+    /**
+     * True to queue outgoing frames and write them from a single writer task. Callers block on the
+     * socket only when too many frames are queued, and frames from many streams are combined into
+     * fewer writes and flushes.
+     */
+    fun coalesceWrites(coalesceWrites: Boolean) =
+      apply {
+        this.coalesceWrites = coalesceWrites
+      }
+
+    /**
+     * True to grow and shrink the receive window to fit the connection's bandwidth-delay product,
+     * as measured by PING round trips. Otherwise the window is fixed at its initial size.
+     */
+    fun adaptiveWindow(adaptiveWindow: Boolean) =
+      apply {
+        this.adaptiveWindow = adaptiveWindow
+      }
+
+    /**
+     * Shares [receiveBudget] with other connections. Connection window updates are withheld while
+     * it's exhausted.
+     */
+    fun receiveBudget(receiveBudget: ReceiveBudget) =
+      apply {
+        this.receiveBudget = receiveBudget
+      }
+
     fun build(): Http2Connection {
       return Http2Connection(this)
     }
@@ -634,6 +953,13 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
   inner class ReaderRunnable internal constructor(
     internal val reader: Http2Reader,
   ) : Http2Reader.Handler, () -> Unit {
+    /**
+     * DATA frames read since the last [dispatchData], keyed by stream ID. These are delivered
+     * before the reader blocks on the network or reads a frame of another type.
+     */
+    private val pendingData = LinkedHashMap<Int, PendingData>()
+    private var pendingDataByteCount = 0L
+
     override fun invoke() {
       var connectionErrorCode = ErrorCode.INTERNAL_ERROR
       var streamErrorCode = ErrorCode.INTERNAL_ERROR
@@ -641,6 +967,7 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
       try {
         reader.readConnectionPreface(this)
         while (reader.nextFrame(false, this)) {
+          if (!reader.nextFrameIsBufferedData()) dispatchData()
         }
         connectionErrorCode = ErrorCode.NO_ERROR
         streamErrorCode = ErrorCode.CANCEL
@@ -662,20 +989,58 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
       length: Int,
     ) {
       if (pushedStream(streamId)) {
+        measureReceiveWindow(length)
         pushDataLater(streamId, source, length, inFinished)
         return
       }
-      val dataStream = getStream(streamId)
-      if (dataStream == null) {
-        writeSynResetLater(streamId, ErrorCode.PROTOCOL_ERROR)
-        updateConnectionFlowControl(length.toLong())
+
+      // Buffer this frame's data with any other frames for the same stream. Data received after
+      // the stream is finished is discarded when the batch is dispatched.
+      val pending = pendingData.getOrPut(streamId) { PendingData() }
+      if (pending.finished) {
         source.skip(length.toLong())
-        return
+      } else {
+        source.readFully(pending.data, length.toLong())
+        pending.finished = inFinished
       }
-      dataStream.receiveData(source, length)
-      if (inFinished) {
-        dataStream.receiveHeaders(EMPTY_HEADERS, true)
+      pendingDataByteCount += length
+    }
+
+    /**
+     * Delivers buffered DATA frames to their streams. This looks up all of the streams with one
+     * lock acquisition, delivers each stream's data at once, and updates connection flow control
+     * once for the whole batch.
+     */
+    private fun dispatchData() {
+      if (pendingData.isEmpty()) return
+
+      val byteCount = pendingDataByteCount
+      pendingDataByteCount = 0L
+      measureReceiveWindow(byteCount.toInt())
+
+      val dataStreams =
+        this@Http2Connection.withLock {
+          pendingData.keys.map { streamId -> streams[streamId] }
+        }
+      var i = 0
+      for ((streamId, pending) in pendingData) {
+        val dataStream = dataStreams[i++]
+        if (dataStream == null) {
+          writeSynResetLater(streamId, ErrorCode.PROTOCOL_ERROR)
+          pending.data.clear()
+          continue
+        }
+        if (pending.data.size > 0L) {
+          dataStream.receiveData(pending.data)
+        }
+        if (pending.finished) {
+          dataStream.receiveHeaders(EMPTY_HEADERS, true)
+        }
       }
+      pendingData.clear()
+
+      // Update the connection flow control, as this is a shared resource.
+      updateConnectionFlowControl(byteCount)
     }
 
     override fun headers(
@@ -812,6 +1177,17 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
 
     override fun ackSettings() {
       // TODO: If we don't get this callback after sending settings to the peer, SETTINGS_TIMEOUT.
+      this@Http2Connection.withLock {
+        settingsAcked++
+        if (unackedInitialWindowSizes.isEmpty()) return
+        while (true) {
+          val sent = unackedInitialWindowSizes.firstOrNull() ?: break
+          if (sent.settingsSequence > settingsAcked) break
+          ackedInitialWindowSize = sent.windowSize
+          unackedInitialWindowSizes.removeFirst()
+        }
+        applyInitialWindowSize()
+      }
     }
 
     override fun ping(
@@ -832,6 +1208,10 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
               awaitPongsReceived++
               condition.signalAll()
             }
+            BDP_PING -> {
+              val newWindowSize = bdpEstimator?.pongReceived(taskRunner.backend.nanoTime()) ?: -1
+              if (newWindowSize != -1) resizeReceiveWindowLater(newWindowSize)
+            }
             else -> {
               // Ignore an unexpected pong.
             }
@@ -906,6 +1286,14 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
       pushRequestLater(promisedStreamId, requestHeaders)
     }
 
+    override fun origin(origins: List<String>) {
+      // Drop origins that aren't URLs rather than failing the connection.
+      val keys = origins.mapNotNull { it.toHttpUrlOrNull()?.let(::originKey) }
+      this@Http2Connection.withLock {
+        originSet = (originSet ?: setOf()) + keys
+      }
+    }
+
     override fun alternateService(
       streamId: Int,
       origin: String,
@@ -918,6 +1306,12 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
     }
   }
 
+  /** DATA frames for one stream that the reader has buffered but not yet delivered. */
+  private class PendingData {
+    val data = Buffer()
+    var finished = false
+  }
+
   /** Even, positive numbered streams are pushed streams in HTTP/2. */
   internal fun pushedStream(streamId: Int): Boolean = streamId != 0 && streamId and 1 == 0
 
@@ -1041,6 +1435,9 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
   companion object {
     const val OKHTTP_CLIENT_WINDOW_SIZE = 16 * 1024 * 1024
 
+    /** Returns [url]'s origin as `scheme://host:port`, for comparison with [originSet]. */
+    fun originKey(url: HttpUrl): String = "${url.scheme}://${url.host}:${url.port}"
+
     val DEFAULT_SETTINGS =
       Settings().apply {
         set(Settings.INITIAL_WINDOW_SIZE, DEFAULT_INITIAL_WINDOW_SIZE)
@@ -1050,6 +1447,10 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
     const val INTERVAL_PING = 1
     const val DEGRADED_PING = 2
     const val AWAIT_PING = 3
+    const val BDP_PING = 4
+
+    /** The largest receive window [Builder.adaptiveWindow] will grow to. */
+    const val ADAPTIVE_MAX_WINDOW_SIZE = 64 * 1024 * 1024
     const val DEGRADED_PONG_TIMEOUT_NS = 1_000_000_000 // 1 second.
   }
 }
@@ -19,6 +19,7 @@ import java.io.IOException
 import java.net.ProtocolException
 import java.util.Locale
 import java.util.concurrent.TimeUnit
+import okhttp3.CallPriority
 import okhttp3.Headers
 import okhttp3.OkHttpClient
 import okhttp3.Protocol
@@ -42,6 +43,7 @@ import okhttp3.internal.http2.Header.Companion.TARGET_PATH_UTF8
 import okhttp3.internal.http2.Header.Companion.TARGET_SCHEME
 import okhttp3.internal.http2.Header.Companion.TARGET_SCHEME_UTF8
 import okhttp3.internal.immutableListOf
+import okio.ByteString.Companion.encodeUtf8
 import okio.Sink
 import okio.Source
 
@@ -77,6 +79,7 @@ class Http2ExchangeCodec(
     val hasRequestBody = request.body != null
     val requestHeaders = http2HeadersList(request)
     stream = http2Connection.newStream(requestHeaders, hasRequestBody)
+    stream!!.weight = streamWeight(request.tag(CallPriority::class))
     // We may have been asked to cancel while creating the new stream and sending the request
     // headers, but there was still no stream to close.
     if (canceled) {
@@ -136,6 +139,19 @@ class Http2ExchangeCodec(
     private const val ENCODING = "encoding"
     private const val UPGRADE = "upgrade"
 
+    /**
+     * Returns the stream weight for a call with [priority]. Each step of priority doubles or halves
+     * the stream's share of the connection's write window, so [CallPriority.HIGH] uploads get twice
+     * the bandwidth of [CallPriority.NORMAL] ones when they compete.
+     */
+    internal fun streamWeight(priority: CallPriority?): Int {
+      val value = (priority?.value ?: 0).coerceIn(-4, 4)
+      return when {
+        value >= 0 -> Http2Stream.DEFAULT_WEIGHT shl value
+        else -> Http2Stream.DEFAULT_WEIGHT shr -value
+      }
+    }
+
     /** See http://tools.ietf.org/html/draft-ietf-httpbis-http2-09#section-8.1.3. */
     private val HTTP_2_SKIPPED_REQUEST_HEADERS =
       immutableListOf(
@@ -181,7 +197,7 @@ class Http2ExchangeCodec(
         if (name !in HTTP_2_SKIPPED_REQUEST_HEADERS ||
           name == TE && headers.value(i) == "trailers"
         ) {
-          result.add(Header(name, headers.value(i)))
+          result.add(Header(Hpack.staticName(name) ?: name.encodeUtf8(), headers.value(i)))
         }
       }
       return result
@@ -193,23 +209,36 @@ class Http2ExchangeCodec(
       protocol: Protocol,
     ): Response.Builder {
       var statusLine: StatusLine? = null
-      val headersBuilder = Headers.Builder()
+      var skippedCount = 0
       for (i in 0 until headerBlock.size) {
         val name = headerBlock.name(i)
-        val value = headerBlock.value(i)
         if (name == RESPONSE_STATUS_UTF8) {
-          statusLine = StatusLine.parse("HTTP/1.1 $value")
-        } else if (name !in HTTP_2_SKIPPED_RESPONSE_HEADERS) {
-          headersBuilder.addLenient(name, value)
+          statusLine = StatusLine.parse("HTTP/1.1 ${headerBlock.value(i)}")
+          skippedCount++
+        } else if (name in HTTP_2_SKIPPED_RESPONSE_HEADERS) {
+          skippedCount++
         }
       }
       if (statusLine == null) throw ProtocolException("Expected ':status' header not present")
 
+      // Copy the remaining names and values straight into the new block's array.
+      val namesAndValues = arrayOfNulls<String>((headerBlock.size - skippedCount) * 2)
+      var j = 0
+      for (i in 0 until headerBlock.size) {
+        val name = headerBlock.name(i)
+        if (name != RESPONSE_STATUS_UTF8 && name !in HTTP_2_SKIPPED_RESPONSE_HEADERS) {
+          namesAndValues[j++] = name
+          namesAndValues[j++] = headerBlock.value(i).trim()
+        }
+      }
+      @Suppress("UNCHECKED_CAST")
+      val headers = Headers(namesAndValues as Array<String>)
+
       return Response.Builder()
         .protocol(protocol)
         .code(statusLine.code)
         .message(statusLine.message)
-        .headers(headersBuilder.build())
+        .headers(headers)
         .trailers { error("trailers not available") }
     }
   }
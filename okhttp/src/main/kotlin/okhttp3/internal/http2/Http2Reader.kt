@@ -34,6 +34,7 @@ import okhttp3.internal.http2.Http2.TYPE_CONTINUATION
 import okhttp3.internal.http2.Http2.TYPE_DATA
 import okhttp3.internal.http2.Http2.TYPE_GOAWAY
 import okhttp3.internal.http2.Http2.TYPE_HEADERS
+import okhttp3.internal.http2.Http2.TYPE_ORIGIN
 import okhttp3.internal.http2.Http2.TYPE_PING
 import okhttp3.internal.http2.Http2.TYPE_PRIORITY
 import okhttp3.internal.http2.Http2.TYPE_PUSH_PROMISE
@@ -85,6 +86,17 @@ class Http2Reader(
     }
   }
 
+  /**
+   * Returns true if the next frame is a DATA frame that has already been buffered in full. Reading
+   * it won't block on the network.
+   */
+  fun nextFrameIsBufferedData(): Boolean {
+    val buffer = source.buffer
+    if (buffer.size < 9L) return false
+    val length = (buffer[0] and 0xff shl 16) or (buffer[1] and 0xff shl 8) or (buffer[2] and 0xff)
+    return (buffer[3] and 0xff) == TYPE_DATA && buffer.size >= 9L + length
+  }
+
   @Throws(IOException::class)
   fun nextFrame(
     requireSettings: Boolean,
@@ -132,6 +144,7 @@ class Http2Reader(
       TYPE_PING -> readPing(handler, length, flags, streamId)
       TYPE_GOAWAY -> readGoAway(handler, length, flags, streamId)
       TYPE_WINDOW_UPDATE -> readWindowUpdate(handler, length, flags, streamId)
+      TYPE_ORIGIN -> readOrigin(handler, length, streamId)
       else -> source.skip(length.toLong()) // Implementations MUST discard frames of unknown types.
     }
 
@@ -392,6 +405,33 @@ class Http2Reader(
     handler.windowUpdate(streamId, increment)
   }
 
+  @Throws(IOException::class)
+  private fun readOrigin(
+    handler: Handler,
+    length: Int,
+    streamId: Int,
+  ) {
+    // ORIGIN frames on streams other than 0 must be ignored.
+    if (streamId != 0) {
+      source.skip(length.toLong())
+      return
+    }
+    val origins = mutableListOf<String>()
+    var remaining = length
+    while (remaining > 0) {
+      // ORIGIN is a non-critical extension, so ignore malformed frames instead of failing.
+      val originLength = if (remaining >= 2) source.readShort() and 0xffff else Int.MAX_VALUE
+      remaining -= 2
+      if (originLength > remaining) {
+        source.skip(maxOf(remaining, 0).toLong())
+        return
+      }
+      origins += source.readUtf8(originLength.toLong())
+      remaining -= originLength
+    }
+    handler.origin(origins)
+  }
+
   @Throws(IOException::class)
   override fun close() {
     source.close()
@@ -584,6 +624,13 @@ class Http2Reader(
       port: Int,
       maxAge: Long,
     )
+
+    /**
+     * HTTP/2 only. Adds [origins] to the set of origins the peer is authoritative for, as
+     * announced by an `ORIGIN` frame. Each origin is a scheme, host and optional port, like
+     * `https://example.com`.
+     */
+    fun origin(origins: List<String>)
   }
 
   companion object {
@@ -15,7 +15,6 @@
  */
 package okhttp3.internal.http2
 
-import java.io.EOFException
 import java.io.IOException
 import java.io.InterruptedIOException
 import java.net.SocketTimeoutException
@@ -24,13 +23,13 @@ import java.util.concurrent.locks.Condition
 import java.util.concurrent.locks.ReentrantLock
 import okhttp3.Headers
 import okhttp3.internal.EMPTY_HEADERS
+import okhttp3.internal.assertHeld
 import okhttp3.internal.assertNotHeld
+import okhttp3.internal.concurrent.WheelTimeout
 import okhttp3.internal.connection.Locks.withLock
 import okhttp3.internal.http2.flowcontrol.WindowCounter
 import okhttp3.internal.toHeaderList
-import okio.AsyncTimeout
 import okio.Buffer
-import okio.BufferedSource
 import okio.Sink
 import okio.Source
 import okio.Timeout
@@ -61,6 +60,25 @@ class Http2Stream internal constructor(
   var writeBytesMaximum: Long = connection.peerSettings.initialWindowSize.toLong()
     internal set
 
+  /**
+   * This stream's share of the connection's write window when several streams are waiting to write
+   * data. A stream with twice the weight of another writes twice as many bytes. Calls set this from
+   * their request's [okhttp3.CallPriority] tag, so a low priority bulk upload doesn't delay small
+   * requests. A stream that's the only one writing isn't limited.
+   */
+  @Volatile
+  var weight: Int = DEFAULT_WEIGHT
+    set(value) {
+      require(value in 1..256) { "weight not in range 1..256: $value" }
+      field = value
+    }
+
+  /**
+   * The connection's virtual time when this stream may write next. This advances by bytes written
+   * divided by [weight]. Guarded by the connection.
+   */
+  internal var writeVirtualTime = 0L
+
   /** Received headers yet to be [taken][takeHeaders]. */
   private val headersQueue = ArrayDeque<Headers>()
 
@@ -172,7 +190,7 @@ class Http2Stream internal constructor(
   @Throws(IOException::class)
   fun trailers(): Headers {
     this.withLock {
-      if (source.finished && source.receiveBuffer.exhausted() && source.readBuffer.exhausted()) {
+      if (source.finished && source.readBuffer.exhausted()) {
         return source.trailers ?: EMPTY_HEADERS
       }
       if (errorCode != null) {
@@ -290,6 +308,7 @@ class Http2Stream internal constructor(
       }
       this.errorCode = errorCode
       this.errorException = errorException
+      source.releaseBudget()
       condition.signalAll()
       if (source.finished && sink.finished) {
         return false
@@ -299,14 +318,25 @@ class Http2Stream internal constructor(
     return true
   }
 
-  @Throws(IOException::class)
-  fun receiveData(
-    source: BufferedSource,
-    length: Int,
-  ) {
+  /** The number of bytes received on this stream and not yet read by the application. */
+  val bufferedByteCount: Long
+    get() = this.withLock { source.readBuffer.size }
+
+  /** Lets the peer send up to [windowSize] unread bytes after the receive window has grown. */
+  internal fun receiveWindowGrew(windowSize: Int) {
+    this.withLock {
+      source.maxByteCount = maxOf(source.maxByteCount, windowSize.toLong())
+    }
+  }
+
+  /**
+   * Accept bytes that the reader thread has buffered for this stream. The caller is responsible for
+   * updating connection flow control, which it does once for a batch of streams.
+   */
+  fun receiveData(data: Buffer) {
     lock.assertNotHeld()
 
-    this.source.receive(source, length.toLong())
+    this.source.receive(data)
   }
 
   /** Accept headers from the network and store them until the client calls [takeHeaders]. */
@@ -342,6 +372,7 @@ class Http2Stream internal constructor(
     this.withLock {
       if (this.errorCode == null) {
         this.errorCode = errorCode
+        source.releaseBudget()
         condition.signalAll()
       }
     }
@@ -363,17 +394,17 @@ class Http2Stream internal constructor(
    * readers.
    */
   inner class FramingSource internal constructor(
-    /** Maximum number of bytes to buffer before reporting a flow control error. */
-    private val maxByteCount: Long,
+    /**
+     * Maximum number of bytes to buffer before reporting a flow control error. Guarded by
+     * Http2Stream.this.
+     */
+    internal var maxByteCount: Long,
     /**
      * True if either side has cleanly shut down this stream. We will receive no more bytes beyond
      * those already in the buffer.
      */
     internal var finished: Boolean,
   ) : Source {
-    /** Buffer to receive data from the network into. Only accessed by the reader thread. */
-    val receiveBuffer = Buffer()
-
     /** Buffer with readable data. Guarded by Http2Stream.this. */
     val readBuffer = Buffer()
 
@@ -386,6 +417,13 @@ class Http2Stream internal constructor(
     /** True if the caller has closed this stream. */
     internal var closed: Boolean = false
 
+    /**
+     * Bytes of [readBuffer] that are counted by the connection's receive budget. This drops to zero
+     * when the stream fails, so bytes still buffered then don't hold the budget. Guarded by
+     * Http2Stream.this.
+     */
+    private var budgetedByteCount = 0L
+
     @Throws(IOException::class)
     override fun read(
       sink: Buffer,
@@ -417,6 +455,7 @@ class Http2Stream internal constructor(
               // Prepare to read bytes. Start by moving them to the caller's buffer.
               readBytesDelivered = readBuffer.read(sink, minOf(byteCount, readBuffer.size))
               readBytes.update(total = readBytesDelivered)
+              releaseBudget(readBytesDelivered)
 
               val unacknowledgedBytesRead = readBytes.unacknowledged
               if (errorExceptionToDeliver == null &&
@@ -439,6 +478,9 @@ class Http2Stream internal constructor(
           }
         }
         connection.flowControlListener.receivingStreamWindowChanged(id, readBytes, readBuffer.size)
+        connection.flowControlListener.receivingConnectionBufferChanged(
+          connection.receiveBudget.bufferedByteCount,
+        )
 
         // 2. Do it outside of the synchronized block and timeout.
 
@@ -469,68 +511,47 @@ class Http2Stream internal constructor(
     }
 
     /**
-     * Accept bytes on the connection's reader thread. This function avoids holding locks while it
-     * performs blocking reads for the incoming bytes.
+     * Accept bytes on the connection's reader thread. This takes this stream's lock and signals
+     * readers at most once, however many frames [data] came from.
      */
-    @Throws(IOException::class)
-    internal fun receive(
-      source: BufferedSource,
-      byteCount: Long,
-    ) {
+    internal fun receive(data: Buffer) {
       lock.assertNotHeld()
 
-      var remainingByteCount = byteCount
-
-      while (remainingByteCount > 0L) {
-        val finished: Boolean
-        val flowControlError: Boolean
-        this@Http2Stream.withLock {
-          finished = this.finished
-          flowControlError = remainingByteCount + readBuffer.size > maxByteCount
-        }
-
-        // If the peer sends more data than we can handle, discard it and close the connection.
-        if (flowControlError) {
-          source.skip(remainingByteCount)
-          closeLater(ErrorCode.FLOW_CONTROL_ERROR)
-          return
-        }
-
-        // Discard data received after the stream is finished. It's probably a benign race.
-        if (finished) {
-          source.skip(remainingByteCount)
-          return
-        }
-
-        // Fill the receive buffer without holding any locks.
-        val read = source.read(receiveBuffer, remainingByteCount)
-        if (read == -1L) throw EOFException()
-        remainingByteCount -= read
-
-        // Move the received data to the read buffer to the reader can read it. If this source has
-        // been closed since this read began we must discard the incoming data and tell the
-        // connection we've done so.
-        this@Http2Stream.withLock {
-          if (closed) {
-            receiveBuffer.clear()
-          } else {
-            val wasEmpty = readBuffer.size == 0L
-            readBuffer.writeAll(receiveBuffer)
-            if (wasEmpty) {
-              condition.signalAll()
-            }
+      val flowControlError: Boolean
+      this@Http2Stream.withLock {
+        flowControlError = data.size + readBuffer.size > maxByteCount
+        if (flowControlError || finished || closed) {
+          data.clear()
+        } else {
+          val wasEmpty = readBuffer.size == 0L
+          connection.receiveBudget.acquire(data.size)
+          budgetedByteCount += data.size
+          readBuffer.writeAll(data)
+          if (wasEmpty) {
+            condition.signalAll()
           }
         }
       }
 
-      // Update the connection flow control, as this is a shared resource.
-      // Even if our stream doesn't need more data, others might.
-      // But delay updating the stream flow control until that stream has been
-      // consumed
-      updateConnectionFlowControl(byteCount)
+      // If the peer sends more data than we can handle, discard it and close the connection.
+      if (flowControlError) {
+        closeLater(ErrorCode.FLOW_CONTROL_ERROR)
+        return
+      }
 
-      // Notify that buffer size changed
       connection.flowControlListener.receivingStreamWindowChanged(id, readBytes, readBuffer.size)
+      connection.flowControlListener.receivingConnectionBufferChanged(
+        connection.receiveBudget.bufferedByteCount,
+      )
+    }
+
+    /** Returns up to [byteCount] bytes to the connection's receive budget. */
+    internal fun releaseBudget(byteCount: Long = budgetedByteCount) {
+      lock.assertHeld()
+
+      val released = minOf(byteCount, budgetedByteCount)
+      budgetedByteCount -= released
+      connection.receiveBudget.release(released)
     }
 
     override fun timeout(): Timeout = readTimeout
@@ -542,6 +563,7 @@ class Http2Stream internal constructor(
         closed = true
         bytesDiscarded = readBuffer.size
         readBuffer.clear()
+        releaseBudget()
         condition.signalAll() // TODO(jwilson): Unnecessary?
       }
       if (bytesDiscarded > 0L) {
@@ -697,6 +719,9 @@ class Http2Stream internal constructor(
 
   companion object {
     internal const val EMIT_BUFFER_SIZE = 16384L
+
+    /** The default weight of an HTTP/2 stream, from RFC 9113. */
+    const val DEFAULT_WEIGHT = 16
   }
 
   /** [delta] will be negative if a settings frame initial window is smaller than the last. */
@@ -731,10 +756,10 @@ class Http2Stream internal constructor(
   }
 
   /**
-   * The Okio timeout watchdog will call [timedOut] if the timeout is reached. In that case we close
-   * the stream (asynchronously) which will notify the waiting thread.
+   * The timeout wheel's watchdog will call [timedOut] if the timeout is reached. In that case we
+   * close the stream (asynchronously) which will notify the waiting thread.
    */
-  internal inner class StreamTimeout : AsyncTimeout() {
+  internal inner class StreamTimeout : WheelTimeout() {
     override fun timedOut() {
       closeLater(ErrorCode.CANCEL)
       connection.sendDegradedPingLater()
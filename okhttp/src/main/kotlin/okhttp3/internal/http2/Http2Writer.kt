@@ -32,6 +32,7 @@ import okhttp3.internal.http2.Http2.TYPE_CONTINUATION
 import okhttp3.internal.http2.Http2.TYPE_DATA
 import okhttp3.internal.http2.Http2.TYPE_GOAWAY
 import okhttp3.internal.http2.Http2.TYPE_HEADERS
+import okhttp3.internal.http2.Http2.TYPE_ORIGIN
 import okhttp3.internal.http2.Http2.TYPE_PING
 import okhttp3.internal.http2.Http2.TYPE_PUSH_PROMISE
 import okhttp3.internal.http2.Http2.TYPE_RST_STREAM
@@ -42,19 +43,28 @@ import okhttp3.internal.http2.Http2.frameLogWindowUpdate
 import okhttp3.internal.writeMedium
 import okio.Buffer
 import okio.BufferedSink
+import okio.ByteString.Companion.encodeUtf8
 
 /** Writes HTTP/2 transport frames. */
 @Suppress("NAME_SHADOWING")
 class Http2Writer(
   private val sink: BufferedSink,
   private val client: Boolean,
+  hpackIndexingStrategy: Hpack.IndexingStrategy = Hpack.IndexingStrategy.ALWAYS,
 ) : Closeable {
   internal val lock: ReentrantLock = ReentrantLock()
 
   private val hpackBuffer: Buffer = Buffer()
   private var maxFrameSize: Int = INITIAL_MAX_FRAME_SIZE
   private var closed: Boolean = false
-  val hpackWriter: Hpack.Writer = Hpack.Writer(out = hpackBuffer)
+
+  /** The number of frames written. Writes are guarded by [lock]. */
+  @Volatile
+  internal var frameCount = 0L
+    private set
+
+  val hpackWriter: Hpack.Writer =
+    Hpack.Writer(out = hpackBuffer, indexingStrategy = hpackIndexingStrategy)
 
   @Throws(IOException::class)
   fun connectionPreface() {
@@ -278,6 +288,28 @@ class Http2Writer(
     }
   }
 
+  /** HTTP/2 only. Tells the peer which origins this server is authoritative for. */
+  @Throws(IOException::class)
+  fun origin(origins: List<String>) {
+    this.withLock {
+      if (closed) throw IOException("closed")
+      val payload = Buffer()
+      for (origin in origins) {
+        val bytes = origin.encodeUtf8()
+        payload.writeShort(bytes.size)
+        payload.write(bytes)
+      }
+      frameHeader(
+        streamId = 0,
+        length = payload.size.toInt(),
+        type = TYPE_ORIGIN,
+        flags = FLAG_NONE,
+      )
+      sink.writeAll(payload)
+      sink.flush()
+    }
+  }
+
   /**
    * Inform peer that an additional `windowSizeIncrement` bytes can be sent on `streamId`, or the
    * connection if `streamId` is zero.
@@ -329,6 +361,7 @@ class Http2Writer(
     sink.writeByte(type and 0xff)
     sink.writeByte(flags and 0xff)
     sink.writeInt(streamId and 0x7fffffff)
+    frameCount++
   }
 
   @Throws(IOException::class)
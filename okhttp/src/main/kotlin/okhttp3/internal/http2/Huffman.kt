@@ -80,11 +80,55 @@ object Huffman {
       24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
     )
 
-  private val root = Node()
+  // The decoder is a state machine that consumes 4 bits at a time. Each state is an internal node
+  // of the code tree, with the root as state 0. The entry for a state and the next 4 bits of input
+  // packs the state to move to and the symbol completed by those bits, if any. No code is shorter
+  // than 5 bits, so each step completes at most one symbol.
+  private const val DECODE_STATE_MASK = 0xff
+  private const val DECODE_SYMBOL_SHIFT = 8
+  private const val DECODE_EMIT = 1 shl 16
+  private const val DECODE_FAIL = 1 shl 17
+
+  private val DECODE_TABLE: IntArray
 
   init {
-    for (i in CODE_BIT_COUNTS.indices) {
-      addCode(i, CODES[i], CODE_BIT_COUNTS[i].toInt())
+    // Build the code tree. Children are internal nodes or leaves, which are stored as the
+    // complement of their symbol. The root is never a child, so 0 means there is no child. That's
+    // only the case on the path to EOS, which must not appear in encoded data.
+    val children = IntArray(256 * 2)
+    var nodeCount = 1
+    for (symbol in CODES.indices) {
+      val code = CODES[symbol]
+      var node = 0
+      for (i in CODE_BIT_COUNTS[symbol] - 1 downTo 1) {
+        val childIndex = node * 2 + ((code ushr i) and 1)
+        if (children[childIndex] == 0) {
+          children[childIndex] = nodeCount++
+        }
+        node = children[childIndex]
+      }
+      children[node * 2 + (code and 1)] = symbol.inv()
+    }
+
+    DECODE_TABLE = IntArray(nodeCount * 16)
+    for (state in 0 until nodeCount) {
+      for (nibble in 0 until 16) {
+        var node = state
+        var entry = 0
+        for (i in 3 downTo 0) {
+          val child = children[node * 2 + ((nibble ushr i) and 1)]
+          if (child == 0) {
+            entry = DECODE_FAIL
+            break
+          } else if (child < 0) {
+            entry = DECODE_EMIT or (child.inv() shl DECODE_SYMBOL_SHIFT)
+            node = 0
+          } else {
+            node = child
+          }
+        }
+        DECODE_TABLE[(state shl 4) or nibble] = entry or node
+      }
     }
   }
 
@@ -117,6 +161,45 @@ object Huffman {
     }
   }
 
+  /**
+   * Encodes [source] into [sink] if that's shorter than [source]. This stops as soon as the
+   * encoding is known to be too long, so callers don't need [encodedLength] first.
+   *
+   * @param sink an array of at least `source.size` bytes.
+   * @return the number of bytes written to [sink], or -1 if the encoding isn't shorter. In that
+   *     case the contents of [sink] are undefined.
+   */
+  fun encodeIfShorter(
+    source: ByteString,
+    sink: ByteArray,
+  ): Int {
+    val limit = source.size
+    var accumulator = 0L
+    var accumulatorBitCount = 0
+    var pos = 0
+
+    for (i in 0 until limit) {
+      val symbol = source[i] and 0xff
+      accumulator = (accumulator shl CODE_BIT_COUNTS[symbol].toInt()) or CODES[symbol].toLong()
+      accumulatorBitCount += CODE_BIT_COUNTS[symbol]
+
+      while (accumulatorBitCount >= 8) {
+        if (pos == limit) return -1
+        accumulatorBitCount -= 8
+        sink[pos++] = (accumulator shr accumulatorBitCount).toByte()
+      }
+    }
+
+    if (accumulatorBitCount > 0) {
+      if (pos == limit) return -1
+      accumulator = accumulator shl (8 - accumulatorBitCount)
+      accumulator = accumulator or (0xffL ushr accumulatorBitCount)
+      sink[pos++] = accumulator.toByte()
+    }
+
+    return if (pos < limit) pos else -1
+  }
+
   fun encodedLength(bytes: ByteString): Int {
     var bitCount = 0L
 
@@ -128,95 +211,55 @@ object Huffman {
     return ((bitCount + 7) shr 3).toInt() // Round up to an even byte.
   }
 
+  /**
+   * Decodes [byteCount] bytes of [source] into [sink]. This reads the source's segments directly
+   * rather than a byte at a time. Trailing bits that don't complete a symbol are padding and are
+   * ignored.
+   */
+  @Throws(IOException::class)
   fun decode(
     source: BufferedSource,
     byteCount: Long,
     sink: BufferedSink,
   ) {
-    var node = root
-    var accumulator = 0
-    var accumulatorBitCount = 0
-    for (i in 0 until byteCount) {
-      val byteIn = source.readByte() and 0xff
-      accumulator = accumulator shl 8 or byteIn
-      accumulatorBitCount += 8
-      while (accumulatorBitCount >= 8) {
-        val childIndex = (accumulator ushr (accumulatorBitCount - 8)) and 0xff
-        node = node.children!![childIndex]!!
-        if (node.children == null) {
-          // Terminal node.
-          sink.writeByte(node.symbol)
-          accumulatorBitCount -= node.terminalBitCount
-          node = root
-        } else {
-          // Non-terminal node.
-          accumulatorBitCount -= 8
-        }
-      }
-    }
+    source.require(byteCount)
 
-    while (accumulatorBitCount > 0) {
-      val childIndex = (accumulator shl (8 - accumulatorBitCount)) and 0xff
-      node = node.children!![childIndex]!!
-      if (node.children != null || node.terminalBitCount > accumulatorBitCount) {
-        break
-      }
-      sink.writeByte(node.symbol)
-      accumulatorBitCount -= node.terminalBitCount
-      node = root
-    }
-  }
+    // Each input byte decodes to at most 8 / 5 output bytes.
+    val output = ByteArray(minOf(byteCount * 8 / 5 + 1, 8192L).toInt())
+    var outputSize = 0
+    var state = 0
 
-  private fun addCode(
-    symbol: Int,
-    code: Int,
-    codeBitCount: Int,
-  ) {
-    val terminal = Node(symbol, codeBitCount)
-
-    var accumulatorBitCount = codeBitCount
-    var node = root
-    while (accumulatorBitCount > 8) {
-      accumulatorBitCount -= 8
-      val childIndex = (code ushr accumulatorBitCount) and 0xff
-      val children = node.children!!
-      var child = children[childIndex]
-      if (child == null) {
-        child = Node()
-        children[childIndex] = child
+    source.buffer.readUnsafe().use { cursor ->
+      var remaining = byteCount
+      cursor.seek(0L)
+      while (remaining > 0L) {
+        val data = cursor.data!!
+        val end = minOf(cursor.end.toLong(), cursor.start + remaining).toInt()
+        for (i in cursor.start until end) {
+          val byteIn = data[i] and 0xff
+          var shift = 4
+          while (shift >= 0) {
+            val entry = DECODE_TABLE[(state shl 4) or ((byteIn ushr shift) and 0x0f)]
+            if (entry and DECODE_FAIL != 0) {
+              throw IOException("PROTOCOL_ERROR invalid Huffman code")
+            }
+            if (entry and DECODE_EMIT != 0) {
+              if (outputSize == output.size) {
+                sink.write(output, 0, outputSize)
+                outputSize = 0
+              }
+              output[outputSize++] = (entry ushr DECODE_SYMBOL_SHIFT).toByte()
+            }
+            state = entry and DECODE_STATE_MASK
+            shift -= 4
+          }
+        }
+        remaining -= end - cursor.start
+        if (remaining > 0L) cursor.next()
       }
-      node = child
     }
 
-    val shift = 8 - accumulatorBitCount
-    val start = (code shl shift) and 0xff
-    val end = 1 shl shift
-    node.children!!.fill(terminal, start, start + end)
-  }
-
-  private class Node {
-    /** Null if terminal. */
-    val children: Array<Node?>?
-
-    /** Terminal nodes have a symbol. */
-    val symbol: Int
-
-    /** Number of bits represented in the terminal node. */
-    val terminalBitCount: Int
-
-    /** Construct an internal node. */
-    constructor() {
-      this.children = arrayOfNulls(256)
-      this.symbol = 0 // Not read.
-      this.terminalBitCount = 0 // Not read.
-    }
-
-    /** Construct a terminal node. */
-    constructor(symbol: Int, bits: Int) {
-      this.children = null
-      this.symbol = symbol
-      val b = bits and 0x07
-      this.terminalBitCount = if (b == 0) 8 else b
-    }
+    source.skip(byteCount)
+    sink.write(output, 0, outputSize)
   }
 }
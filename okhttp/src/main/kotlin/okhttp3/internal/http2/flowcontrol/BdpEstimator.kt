@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2.flowcontrol
+
+/**
+ * Sizes a receive window to the connection's bandwidth-delay product.
+ *
+ * When data arrives and no measurement is in progress, the caller sends a PING. Every byte received
+ * until its pong returns is counted. That sample is the amount of data the peer can put in flight
+ * in one round trip. If it fills most of the window, the window is what's limiting throughput, so
+ * it's grown to twice the sample. If samples are much smaller than the window for a while, the
+ * window is shrunk to release memory.
+ *
+ * This is the approach gRPC uses. Growth also requires that the measured bandwidth is the best
+ * seen so far, so a burst of buffered data doesn't inflate the window on a link that can't use it.
+ *
+ * This class is not thread safe.
+ */
+class BdpEstimator(
+  windowSize: Int,
+  val minWindowSize: Int,
+  val maxWindowSize: Int,
+) {
+  /** The current receive window size. */
+  var windowSize: Int = windowSize
+    private set
+
+  /** The most recent measurement of bytes received in one round trip. */
+  var sample: Long = 0L
+    private set
+
+  /** The most recently measured round trip time. */
+  var rttNanos: Long = 0L
+    private set
+
+  /** The time the outstanding ping was sent, or -1 if there is no ping outstanding. */
+  private var pingSentAtNanos = -1L
+
+  /** The best bandwidth measured since the window was last shrunk, in bytes per nanosecond. */
+  private var maxBandwidth = 0.0
+
+  /** The number of consecutive samples that were much smaller than the window. */
+  private var smallSampleCount = 0
+
+  init {
+    require(minWindowSize in 1..maxWindowSize) { "minWindowSize out of range: $minWindowSize" }
+    require(windowSize in minWindowSize..maxWindowSize) { "windowSize out of range: $windowSize" }
+  }
+
+  /** Returns true if the caller should send a PING to start a new measurement. */
+  fun dataReceived(
+    byteCount: Int,
+    nowNanos: Long,
+  ): Boolean {
+    if (pingSentAtNanos == -1L) {
+      pingSentAtNanos = nowNanos
+      sample = byteCount.toLong()
+      return true
+    }
+    sample += byteCount
+    return false
+  }
+
+  /**
+   * Completes a measurement. Returns the new window size, or -1 if it should not change. Unexpected
+   * pongs are ignored.
+   */
+  fun pongReceived(nowNanos: Long): Int {
+    if (pingSentAtNanos == -1L) return -1
+    rttNanos = maxOf(nowNanos - pingSentAtNanos, 1L)
+    pingSentAtNanos = -1L
+
+    val bandwidth = sample.toDouble() / rttNanos
+    if (bandwidth > maxBandwidth) maxBandwidth = bandwidth
+
+    val newWindowSize =
+      when {
+        sample * 3 >= windowSize * 2L -> {
+          smallSampleCount = 0
+          if (bandwidth < maxBandwidth) return -1
+          minOf(sample * 2, maxWindowSize.toLong()).toInt()
+        }
+
+        sample * 8 < windowSize -> {
+          if (++smallSampleCount < SHRINK_AFTER_SAMPLES) return -1
+          smallSampleCount = 0
+          maxBandwidth = 0.0
+          maxOf(windowSize / 2, minWindowSize)
+        }
+
+        else -> {
+          smallSampleCount = 0
+          return -1
+        }
+      }
+
+    if (newWindowSize == windowSize) return -1
+    windowSize = newWindowSize
+    return newWindowSize
+  }
+
+  override fun toString(): String {
+    return "BdpEstimator(windowSize=$windowSize, sample=$sample, rttNanos=$rttNanos)"
+  }
+
+  companion object {
+    /** Shrink only after this many consecutive small samples, so brief lulls don't shrink. */
+    const val SHRINK_AFTER_SAMPLES = 4
+  }
+}
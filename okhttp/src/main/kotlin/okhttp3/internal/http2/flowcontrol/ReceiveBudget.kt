@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2.flowcontrol
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Counts bytes that were received from peers but not yet read by the application.
+ *
+ * A connection pool has one budget that all of its HTTP/2 connections share, and each connection
+ * has a child budget that counts only its own streams. Bytes acquired by a child are also acquired
+ * by its parent.
+ *
+ * Once a budget's [limit] is reached connections stop sending connection-level `WINDOW_UPDATE`
+ * frames, so peers can't send more until the application catches up. Listeners are notified when
+ * the buffered bytes drop below the limit again.
+ */
+class ReceiveBudget(
+  private val parent: ReceiveBudget? = null,
+) {
+  private val lock = ReentrantLock()
+
+  /** Written while holding [lock]. */
+  @Volatile
+  private var bufferedBytes = 0L
+
+  /** True once [close] was called. Guarded by [lock]. */
+  private var closed = false
+  private val listeners = CopyOnWriteArrayList<() -> Unit>()
+
+  /** Bytes to buffer before withholding window updates. */
+  @Volatile
+  var limit: Long = Long.MAX_VALUE
+    set(value) {
+      require(value > 0L) { "limit <= 0: $value" }
+      val wasExhausted = bufferedBytes >= field
+      field = value
+      if (wasExhausted && bufferedBytes < value) notifyListeners()
+    }
+
+  /** The number of bytes received but not yet read. */
+  val bufferedByteCount: Long
+    get() = bufferedBytes
+
+  /** True if this budget or any of its parents has reached its limit. */
+  val isExhausted: Boolean
+    get() = bufferedBytes >= limit || parent?.isExhausted == true
+
+  fun acquire(byteCount: Long) {
+    if (byteCount == 0L) return
+    lock.withLock {
+      if (closed) return
+      bufferedBytes += byteCount
+    }
+    parent?.acquire(byteCount)
+  }
+
+  fun release(byteCount: Long) {
+    if (byteCount == 0L) return
+    val limit = this.limit
+    val after: Long
+    lock.withLock {
+      if (closed) return
+      bufferedBytes -= byteCount
+      after = bufferedBytes
+    }
+    if (after < limit && after + byteCount >= limit) notifyListeners()
+    parent?.release(byteCount)
+  }
+
+  /**
+   * Releases everything this budget holds from its parent. Later calls to [acquire] and [release]
+   * do nothing. Call this when the connection that owns this budget is closed.
+   */
+  fun close() {
+    val byteCount: Long
+    lock.withLock {
+      if (closed) return
+      closed = true
+      byteCount = bufferedBytes
+      bufferedBytes = 0L
+    }
+    if (byteCount != 0L) parent?.release(byteCount)
+  }
+
+  /** Calls [listener] each time this budget drops below its limit. */
+  fun addListener(listener: () -> Unit) {
+    listeners += listener
+  }
+
+  fun removeListener(listener: () -> Unit) {
+    listeners -= listener
+  }
+
+  private fun notifyListeners() {
+    for (listener in listeners) {
+      listener()
+    }
+  }
+
+  override fun toString(): String {
+    return "ReceiveBudget(bufferedByteCount=$bufferedByteCount, limit=$limit)"
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3
+
+import assertk.assertThat
+import assertk.assertions.containsExactly
+import assertk.assertions.containsOnly
+import assertk.assertions.isEqualTo
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertFailsWith
+import mockwebserver3.MockResponse
+import mockwebserver3.MockWebServer
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.extension.RegisterExtension
+
+class AdaptiveConcurrencyLimiterTest {
+  @RegisterExtension
+  val clientTestRule = OkHttpClientTestRule()
+
+  private lateinit var server: MockWebServer
+  private val limiter = AdaptiveConcurrencyLimiter(initialLimit = 4, minLimit = 2, maxLimit = 6)
+
+  @BeforeEach
+  fun setUp(server: MockWebServer) {
+    this.server = server
+  }
+
+  @Test
+  fun unsampledHostsHaveInitialLimit() {
+    assertThat(limiter.limit("a")).isEqualTo(4)
+  }
+
+  @Test
+  fun fastSampleAtCapacityIncreasesLimit() {
+    sample("a", count = 4, latencyMillis = 100)
+    assertThat(limiter.limit("a")).isEqualTo(5)
+  }
+
+  @Test
+  fun fastSampleBelowHalfCapacityDoesNotIncreaseLimit() {
+    sample("a", count = 1, latencyMillis = 100)
+    assertThat(limiter.limit("a")).isEqualTo(4)
+  }
+
+  @Test
+  fun failedSampleDecreasesLimit() {
+    sample("a", count = 4, latencyMillis = 100, failed = true)
+    assertThat(limiter.limit("a")).isEqualTo(3)
+  }
+
+  @Test
+  fun slowSampleDecreasesLimit() {
+    // Keep a request in flight so the host's typical latency isn't forgotten between samples.
+    limiter.requestStarted("a")
+    sample("a", count = 1, latencyMillis = 100)
+    assertThat(limiter.limit("a")).isEqualTo(5)
+    sample("a", count = 1, latencyMillis = 300)
+    assertThat(limiter.limit("a")).isEqualTo(4)
+  }
+
+  @Test
+  fun canceledSampleDoesNotChangeLimit() {
+    limiter.requestStarted("a")
+    limiter.requestFinished("a", latencyNanos = null, failed = true)
+    assertThat(limiter.limit("a")).isEqualTo(4)
+  }
+
+  @Test
+  fun limitStaysWithinBounds() {
+    repeat(10) {
+      sample("a", count = 6, latencyMillis = 100)
+    }
+    assertThat(limiter.limit("a")).isEqualTo(6)
+
+    repeat(10) {
+      sample("a", count = 1, latencyMillis = 100, failed = true)
+    }
+    assertThat(limiter.limit("a")).isEqualTo(2)
+  }
+
+  @Test
+  fun limitsAreTrackedPerHost() {
+    sample("a", count = 4, latencyMillis = 100)
+    sample("b", count = 4, latencyMillis = 100, failed = true)
+    assertThat(limiter.limits()).containsOnly("a" to 5, "b" to 3)
+  }
+
+  @Test
+  fun idleHostsAtInitialLimitAreForgotten() {
+    sample("a", count = 1, latencyMillis = 100)
+    sample("b", count = 4, latencyMillis = 100)
+    assertThat(limiter.limits()).containsOnly("b" to 5)
+
+    // A host with a request in flight is remembered.
+    limiter.requestStarted("c")
+    assertThat(limiter.limits()).containsOnly("b" to 5, "c" to 4)
+  }
+
+  @Test
+  fun listenersAreNotifiedWhenLimitIncreases() {
+    val increased = mutableListOf<String>()
+    limiter.addLimitIncreasedListener { increased += it }
+    sample("a", count = 4, latencyMillis = 100)
+    sample("b", count = 4, latencyMillis = 100, failed = true)
+    sample("c", count = 1, latencyMillis = 100)
+    assertThat(increased).containsExactly("a")
+  }
+
+  @Test
+  fun invalidParameters() {
+    assertFailsWith<IllegalArgumentException> {
+      AdaptiveConcurrencyLimiter(minLimit = 0)
+    }
+    assertFailsWith<IllegalArgumentException> {
+      AdaptiveConcurrencyLimiter(initialLimit = 10, maxLimit = 5)
+    }
+    assertFailsWith<IllegalArgumentException> {
+      AdaptiveConcurrencyLimiter(backoffRatio = 1.0)
+    }
+  }
+
+  @Test
+  fun callsAreSampled() {
+    server.enqueue(MockResponse(code = 503))
+    val client =
+      clientTestRule.newClientBuilder()
+        .dispatcher(Dispatcher().apply { concurrencyLimiter = limiter })
+        .build()
+
+    client.newCall(Request(server.url("/"))).execute().use { response ->
+      assertThat(response.code).isEqualTo(503)
+    }
+    assertThat(limiter.limit(server.hostName)).isEqualTo(3)
+  }
+
+  /** Starts [count] concurrent requests to [host] and finishes one of them. */
+  private fun sample(
+    host: String,
+    count: Int,
+    latencyMillis: Long,
+    failed: Boolean = false,
+  ) {
+    repeat(count) {
+      limiter.requestStarted(host)
+    }
+    limiter.requestFinished(host, TimeUnit.MILLISECONDS.toNanos(latencyMillis), failed)
+    repeat(count - 1) {
+      limiter.requestFinished(host, latencyNanos = null, failed = false)
+    }
+  }
+}
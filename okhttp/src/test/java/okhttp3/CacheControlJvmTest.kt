@@ -108,6 +108,22 @@ class CacheControlJvmTest {
     assertThat(cacheControl.toString()).isEqualTo(header)
   }
 
+  @Test
+  fun parseStaleDirectives() {
+    val cacheControl =
+      parse(
+        Headers.Builder()
+          .add("Cache-Control", "max-age=60, stale-while-revalidate=30")
+          .add("Cache-Control", "stale-if-error=86400")
+          .build(),
+      )
+    assertThat(cacheControl.maxAgeSeconds).isEqualTo(60)
+    assertThat(cacheControl.staleWhileRevalidateSeconds).isEqualTo(30)
+    assertThat(cacheControl.staleIfErrorSeconds).isEqualTo(86400)
+    assertThat(cacheControl.toString())
+      .isEqualTo("max-age=60, stale-while-revalidate=30, stale-if-error=86400")
+  }
+
   @Test
   @Throws(Exception::class)
   fun parseIgnoreCacheControlExtensions() {
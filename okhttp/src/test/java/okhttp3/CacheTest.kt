@@ -17,6 +17,7 @@ package okhttp3
 
 import assertk.assertThat
 import assertk.assertions.containsExactly
+import assertk.assertions.hasSize
 import assertk.assertions.isCloseTo
 import assertk.assertions.isEmpty
 import assertk.assertions.isEqualTo
@@ -24,6 +25,7 @@ import assertk.assertions.isFalse
 import assertk.assertions.isNotNull
 import assertk.assertions.isNull
 import assertk.assertions.isTrue
+import java.io.File
 import java.io.IOException
 import java.net.CookieManager
 import java.net.HttpURLConnection
@@ -33,6 +35,8 @@ import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.Locale
 import java.util.TimeZone
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicReference
 import javax.net.ssl.HostnameVerifier
@@ -41,6 +45,7 @@ import mockwebserver3.MockResponse
 import mockwebserver3.MockWebServer
 import mockwebserver3.RecordedRequest
 import mockwebserver3.SocketPolicy.DisconnectAtEnd
+import mockwebserver3.SocketPolicy.DisconnectAtStart
 import mockwebserver3.junit5.internal.MockWebServerInstance
 import okhttp3.Cache.Companion.key
 import okhttp3.Headers.Companion.headersOf
@@ -52,6 +57,7 @@ import okhttp3.internal.platform.Platform.Companion.get
 import okhttp3.java.net.cookiejar.JavaNetCookieJar
 import okhttp3.testing.PlatformRule
 import okio.Buffer
+import okio.ByteString.Companion.encodeUtf8
 import okio.FileSystem
 import okio.ForwardingFileSystem
 import okio.GzipSink
@@ -65,6 +71,7 @@ import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Tag
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.extension.RegisterExtension
+import org.junit.jupiter.api.io.TempDir
 
 @Tag("Slow")
 class CacheTest {
@@ -400,6 +407,129 @@ class CacheTest {
     fileSystem.sink(cacheEntry).buffer().writeUtf8(content).close()
   }
 
+  @Test
+  fun binaryMetadataSecureResponseCaching() {
+    cache.setBinaryEntryMetadata(true)
+    server.useHttps(handshakeCertificates.sslSocketFactory())
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
+        .addHeader("Expires: " + formatDate(1, TimeUnit.HOURS))
+        .addHeader("X-Custom: custom")
+        .body("ABC")
+        .build(),
+    )
+    client = secureClient()
+    val request = Request.Builder().url(server.url("/")).build()
+    val response1 = client.newCall(request).execute()
+    assertThat(response1.body.string()).isEqualTo("ABC")
+
+    val metadataPath = cache.directoryPath / "${key(request.url)}.0"
+    val metadata = fileSystem.read(metadataPath) { readByteString() }
+    assertThat(metadata.startsWith("https".encodeUtf8())).isFalse()
+
+    val response2 = client.newCall(request).execute()
+    assertThat(response2.body.string()).isEqualTo("ABC")
+    assertThat(response2.header("X-Custom")).isEqualTo("custom")
+    assertThat(response2.header("Expires")).isEqualTo(response1.header("Expires"))
+    assertThat(response2.sentRequestAtMillis).isEqualTo(response1.sentRequestAtMillis)
+    assertThat(response2.receivedResponseAtMillis).isEqualTo(response1.receivedResponseAtMillis)
+    assertThat(response2.handshake).isEqualTo(response1.handshake)
+    assertThat(cache.hitCount()).isEqualTo(1)
+  }
+
+  @Test
+  fun binaryMetadataReadsTextEntries() {
+    server.useHttps(handshakeCertificates.sslSocketFactory())
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .body("ABC")
+        .build(),
+    )
+    client = secureClient()
+    val request = Request.Builder().url(server.url("/")).build()
+    val response1 = client.newCall(request).execute()
+    assertThat(response1.body.string()).isEqualTo("ABC")
+
+    cache.setBinaryEntryMetadata(true)
+    val response2 = client.newCall(request).execute()
+    assertThat(response2.body.string()).isEqualTo("ABC")
+    assertThat(response2.handshake).isEqualTo(response1.handshake)
+    assertThat(cache.hitCount()).isEqualTo(1)
+  }
+
+  @Test
+  fun binaryMetadataSharesCertificateChains() {
+    cache.setBinaryEntryMetadata(true)
+    server.useHttps(handshakeCertificates.sslSocketFactory())
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .body("A")
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .body("B")
+        .build(),
+    )
+    client = secureClient()
+    val urlA = server.url("/a")
+    val urlB = server.url("/b")
+    assertThat(client.newCall(Request(urlA)).execute().body.string()).isEqualTo("A")
+    assertThat(client.newCall(Request(urlB)).execute().body.string()).isEqualTo("B")
+
+    assertThat(certificateChainKeys()).hasSize(1)
+    assertThat(cache.urls().asSequence().toSet()).isEqualTo(setOf(urlA.toString(), urlB.toString()))
+  }
+
+  @Test
+  fun binaryMetadataMissingCertificateChainIsCacheMiss() {
+    cache.setBinaryEntryMetadata(true)
+    server.useHttps(handshakeCertificates.sslSocketFactory())
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .body("ABC")
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .body("DEF")
+        .build(),
+    )
+    client = secureClient()
+    val request = Request.Builder().url(server.url("/")).build()
+    assertThat(client.newCall(request).execute().body.string()).isEqualTo("ABC")
+
+    for (key in certificateChainKeys()) {
+      cache.cache.remove(key)
+    }
+
+    assertThat(client.newCall(request).execute().body.string()).isEqualTo("DEF")
+    assertThat(cache.hitCount()).isEqualTo(0)
+  }
+
+  private fun secureClient(): OkHttpClient {
+    return client.newBuilder()
+      .sslSocketFactory(
+        handshakeCertificates.sslSocketFactory(),
+        handshakeCertificates.trustManager,
+      )
+      .hostnameVerifier(NULL_HOSTNAME_VERIFIER)
+      .build()
+  }
+
+  private fun certificateChainKeys(): List<String> {
+    return fileSystem.list(cache.directoryPath)
+      .map { it.name }
+      .filter { it.startsWith("chain-") && it.endsWith(".0") }
+      .map { it.removeSuffix(".0") }
+  }
+
   @Test
   fun responseCachingAndRedirects() {
     server.enqueue(
@@ -1667,6 +1797,195 @@ class CacheTest {
     )
   }
 
+  @Test
+  fun staleWhileRevalidateReturnsStaleResponseAndRevalidatesInBackground() {
+    server.enqueue(
+      MockResponse.Builder()
+        .body("A")
+        .addHeader("Cache-Control: max-age=60, stale-while-revalidate=3600")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES))
+        .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .code(HttpURLConnection.HTTP_NOT_MODIFIED)
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Date: " + formatDate(0, TimeUnit.MINUTES))
+        .addHeader("Allow: GET, HEAD")
+        .build(),
+    )
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+    server.takeRequest()
+
+    // The stale response is returned without waiting for the network.
+    val response = get(url)
+    assertThat(response.body.string()).isEqualTo("A")
+    assertThat(response.header("Warning")).isEqualTo(
+      "110 HttpURLConnection \"Response is stale\"",
+    )
+    assertThat(response.header("Allow")).isNull()
+
+    // A background call validates it.
+    val revalidation = server.takeRequest()
+    assertThat(revalidation.headers["If-Modified-Since"]).isNotNull()
+
+    // Once it's validated, the updated response is fresh.
+    var updated = get(url)
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+    while (updated.header("Allow") == null && System.nanoTime() < deadline) {
+      updated.close()
+      Thread.sleep(50)
+      updated = get(url)
+    }
+    assertThat(updated.body.string()).isEqualTo("A")
+    assertThat(updated.header("Allow")).isEqualTo("GET, HEAD")
+    assertThat(updated.header("Warning")).isNull()
+    assertThat(server.requestCount).isEqualTo(2)
+  }
+
+  @Test
+  fun staleWhileRevalidateNotHonoredWithMustRevalidate() {
+    server.enqueue(
+      MockResponse.Builder()
+        .body("A")
+        .addHeader("Cache-Control: max-age=60, stale-while-revalidate=3600, must-revalidate")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES))
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .body("B")
+        .build(),
+    )
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+    assertThat(get(url).body.string()).isEqualTo("B")
+  }
+
+  @Test
+  fun staleWhileRevalidateNotHonoredForRequestWithMaxAge() {
+    server.enqueue(
+      MockResponse.Builder()
+        .body("A")
+        .addHeader("Cache-Control: max-age=60, stale-while-revalidate=3600")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES))
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .body("B")
+        .build(),
+    )
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+
+    val request =
+      Request.Builder()
+        .url(url)
+        .cacheControl(CacheControl.Builder().maxAge(0, TimeUnit.SECONDS).build())
+        .build()
+    assertThat(client.newCall(request).execute().body.string()).isEqualTo("B")
+  }
+
+  @Test
+  fun staleIfErrorFallbackIsNotTheCacheResponseWhenUnused() {
+    server.enqueue(
+      MockResponse.Builder()
+        .body("A")
+        .addHeader("Cache-Control: max-age=0, stale-if-error=3600")
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .body("B")
+        .build(),
+    )
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+
+    // The cached response has no validators, so this is an unconditional request.
+    val response = get(url)
+    assertThat(response.body.string()).isEqualTo("B")
+    assertThat(response.cacheResponse).isNull()
+  }
+
+  @Test
+  fun staleIfErrorReturnsStaleResponseOnServerError() {
+    server.enqueue(
+      MockResponse.Builder()
+        .body("A")
+        .addHeader("Cache-Control: max-age=60, stale-if-error=3600")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES))
+        .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .code(HttpURLConnection.HTTP_UNAVAILABLE)
+        .body("unavailable")
+        .build(),
+    )
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+
+    val response = get(url)
+    assertThat(response.code).isEqualTo(HttpURLConnection.HTTP_OK)
+    assertThat(response.body.string()).isEqualTo("A")
+    assertThat(response.header("Warning")).isEqualTo(
+      "111 HttpURLConnection \"Revalidation failed\"",
+    )
+    assertThat(server.requestCount).isEqualTo(2)
+  }
+
+  @Test
+  fun staleIfErrorReturnsStaleResponseOnConnectionFailure() {
+    server.enqueue(
+      MockResponse.Builder()
+        .body("A")
+        .addHeader("Cache-Control: max-age=60, stale-if-error=3600")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES))
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .socketPolicy(DisconnectAtStart)
+        .build(),
+    )
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+
+    val response = get(url)
+    assertThat(response.body.string()).isEqualTo("A")
+    assertThat(response.header("Warning")).isEqualTo(
+      "111 HttpURLConnection \"Revalidation failed\"",
+    )
+  }
+
+  @Test
+  fun staleIfErrorExpires() {
+    server.enqueue(
+      MockResponse.Builder()
+        .body("A")
+        .addHeader("Cache-Control: max-age=60, stale-if-error=30")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES))
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .code(HttpURLConnection.HTTP_UNAVAILABLE)
+        .body("unavailable")
+        .build(),
+    )
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+
+    val response = get(url)
+    assertThat(response.code).isEqualTo(HttpURLConnection.HTTP_UNAVAILABLE)
+    assertThat(response.body.string()).isEqualTo("unavailable")
+  }
+
   @Test
   fun requestMaxStaleNotHonoredWithMustRevalidate() {
     server.enqueue(
@@ -2621,6 +2940,254 @@ class CacheTest {
     assertThat(server.requestCount).isEqualTo(2)
   }
 
+  @Test
+  fun memoryCacheServesHitsWithoutReadingDisk() {
+    cache.setMemoryCacheSize(maxSize = 1024L * 1024L, maxBodySize = 1024L)
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .body("A")
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .body("B")
+        .build(),
+    )
+
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+    assertThat(get(url).body.string()).isEqualTo("A") // Reads the disk and remembers the response.
+
+    // The body is served from memory.
+    fileSystem.delete(cache.directoryPath / "${key(url)}.1")
+    assertThat(get(url).body.string()).isEqualTo("A")
+    assertThat(server.requestCount).isEqualTo(1)
+  }
+
+  @Test
+  fun memoryCacheDoesNotHoldLargeBodies() {
+    cache.setMemoryCacheSize(maxSize = 1024L * 1024L, maxBodySize = 2L)
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .body("ABC")
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .body("DEF")
+        .build(),
+    )
+
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("ABC")
+    assertThat(get(url).body.string()).isEqualTo("ABC")
+
+    // The body is still read from disk.
+    fileSystem.delete(cache.directoryPath / "${key(url)}.1")
+    assertThat(get(url).body.string()).isEqualTo("DEF")
+  }
+
+  @Test
+  fun memoryCacheHonorsInvalidation() {
+    cache.setMemoryCacheSize(maxSize = 1024L * 1024L, maxBodySize = 1024L)
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .body("A")
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .body("B")
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .body("C")
+        .build(),
+    )
+
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+    assertThat(get(url).body.string()).isEqualTo("A")
+
+    val request =
+      Request.Builder()
+        .url(url)
+        .post("".toRequestBody())
+        .build()
+    assertThat(client.newCall(request).execute().body.string()).isEqualTo("B")
+    assertThat(get(url).body.string()).isEqualTo("C")
+  }
+
+  @Test
+  fun memoryCacheHonorsEvictionFromDisk() {
+    cache.setMemoryCacheSize(maxSize = 1024L * 1024L, maxBodySize = 1024L)
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .body("A")
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .body("B")
+        .build(),
+    )
+
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+    assertThat(get(url).body.string()).isEqualTo("A")
+
+    val urls = cache.urls()
+    assertThat(urls.next()).isEqualTo(url.toString())
+    urls.remove()
+    assertThat(get(url).body.string()).isEqualTo("B")
+  }
+
+  @Test
+  fun conditionalHitServedFromMemoryUpdatesCache() {
+    cache.setMemoryCacheSize(maxSize = 1024L * 1024L, maxBodySize = 1024L)
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
+        .addHeader("Cache-Control: max-age=60")
+        .body("A")
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Allow: GET, HEAD")
+        .code(HttpURLConnection.HTTP_NOT_MODIFIED)
+        .build(),
+    )
+
+    val url = server.url("/")
+    assertThat(get(url).body.string()).isEqualTo("A")
+    assertThat(get(url).body.string()).isEqualTo("A") // Remembers the response.
+
+    // This conditional request's cached response comes from memory.
+    val request =
+      Request.Builder()
+        .url(url)
+        .header("Cache-Control", "max-age=0")
+        .build()
+    val response3 = client.newCall(request).execute()
+    assertThat(response3.body.string()).isEqualTo("A")
+    assertThat(response3.header("Allow")).isEqualTo("GET, HEAD")
+
+    val response4 = get(url)
+    assertThat(response4.body.string()).isEqualTo("A")
+    assertThat(response4.header("Allow")).isEqualTo("GET, HEAD")
+    assertThat(server.requestCount).isEqualTo(2)
+  }
+
+  @Test
+  fun concurrentMissesShareOneNetworkResponse(
+    @TempDir tempDir: File,
+  ) {
+    cache = Cache(tempDir, Long.MAX_VALUE)
+    cache.setCoalesceRequests(true)
+    client =
+      client.newBuilder()
+        .cache(cache)
+        .build()
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .headersDelay(500, TimeUnit.MILLISECONDS)
+        .body("ABCDEFGHIJ")
+        .build(),
+    )
+    repeat(4) {
+      server.enqueue(
+        MockResponse.Builder()
+          .body("network")
+          .build(),
+      )
+    }
+
+    // Every call misses the cache while the first response is in flight.
+    val url = server.url("/")
+    val executor = Executors.newFixedThreadPool(5)
+    val bodies = List(5) { executor.submit(Callable { get(url).body.string() }) }
+    for (body in bodies) {
+      assertThat(body.get()).isEqualTo("ABCDEFGHIJ")
+    }
+    executor.shutdown()
+
+    assertThat(server.requestCount).isEqualTo(1)
+    assertThat(cache.coalescedRequestCount()).isEqualTo(4)
+    assertThat(tempDir.list()!!.filter { it.endsWith(".relay") }).isEmpty()
+    assertThat(get(url).body.string()).isEqualTo("ABCDEFGHIJ")
+    assertThat(cache.hitCount()).isEqualTo(1)
+  }
+
+  @Test
+  fun coalescingDeletesRelayFilesFromPreviousProcess(
+    @TempDir tempDir: File,
+  ) {
+    val staleRelay = File(tempDir, "${key(server.url("/"))}.0.relay")
+    staleRelay.writeText("stale")
+    cache = Cache(tempDir, Long.MAX_VALUE)
+    cache.setCoalesceRequests(true)
+    client =
+      client.newBuilder()
+        .cache(cache)
+        .build()
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .body("A")
+        .build(),
+    )
+
+    assertThat(get(server.url("/")).body.string()).isEqualTo("A")
+    assertThat(staleRelay.exists()).isFalse()
+  }
+
+  @Test
+  fun coalescingIgnoresRequestsThatForbidCaching(
+    @TempDir tempDir: File,
+  ) {
+    cache = Cache(tempDir, Long.MAX_VALUE)
+    cache.setCoalesceRequests(true)
+    client =
+      client.newBuilder()
+        .cache(cache)
+        .build()
+    server.enqueue(
+      MockResponse.Builder()
+        .addHeader("Cache-Control: max-age=60")
+        .headersDelay(500, TimeUnit.MILLISECONDS)
+        .body("A")
+        .build(),
+    )
+    server.enqueue(
+      MockResponse.Builder()
+        .body("B")
+        .build(),
+    )
+
+    val url = server.url("/")
+    val executor = Executors.newSingleThreadExecutor()
+    val first = executor.submit(Callable { get(url).body.string() })
+    Thread.sleep(100) // Let the first call lead.
+    val request =
+      Request.Builder()
+        .url(url)
+        .cacheControl(CacheControl.FORCE_NETWORK)
+        .build()
+    assertThat(client.newCall(request).execute().body.string()).isEqualTo("B")
+    assertThat(first.get()).isEqualTo("A")
+    executor.shutdown()
+
+    assertThat(server.requestCount).isEqualTo(2)
+    assertThat(cache.coalescedRequestCount()).isEqualTo(0)
+  }
+
   @Test
   fun responseSourceHeaderCached() {
     server.enqueue(
@@ -293,6 +293,20 @@ class ConnectionCoalescingTest {
     }
   }
 
+  /** With aggressive coalescing a SAN match is enough; DNS for the new host isn't consulted. */
+  @Test
+  fun coalescesBeforeDnsWhenAggressive() {
+    client.connectionPool.setAggressiveHttp2Coalescing(true)
+    server.enqueue(MockResponse())
+    server.enqueue(MockResponse())
+    assert200Http2Response(execute(url), server.hostName)
+    dns.clear("differentdns.com") // Looking this host up would throw UnknownHostException.
+    val differentDnsUrl = url.newBuilder().host("differentdns.com").build()
+    assert200Http2Response(execute(differentDnsUrl), "differentdns.com")
+    assertThat(client.connectionPool.connectionCount()).isEqualTo(1)
+    dns.assertRequests(server.hostName)
+  }
+
   @Test
   fun skipsOnRedirectWhenDnsDontMatch() {
     server.enqueue(
@@ -20,11 +20,13 @@ import assertk.assertions.containsExactly
 import assertk.assertions.hasMessage
 import assertk.assertions.isEqualTo
 import assertk.assertions.isIn
+import assertk.assertions.isTrue
 import java.io.IOException
 import java.net.InetSocketAddress
 import java.net.UnknownHostException
 import java.time.Duration
 import java.util.Arrays
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
 import kotlin.test.assertFailsWith
 import mockwebserver3.MockResponse
@@ -314,6 +316,59 @@ open class ConnectionListenerTest {
     assertThat(event.connection.route().proxy).isEqualTo(proxy)
   }
 
+  @Test
+  fun prewarmEventSequence() {
+    val prewarmConnectEnds = CountDownLatch(3)
+    val prewarmListener =
+      object : RecordingConnectionListener() {
+        override fun prewarmConnectEnd(
+          connection: Connection,
+          route: Route,
+        ) {
+          super.prewarmConnectEnd(connection, route)
+          prewarmConnectEnds.countDown()
+        }
+      }
+    client =
+      client.newBuilder()
+        .connectionPool(ConnectionPool(connectionListener = prewarmListener))
+        .build()
+    val address =
+      Address(
+        uriHost = server!!.hostName,
+        uriPort = server!!.port,
+        dns = client.dns,
+        socketFactory = client.socketFactory,
+        sslSocketFactory = null,
+        hostnameVerifier = null,
+        certificatePinner = null,
+        proxyAuthenticator = client.proxyAuthenticator,
+        proxy = client.proxy,
+        protocols = client.protocols,
+        connectionSpecs = client.connectionSpecs,
+        proxySelector = client.proxySelector,
+      )
+    client.connectionPool.setPolicy(
+      address,
+      ConnectionPool.AddressPolicy(minimumConcurrentCalls = 3, maximumConcurrentConnects = 3),
+    )
+
+    assertThat(prewarmConnectEnds.await(10, TimeUnit.SECONDS)).isTrue()
+    assertThat(prewarmListener.recordedEventTypes().sorted()).containsExactly(
+      "PrewarmConnectEnd",
+      "PrewarmConnectEnd",
+      "PrewarmConnectEnd",
+      "PrewarmConnectStart",
+      "PrewarmConnectStart",
+      "PrewarmConnectStart",
+    )
+
+    // Each connection is pooled before its PrewarmConnectEnd event.
+    assertThat(client.connectionPool.connectionCount()).isEqualTo(3)
+
+    client.connectionPool.setPolicy(address, ConnectionPool.AddressPolicy())
+  }
+
   private fun enableTls() {
     client =
       client.newBuilder()
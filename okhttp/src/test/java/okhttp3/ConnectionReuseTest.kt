@@ -17,6 +17,7 @@ package okhttp3
 
 import assertk.assertThat
 import assertk.assertions.isEqualTo
+import assertk.assertions.isGreaterThan
 import java.io.IOException
 import java.util.concurrent.TimeUnit
 import javax.net.ssl.SSLException
@@ -86,6 +87,61 @@ class ConnectionReuseTest {
     assertConnectionReused(request, request)
   }
 
+  @Test
+  fun http2CoalescedWritesAreReported() {
+    enableHttp2()
+    client.connectionPool.setHttp2CoalescedWrites(true)
+    server.enqueue(MockResponse(body = "a"))
+    server.enqueue(MockResponse(body = "b"))
+    val request = Request(server.url("/"))
+    assertConnectionReused(request, request)
+    assertThat(client.connectionPool.http2FramesPerFlush()).isGreaterThan(0.0)
+  }
+
+  @Test
+  fun http2AdaptiveReceiveWindowCanBeEnabled() {
+    enableHttp2()
+    client.connectionPool.setHttp2AdaptiveReceiveWindow(true)
+    server.enqueue(MockResponse(body = "a".repeat(100_000)))
+    server.enqueue(MockResponse(body = "b"))
+    val request = Request(server.url("/"))
+    assertConnectionReused(request, request)
+  }
+
+  @Test
+  fun http2CallsAreSpreadAcrossConnections() {
+    enableHttp2()
+    client.connectionPool.setMaxHttp2ConnectionsPerAddress(2)
+    server.enqueue(MockResponse(body = "a"))
+    server.enqueue(MockResponse(body = "b"))
+    server.enqueue(MockResponse(body = "c"))
+    server.enqueue(MockResponse(body = "d"))
+    val request = Request(server.url("/"))
+
+    // Calls hold their connection until their response bodies are closed.
+    val responseA = client.newCall(request).execute()
+    assertThat(server.takeRequest().sequenceNumber).isEqualTo(0)
+
+    // The only connection is busy so this call shares it, and the pool opens another.
+    val responseB = client.newCall(request).execute()
+    assertThat(server.takeRequest().sequenceNumber).isEqualTo(1)
+    awaitConnectionCount(2)
+
+    // The new connection is carrying the fewest calls.
+    val responseC = client.newCall(request).execute()
+    assertThat(server.takeRequest().sequenceNumber).isEqualTo(0)
+
+    // Both connections are busy but the group is full.
+    val responseD = client.newCall(request).execute()
+    assertThat(server.takeRequest().sequenceNumber).isEqualTo(1)
+    assertThat(client.connectionPool.connectionCount()).isEqualTo(2)
+
+    responseA.close()
+    responseB.close()
+    responseC.close()
+    responseD.close()
+  }
+
   @Test
   fun connectionsAreNotReusedWithRequestConnectionClose() {
     server.enqueue(MockResponse(body = "a"))
@@ -362,6 +418,16 @@ class ConnectionReuseTest {
     server.protocols = client.protocols
   }
 
+  private fun awaitConnectionCount(count: Int) {
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+    while (client.connectionPool.connectionCount() < count) {
+      if (System.nanoTime() > deadline) {
+        throw AssertionError("connection count ${client.connectionPool.connectionCount()} < $count")
+      }
+      Thread.sleep(10)
+    }
+  }
+
   private fun assertConnectionReused(vararg requests: Request?) {
     for (i in requests.indices) {
       val response = client.newCall(requests[i]!!).execute()
@@ -38,7 +38,7 @@ import org.junit.jupiter.api.extension.RegisterExtension
 class DispatcherTest {
   @RegisterExtension
   val clientTestRule = OkHttpClientTestRule()
-  private val executor = RecordingExecutor(this)
+  private val executor = RecordingExecutor { dispatcher }
   val callback = RecordingCallback()
   val webSocketListener =
     object : WebSocketListener() {
@@ -354,6 +354,108 @@ class DispatcherTest {
       .containsExactly("CallStart", "CallStart", "CallFailed")
   }
 
+  @Test
+  fun concurrencyLimiterReplacesMaxPerHost() {
+    dispatcher.maxRequestsPerHost = 10
+    dispatcher.concurrencyLimiter = AdaptiveConcurrencyLimiter(initialLimit = 2)
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://a/2")).enqueue(callback)
+    client.newCall(newRequest("http://a/3")).enqueue(callback)
+    client.newCall(newRequest("http://b/1")).enqueue(callback)
+    executor.assertJobs("http://a/1", "http://a/2", "http://b/1")
+    dispatcher.concurrencyLimiter = null
+    executor.assertJobs("http://a/1", "http://a/2", "http://b/1", "http://a/3")
+  }
+
+  @Test
+  fun priorityPolicyStartsHigherPriorityCallsFirst() {
+    dispatcher.schedulingPolicy = CallSchedulingPolicy.PRIORITY
+    dispatcher.maxRequests = 1
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://a/2", CallPriority.LOW)).enqueue(callback)
+    client.newCall(newRequest("http://a/3")).enqueue(callback)
+    client.newCall(newRequest("http://a/4", CallPriority.HIGH)).enqueue(callback)
+    executor.finishJob("http://a/1")
+    executor.assertJobs("http://a/4")
+    executor.finishJob("http://a/4")
+    executor.assertJobs("http://a/3")
+    executor.finishJob("http://a/3")
+    executor.assertJobs("http://a/2")
+  }
+
+  @Test
+  fun fifoPolicyIgnoresPriority() {
+    dispatcher.maxRequests = 1
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://a/2", CallPriority.LOW)).enqueue(callback)
+    client.newCall(newRequest("http://a/3", CallPriority.HIGH)).enqueue(callback)
+    executor.finishJob("http://a/1")
+    executor.assertJobs("http://a/2")
+  }
+
+  @Test
+  fun earliestDeadlineFirstPolicyStartsEarliestDeadlineFirst() {
+    dispatcher.schedulingPolicy = CallSchedulingPolicy.EARLIEST_DEADLINE_FIRST
+    dispatcher.maxRequests = 1
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://b/1")).enqueue(callback)
+    client.newCall(newRequest("http://c/1")).apply {
+      timeout().timeout(10, TimeUnit.SECONDS)
+      enqueue(callback)
+    }
+    client.newCall(newRequest("http://d/1")).apply {
+      timeout().timeout(5, TimeUnit.SECONDS)
+      enqueue(callback)
+    }
+    client.newCall(newRequest("http://e/1", CallPriority.HIGH)).enqueue(callback)
+    executor.finishJob("http://a/1")
+    executor.assertJobs("http://e/1")
+    executor.finishJob("http://e/1")
+    executor.assertJobs("http://d/1")
+    executor.finishJob("http://d/1")
+    executor.assertJobs("http://c/1")
+    executor.finishJob("http://c/1")
+    executor.assertJobs("http://b/1")
+  }
+
+  @Test
+  fun earliestDeadlineFirstPolicyShedsExpiredCalls() {
+    dispatcher.schedulingPolicy = CallSchedulingPolicy.EARLIEST_DEADLINE_FIRST
+    dispatcher.maxRequests = 1
+    val request2 = newRequest("http://a/2")
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(request2).apply {
+      timeout().timeout(1, TimeUnit.NANOSECONDS)
+      enqueue(callback)
+    }
+    client.newCall(newRequest("http://a/3")).enqueue(callback)
+    executor.finishJob("http://a/1")
+    executor.assertJobs("http://a/3")
+    callback.await(request2.url)
+      .assertFailure(InterruptedIOException::class.java)
+      .assertFailure("timeout")
+    assertThat(dispatcher.queuedCallsCount()).isEqualTo(0)
+  }
+
+  @Test
+  fun expiredCallsAreShedWhileDispatcherIsSaturated() {
+    dispatcher.schedulingPolicy = CallSchedulingPolicy.EARLIEST_DEADLINE_FIRST
+    dispatcher.maxRequests = 1
+    val request2 = newRequest("http://a/2")
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(request2).apply {
+      timeout().timeout(100, TimeUnit.MILLISECONDS)
+      enqueue(callback)
+    }
+
+    // The running call never finishes, but the queued call still fails at its deadline.
+    callback.await(request2.url)
+      .assertFailure(InterruptedIOException::class.java)
+      .assertFailure("timeout")
+    assertThat(dispatcher.queuedCallsCount()).isEqualTo(0)
+    executor.assertJobs("http://a/1")
+  }
+
   private fun makeSynchronousCall(call: Call): Thread {
     val thread =
       Thread {
@@ -377,4 +479,11 @@ class DispatcherTest {
   ): Request {
     return Request.Builder().url(url).tag(tag).build()
   }
+
+  private fun newRequest(
+    url: String,
+    priority: CallPriority,
+  ): Request {
+    return Request.Builder().url(url).tag(CallPriority::class, priority).build()
+  }
 }
@@ -17,8 +17,11 @@ package okhttp3
 
 import assertk.assertThat
 import assertk.assertions.isEqualTo
+import assertk.assertions.isNull
+import assertk.assertions.isSameInstanceAs
 import okhttp3.Headers.Companion.headersOf
 import okhttp3.TestUtil.headerEntries
+import okhttp3.internal.http2.Hpack
 import okhttp3.internal.http2.Http2ExchangeCodec.Companion.http2HeadersList
 import okhttp3.internal.http2.Http2ExchangeCodec.Companion.readHttp2HeadersList
 import org.junit.jupiter.api.Test
@@ -84,4 +87,17 @@ class HeadersRequestTest {
       )
     assertThat(http2HeadersList(request)).isEqualTo(expected)
   }
+
+  @Test fun http2HeadersListReusesStaticTableNames() {
+    val request =
+      Request.Builder()
+        .url("http://square.com/")
+        .header("Accept-Encoding", "gzip")
+        .header("X-Custom", "1")
+        .build()
+    val headers = http2HeadersList(request)
+    assertThat(headers[4].name).isSameInstanceAs(Hpack.staticName("accept-encoding"))
+    assertThat(headers[5].name.utf8()).isEqualTo("x-custom")
+    assertThat(Hpack.staticName("x-custom")).isNull()
+  }
 }
@@ -17,9 +17,11 @@ package okhttp3
 
 import assertk.assertThat
 import assertk.assertions.isEqualTo
+import assertk.assertions.isSameInstanceAs
 import assertk.assertions.isTrue
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicReference
 import mockwebserver3.MockResponse
 import mockwebserver3.MockWebServer
 import okhttp3.testing.PlatformRule
@@ -71,4 +73,38 @@ class LoomTest {
   fun testIfSupported() {
     assertThat(platform.isLoom()).isTrue()
   }
+
+  @Test
+  fun asyncCallsRunOnVirtualThreads() {
+    server.enqueue(MockResponse())
+
+    val client =
+      OkHttpClient.Builder()
+        .virtualThreads(true)
+        .build()
+    assertThat(client.virtualThreads).isTrue()
+
+    val callback = RecordingCallback()
+    val callbackThread = AtomicReference<Thread>()
+    val request = Request(server.url("/"))
+    client.newCall(request).enqueue(
+      object : Callback by callback {
+        override fun onResponse(
+          call: Call,
+          response: Response,
+        ) {
+          callbackThread.set(Thread.currentThread())
+          callback.onResponse(call, response)
+        }
+      },
+    )
+    callback.await(request.url).assertCode(200)
+
+    assertThat(callbackThread.get().isVirtual()).isTrue()
+    assertThat(client.newBuilder().build().dispatcher).isSameInstanceAs(client.dispatcher)
+  }
+
+  private fun Thread.isVirtual(): Boolean {
+    return Thread::class.java.getMethod("isVirtual").invoke(this) as Boolean
+  }
 }
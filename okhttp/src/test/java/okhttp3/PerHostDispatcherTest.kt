@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3
+
+import assertk.assertThat
+import assertk.assertions.containsExactly
+import assertk.assertions.containsExactlyInAnyOrder
+import assertk.assertions.isEmpty
+import assertk.assertions.isEqualTo
+import assertk.assertions.isFalse
+import assertk.assertions.isTrue
+import java.io.InterruptedIOException
+import java.net.UnknownHostException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.extension.RegisterExtension
+
+/** Like [DispatcherTest], but for a dispatcher that has per-host queues. */
+class PerHostDispatcherTest {
+  @RegisterExtension
+  val clientTestRule = OkHttpClientTestRule()
+  private val executor = RecordingExecutor { dispatcher }
+  val callback = RecordingCallback()
+  val webSocketListener =
+    object : WebSocketListener() {
+    }
+  val dispatcher = Dispatcher(executor, perHostQueues = true)
+  val listener = RecordingEventListener()
+  var client =
+    clientTestRule.newClientBuilder()
+      .dns { throw UnknownHostException() }
+      .dispatcher(dispatcher)
+      .eventListenerFactory(clientTestRule.wrap(listener))
+      .build()
+
+  @BeforeEach
+  fun setUp() {
+    dispatcher.maxRequests = 20
+    dispatcher.maxRequestsPerHost = 10
+    listener.forbidLock(dispatcher)
+  }
+
+  @Test
+  fun maxRequestsEnforced() {
+    dispatcher.maxRequests = 3
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://a/2")).enqueue(callback)
+    client.newCall(newRequest("http://b/1")).enqueue(callback)
+    client.newCall(newRequest("http://b/2")).enqueue(callback)
+    executor.assertJobs("http://a/1", "http://a/2", "http://b/1")
+  }
+
+  @Test
+  fun maxPerHostEnforced() {
+    dispatcher.maxRequestsPerHost = 2
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://a/2")).enqueue(callback)
+    client.newCall(newRequest("http://a/3")).enqueue(callback)
+    client.newCall(newRequest("http://b/1")).enqueue(callback)
+    executor.assertJobs("http://a/1", "http://a/2", "http://b/1")
+  }
+
+  @Test
+  fun maxPerHostNotEnforcedForWebSockets() {
+    dispatcher.maxRequestsPerHost = 2
+    client.newWebSocket(newRequest("http://a/1"), webSocketListener)
+    client.newWebSocket(newRequest("http://a/2"), webSocketListener)
+    client.newWebSocket(newRequest("http://a/3"), webSocketListener)
+    executor.assertJobs("http://a/1", "http://a/2", "http://a/3")
+  }
+
+  @Test
+  fun increasingMaxPerHostPromotesJobsImmediately() {
+    dispatcher.maxRequestsPerHost = 2
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://a/2")).enqueue(callback)
+    client.newCall(newRequest("http://a/3")).enqueue(callback)
+    client.newCall(newRequest("http://a/4")).enqueue(callback)
+    client.newCall(newRequest("http://a/5")).enqueue(callback)
+    dispatcher.maxRequestsPerHost = 4
+    executor.assertJobs("http://a/1", "http://a/2", "http://a/3", "http://a/4")
+  }
+
+  @Test
+  fun oldJobFinishesNewJobWithSameHostStarts() {
+    dispatcher.maxRequests = 2
+    dispatcher.maxRequestsPerHost = 1
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://b/1")).enqueue(callback)
+    client.newCall(newRequest("http://b/2")).enqueue(callback)
+    client.newCall(newRequest("http://a/2")).enqueue(callback)
+    executor.finishJob("http://a/1")
+    executor.assertJobs("http://b/1", "http://a/2")
+  }
+
+  @Test
+  fun oldJobFinishesNewJobCantRunDueToHostLimit() {
+    dispatcher.maxRequestsPerHost = 1
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://b/1")).enqueue(callback)
+    client.newCall(newRequest("http://a/2")).enqueue(callback)
+    executor.finishJob("http://b/1")
+    executor.assertJobs("http://a/1")
+  }
+
+  @Test
+  fun hostIsForgottenWhenIdle() {
+    dispatcher.maxRequestsPerHost = 1
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    executor.finishJob("http://a/1")
+    client.newCall(newRequest("http://a/2")).enqueue(callback)
+    client.newCall(newRequest("http://a/3")).enqueue(callback)
+    executor.assertJobs("http://a/2")
+    executor.finishJob("http://a/2")
+    executor.assertJobs("http://a/3")
+  }
+
+  @Test
+  fun asyncCallAccessors() {
+    dispatcher.maxRequests = 3
+    val a1 = client.newCall(newRequest("http://a/1"))
+    val a2 = client.newCall(newRequest("http://a/2"))
+    val b1 = client.newCall(newRequest("http://b/1"))
+    val b2 = client.newCall(newRequest("http://b/2"))
+    val c1 = client.newCall(newRequest("http://c/1"))
+    a1.enqueue(callback)
+    a2.enqueue(callback)
+    b1.enqueue(callback)
+    b2.enqueue(callback)
+    c1.enqueue(callback)
+    assertThat(dispatcher.runningCallsCount()).isEqualTo(3)
+    assertThat(dispatcher.queuedCallsCount()).isEqualTo(2)
+    assertThat(dispatcher.runningCalls())
+      .containsExactlyInAnyOrder(a1, a2, b1)
+    assertThat(dispatcher.queuedCalls())
+      .containsExactlyInAnyOrder(b2, c1)
+  }
+
+  @Test
+  fun cancelAllCancelsQueuedAndRunningCalls() {
+    dispatcher.maxRequests = 1
+    val a1 = client.newCall(newRequest("http://a/1"))
+    val b1 = client.newCall(newRequest("http://b/1"))
+    a1.enqueue(callback)
+    b1.enqueue(callback)
+    dispatcher.cancelAll()
+    assertThat(a1.isCanceled()).isTrue()
+    assertThat(b1.isCanceled()).isTrue()
+  }
+
+  @Test
+  fun idleCallbackInvokedWhenIdle() {
+    val idle = AtomicBoolean()
+    dispatcher.idleCallback = Runnable { idle.set(true) }
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://b/1")).enqueue(callback)
+    executor.finishJob("http://a/1")
+    assertThat(idle.get()).isFalse()
+    executor.finishJob("http://b/1")
+    assertThat(idle.get()).isTrue()
+    assertThat(dispatcher.runningCalls()).isEmpty()
+  }
+
+  @Test
+  fun executionRejectedAfterPrecedingCallFinishes() {
+    val request1 = newRequest("http://a/1")
+    val request2 = newRequest("http://a/2")
+    dispatcher.maxRequests = 1
+    client.newCall(request1).enqueue(callback)
+    executor.shutdown()
+    client.newCall(request2).enqueue(callback)
+    executor.finishJob("http://a/1") // Trigger promotion.
+    callback.await(request2.url).assertFailure(InterruptedIOException::class.java)
+    assertThat(listener.recordedEventTypes())
+      .containsExactly("CallStart", "CallStart", "CallFailed")
+    assertThat(dispatcher.runningCallsCount()).isEqualTo(0)
+  }
+
+  @Test
+  fun priorityPolicyOrdersCallsToTheSameHost() {
+    dispatcher.schedulingPolicy = CallSchedulingPolicy.PRIORITY
+    dispatcher.maxRequestsPerHost = 1
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(newRequest("http://a/2", CallPriority.LOW)).enqueue(callback)
+    client.newCall(newRequest("http://a/3", CallPriority.HIGH)).enqueue(callback)
+    executor.finishJob("http://a/1")
+    executor.assertJobs("http://a/3")
+    executor.finishJob("http://a/3")
+    executor.assertJobs("http://a/2")
+  }
+
+  @Test
+  fun earliestDeadlineFirstPolicyShedsExpiredCalls() {
+    dispatcher.schedulingPolicy = CallSchedulingPolicy.EARLIEST_DEADLINE_FIRST
+    dispatcher.maxRequestsPerHost = 1
+    val request2 = newRequest("http://a/2")
+    client.newCall(newRequest("http://a/1")).enqueue(callback)
+    client.newCall(request2).apply {
+      timeout().timeout(1, TimeUnit.NANOSECONDS)
+      enqueue(callback)
+    }
+    client.newCall(newRequest("http://a/3")).enqueue(callback)
+    executor.finishJob("http://a/1")
+    executor.assertJobs("http://a/3")
+    callback.await(request2.url)
+      .assertFailure(InterruptedIOException::class.java)
+      .assertFailure("timeout")
+    assertThat(dispatcher.queuedCallsCount()).isEqualTo(0)
+  }
+
+  private fun newRequest(url: String): Request {
+    return Request.Builder().url(url).build()
+  }
+
+  private fun newRequest(
+    url: String,
+    priority: CallPriority,
+  ): Request {
+    return Request.Builder().url(url).tag(CallPriority::class, priority).build()
+  }
+}
@@ -24,7 +24,7 @@ import okhttp3.internal.connection.RealCall
 import okhttp3.internal.finishedAccessor
 
 internal class RecordingExecutor(
-  private val dispatcherTest: DispatcherTest,
+  private val dispatcher: () -> Dispatcher,
 ) : AbstractExecutorService() {
   private var shutdown: Boolean = false
   private val calls = mutableListOf<RealCall.AsyncCall>()
@@ -45,7 +45,7 @@ internal class RecordingExecutor(
       val call = i.next()
       if (call.request.url.toString() == url) {
         i.remove()
-        dispatcherTest.dispatcher.finishedAccessor(call)
+        dispatcher().finishedAccessor(call)
         return
       }
     }
@@ -26,6 +26,7 @@ import java.io.File
 import java.io.FileNotFoundException
 import java.io.IOException
 import java.util.ArrayDeque
+import kotlin.concurrent.withLock
 import kotlin.test.assertFailsWith
 import okhttp3.SimpleProvider
 import okhttp3.TestUtil
@@ -81,7 +82,7 @@ class DiskLruCacheTest {
       DiskLruCache(filesystem, cacheDir, appVersion, 2, maxSize.toLong(), taskRunner).also {
         toClose.add(it)
       }
-    synchronized(cache) { cache.initialize() }
+    cache.lock.withLock { cache.initialize() }
   }
 
   fun setUp(
@@ -329,6 +330,82 @@ class DiskLruCacheTest {
     assertJournalEquals("DIRTY k1", "CLEAN k1 2 1", "DIRTY k2", "CLEAN k2 3 1", "READ k1")
   }
 
+  @ParameterizedTest
+  @ArgumentsSource(FileSystemParamProvider::class)
+  fun concurrentReadsAreJournaledInBackground(parameters: Pair<FileSystem, Boolean>) {
+    setUp(parameters.first, parameters.second)
+    Assumptions.assumeFalse(windows) // Reads are tracked synchronously on Windows.
+    cache.concurrentReads = true
+    set("k1", "AB", "C")
+    set("k2", "DEF", "G")
+    assertValue("k1", "AB", "C")
+    assertValue("k2", "DEF", "G")
+
+    // Committing an edit flushes the journal, but the reads haven't been journaled yet.
+    set("k3", "HI", "J")
+    assertJournalEquals(
+      "DIRTY k1",
+      "CLEAN k1 2 1",
+      "DIRTY k2",
+      "CLEAN k2 3 1",
+      "DIRTY k3",
+      "CLEAN k3 2 1",
+    )
+
+    taskFaker.runTasks()
+    cache.flush()
+    assertJournalEquals(
+      "DIRTY k1",
+      "CLEAN k1 2 1",
+      "DIRTY k2",
+      "CLEAN k2 3 1",
+      "DIRTY k3",
+      "CLEAN k3 2 1",
+      "READ k1",
+      "READ k2",
+    )
+  }
+
+  @ParameterizedTest
+  @ArgumentsSource(FileSystemParamProvider::class)
+  fun concurrentReadsSeeCommittedEdits(parameters: Pair<FileSystem, Boolean>) {
+    setUp(parameters.first, parameters.second)
+    Assumptions.assumeFalse(windows) // Can't edit while a snapshot is open on Windows.
+    cache.concurrentReads = true
+    set("k1", "A", "B")
+    val snapshot = cache["k1"]!!
+    set("k1", "CC", "DD")
+    snapshot.use {
+      it.assertValue(0, "A")
+      it.assertValue(1, "B")
+    }
+    assertValue("k1", "CC", "DD")
+    assertThat(cache.remove("k1")).isTrue()
+    assertAbsent("k1")
+  }
+
+  @ParameterizedTest
+  @ArgumentsSource(FileSystemParamProvider::class)
+  fun evictionHonorsConcurrentReads(parameters: Pair<FileSystem, Boolean>) {
+    setUp(parameters.first, parameters.second)
+    cache.close()
+    createNewCacheWithSize(10)
+    cache.concurrentReads = true
+    set("a", "a", "a")
+    set("b", "b", "b")
+    set("c", "c", "c")
+    set("d", "d", "d")
+    set("e", "e", "e")
+    cache["a"]!!.close() // 'B' is now least recently used.
+
+    // Causing the size to grow to 12 should evict 'B'.
+    set("f", "f", "f")
+    cache.flush()
+    assertThat(cache.size()).isEqualTo(10)
+    assertValue("a", "a", "a")
+    assertAbsent("b")
+  }
+
   @ParameterizedTest
   @ArgumentsSource(FileSystemParamProvider::class)
   fun cannotOperateOnEditAfterPublish(parameters: Pair<FileSystem, Boolean>) {
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.cache
+
+import assertk.assertThat
+import assertk.assertions.isEqualTo
+import assertk.assertions.isNull
+import org.junit.jupiter.api.Test
+
+class MemoryCacheTest {
+  private val cache = MemoryCache<String>(maxSize = 10L)
+
+  @Test fun evictsLeastRecentlyUsed() {
+    cache.put("a", "A", 4L)
+    cache.put("b", "B", 4L)
+    assertThat(cache["a"]).isEqualTo("A")
+
+    cache.put("c", "C", 4L)
+    assertThat(cache["a"]).isEqualTo("A")
+    assertThat(cache["b"]).isNull()
+    assertThat(cache["c"]).isEqualTo("C")
+    assertThat(cache.byteCount).isEqualTo(8L)
+  }
+
+  @Test fun replacingValueUpdatesSize() {
+    cache.put("a", "A", 4L)
+    cache.put("a", "AA", 6L)
+    assertThat(cache["a"]).isEqualTo("AA")
+    assertThat(cache.byteCount).isEqualTo(6L)
+  }
+
+  @Test fun valueLargerThanMaxSizeIsNotRetained() {
+    cache.put("a", "A", 4L)
+    cache.put("a", "AA", 11L)
+    assertThat(cache["a"]).isNull()
+    assertThat(cache.byteCount).isEqualTo(0L)
+  }
+
+  @Test fun conditionalRemove() {
+    cache.put("a", "A", 4L)
+    cache.remove("a", "B")
+    assertThat(cache["a"]).isEqualTo("A")
+
+    cache.remove("a", cache["a"]!!)
+    assertThat(cache["a"]).isNull()
+    assertThat(cache.byteCount).isEqualTo(0L)
+  }
+
+  @Test fun evictAll() {
+    cache.put("a", "A", 4L)
+    cache.put("b", "B", 4L)
+    cache.evictAll()
+    assertThat(cache["a"]).isNull()
+    assertThat(cache.byteCount).isEqualTo(0L)
+  }
+}
@@ -443,6 +443,58 @@ class TaskRunnerTest {
     )
   }
 
+  @Test fun queuesRunInOrderOfTheirNextTask() {
+    redQueue.execute("task one", 300.µs) {
+      log += "one:run@${taskFaker.nanoTime}"
+    }
+
+    blueQueue.execute("task two", 200.µs) {
+      log += "two:run@${taskFaker.nanoTime}"
+    }
+
+    greenQueue.execute("task three", 100.µs) {
+      log += "three:run@${taskFaker.nanoTime}"
+    }
+
+    redQueue.execute("task four", 50.µs) {
+      log += "four:run@${taskFaker.nanoTime}"
+    }
+
+    taskFaker.advanceUntil(300.µs)
+    assertThat(log).containsExactly(
+      "four:run@50000",
+      "three:run@100000",
+      "two:run@200000",
+      "one:run@300000",
+    )
+
+    taskFaker.assertNoMoreTasks()
+  }
+
+  @Test fun canceledTaskDoesNotDelayOtherQueues() {
+    redQueue.execute("task one", 100.µs) {
+      log += "one:run@${taskFaker.nanoTime}"
+    }
+
+    redQueue.execute("task two", 300.µs, cancelable = false) {
+      log += "two:run@${taskFaker.nanoTime}"
+    }
+
+    blueQueue.execute("task three", 200.µs) {
+      log += "three:run@${taskFaker.nanoTime}"
+    }
+
+    redQueue.cancelAll()
+
+    taskFaker.advanceUntil(300.µs)
+    assertThat(log).containsExactly(
+      "three:run@200000",
+      "two:run@300000",
+    )
+
+    taskFaker.assertNoMoreTasks()
+  }
+
   /** Test the introspection method [TaskQueue.scheduledTasks]. */
   @Test fun scheduledTasks() {
     redQueue.execute("task one", 100.µs) {
@@ -770,6 +822,21 @@ class TaskRunnerTest {
     taskFaker.assertNoMoreTasks()
   }
 
+  /** A queue that was never ready mustn't be mistaken for one that is ready at the same time. */
+  @Test fun newQueueDoesNotDisplaceReadyQueueWithSameReadyTime() {
+    redQueue.execute("red task", 0.µs) {
+      log += "red:run@${taskFaker.nanoTime}"
+    }
+    blueQueue.execute("blue task", 0.µs) {
+      log += "blue:run@${taskFaker.nanoTime}"
+    }
+
+    taskFaker.runTasks()
+    assertThat(log).containsExactlyInAnyOrder("red:run@0", "blue:run@0")
+
+    taskFaker.assertNoMoreTasks()
+  }
+
   private val Int.µs: Long
     get() = this * 1_000L
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.concurrent
+
+import assertk.assertThat
+import assertk.assertions.isEqualTo
+import assertk.assertions.isFalse
+import assertk.assertions.isGreaterThan
+import assertk.assertions.isGreaterThanOrEqualTo
+import assertk.assertions.isLessThanOrEqualTo
+import assertk.assertions.isTrue
+import java.io.InterruptedIOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertFailsWith
+import okio.Buffer
+import okio.Sink
+import okio.Source
+import okio.Timeout
+import org.junit.jupiter.api.Test
+
+class TimeoutWheelTest {
+  /** A small wheel with short ticks, so timeouts wrap around it several times. */
+  private val wheel = TimeoutWheel(tickNanos = TimeUnit.MILLISECONDS.toNanos(1), wheelSize = 8)
+
+  @Test fun timeoutFires() {
+    val timeout = RecordingTimeout()
+    timeout.timeout(50, TimeUnit.MILLISECONDS)
+
+    val start = System.nanoTime()
+    timeout.enter()
+    assertThat(timeout.latch.await(5, TimeUnit.SECONDS)).isTrue()
+    assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50))
+    assertThat(timeout.exit()).isTrue()
+  }
+
+  @Test fun deadlineFires() {
+    val timeout = RecordingTimeout()
+    timeout.deadline(50, TimeUnit.MILLISECONDS)
+
+    timeout.enter()
+    assertThat(timeout.latch.await(5, TimeUnit.SECONDS)).isTrue()
+    assertThat(timeout.exit()).isTrue()
+  }
+
+  @Test fun exitBeforeTimeoutDoesNotFire() {
+    val timeout = RecordingTimeout()
+    timeout.timeout(50, TimeUnit.MILLISECONDS)
+
+    timeout.enter()
+    assertThat(timeout.exit()).isFalse()
+    assertThat(timeout.latch.await(100, TimeUnit.MILLISECONDS)).isFalse()
+  }
+
+  @Test fun noTimeoutDoesNotFire() {
+    val timeout = RecordingTimeout()
+
+    timeout.enter()
+    assertThat(timeout.latch.await(50, TimeUnit.MILLISECONDS)).isFalse()
+    assertThat(timeout.exit()).isFalse()
+  }
+
+  @Test fun timeoutCanBeReused() {
+    val timeout = RecordingTimeout()
+    timeout.timeout(10, TimeUnit.MILLISECONDS)
+
+    timeout.enter()
+    assertThat(timeout.latch.await(5, TimeUnit.SECONDS)).isTrue()
+    assertThat(timeout.exit()).isTrue()
+
+    timeout.enter()
+    assertThat(timeout.exit()).isFalse()
+  }
+
+  @Test fun unbalancedEnterFails() {
+    val timeout = RecordingTimeout()
+    timeout.timeout(1, TimeUnit.SECONDS)
+
+    timeout.enter()
+    assertFailsWith<IllegalStateException> {
+      timeout.enter()
+    }
+    assertThat(timeout.exit()).isFalse()
+  }
+
+  @Test fun manyTimeoutsFireIndependently() {
+    val canceled = List(100) { RecordingTimeout() }
+    val fired = List(100) { RecordingTimeout() }
+    for ((i, timeout) in (canceled + fired).withIndex()) {
+      timeout.timeout(10L + i % 30, TimeUnit.MILLISECONDS)
+      timeout.enter()
+    }
+    for (timeout in canceled) {
+      assertThat(timeout.exit()).isFalse()
+    }
+
+    for (timeout in fired) {
+      assertThat(timeout.latch.await(5, TimeUnit.SECONDS)).isTrue()
+      assertThat(timeout.exit()).isTrue()
+    }
+    for (timeout in canceled) {
+      assertThat(timeout.latch.count == 0L).isFalse()
+    }
+  }
+
+  @Test fun earlierTimeoutWakesSleepingWatchdog() {
+    val distant = RecordingTimeout()
+    distant.timeout(10, TimeUnit.SECONDS)
+    distant.enter()
+    Thread.sleep(20) // Let the watchdog go to sleep until the distant timeout's bucket.
+
+    val soon = RecordingTimeout()
+    soon.timeout(10, TimeUnit.MILLISECONDS)
+    soon.enter()
+    assertThat(soon.latch.await(1, TimeUnit.SECONDS)).isTrue()
+    assertThat(soon.exit()).isTrue()
+    assertThat(distant.exit()).isFalse()
+  }
+
+  @Test fun sourceThrowsWhenTimedOut() {
+    val timeout = RecordingTimeout()
+    timeout.timeout(10, TimeUnit.MILLISECONDS)
+    val source =
+      timeout.source(
+        object : Source {
+          override fun read(
+            sink: Buffer,
+            byteCount: Long,
+          ): Long {
+            timeout.latch.await()
+            return -1L
+          }
+
+          override fun timeout() = Timeout.NONE
+
+          override fun close() {
+          }
+        },
+      )
+
+    assertFailsWith<InterruptedIOException> {
+      source.read(Buffer(), 1L)
+    }
+  }
+
+  @Test fun sinkTimesEachChunkOfLargeWrite() {
+    val timeout = RecordingTimeout()
+    timeout.timeout(100, TimeUnit.MILLISECONDS)
+    val chunkSizes = mutableListOf<Long>()
+    val throttledSink =
+      object : Sink {
+        override fun write(
+          source: Buffer,
+          byteCount: Long,
+        ) {
+          Thread.sleep(20) // Each chunk is well within the timeout, but all of them aren't.
+          chunkSizes += byteCount
+          source.skip(byteCount)
+        }
+
+        override fun flush() {
+        }
+
+        override fun timeout() = Timeout.NONE
+
+        override fun close() {
+        }
+      }
+
+    val byteCount = 2L * 1024L * 1024L
+    val start = System.nanoTime()
+    timeout.sink(throttledSink).write(Buffer().write(ByteArray(byteCount.toInt())), byteCount)
+    assertThat(System.nanoTime() - start).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(100))
+    assertThat(chunkSizes.sum()).isEqualTo(byteCount)
+    assertThat(chunkSizes.max()).isLessThanOrEqualTo(WheelTimeout.TIMEOUT_WRITE_SIZE)
+    assertThat(timeout.latch.count).isEqualTo(1L)
+  }
+
+  private inner class RecordingTimeout : WheelTimeout(wheel) {
+    val latch = CountDownLatch(1)
+
+    override fun timedOut() {
+      latch.countDown()
+    }
+  }
+}
@@ -20,13 +20,26 @@ import assertk.assertions.isEmpty
 import assertk.assertions.isEqualTo
 import assertk.assertions.isFalse
 import assertk.assertions.isNotEmpty
+import assertk.assertions.isNull
+import assertk.assertions.isSameAs
 import assertk.assertions.isTrue
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Socket
+import javax.net.SocketFactory
 import okhttp3.Address
+import okhttp3.CertificatePinner
+import okhttp3.CipherSuite
+import okhttp3.ConnectionListener
 import okhttp3.ConnectionPool
 import okhttp3.FakeRoutePlanner
+import okhttp3.Handshake
 import okhttp3.OkHttpClient
+import okhttp3.Protocol
 import okhttp3.Request
+import okhttp3.Route
 import okhttp3.TestUtil.awaitGarbageCollection
+import okhttp3.TlsVersion
 import okhttp3.internal.concurrent.TaskRunner
 import okhttp3.internal.connection.Locks.withLock
 import okhttp3.internal.http2.Http2
@@ -34,6 +47,9 @@ import okhttp3.internal.http2.Http2Connection
 import okhttp3.internal.http2.Http2ConnectionTest
 import okhttp3.internal.http2.MockHttp2Peer
 import okhttp3.internal.http2.Settings
+import okhttp3.internal.tls.OkHostnameVerifier
+import okhttp3.tls.HeldCertificate
+import okio.Buffer
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Disabled
 import org.junit.jupiter.api.Test
@@ -51,6 +67,10 @@ class ConnectionPoolTest {
   private val routeB1 = factory.newRoute(addressB)
   private val addressC = factory.newAddress("c")
   private val routeC1 = factory.newRoute(addressC)
+  private val socketAddress1 =
+    InetSocketAddress(InetAddress.getByAddress(byteArrayOf(10, 0, 0, 1)), 443)
+  private val socketAddress2 =
+    InetSocketAddress(InetAddress.getByAddress(byteArrayOf(10, 0, 0, 2)), 443)
 
   @AfterEach fun tearDown() {
     factory.close()
@@ -170,6 +190,36 @@ class ConnectionPoolTest {
     assertThat(c3.socket().isClosed).isFalse()
   }
 
+  @Test fun expiredConnectionsEvictedTogether() {
+    val pool = factory.newConnectionPool()
+    val expired = List(50) { factory.newConnection(pool, routeA1, 10L + it) }
+    val c1 = factory.newConnection(pool, routeB1, 75L)
+
+    // Running at time 150, the pool evicts every expired connection in one run.
+    assertThat(pool.closeConnections(150L)).isEqualTo(0L)
+    assertThat(pool.connectionCount()).isEqualTo(1)
+    assertThat(expired.all { it.socket().isClosed }).isTrue()
+    assertThat(c1.socket().isClosed).isFalse()
+
+    // Running at time 150, the pool returns that nothing can be evicted until time 175.
+    assertThat(pool.closeConnections(150L)).isEqualTo(25L)
+  }
+
+  @Test fun excessIdleConnectionsEvictedTogether() {
+    val pool =
+      factory.newConnectionPool(
+        maxIdleConnections = 2,
+      )
+    val connections = List(10) { factory.newConnection(pool, routeA1, 50L + it) }
+
+    // The 8 longest-idle connections are evicted in one run.
+    assertThat(pool.closeConnections(100L)).isEqualTo(0L)
+    assertThat(pool.connectionCount()).isEqualTo(2)
+    assertThat(connections.count { it.socket().isClosed }).isEqualTo(8)
+    assertThat(connections[8].socket().isClosed).isFalse()
+    assertThat(connections[9].socket().isClosed).isFalse()
+  }
+
   @Test fun leakedAllocation() {
     val pool = factory.newConnectionPool()
     val poolApi = ConnectionPool(pool)
@@ -266,6 +316,136 @@ class ConnectionPoolTest {
     assertThat(pool.connectionCount()).isEqualTo(1)
   }
 
+  @Test fun evictedConnectionLeavesEveryIndex() {
+    val pool = factory.newConnectionPool()
+    val address = newCoalescingAddress("a.example.com")
+    newHttp2Connection(pool, factory.newRoute(address, socketAddress = socketAddress1))
+    assertThat(pool.indexKeys()).isEqualTo(
+      setOf(address, socketAddress1, "a.example.com", "*.example.com"),
+    )
+
+    pool.evictAll()
+    assertThat(pool.indexKeys()).isEmpty()
+  }
+
+  @Test fun noNewExchangesConnectionLeavesEveryIndex() {
+    val pool = factory.newConnectionPool()
+    val address = newCoalescingAddress("a.example.com")
+    val c1 = newHttp2Connection(pool, factory.newRoute(address, socketAddress = socketAddress1))
+    factory.newConnection(pool, routeB1)
+
+    c1.withLock {
+      c1.noNewExchanges = true
+      assertThat(pool.connectionBecameIdle(c1)).isTrue()
+    }
+    assertThat(pool.indexKeys()).isEqualTo(setOf(addressB))
+  }
+
+  @Test fun coalescesWithConnectionToAnotherHostAtTheSameSocketAddress() {
+    val pool = factory.newConnectionPool()
+    val addressA = newCoalescingAddress("a.example.com")
+    val c1 = newHttp2Connection(pool, factory.newRoute(addressA, socketAddress = socketAddress1))
+
+    val addressB = newCoalescingAddress("b.example.com")
+    val elsewhere = listOf(factory.newRoute(addressB, socketAddress = socketAddress2))
+    assertThat(acquire(pool, addressB, elsewhere)).isNull()
+
+    val sameIp = listOf(factory.newRoute(addressB, socketAddress = socketAddress1))
+    assertThat(acquire(pool, addressB, sameIp)).isSameAs(c1)
+  }
+
+  @Test fun removingLastConnectionForAddressEmptiesItsQueue() {
+    val pool = factory.newConnectionPool()
+    val c1 = factory.newConnection(pool, routeA1)
+    val c2 = factory.newConnection(pool, routeA1)
+
+    c1.withLock {
+      c1.noNewExchanges = true
+      pool.connectionBecameIdle(c1)
+    }
+    assertThat(pool.indexKeys()).isEqualTo(setOf(addressA))
+
+    c2.withLock {
+      c2.noNewExchanges = true
+      pool.connectionBecameIdle(c2)
+    }
+    assertThat(pool.indexKeys()).isEmpty()
+  }
+
+  /** Returns an address whose connections may be coalesced with other hosts. */
+  private fun newCoalescingAddress(host: String): Address {
+    return Address(
+      uriHost = host,
+      uriPort = factory.uriPort,
+      dns = factory.dns,
+      socketFactory = SocketFactory.getDefault(),
+      sslSocketFactory = factory.sslSocketFactory,
+      hostnameVerifier = OkHostnameVerifier,
+      certificatePinner = CertificatePinner.DEFAULT,
+      proxyAuthenticator = factory.proxyAuthenticator,
+      proxy = null,
+      protocols = factory.protocols,
+      connectionSpecs = factory.connectionSpecs,
+      proxySelector = factory.proxySelector,
+    )
+  }
+
+  /**
+   * Returns a pooled HTTP/2 connection whose certificate covers `*.example.com`. Its reader task is
+   * never run, so the connection stays healthy without a peer.
+   */
+  private fun newHttp2Connection(
+    pool: RealConnectionPool,
+    route: Route,
+  ): RealConnection {
+    val certificate =
+      HeldCertificate.Builder()
+        .addSubjectAlternativeName(route.address.url.host)
+        .addSubjectAlternativeName("*.example.com")
+        .build()
+    val socket = Socket()
+    val connection =
+      RealConnection(
+        taskRunner = factory.taskRunner,
+        connectionPool = pool,
+        route = route,
+        rawSocket = socket,
+        socket = socket,
+        handshake =
+          Handshake.get(
+            TlsVersion.TLS_1_3,
+            CipherSuite.TLS_AES_128_GCM_SHA256,
+            listOf(certificate.certificate),
+            listOf(),
+          ),
+        protocol = Protocol.HTTP_2,
+        source = Buffer(),
+        sink = Buffer(),
+        pingIntervalMillis = 0,
+        connectionListener = ConnectionListener.NONE,
+      )
+    connection.start()
+    connection.withLock { pool.put(connection) }
+    return connection
+  }
+
+  private fun acquire(
+    pool: RealConnectionPool,
+    address: Address,
+    routes: List<Route>,
+  ): RealConnection? {
+    val client = OkHttpClient.Builder().build()
+    val call = client.newCall(Request(address.url)) as RealCall
+    val connectionUser = CallConnectionUser(call, ConnectionListener.NONE, factory.newChain(call))
+    return pool.callAcquirePooledConnection(
+      doExtensiveHealthChecks = false,
+      address = address,
+      connectionUser = connectionUser,
+      routes = routes,
+      requireMultiplexed = false,
+    )
+  }
+
   private fun setPolicy(
     pool: RealConnectionPool,
     address: Address,
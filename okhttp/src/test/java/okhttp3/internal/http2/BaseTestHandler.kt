@@ -106,4 +106,8 @@ internal open class BaseTestHandler : Http2Reader.Handler {
   ) {
     fail("")
   }
+
+  override fun origin(origins: List<String>) {
+    fail("")
+  }
 }
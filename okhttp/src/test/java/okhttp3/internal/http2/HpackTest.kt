@@ -19,6 +19,7 @@ import assertk.assertThat
 import assertk.assertions.containsExactly
 import assertk.assertions.isEqualTo
 import assertk.assertions.isNull
+import assertk.assertions.isSameInstanceAs
 import java.io.IOException
 import java.util.Arrays
 import kotlin.test.assertFailsWith
@@ -252,6 +253,19 @@ class HpackTest {
     assertThat(hpackReader!!.getAndResetHeaderList()).isEqualTo(headerBlock)
   }
 
+  @Test
+  fun literalNewNameIsInternedToStaticTable() {
+    bytesIn.writeByte(0x00) // Not indexed
+    bytesIn.writeByte(0x0d) // Literal name (len = 13)
+    bytesIn.writeUtf8("cache-control")
+    bytesIn.writeByte(0x08) // Literal value (len = 8)
+    bytesIn.writeUtf8("no-cache")
+    hpackReader!!.readHeaders()
+    val header = hpackReader!!.getAndResetHeaderList().single()
+    assertThat(header.name).isSameInstanceAs(Hpack.staticName("cache-control"))
+    assertThat(header.value.utf8()).isEqualTo("no-cache")
+  }
+
   @Test
   fun literalHeaderFieldNeverIndexedIndexedName() {
     bytesIn.writeByte(0x14) // == Literal never indexed ==
@@ -1099,6 +1113,97 @@ class HpackTest {
     assertThat(hpackWriter!!.headerCount).isEqualTo(2)
   }
 
+  @Test
+  fun dynamicTableIndexesShiftAsEntriesAreAdded() {
+    hpackWriter!!.writeHeaders(headerEntries("foo", "bar"))
+    hpackWriter!!.writeHeaders(headerEntries("baz", "qux"))
+    bytesOut.clear()
+
+    hpackWriter!!.writeHeaders(headerEntries("foo", "bar", "baz", "qux"))
+    assertBytes(0xbf, 0xbe)
+    assertThat(hpackWriter!!.headerCount).isEqualTo(2)
+  }
+
+  @Test
+  fun evictedEntriesAreNotReferenced() {
+    // Set to only support 110 bytes (enough for 2 headers).
+    val writer = Hpack.Writer(110, false, bytesOut)
+    writer.writeHeaders(
+      headerEntries(
+        "custom-foo",
+        "custom-header",
+        "custom-bar",
+        "custom-header",
+        "custom-baz",
+        "custom-header",
+      ),
+    )
+    bytesOut.clear()
+
+    // custom-foo was evicted, so it's sent as a literal and evicts custom-bar.
+    writer.writeHeaders(headerEntries("custom-foo", "custom-header"))
+    assertThat(bytesOut.readByte()).isEqualTo(0x40.toByte())
+    bytesOut.clear()
+
+    writer.writeHeaders(headerEntries("custom-bar", "custom-header"))
+    assertThat(bytesOut.readByte()).isEqualTo(0x40.toByte())
+    bytesOut.clear()
+
+    writer.writeHeaders(headerEntries("custom-foo", "custom-header", "custom-bar", "custom-header"))
+    assertBytes(0xbf, 0xbe)
+    assertThat(writer.headerCount).isEqualTo(2)
+  }
+
+  @Test
+  fun mixedCaseNamesAreIndexedInLowercase() {
+    hpackWriter!!.writeHeaders(headerEntries("Custom-Key", "custom-header"))
+    assertThat(bytesOut.readByte()).isEqualTo(0x40.toByte())
+    assertThat(bytesOut.readByte()).isEqualTo(10.toByte())
+    assertThat(bytesOut.readUtf8(10)).isEqualTo("custom-key")
+    bytesOut.clear()
+
+    hpackWriter!!.writeHeaders(headerEntries("CUSTOM-KEY", "custom-header"))
+    assertBytes(0xbe)
+    assertThat(hpackWriter!!.headerCount).isEqualTo(1)
+  }
+
+  @Test
+  fun neverIndexingStrategy() {
+    val writer = Hpack.Writer(4096, false, bytesOut, Hpack.IndexingStrategy.NEVER)
+
+    // Literal Header Field without Indexing - New Name.
+    writer.writeHeaders(headerEntries("foo", "bar"))
+    assertBytes(0x00, 3, 'f'.code, 'o'.code, 'o'.code, 3, 'b'.code, 'a'.code, 'r'.code)
+
+    // Literal Header Field without Indexing - Indexed Name.
+    writer.writeHeaders(headerEntries("accept-encoding", "gzip"))
+    assertBytes(0x0f, 0x01, 4, 'g'.code, 'z'.code, 'i'.code, 'p'.code)
+
+    // Static table entries are still referenced.
+    writer.writeHeaders(headerEntries(":method", "GET"))
+    assertBytes(0x82)
+
+    assertThat(writer.headerCount).isEqualTo(0)
+  }
+
+  @Test
+  fun sizeBoundedIndexingStrategy() {
+    val writer = Hpack.Writer(4096, false, bytesOut, Hpack.IndexingStrategy.sizeBounded(64))
+
+    writer.writeHeaders(headerEntries("foo", "bar"))
+    assertThat(bytesOut.readByte()).isEqualTo(0x40.toByte())
+    bytesOut.clear()
+
+    // The cookie's HPACK size is 32 + 6 + 100 bytes, so it isn't indexed.
+    writer.writeHeaders(headerEntries("cookie", "a".repeat(100)))
+    assertThat(bytesOut.readByte()).isEqualTo(0x0f.toByte())
+    bytesOut.clear()
+
+    writer.writeHeaders(headerEntries("foo", "bar"))
+    assertBytes(0xbe)
+    assertThat(writer.headerCount).isEqualTo(1)
+  }
+
   private fun newReader(source: Buffer): Hpack.Reader {
     return Hpack.Reader(source, 4096)
   }
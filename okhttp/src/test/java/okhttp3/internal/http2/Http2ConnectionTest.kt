@@ -17,6 +17,7 @@ package okhttp3.internal.http2
 
 import assertk.assertThat
 import assertk.assertions.contains
+import assertk.assertions.containsExactlyInAnyOrder
 import assertk.assertions.hasSize
 import assertk.assertions.isCloseTo
 import assertk.assertions.isEqualTo
@@ -38,10 +39,12 @@ import okhttp3.internal.EMPTY_BYTE_ARRAY
 import okhttp3.internal.EMPTY_HEADERS
 import okhttp3.internal.concurrent.TaskFaker
 import okhttp3.internal.concurrent.TaskRunner
+import okhttp3.internal.concurrent.WheelTimeout
 import okhttp3.internal.connection.Locks.withLock
+import okhttp3.internal.http2.flowcontrol.BdpEstimator
+import okhttp3.internal.http2.flowcontrol.ReceiveBudget
 import okhttp3.internal.notifyAll
 import okhttp3.internal.wait
-import okio.AsyncTimeout
 import okio.Buffer
 import okio.BufferedSource
 import okio.Source
@@ -83,6 +86,30 @@ class Http2ConnectionTest {
     assertThat(ping.ack).isTrue()
   }
 
+  @Test fun peerAnnouncesOriginSet() {
+    // Write the mocking script.
+    peer.sendFrame().settings(Settings())
+    peer.acceptFrame() // ACK
+    peer.sendFrame().origin(listOf("https://a.example.com", "https://b.example.com:8443"))
+    peer.sendFrame().origin(listOf("https://C.example.com", "not a url"))
+    peer.sendFrame().ping(false, 2, 0)
+    peer.acceptFrame() // PING
+    peer.play()
+
+    // Play it back.
+    val connection = connect(peer)
+
+    // The ping reply guarantees the ORIGIN frames have been processed.
+    assertThat(peer.takeFrame().type).isEqualTo(Http2.TYPE_PING)
+    assertThat(connection.originSet).isEqualTo(
+      setOf(
+        "https://a.example.com:443",
+        "https://b.example.com:8443",
+        "https://c.example.com:443",
+      ),
+    )
+  }
+
   @Test fun peerHttp2ServerLowersInitialWindowSize() {
     val initial = Settings()
     initial[Settings.INITIAL_WINDOW_SIZE] = 1684
@@ -315,6 +342,166 @@ class Http2ConnectionTest {
     }
   }
 
+  @Test fun adaptiveWindowShrinksWhenSamplesAreSmall() {
+    // Write the mocking script.
+    peer.sendFrame().settings(Settings())
+    peer.acceptFrame() // ACK
+    peer.acceptFrame() // SYN_STREAM
+    peer.sendFrame().headers(false, 3, headerEntries("a", "android"))
+    for (i in 0 until BdpEstimator.SHRINK_AFTER_SAMPLES) {
+      peer.sendFrame().data(false, 3, data(1), 1)
+      peer.acceptFrame() // PING
+      peer.sendFrame().ping(true, Http2Connection.BDP_PING, 0)
+    }
+    peer.acceptFrame() // SETTINGS
+    peer.acceptFrame() // SYN_STREAM
+    peer.sendFrame().applyAndAckSettings(Settings()) // ACK
+    peer.play()
+
+    // Play it back.
+    val connection =
+      Http2Connection.Builder(true, TaskRunner.INSTANCE)
+        .socket(peer.openSocket())
+        .adaptiveWindow(true)
+        .build()
+    connection.start(sendConnectionPreface = false)
+    connection.newStream(headerEntries("b", "banana"), false)
+
+    // Verify the peer received what was expected.
+    assertThat(peer.takeFrame().type).isEqualTo(Http2.TYPE_SETTINGS) // ACK
+    assertThat(peer.takeFrame().type).isEqualTo(Http2.TYPE_HEADERS)
+    for (i in 0 until BdpEstimator.SHRINK_AFTER_SAMPLES) {
+      val ping = peer.takeFrame()
+      assertThat(ping.type).isEqualTo(Http2.TYPE_PING)
+      assertThat(ping.payload1).isEqualTo(Http2Connection.BDP_PING)
+    }
+    val settings = peer.takeFrame()
+    assertThat(settings.type).isEqualTo(Http2.TYPE_SETTINGS)
+    val windowSize = Http2Connection.OKHTTP_CLIENT_WINDOW_SIZE / 2
+    assertThat(settings.settings!!.initialWindowSize).isEqualTo(windowSize)
+
+    // Until the peer acknowledges the smaller window, new streams accept the larger one.
+    val stream = connection.newStream(headerEntries("c", "cola"), false)
+    assertThat(stream.source.maxByteCount)
+      .isEqualTo(Http2Connection.OKHTTP_CLIENT_WINDOW_SIZE.toLong())
+    assertThat(peer.takeFrame().type).isEqualTo(Http2.TYPE_HEADERS)
+    while (connection.okHttpSettings.initialWindowSize != windowSize) {
+      Thread.sleep(10)
+    }
+  }
+
+  @Test fun exhaustedReceiveBudgetWithholdsConnectionWindowUpdate() {
+    // Write the mocking script.
+    peer.sendFrame().settings(Settings())
+    peer.acceptFrame() // ACK
+    peer.acceptFrame() // SYN_STREAM
+    peer.sendFrame().headers(false, 3, headerEntries("a", "android"))
+    peer.sendFrame().data(false, 3, data(50), 50)
+    peer.acceptFrame() // stream WINDOW UPDATE
+    peer.acceptFrame() // connection WINDOW UPDATE
+    peer.play()
+
+    // Play it back.
+    val poolBudget = ReceiveBudget().apply { limit = 40L }
+    val connection =
+      Http2Connection.Builder(true, TaskRunner.INSTANCE)
+        .socket(peer.openSocket())
+        .receiveBudget(poolBudget)
+        .build()
+    connection.okHttpSettings[Settings.INITIAL_WINDOW_SIZE] = 100
+    connection.start(sendConnectionPreface = false)
+    val stream = connection.newStream(headerEntries("b", "banana"), false)
+    assertThat(stream.takeHeaders()).isEqualTo(headersOf("a", "android"))
+    while (poolBudget.bufferedByteCount < 50L) {
+      Thread.sleep(10)
+    }
+
+    // The connection window is half consumed, but the budget is exhausted.
+    assertThat(connection.receiveBudget.bufferedByteCount).isEqualTo(50L)
+    assertThat(stream.bufferedByteCount).isEqualTo(50L)
+    assertThat(connection.readBytes.acknowledged).isEqualTo(0L)
+
+    // Reading makes room in the budget, which releases the connection window update.
+    assertThat(stream.getSource().read(Buffer(), 50L)).isEqualTo(50L)
+    assertThat(poolBudget.bufferedByteCount).isEqualTo(0L)
+
+    // Verify the peer received what was expected.
+    assertThat(peer.takeFrame().type).isEqualTo(Http2.TYPE_SETTINGS) // ACK
+    assertThat(peer.takeFrame().type).isEqualTo(Http2.TYPE_HEADERS)
+    val windowUpdateStreamIds = mutableListOf<Int>()
+    for (i in 0..1) {
+      val windowUpdate = peer.takeFrame()
+      assertThat(windowUpdate.type).isEqualTo(Http2.TYPE_WINDOW_UPDATE)
+      assertThat(windowUpdate.windowSizeIncrement).isEqualTo(50L)
+      windowUpdateStreamIds += windowUpdate.streamId
+    }
+    assertThat(windowUpdateStreamIds).containsExactlyInAnyOrder(0, 3)
+  }
+
+  @Test fun resetStreamReleasesReceiveBudget() {
+    // Write the mocking script.
+    peer.sendFrame().settings(Settings())
+    peer.acceptFrame() // ACK
+    peer.acceptFrame() // SYN_STREAM
+    peer.sendFrame().headers(false, 3, headerEntries("a", "android"))
+    peer.sendFrame().data(false, 3, data(50), 50)
+    peer.sendFrame().rstStream(3, ErrorCode.CANCEL)
+    peer.play()
+
+    // Play it back.
+    val poolBudget = ReceiveBudget()
+    val connection =
+      Http2Connection.Builder(true, TaskRunner.INSTANCE)
+        .socket(peer.openSocket())
+        .receiveBudget(poolBudget)
+        .build()
+    connection.start(sendConnectionPreface = false)
+    val stream = connection.newStream(headerEntries("b", "banana"), false)
+    assertThat(stream.takeHeaders()).isEqualTo(headersOf("a", "android"))
+    while (stream.errorCode == null) {
+      Thread.sleep(10)
+    }
+
+    // The reset stream still buffers its data, but it no longer holds the budget.
+    assertThat(stream.bufferedByteCount).isEqualTo(50L)
+    assertThat(connection.receiveBudget.bufferedByteCount).isEqualTo(0L)
+    assertThat(poolBudget.bufferedByteCount).isEqualTo(0L)
+
+    // Reading what's left doesn't release it twice.
+    assertThat(stream.getSource().read(Buffer(), 50L)).isEqualTo(50L)
+    assertThat(poolBudget.bufferedByteCount).isEqualTo(0L)
+  }
+
+  @Test fun closedConnectionReleasesReceiveBudget() {
+    // Write the mocking script.
+    peer.sendFrame().settings(Settings())
+    peer.acceptFrame() // ACK
+    peer.acceptFrame() // SYN_STREAM
+    peer.sendFrame().headers(false, 3, headerEntries("a", "android"))
+    peer.sendFrame().data(true, 3, data(50), 50)
+    peer.acceptFrame() // GOAWAY
+    peer.play()
+
+    // Play it back.
+    val poolBudget = ReceiveBudget()
+    val connection =
+      Http2Connection.Builder(true, TaskRunner.INSTANCE)
+        .socket(peer.openSocket())
+        .receiveBudget(poolBudget)
+        .build()
+    connection.start(sendConnectionPreface = false)
+    val stream = connection.newStream(headerEntries("b", "banana"), false)
+    assertThat(stream.takeHeaders()).isEqualTo(headersOf("a", "android"))
+    while (poolBudget.bufferedByteCount < 50L) {
+      Thread.sleep(10)
+    }
+
+    // The response body is never read or closed, but closing the connection releases its bytes.
+    connection.close()
+    assertThat(connection.receiveBudget.bufferedByteCount).isEqualTo(0L)
+    assertThat(poolBudget.bufferedByteCount).isEqualTo(0L)
+  }
+
   @Test fun serverSendsEmptyDataClientDoesntSendWindowUpdateHttp2() {
     // Write the mocking script.
     peer.sendFrame().settings(Settings())
@@ -1878,6 +2065,142 @@ class Http2ConnectionTest {
       .isEqualTo(Settings.DEFAULT_INITIAL_WINDOW_SIZE.toLong())
   }
 
+  @Test fun streamsTakeTurnsWritingToConnectionWindow() {
+    val windowSize = Settings.DEFAULT_INITIAL_WINDOW_SIZE
+    val framesThatFillWindow = roundUp(windowSize, peer.maxOutboundDataLength())
+
+    // Write the mocking script. Stream windows are large so only the connection window applies.
+    peer.sendFrame().settings(Settings().set(Settings.INITIAL_WINDOW_SIZE, 1 shl 20))
+    peer.acceptFrame() // SETTINGS ACK
+    peer.acceptFrame() // PING
+    peer.sendFrame().ping(true, Http2Connection.AWAIT_PING, 0)
+    peer.acceptFrame() // SYN_STREAM on stream 3
+    for (i in 0 until framesThatFillWindow) {
+      peer.acceptFrame() // DATA on stream 3
+    }
+    peer.acceptFrame() // SYN_STREAM on stream 5
+    peer.acceptFrame() // DATA on stream 3
+    peer.acceptFrame() // DATA on stream 5
+    peer.acceptFrame() // RST_STREAM on stream 3
+    peer.play()
+
+    // Play it back.
+    val connection = connect(peer)
+    connection.writePingAndAwaitPong() // Make sure settings have been acked.
+    val stream1 = connection.newStream(headerEntries("a", "apple"), true)
+    val out1 = stream1.getSink().buffer()
+    out1.write(ByteArray(windowSize))
+    out1.flush()
+    assertThat(connection.writeBytesTotal).isEqualTo(windowSize.toLong())
+    val stream2 = connection.newStream(headerEntries("b", "banana"), true)
+
+    // Stream 1 waits for the connection window, then stream 2 waits behind it.
+    val uploader =
+      Thread {
+        try {
+          out1.write(ByteArray(2 * Http2Stream.EMIT_BUFFER_SIZE.toInt()))
+          out1.flush()
+        } catch (expected: IOException) {
+        }
+      }
+    uploader.start()
+    awaitWaiting(uploader)
+    val rpc =
+      Thread {
+        val out2 = stream2.getSink().buffer()
+        out2.writeUtf8("foo")
+        out2.flush()
+      }
+    rpc.start()
+    awaitWaiting(rpc)
+
+    // Open the window enough for both. Stream 1 gets one quantum, then it's stream 2's turn.
+    connection.readerRunnable.windowUpdate(0, Http2Stream.EMIT_BUFFER_SIZE + 3)
+    rpc.join()
+    assertThat(stream2.writeBytesTotal).isEqualTo(3L)
+    assertThat(connection.writeBytesTotal)
+      .isEqualTo(windowSize + Http2Stream.EMIT_BUFFER_SIZE + 3)
+
+    stream1.close(ErrorCode.CANCEL, null)
+    uploader.join()
+  }
+
+  @Test fun heavierStreamGetsLargerShareOfConnectionWindow() {
+    val windowSize = Settings.DEFAULT_INITIAL_WINDOW_SIZE
+    val frameSize = peer.maxOutboundDataLength()
+    val framesThatFillWindow = roundUp(windowSize, frameSize)
+
+    // Write the mocking script. Stream windows are large so only the connection window applies.
+    peer.sendFrame().settings(Settings().set(Settings.INITIAL_WINDOW_SIZE, 1 shl 20))
+    peer.acceptFrame() // SETTINGS ACK
+    peer.acceptFrame() // PING
+    peer.sendFrame().ping(true, Http2Connection.AWAIT_PING, 0)
+    peer.acceptFrame() // SYN_STREAM on stream 3
+    for (i in 0 until framesThatFillWindow) {
+      peer.acceptFrame() // DATA on stream 3
+    }
+    peer.acceptFrame() // SYN_STREAM on stream 5
+    peer.acceptFrame() // SYN_STREAM on stream 7
+    for (i in 0 until 6) {
+      peer.acceptFrame() // DATA on stream 5 or 7
+    }
+    peer.acceptFrame() // RST_STREAM on stream 5
+    peer.acceptFrame() // RST_STREAM on stream 7
+    peer.play()
+
+    // Play it back. Fill the connection window so the next writes have to wait.
+    val connection = connect(peer)
+    connection.writePingAndAwaitPong() // Make sure settings have been acked.
+    val stream1 = connection.newStream(headerEntries("a", "apple"), true)
+    val out1 = stream1.getSink().buffer()
+    out1.write(ByteArray(windowSize))
+    out1.flush()
+
+    // Two uploads wait for the connection window. The first has twice the default weight.
+    val heavy = connection.newStream(headerEntries("b", "banana"), true)
+    heavy.weight = Http2Stream.DEFAULT_WEIGHT * 2
+    val light = connection.newStream(headerEntries("c", "cherry"), true)
+    val uploaders =
+      listOf(heavy, light).map { stream ->
+        Thread {
+          try {
+            val out = stream.getSink().buffer()
+            out.write(ByteArray(8 * frameSize))
+            out.flush()
+          } catch (expected: IOException) {
+          }
+        }
+      }
+    for (uploader in uploaders) {
+      uploader.start()
+      awaitWaiting(uploader)
+    }
+
+    // Open the window for six frames. The heavier stream writes two for each of the other's one.
+    connection.readerRunnable.windowUpdate(0, 6L * frameSize)
+    val dataStreamIds = mutableListOf<Int>()
+    while (dataStreamIds.size < 6) {
+      val frame = peer.takeFrame()
+      if (frame.type == Http2.TYPE_DATA && frame.streamId != stream1.id) {
+        dataStreamIds += frame.streamId
+      }
+    }
+    assertThat(dataStreamIds.count { it == heavy.id }).isEqualTo(4)
+    assertThat(dataStreamIds.count { it == light.id }).isEqualTo(2)
+
+    heavy.close(ErrorCode.CANCEL, null)
+    light.close(ErrorCode.CANCEL, null)
+    for (uploader in uploaders) {
+      uploader.join()
+    }
+  }
+
+  private fun awaitWaiting(thread: Thread) {
+    while (thread.state != Thread.State.WAITING) {
+      Thread.sleep(10)
+    }
+  }
+
   @Test fun remoteOmitsInitialSettings() {
     // Write the mocking script. Note no SETTINGS frame is sent or acknowledged.
     peer.acceptFrame() // SYN_STREAM
@@ -1919,6 +2242,50 @@ class Http2ConnectionTest {
     assertThat(queues).hasSize(1)
   }
 
+  @Test fun coalescedWritesAreFlushedInBatches() {
+    peer.acceptFrame() // PING
+    peer.acceptFrame() // PING
+    peer.acceptFrame() // PING
+    peer.play()
+    val connection =
+      Http2Connection.Builder(true, taskFaker.taskRunner)
+        .socket(peer.openSocket())
+        .pushObserver(IGNORE)
+        .coalesceWrites(true)
+        .build()
+
+    // Each ping is flushed, but nothing is written until the writer task runs.
+    connection.writePing(false, 1, 0)
+    connection.writePing(false, 2, 0)
+    connection.writePing(false, 3, 0)
+    assertThat(connection.framesPerFlush).isEqualTo(0.0)
+
+    taskFaker.runTasks()
+    assertThat(connection.framesPerFlush).isEqualTo(3.0)
+
+    // Verify the peer received what was expected.
+    for (expected in 1..3) {
+      val ping = peer.takeFrame()
+      assertThat(ping.type).isEqualTo(Http2.TYPE_PING)
+      assertThat(ping.payload1).isEqualTo(expected)
+    }
+  }
+
+  @Test fun coalescingSinkWritesThroughWhenTooMuchIsQueued() {
+    val socketSink = Buffer()
+    val coalescingSink =
+      CoalescingSink(socketSink, taskFaker.taskRunner.newQueue(), "test") { throw it }
+
+    // Small writes are queued for the writer task.
+    val byteCount = CoalescingSink.MAX_PENDING_BYTES - 1L
+    coalescingSink.write(data(byteCount.toInt()), byteCount)
+    assertThat(socketSink.size).isEqualTo(0L)
+
+    // Once the queue is full the producer writes to the socket itself.
+    coalescingSink.write(data(1), 1L)
+    assertThat(socketSink.size).isEqualTo(CoalescingSink.MAX_PENDING_BYTES)
+  }
+
   private fun data(byteCount: Int): Buffer = Buffer().write(ByteArray(byteCount))
 
   private fun assertStreamData(
@@ -1936,8 +2303,8 @@ class Http2ConnectionTest {
    */
   private fun awaitWatchdogIdle() {
     val latch = CountDownLatch(1)
-    val watchdogJob: AsyncTimeout =
-      object : AsyncTimeout() {
+    val watchdogJob: WheelTimeout =
+      object : WheelTimeout() {
         override fun timedOut() {
           latch.countDown()
         }
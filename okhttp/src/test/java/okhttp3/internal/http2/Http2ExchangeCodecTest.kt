@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2
+
+import assertk.assertThat
+import assertk.assertions.isEqualTo
+import okhttp3.CallPriority
+import okhttp3.internal.http2.Http2ExchangeCodec.Companion.streamWeight
+import org.junit.jupiter.api.Test
+
+class Http2ExchangeCodecTest {
+  @Test fun callPriorityWeightsStreams() {
+    assertThat(streamWeight(null)).isEqualTo(Http2Stream.DEFAULT_WEIGHT)
+    assertThat(streamWeight(CallPriority.NORMAL)).isEqualTo(16)
+    assertThat(streamWeight(CallPriority.HIGH)).isEqualTo(32)
+    assertThat(streamWeight(CallPriority.LOW)).isEqualTo(8)
+  }
+
+  @Test fun extremePrioritiesStayInRange() {
+    assertThat(streamWeight(CallPriority(100))).isEqualTo(256)
+    assertThat(streamWeight(CallPriority(-100))).isEqualTo(1)
+  }
+}
@@ -33,6 +33,7 @@ import okhttp3.internal.http2.Http2.FLAG_NONE
 import okhttp3.internal.http2.Http2.FLAG_PADDED
 import okhttp3.internal.http2.Http2.FLAG_PRIORITY
 import okhttp3.internal.http2.Http2.TYPE_GOAWAY
+import okhttp3.internal.http2.Http2.TYPE_ORIGIN
 import okio.Buffer
 import okio.BufferedSink
 import okio.BufferedSource
@@ -589,6 +590,29 @@ class Http2Test {
     assertThat(frame.exhausted()).isTrue()
   }
 
+  @Test fun nextFrameIsBufferedData() {
+    assertThat(reader.nextFrameIsBufferedData()).isFalse()
+
+    // A DATA frame header without its payload.
+    writeMedium(frame, 3)
+    frame.writeByte(Http2.TYPE_DATA)
+    frame.writeByte(FLAG_NONE)
+    frame.writeInt(expectedStreamId)
+    assertThat(reader.nextFrameIsBufferedData()).isFalse()
+
+    frame.writeUtf8("abc")
+    assertThat(reader.nextFrameIsBufferedData()).isTrue()
+
+    // Other frame types aren't data, even when fully buffered.
+    frame.skip(12)
+    writeMedium(frame, 8)
+    frame.writeByte(Http2.TYPE_PING)
+    frame.writeByte(FLAG_NONE)
+    frame.writeInt(0)
+    frame.writeLong(0L)
+    assertThat(reader.nextFrameIsBufferedData()).isFalse()
+  }
+
   @Test fun tooLargeDataFrame() {
     assertFailsWith<IllegalArgumentException> {
       sendDataFrame(Buffer().write(ByteArray(0x1000000)))
@@ -664,6 +688,69 @@ class Http2Test {
     )
   }
 
+  @Test fun originRoundTrip() {
+    val expectedOrigins = listOf("https://a.example.com", "https://b.example.com:8443")
+    writeMedium(frame, 2 + 21 + 2 + 26)
+    frame.writeByte(TYPE_ORIGIN)
+    frame.writeByte(FLAG_NONE)
+    frame.writeInt(0) // connection-scope
+    frame.writeShort(21)
+    frame.writeUtf8("https://a.example.com")
+    frame.writeShort(26)
+    frame.writeUtf8("https://b.example.com:8443")
+
+    // Check writer sends the same bytes.
+    val out = Buffer()
+    Http2Writer(out, false).origin(expectedOrigins)
+    assertThat(out).isEqualTo(frame)
+
+    var received: List<String>? = null
+    reader.nextFrame(
+      requireSettings = false,
+      object : BaseTestHandler() {
+        override fun origin(origins: List<String>) {
+          received = origins
+        }
+      },
+    )
+    assertThat(received).isEqualTo(expectedOrigins)
+  }
+
+  @Test fun originOnStreamIsIgnored() {
+    writeMedium(frame, 2 + 21)
+    frame.writeByte(TYPE_ORIGIN)
+    frame.writeByte(FLAG_NONE)
+    frame.writeInt(expectedStreamId)
+    frame.writeShort(21)
+    frame.writeUtf8("https://a.example.com")
+
+    // BaseTestHandler fails if the frame is delivered.
+    reader.nextFrame(requireSettings = false, BaseTestHandler())
+    assertThat(frame.exhausted()).isTrue()
+  }
+
+  @Test fun originWithTruncatedEntry() {
+    writeMedium(frame, 2 + 5)
+    frame.writeByte(TYPE_ORIGIN)
+    frame.writeByte(FLAG_NONE)
+    frame.writeInt(0) // connection-scope
+    frame.writeShort(21)
+    frame.writeUtf8("https")
+
+    // ORIGIN is non-critical: a malformed frame is skipped. BaseTestHandler fails if delivered.
+    reader.nextFrame(requireSettings = false, BaseTestHandler())
+    assertThat(frame.exhausted()).isTrue()
+  }
+
+  @Test fun originLengthIsInUtf8Bytes() {
+    val out = Buffer()
+    Http2Writer(out, false).origin(listOf("https://caf\u00e9.example"))
+    assertThat(out.size).isEqualTo(9L + 2L + 21L)
+    out.skip(9L) // Frame header.
+    assertThat(out.readShort().toInt()).isEqualTo(21)
+    assertThat(out.readUtf8()).isEqualTo("https://caf\u00e9.example")
+  }
+
   @Test fun goAwayWithDebugDataRoundTrip() {
     val expectedError = ErrorCode.PROTOCOL_ERROR
     val expectedData: ByteString = "abcdefgh".encodeUtf8()
@@ -17,12 +17,16 @@ package okhttp3.internal.http2
 
 import assertk.assertThat
 import assertk.assertions.isEqualTo
+import java.io.IOException
 import java.util.Random
+import kotlin.test.assertFailsWith
 import okhttp3.internal.http2.Huffman.decode
 import okhttp3.internal.http2.Huffman.encode
+import okhttp3.internal.http2.Huffman.encodeIfShorter
 import okhttp3.internal.http2.Huffman.encodedLength
 import okio.Buffer
 import okio.ByteString
+import okio.ByteString.Companion.decodeHex
 import okio.ByteString.Companion.encodeUtf8
 import okio.ByteString.Companion.toByteString
 import org.junit.jupiter.api.Assertions.assertEquals
@@ -42,10 +46,62 @@ class HuffmanTest {
     assertRoundTrip(buf.toByteString())
   }
 
+  @Test
+  fun decodeAcrossSegments() {
+    val data = "a".repeat(20_000).encodeUtf8()
+    val encodeBuffer = Buffer()
+    encode(data, encodeBuffer)
+    val source = Buffer().writeUtf8("prefix").write(encodeBuffer, encodeBuffer.size)
+    source.skip(6L)
+    val decodeBuffer = Buffer()
+    decode(source, source.size, decodeBuffer)
+    assertThat(decodeBuffer.readByteString()).isEqualTo(data)
+    assertThat(source.size).isEqualTo(0L)
+  }
+
+  @Test
+  fun decodeStopsAtByteCount() {
+    val encodeBuffer = Buffer()
+    encode("www.example.com".encodeUtf8(), encodeBuffer)
+    val byteCount = encodeBuffer.size
+    encodeBuffer.writeUtf8("trailing")
+    val decodeBuffer = Buffer()
+    decode(encodeBuffer, byteCount, decodeBuffer)
+    assertThat(decodeBuffer.readUtf8()).isEqualTo("www.example.com")
+    assertThat(encodeBuffer.readUtf8()).isEqualTo("trailing")
+  }
+
+  @Test
+  fun decodeEosFails() {
+    // EOS is 30 one bits. It must not appear in an encoded string.
+    val source = Buffer().write("ffffffff".decodeHex())
+    assertFailsWith<IOException> {
+      decode(source, source.size, Buffer())
+    }
+  }
+
+  @Test
+  fun encodeIfShorter() {
+    val sink = ByteArray(4)
+    assertThat(encodeIfShorter("aaaa".encodeUtf8(), sink)).isEqualTo(3)
+    assertThat(sink.toByteString(0, 3)).isEqualTo("18c63f".decodeHex())
+
+    // Characters with long codes don't get shorter.
+    assertThat(encodeIfShorter("{}{}".encodeUtf8(), sink)).isEqualTo(-1)
+    assertThat(encodeIfShorter(ByteString.EMPTY, ByteArray(0))).isEqualTo(-1)
+  }
+
   private fun assertRoundTrip(data: ByteString) {
     val encodeBuffer = Buffer()
     encode(data, encodeBuffer)
     assertThat(encodedLength(data).toLong()).isEqualTo(encodeBuffer.size)
+    val huffmanBytes = ByteArray(data.size)
+    val huffmanByteCount = encodeIfShorter(data, huffmanBytes)
+    if (encodeBuffer.size < data.size) {
+      assertThat(huffmanBytes.toByteString(0, huffmanByteCount)).isEqualTo(encodeBuffer.snapshot())
+    } else {
+      assertThat(huffmanByteCount).isEqualTo(-1)
+    }
     val decodeBuffer = Buffer()
     decode(encodeBuffer, encodeBuffer.size, decodeBuffer)
     assertEquals(data, decodeBuffer.readByteString())
@@ -200,6 +200,8 @@ class MockHttp2Peer : Closeable {
 
     @JvmField var payload2 = 0
 
+    @JvmField var origins: List<String>? = null
+
     override fun settings(
       clearPrevious: Boolean,
       settings: Settings,
@@ -317,6 +319,12 @@ class MockHttp2Peer : Closeable {
     ) {
       throw UnsupportedOperationException()
     }
+
+    override fun origin(origins: List<String>) {
+      check(type == -1)
+      this.type = Http2.TYPE_ORIGIN
+      this.origins = origins
+    }
   }
 
   companion object {
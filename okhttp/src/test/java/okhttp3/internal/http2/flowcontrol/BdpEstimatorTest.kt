@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2.flowcontrol
+
+import assertk.assertThat
+import assertk.assertions.isEqualTo
+import assertk.assertions.isFalse
+import assertk.assertions.isTrue
+import org.junit.jupiter.api.Test
+
+class BdpEstimatorTest {
+  private val estimator =
+    BdpEstimator(
+      windowSize = 1_000,
+      minWindowSize = 100,
+      maxWindowSize = 10_000,
+    )
+
+  @Test fun onlyOnePingOutstanding() {
+    assertThat(estimator.dataReceived(10, nowNanos = 0L)).isTrue()
+    assertThat(estimator.dataReceived(10, nowNanos = 1L)).isFalse()
+    assertThat(estimator.pongReceived(nowNanos = 2L)).isEqualTo(-1)
+    assertThat(estimator.sample).isEqualTo(20L)
+    assertThat(estimator.rttNanos).isEqualTo(2L)
+    assertThat(estimator.dataReceived(10, nowNanos = 3L)).isTrue()
+  }
+
+  @Test fun growsWhenSampleFillsWindow() {
+    measure(byteCount = 700, rttNanos = 10L)
+    assertThat(estimator.windowSize).isEqualTo(1_400)
+
+    measure(byteCount = 1_000, rttNanos = 10L)
+    assertThat(estimator.windowSize).isEqualTo(2_000)
+  }
+
+  @Test fun growthIsCappedAtMaximum() {
+    measure(byteCount = 700, rttNanos = 10L)
+    measure(byteCount = 1_000, rttNanos = 10L)
+    measure(byteCount = 2_000, rttNanos = 10L)
+    measure(byteCount = 4_000, rttNanos = 10L)
+    measure(byteCount = 8_000, rttNanos = 10L)
+    assertThat(estimator.windowSize).isEqualTo(10_000)
+    assertThat(measure(byteCount = 10_000, rttNanos = 10L)).isEqualTo(-1)
+  }
+
+  @Test fun doesNotGrowWhenBandwidthDrops() {
+    measure(byteCount = 700, rttNanos = 10L)
+    assertThat(estimator.windowSize).isEqualTo(1_400)
+
+    // The window is full but the data took much longer to arrive. A bigger window won't help.
+    assertThat(measure(byteCount = 1_000, rttNanos = 100L)).isEqualTo(-1)
+    assertThat(estimator.windowSize).isEqualTo(1_400)
+  }
+
+  @Test fun shrinksAfterConsecutiveSmallSamples() {
+    for (i in 1 until BdpEstimator.SHRINK_AFTER_SAMPLES) {
+      assertThat(measure(byteCount = 10, rttNanos = 10L)).isEqualTo(-1)
+    }
+    assertThat(measure(byteCount = 10, rttNanos = 10L)).isEqualTo(500)
+  }
+
+  @Test fun moderateSampleResetsShrinkCount() {
+    for (i in 1 until BdpEstimator.SHRINK_AFTER_SAMPLES) {
+      measure(byteCount = 10, rttNanos = 10L)
+    }
+    measure(byteCount = 300, rttNanos = 10L)
+    assertThat(measure(byteCount = 10, rttNanos = 10L)).isEqualTo(-1)
+    assertThat(estimator.windowSize).isEqualTo(1_000)
+  }
+
+  @Test fun shrinkingStopsAtMinimum() {
+    repeat(BdpEstimator.SHRINK_AFTER_SAMPLES * 10) {
+      measure(byteCount = 1, rttNanos = 10L)
+    }
+    assertThat(estimator.windowSize).isEqualTo(100)
+  }
+
+  @Test fun unexpectedPongIsIgnored() {
+    assertThat(estimator.pongReceived(nowNanos = 0L)).isEqualTo(-1)
+    assertThat(estimator.windowSize).isEqualTo(1_000)
+  }
+
+  private var nowNanos = 0L
+
+  /** Receives [byteCount] bytes in one round trip and returns the result of the pong. */
+  private fun measure(
+    byteCount: Int,
+    rttNanos: Long,
+  ): Int {
+    assertThat(estimator.dataReceived(byteCount, nowNanos)).isTrue()
+    nowNanos += rttNanos
+    return estimator.pongReceived(nowNanos)
+  }
+}
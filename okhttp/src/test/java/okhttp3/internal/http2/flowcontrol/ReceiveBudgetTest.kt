@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2024 Block, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2.flowcontrol
+
+import assertk.assertThat
+import assertk.assertions.isEqualTo
+import assertk.assertions.isFalse
+import assertk.assertions.isTrue
+import org.junit.jupiter.api.Test
+
+class ReceiveBudgetTest {
+  private val pool = ReceiveBudget().apply { limit = 100L }
+  private val connectionA = ReceiveBudget(parent = pool)
+  private val connectionB = ReceiveBudget(parent = pool)
+  private var notifications = 0
+
+  @Test fun childrenShareParentLimit() {
+    connectionA.acquire(60L)
+    assertThat(connectionA.isExhausted).isFalse()
+
+    connectionB.acquire(40L)
+    assertThat(pool.bufferedByteCount).isEqualTo(100L)
+    assertThat(connectionA.bufferedByteCount).isEqualTo(60L)
+    assertThat(connectionB.bufferedByteCount).isEqualTo(40L)
+    assertThat(connectionA.isExhausted).isTrue()
+    assertThat(connectionB.isExhausted).isTrue()
+
+    connectionA.release(60L)
+    assertThat(pool.bufferedByteCount).isEqualTo(40L)
+    assertThat(connectionB.isExhausted).isFalse()
+  }
+
+  @Test fun listenersNotifiedWhenBudgetHasRoomAgain() {
+    pool.addListener { notifications++ }
+
+    connectionA.acquire(150L)
+    connectionA.release(20L)
+    assertThat(notifications).isEqualTo(0)
+
+    connectionA.release(40L)
+    assertThat(notifications).isEqualTo(1)
+
+    connectionA.release(90L)
+    assertThat(notifications).isEqualTo(1)
+  }
+
+  @Test fun raisingLimitNotifiesListeners() {
+    pool.addListener { notifications++ }
+    connectionA.acquire(150L)
+
+    pool.limit = 200L
+    assertThat(notifications).isEqualTo(1)
+    assertThat(connectionA.isExhausted).isFalse()
+  }
+
+  @Test fun removedListenerIsNotNotified() {
+    val listener: () -> Unit = { notifications++ }
+    pool.addListener(listener)
+    pool.removeListener(listener)
+
+    connectionA.acquire(100L)
+    connectionA.release(100L)
+    assertThat(notifications).isEqualTo(0)
+  }
+}
@@ -29,6 +29,7 @@ if (graalBuild.toBoolean()) {
 
 include(":okcurl")
 include(":okhttp")
+include(":okhttp-benchmarks")
 include(":okhttp-bom")
 include(":okhttp-brotli")
 include(":okhttp-coroutines")